@@ -32,6 +32,7 @@ import org.rigel5.table.xml.*;
 import org.sirio6.services.bus.BUS;
 import org.sirio6.services.bus.BusContext;
 import org.sirio6.services.bus.BusMessages;
+import org.sirio6.services.bus.BusSubscription;
 import org.sirio6.services.bus.MessageBusListener;
 import org.sirio6.services.localization.INT;
 import org.sirio6.services.modellixml.modelliXML;
@@ -148,7 +149,7 @@ public class jslistaxmlBean implements HttpSessionBindingListener, MessageBusLis
   @Override
   public void valueBound(HttpSessionBindingEvent hsbe)
   {
-    BUS.registerEventListner(this);
+    BUS.registerEventListner(this, BusSubscription.of(BusMessages.RIGEL_XML_LIST_RELOADED));
   }
 
   @Override
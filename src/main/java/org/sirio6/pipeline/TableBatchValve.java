@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.pipeline;
+
+import java.io.IOException;
+import org.apache.turbine.pipeline.PipelineData;
+import org.apache.turbine.pipeline.Valve;
+import org.apache.turbine.pipeline.ValveContext;
+import org.apache.turbine.util.TurbineException;
+import org.sirio6.utils.tables.TableBatchContext;
+
+/**
+ * Valve da inserire in turbine-classic-pipeline.xml per aprire
+ * un TableBatchContext per tutta la durata della richiesta.
+ * I record letti restano memorizzati fino al termine della richiesta:
+ * la valve va usata solo per pipeline di richieste in sola lettura
+ * (visualizzazione). Per richieste che modificano dati aprire il contesto
+ * solo nella fase di rendering (vedi ToolRenderDatatableRigel).
+ * Le letture con una connessione esplicita non passano comunque dal contesto.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableBatchValve implements Valve
+{
+  @Override
+  public void invoke(PipelineData pipelineData, ValveContext context)
+     throws IOException, TurbineException
+  {
+    try (TableBatchContext bc = TableBatchContext.open())
+    {
+      // Pass control to the next Valve in the Pipeline
+      context.invokeNext(pipelineData);
+    }
+  }
+}
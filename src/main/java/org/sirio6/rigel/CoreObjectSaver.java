@@ -22,6 +22,7 @@ import java.sql.Connection;
 import java.util.Date;
 import java.util.UUID;
 import javax.servlet.http.HttpSession;
+import org.apache.torque.map.TableMap;
 import org.apache.torque.om.NumberKey;
 import org.apache.torque.om.ObjectKey;
 import org.apache.torque.om.Persistent;
@@ -29,6 +30,7 @@ import org.apache.turbine.util.RunData;
 import org.rigel5.db.torque.PeerTransactAgent;
 import org.rigel5.glue.PeerObjectSaver;
 import org.sirio6.CoreConst;
+import org.sirio6.services.bus.TableModifiedNotifier;
 import org.sirio6.services.security.SEC;
 import org.sirio6.utils.SU;
 import org.sirio6.utils.TR;
@@ -51,6 +53,7 @@ public class CoreObjectSaver implements PeerObjectSaver
      getStatoRecM, setStatoRecM, getUltModifM, setUltModifM, retrieveByPKM, setCreazioneM,
      getUuidM, setUuidM;
   protected int idAzienda, idApplicativo;
+  protected String tableName;
   protected int idUser = 0;
   protected boolean isAdmin = false;
   protected boolean strict = false;
@@ -149,6 +152,10 @@ public class CoreObjectSaver implements PeerObjectSaver
 
     getUuidM = getObjectMethod("getUuid");
     setUuidM = getObjectMethod("setUuid", String.class);
+
+    Method getTableMapM = getPeerMethod("getTableMap");
+    TableMap tm = getTableMapM == null ? null : (TableMap) getTableMapM.invoke(null);
+    tableName = tm == null ? null : tm.getName();
   }
 
   /**
@@ -516,6 +523,9 @@ public class CoreObjectSaver implements PeerObjectSaver
       setUuidM.invoke(obj, UUID.randomUUID().toString().toUpperCase());
 
     obj.save(dbCon);
+
+    // notifica agli ascoltatori (cache) la modifica della tabella alla conferma della transazione
+    TableModifiedNotifier.notifyModified(tableName, dbCon);
   }
 
   @Override
@@ -33,6 +33,7 @@ import org.rigel5.db.torque.PeerTransactAgent;
 import org.rigel5.exceptions.InvalidObjectException;
 import org.rigel5.glue.RecordObjectSaver;
 import org.sirio6.CoreConst;
+import org.sirio6.services.bus.TableModifiedNotifier;
 import org.sirio6.services.security.SEC;
 
 /**
@@ -501,6 +502,9 @@ public class CoreRecordObjectSaver implements RecordObjectSaver
       obj.setValue(colUuid.name(), UUID.randomUUID().toString().toUpperCase());
 
     obj.save(dbCon);
+
+    // notifica agli ascoltatori (cache) la modifica della tabella alla conferma della transazione
+    TableModifiedNotifier.notifyModified(sc.getTableName(), dbCon);
   }
 
   /**
@@ -20,10 +20,18 @@ package org.sirio6.rigel;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.fulcrum.cache.CachedObject;
 import org.rigel5.RigelCacheManager;
 import org.rigel5.table.ForeignDataHolder;
 import org.sirio6.CoreConst;
+import org.sirio6.services.bus.BUS;
+import org.sirio6.services.bus.BusContext;
+import org.sirio6.services.bus.BusMessages;
+import org.sirio6.services.bus.BusSubscription;
+import org.sirio6.services.bus.MessageBusListener;
+import org.sirio6.services.bus.TableModifiedNotifier;
 import org.sirio6.services.cache.CACHE;
 import org.sirio6.utils.SU;
 
@@ -31,13 +39,60 @@ import org.sirio6.utils.SU;
  * Gestore della cache per Rigel.
  * Memorizza i dati della cache di Rigel attraverso
  * il servizio GlobalCacheService.
+ * I dati relativi ad una tabella vengono rimossi alla ricezione
+ * del messaggio BusMessages.TABLE_MODIFIED (salvataggio di un record).
+ * La scadenza lunga RIGEL_CACHE_EXPIRE_INVALIDATED si applica solo se
+ * l'ascoltatore è registrato e le notifiche sono legate alla conferma
+ * delle transazioni; altrimenti resta RIGEL_CACHE_EXPIRE.
  *
  * @author Nicola De Nisco
  */
-public class CoreRigelCacheManager implements RigelCacheManager
+public class CoreRigelCacheManager implements RigelCacheManager, MessageBusListener
 {
+  private static final Log log = LogFactory.getLog(CoreRigelCacheManager.class);
+
   public static final String RIGEL_CACHE_SECTION = "RIGEL_CACHE_SECTION";
   public static final long RIGEL_CACHE_EXPIRE = 30 * CoreConst.ONE_MINUTE_MILLIS;
+  /** scadenza con invalidazione al salvataggio garantita (vedi TableModifiedNotifier) */
+  public static final long RIGEL_CACHE_EXPIRE_INVALIDATED = 4 * CoreConst.ONE_HOUR_MILLIS;
+
+  /** vero se l'ascoltatore di TABLE_MODIFIED è stato registrato */
+  private boolean listenerRegistered;
+
+  public CoreRigelCacheManager()
+  {
+    // il costruttore viene chiamato durante l'inizializzazione dei servizi:
+    // un errore di registrazione non deve interromperla
+    try
+    {
+      BUS.registerEventListner(this, BusSubscription.of(BusMessages.TABLE_MODIFIED));
+      listenerRegistered = true;
+    }
+    catch(Throwable t)
+    {
+      log.error("CoreRigelCacheManager: ascoltatore TABLE_MODIFIED non registrato; uso scadenze brevi.", t);
+    }
+  }
+
+  /**
+   * Vero se i dati in cache vengono invalidati ad ogni salvataggio confermato.
+   * Stessa regola di TableCacheLoader.isInvalidationGuaranteed().
+   * @return vero se si possono usare scadenze lunghe
+   */
+  public boolean isInvalidationGuaranteed()
+  {
+    return listenerRegistered && TableModifiedNotifier.isCommitHookInstalled();
+  }
+
+  @Override
+  public int message(int msgID, Object originator, BusContext context)
+     throws Exception
+  {
+    if(msgID == BusMessages.TABLE_MODIFIED)
+      purgeTabella(context.getAsString("table"));
+
+    return 0;
+  }
 
   @Override
   public List<ForeignDataHolder> getForeignDataList(String chiave)
@@ -96,7 +151,8 @@ public class CoreRigelCacheManager implements RigelCacheManager
   @Override
   public void putGenericCachedData(String chiave, Object data)
   {
-    CACHE.addObject(RIGEL_CACHE_SECTION, chiave, new CachedObject(data, RIGEL_CACHE_EXPIRE));
+    long expire = isInvalidationGuaranteed() ? RIGEL_CACHE_EXPIRE_INVALIDATED : RIGEL_CACHE_EXPIRE;
+    CACHE.addObject(RIGEL_CACHE_SECTION, chiave, new CachedObject(data, expire));
   }
 
   /**
@@ -52,6 +52,7 @@ import org.sirio6.services.modellixml.MDL;
 import org.sirio6.utils.CoreRunData;
 import org.sirio6.utils.SU;
 import org.sirio6.utils.TR;
+import org.sirio6.utils.tables.TableBatchContext;
 import org.sirio6.utils.velocity.VelocityParser;
 
 /**
@@ -106,8 +107,12 @@ public class ToolRenderDatatableRigel
     if(ctx == null)
       throw new Exception(INT.I("Context non presente in sessione; tool non disponibile."));
 
-    JSONObject rv = renderCoreJson((CoreRunData) data, ctx);
-    return rv.toString();
+    // le ricerche di chiavi esterne durante il rendering vengono raccolte a lotti
+    try (TableBatchContext bc = TableBatchContext.open())
+    {
+      JSONObject rv = renderCoreJson((CoreRunData) data, ctx);
+      return rv.toString();
+    }
   }
 
   /**
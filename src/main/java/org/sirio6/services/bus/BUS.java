@@ -19,6 +19,7 @@ package org.sirio6.services.bus;
 
 import java.sql.Connection;
 import java.util.Collection;
+import java.util.List;
 import org.apache.turbine.services.TurbineServices;
 
 /**
@@ -48,6 +49,18 @@ public class BUS
     getService().registerEventListner(name, listener);
   }
 
+  /**
+   * Aggiunge un ascoltatore di eventi al bus.
+   * L'ascoltatore riceverà solo i messaggi indicati nella sottoscrizione.
+   * @param name nome simbolico con cui un ascoltatore si registra sul bus eventi.
+   * @param listener ascoltatore dei messaggi
+   * @param subscription messaggi di interesse (null = tutti)
+   */
+  public static void registerEventListner(String name, MessageBusListener listener, BusSubscription subscription)
+  {
+    getService().registerEventListner(name, listener, subscription);
+  }
+
   /**
    * Aggiunge un ascoltatore di eventi al bus.
    * Il nome dell'ascoltatore è il nome della classe.
@@ -58,6 +71,18 @@ public class BUS
     getService().registerEventListner(listener.getClass().getName(), listener);
   }
 
+  /**
+   * Aggiunge un ascoltatore di eventi al bus.
+   * Il nome dell'ascoltatore è il nome della classe.
+   * L'ascoltatore riceverà solo i messaggi indicati nella sottoscrizione.
+   * @param listener ascoltatore dei messaggi
+   * @param subscription messaggi di interesse (null = tutti)
+   */
+  public static void registerEventListner(MessageBusListener listener, BusSubscription subscription)
+  {
+    getService().registerEventListner(listener.getClass().getName(), listener, subscription);
+  }
+
   /**
    * Rimuove un ascoltatore.
    * @param name simbolico con il quale l'ascoltatore si è registrato
@@ -206,6 +231,40 @@ public class BUS
     getService().sendMessagePackAsync(clQueue);
   }
 
+  /**
+   * Ritorna i messaggi asincroni ritardati non ancora inviati.
+   * @return lista dei messaggi in ordine di invio previsto
+   */
+  public static List<MessageBus.QueueInfo> getPendingMessages()
+  {
+    return getService().getPendingMessages();
+  }
+
+  /**
+   * Annulla l'invio di un messaggio ritardato.
+   * @param id identificativo del messaggio (QueueInfo.id)
+   * @return vero se il messaggio era in attesa ed è stato annullato
+   */
+  public static boolean cancelPendingMessage(long id)
+  {
+    return getService().cancelPendingMessage(id);
+  }
+
+  /**
+   * Dichiara un messaggio accorpabile nell'invio asincrono.
+   * I messaggi con lo stesso msgID e lo stesso valore del campo keyName
+   * del contesto inviati entro windowMillis dal primo vengono spediti
+   * una sola volta; il campo "count" del contesto riporta il numero
+   * di messaggi accorpati.
+   * @param msgID id del messaggio
+   * @param windowMillis finestra di accorpamento (0 = rimuove la regola)
+   * @param keyName campo del contesto che distingue i messaggi (null = solo msgID)
+   */
+  public static void setCoalescing(int msgID, long windowMillis, String keyName)
+  {
+    getService().setCoalescing(msgID, windowMillis, keyName);
+  }
+
   /**
    * Ritorna helper per memorizzazione eventi da inviare in ritardo.
    * @return istanza dell'helper
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Regola di accorpamento dei messaggi asincroni.
+ * I messaggi con lo stesso msgID e lo stesso valore della chiave
+ * di contesto (keyName) inviati entro windowMillis dal primo vengono
+ * spediti una sola volta; il campo "count" del contesto riporta
+ * il numero di messaggi accorpati.
+ * Conserva i contatori di messaggi ricevuti, accorpati e spediti.
+ *
+ * @author Nicola De Nisco
+ */
+public class BusCoalescing
+{
+  private final int msgID;
+  private final long windowMillis;
+  private final String keyName;
+  private final LongAdder received = new LongAdder(), coalesced = new LongAdder(), delivered = new LongAdder();
+
+  public BusCoalescing(int msgID, long windowMillis, String keyName)
+  {
+    this.msgID = msgID;
+    this.windowMillis = windowMillis;
+    this.keyName = keyName;
+  }
+
+  /**
+   * Ritorna la chiave di accorpamento del messaggio.
+   * @param qi messaggio
+   * @return msgID più valore della chiave di contesto
+   */
+  public String getKey(MessageBus.QueueInfo qi)
+  {
+    if(keyName == null)
+      return Integer.toString(msgID);
+
+    Object val = qi.context == null ? null : qi.context.get(keyName);
+    return msgID + ":" + val;
+  }
+
+  public void addReceived()
+  {
+    received.increment();
+  }
+
+  public void addCoalesced()
+  {
+    coalesced.increment();
+  }
+
+  public void addDelivered()
+  {
+    delivered.increment();
+  }
+
+  public int getMsgID()
+  {
+    return msgID;
+  }
+
+  public long getWindowMillis()
+  {
+    return windowMillis;
+  }
+
+  public String getKeyName()
+  {
+    return keyName;
+  }
+
+  public long getReceived()
+  {
+    return received.sum();
+  }
+
+  public long getCoalesced()
+  {
+    return coalesced.sum();
+  }
+
+  public long getDelivered()
+  {
+    return delivered.sum();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "msgID=" + msgID + " windowMs=" + windowMillis + " key=" + keyName
+       + " received=" + getReceived() + " coalesced=" + getCoalesced() + " delivered=" + getDelivered();
+  }
+}
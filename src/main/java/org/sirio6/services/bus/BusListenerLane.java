@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Corsia di esecuzione isolata di un ascoltatore del bus.
+ * Ogni ascoltatore elabora i messaggi asincroni su thread propri:
+ * i messaggi attendono in una coda FIFO della corsia, prelevati da al massimo
+ * 'concurrency' thread; oltre 'concurrency' + 'queueSize' messaggi la corsia
+ * è satura e i messaggi successivi restano nella coda di attesa della corsia
+ * (backlog), trasferiti in ordine all'esecutore man mano che si liberano posti.
+ * Il backlog è limitato da 'maxBacklog' (0 = illimitato): oltre il limite offer()
+ * rifiuta il messaggio mentre put() attende un posto libero (contropressione
+ * verso chi consegna).
+ * Se la JVM li supporta (Java 21+) e sono richiesti i thread della corsia
+ * sono virtual thread, altrimenti thread di piattaforma: il comportamento
+ * (ordine di elaborazione e limiti) è lo stesso nei due casi.
+ *
+ * @author Nicola De Nisco
+ */
+public class BusListenerLane
+{
+  private static boolean virtualSupported = false;
+  private static boolean virtualChecked = false;
+
+  private final String name;
+  private final int concurrency, queueSize;
+  private final int maxBacklog;
+  private final Semaphore slots;
+  private final ArrayDeque<Runnable> backlog = new ArrayDeque<>();
+  private final ThreadPoolExecutor executor;
+  private final boolean virtual;
+
+  public BusListenerLane(String name, int concurrency, int queueSize, boolean useVirtualThreads)
+  {
+    this(name, concurrency, queueSize, useVirtualThreads, 0);
+  }
+
+  public BusListenerLane(String name, int concurrency, int queueSize, boolean useVirtualThreads, int maxBacklog)
+  {
+    this.name = name;
+    this.concurrency = Math.max(1, concurrency);
+    this.queueSize = Math.max(0, queueSize);
+    this.maxBacklog = Math.max(0, maxBacklog);
+    this.slots = new Semaphore(this.concurrency + this.queueSize);
+
+    ThreadFactory tf = useVirtualThreads ? getVirtualThreadFactory("buslane-" + name) : null;
+    virtual = tf != null;
+    if(tf == null)
+    {
+      tf = (r) ->
+      {
+        Thread t = new Thread(r);
+        t.setName("buslane-" + name);
+        t.setDaemon(true);
+        return t;
+      };
+    }
+
+    // al massimo concurrency thread prelevano in ordine dalla coda della corsia;
+    // la dimensione della coda è limitata da slots
+    executor = new ThreadPoolExecutor(this.concurrency, this.concurrency,
+       60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), tf);
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Ritorna una fabbrica di virtual thread se disponibile.
+   * I metodi sono cercati per reflection per compilare con Java 11.
+   * @param threadName nome dei thread creati
+   * @return fabbrica oppure null se non supportata dalla JVM
+   */
+  protected static synchronized ThreadFactory getVirtualThreadFactory(String threadName)
+  {
+    if(virtualChecked && !virtualSupported)
+      return null;
+
+    virtualChecked = true;
+    try
+    {
+      Class<?> clBuilder = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = clBuilder.getMethod("name", String.class).invoke(builder, threadName);
+      ThreadFactory rv = (ThreadFactory) clBuilder.getMethod("factory").invoke(builder);
+      virtualSupported = true;
+      return rv;
+    }
+    catch(Exception ex)
+    {
+      virtualSupported = false;
+      return null;
+    }
+  }
+
+  /**
+   * Consegna un messaggio all'ascoltatore senza attendere.
+   * A corsia satura il messaggio resta nel backlog della corsia.
+   * @param task elaborazione del messaggio
+   * @return falso se anche il backlog è pieno (messaggio non consegnato)
+   * @throws RejectedExecutionException se la corsia è stata chiusa
+   */
+  public synchronized boolean offer(Runnable task)
+  {
+    if(backlog.isEmpty() && slots.tryAcquire())
+    {
+      execute(task);
+      return true;
+    }
+
+    if(maxBacklog > 0 && backlog.size() >= maxBacklog)
+      return false;
+
+    backlog.add(task);
+    return true;
+  }
+
+  /**
+   * Consegna un messaggio all'ascoltatore attendendo, se necessario,
+   * che si liberi un posto nel backlog della corsia.
+   * @param task elaborazione del messaggio
+   * @throws InterruptedException se l'attesa viene interrotta
+   * @throws RejectedExecutionException se la corsia è stata chiusa
+   */
+  public synchronized void put(Runnable task)
+     throws InterruptedException
+  {
+    while(!offer(task))
+    {
+      if(executor.isShutdown())
+        throw new RejectedExecutionException("Corsia " + name + " chiusa.");
+
+      wait(1000);
+    }
+  }
+
+  private void execute(Runnable task)
+  {
+    try
+    {
+      executor.execute(() -> run(task));
+    }
+    catch(RejectedExecutionException ex)
+    {
+      slots.release();
+      throw ex;
+    }
+  }
+
+  private void run(Runnable task)
+  {
+    try
+    {
+      task.run();
+    }
+    finally
+    {
+      slots.release();
+      drain();
+    }
+  }
+
+  /**
+   * Trasferisce all'esecutore i messaggi del backlog per i posti liberi.
+   */
+  private synchronized void drain()
+  {
+    try
+    {
+      while(!backlog.isEmpty() && slots.tryAcquire())
+        execute(backlog.poll());
+    }
+    catch(RejectedExecutionException ex)
+    {
+      // corsia chiusa: i messaggi residui non vengono elaborati
+      backlog.clear();
+    }
+
+    notifyAll();
+  }
+
+  /**
+   * Chiude la corsia; le elaborazioni in corso e in coda vengono completate.
+   */
+  public void shutdown()
+  {
+    executor.shutdown();
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public int getConcurrency()
+  {
+    return concurrency;
+  }
+
+  public int getQueueSize()
+  {
+    return queueSize;
+  }
+
+  public int getMaxBacklog()
+  {
+    return maxBacklog;
+  }
+
+  public boolean isVirtual()
+  {
+    return virtual;
+  }
+
+  /**
+   * Ritorna il numero di messaggi consegnati e non ancora elaborati.
+   * @return messaggi in elaborazione o in attesa (backlog compreso)
+   */
+  public synchronized int getInFlight()
+  {
+    return concurrency + queueSize - slots.availablePermits() + backlog.size();
+  }
+
+  /**
+   * Ritorna il numero di messaggi in attesa di un posto nella corsia.
+   * @return messaggi nel backlog
+   */
+  public synchronized int getBacklog()
+  {
+    return backlog.size();
+  }
+
+  @Override
+  public String toString()
+  {
+    return name + " concurrency=" + concurrency + " queueSize=" + queueSize
+       + " maxBacklog=" + maxBacklog + " inFlight=" + getInFlight() + " virtual=" + virtual;
+  }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistiche di elaborazione di un ascoltatore del bus.
+ * Conserva i contatori di chiamate, errori, timeout e messaggi scartati
+ * e un istogramma dei tempi di elaborazione.
+ * Un ascoltatore lento per troppe volte consecutive viene parcheggiato:
+ * durante il parcheggio non riceve i messaggi asincroni.
+ *
+ * @author Nicola De Nisco
+ */
+public class BusListenerStats
+{
+  /** limiti superiori (inclusi) delle fasce dell'istogramma; l'ultima fascia raccoglie i superiori */
+  public static final long[] LATENCY_BUCKETS_MILLIS =
+  {
+    1, 5, 10, 50, 150, 500, 1000, 5000
+  };
+
+  private final String name;
+  private final LongAdder calls = new LongAdder(), errors = new LongAdder(),
+     timeouts = new LongAdder(), shed = new LongAdder(), parks = new LongAdder(), totalMillis = new LongAdder();
+  private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BUCKETS_MILLIS.length + 1);
+  private int consecutiveSlow;
+  private volatile long parkedUntil;
+
+  public BusListenerStats(String name)
+  {
+    this.name = name;
+  }
+
+  /**
+   * Registra una elaborazione.
+   * @param elapsedMillis tempo di elaborazione
+   * @param slow vero se l'elaborazione è considerata lenta
+   * @param slowLimit numero di elaborazioni lente consecutive per il parcheggio (0 = mai)
+   * @param parkMillis durata del parcheggio
+   * @return vero se l'ascoltatore è stato parcheggiato
+   */
+  public boolean record(long elapsedMillis, boolean slow, int slowLimit, long parkMillis)
+  {
+    calls.increment();
+    totalMillis.add(elapsedMillis);
+
+    int i = 0;
+    while(i < LATENCY_BUCKETS_MILLIS.length && elapsedMillis > LATENCY_BUCKETS_MILLIS[i])
+      i++;
+    histogram.incrementAndGet(i);
+
+    synchronized(this)
+    {
+      if(!slow)
+      {
+        consecutiveSlow = 0;
+        return false;
+      }
+
+      if(slowLimit <= 0 || ++consecutiveSlow < slowLimit)
+        return false;
+
+      consecutiveSlow = 0;
+      parkedUntil = System.currentTimeMillis() + parkMillis;
+      parks.increment();
+      return true;
+    }
+  }
+
+  public void addError()
+  {
+    errors.increment();
+  }
+
+  public void addTimeout()
+  {
+    timeouts.increment();
+  }
+
+  public void addShed()
+  {
+    shed.increment();
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public boolean isParked()
+  {
+    return parkedUntil > System.currentTimeMillis();
+  }
+
+  public long getParkedUntil()
+  {
+    return parkedUntil;
+  }
+
+  /**
+   * Termina anticipatamente il parcheggio.
+   */
+  public void unpark()
+  {
+    parkedUntil = 0;
+  }
+
+  public long getCalls()
+  {
+    return calls.sum();
+  }
+
+  public long getErrors()
+  {
+    return errors.sum();
+  }
+
+  public long getTimeouts()
+  {
+    return timeouts.sum();
+  }
+
+  public long getShed()
+  {
+    return shed.sum();
+  }
+
+  public long getParks()
+  {
+    return parks.sum();
+  }
+
+  public double getAvgMillis()
+  {
+    long n = calls.sum();
+    return n == 0 ? 0.0 : (double) totalMillis.sum() / n;
+  }
+
+  /**
+   * Ritorna l'istogramma dei tempi di elaborazione.
+   * @return conteggi per fascia (vedi LATENCY_BUCKETS_MILLIS)
+   */
+  public long[] getLatencyHistogram()
+  {
+    long[] rv = new long[histogram.length()];
+    for(int i = 0; i < rv.length; i++)
+      rv[i] = histogram.get(i);
+    return rv;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(Locale.US,
+       "%s calls=%d avgMs=%.2f errors=%d timeouts=%d shed=%d parks=%d parked=%s",
+       name, getCalls(), getAvgMillis(), getErrors(), getTimeouts(), getShed(), getParks(), isParked());
+  }
+}
@@ -32,6 +32,8 @@ public class BusMessages
 
   public static final int GENERIC_OBJECT_SAVED = 201;
   public static final int GENERIC_OBJECTS_SAVED = 202;
+  /** tabella modificata: context "table" nome tabella, "count" numero di salvataggi accorpati */
+  public static final int TABLE_MODIFIED = 203;
 
   // varie
   public static final int CMD_UPDATE_PEER = 110;
@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.function.Consumer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sirio6.services.localization.INT;
+
+/**
+ * Outbox dei messaggi transazionali.
+ * I messaggi inviati con sendMessageTransaction vengono registrati
+ * sulla connessione della transazione corrente e consegnati solo dopo
+ * la conferma (commit); in caso di annullamento (rollback) vengono scartati.
+ * Se è indicata una tabella i messaggi vengono anche scritti su db nella
+ * stessa transazione e cancellati dopo la spedizione: al riavvio i messaggi
+ * rimasti (confermati ma non spediti) vengono recuperati; vengono recuperati solo
+ * i messaggi registrati prima della creazione dell'outbox, quelli successivi
+ * sono già in coda di spedizione.
+ * Struttura della tabella (esempio PostgreSQL):
+ * <pre>
+ * CREATE TABLE bus_outbox (
+ *   outbox_id VARCHAR(36) NOT NULL PRIMARY KEY,
+ *   msg_id INTEGER NOT NULL,
+ *   originator VARCHAR(255),
+ *   context BYTEA,
+ *   created TIMESTAMP NOT NULL
+ * );
+ * </pre>
+ * Il contesto viene salvato solo se serializzabile; l'originator
+ * viene salvato come nome di classe e recuperato come stringa.
+ * Alla lettura il contesto viene filtrato (ObjectInputFilter, vedi setContextFilter):
+ * per default sono ammessi solo tipi base del jdk e classi org.sirio6.
+ *
+ * @author Nicola De Nisco
+ */
+public class BusOutbox
+{
+  private static final Log log = LogFactory.getLog(BusOutbox.class);
+  /** Filtro di default per la lettura del contesto. */
+  public static final String DEFAULT_CONTEXT_FILTER
+     = "maxdepth=32;maxrefs=100000;maxbytes=10000000;"
+     + "java.lang.*;java.util.*;java.math.*;java.sql.*;java.time.*;org.sirio6.**;!*";
+
+  /** Messaggio in attesa di conferma della transazione. */
+  public static class Entry
+  {
+    public final String id;
+    public final MessageBus.QueueInfo qi;
+
+    public Entry(String id, MessageBus.QueueInfo qi)
+    {
+      this.id = id;
+      this.qi = qi;
+    }
+  }
+
+  /** messaggi per transazione (connessione) */
+  protected final Map<Connection, List<Entry>> pending = Collections.synchronizedMap(new WeakHashMap<>());
+  /** tabella per la persistenza (null = solo in memoria) */
+  protected final String tableName;
+  /** destinazione dei messaggi dopo la conferma */
+  protected final Consumer<List<Entry>> committed;
+  /** creazione dell'outbox: limite dei messaggi da recuperare */
+  protected final Timestamp startTime = new Timestamp(System.currentTimeMillis());
+  /** filtro per la lettura del contesto */
+  protected ObjectInputFilter contextFilter = ObjectInputFilter.Config.createFilter(DEFAULT_CONTEXT_FILTER);
+
+  public BusOutbox(String tableName, Consumer<List<Entry>> committed)
+  {
+    this.tableName = tableName;
+    this.committed = committed;
+  }
+
+  /**
+   * Imposta il filtro delle classi ammesse nel contesto recuperato.
+   * @param pattern filtro nella sintassi di ObjectInputFilter.Config.createFilter
+   */
+  public void setContextFilter(String pattern)
+  {
+    contextFilter = ObjectInputFilter.Config.createFilter(pattern);
+  }
+
+  public Timestamp getStartTime()
+  {
+    return startTime;
+  }
+
+  public boolean isDurable()
+  {
+    return tableName != null;
+  }
+
+  /**
+   * Registra un messaggio sulla transazione.
+   * @param con connessione sotto transazione
+   * @param qi messaggio
+   * @throws Exception
+   */
+  public void record(Connection con, MessageBus.QueueInfo qi)
+     throws Exception
+  {
+    Entry e = new Entry(UUID.randomUUID().toString(), qi);
+
+    if(isDurable())
+      store(con, e);
+
+    pending.computeIfAbsent(con, (k) -> new ArrayList<>()).add(e);
+  }
+
+  /**
+   * Transazione confermata: i messaggi registrati vengono spediti.
+   * @param con connessione della transazione
+   */
+  public void afterCommit(Connection con)
+  {
+    List<Entry> lsEntry = pending.remove(con);
+    if(lsEntry != null && !lsEntry.isEmpty())
+      committed.accept(lsEntry);
+  }
+
+  /**
+   * Transazione annullata: i messaggi registrati vengono scartati.
+   * @param con connessione della transazione
+   */
+  public void afterRollback(Connection con)
+  {
+    pending.remove(con);
+  }
+
+  /**
+   * Numero di transazioni con messaggi in attesa di conferma.
+   * @return numero di transazioni
+   */
+  public int getPendingTransactions()
+  {
+    return pending.size();
+  }
+
+  protected void store(Connection con, Entry e)
+     throws Exception
+  {
+    String sSQL = "INSERT INTO " + tableName
+       + " (outbox_id, msg_id, originator, context, created) VALUES (?, ?, ?, ?, ?)";
+
+    try(PreparedStatement ps = con.prepareStatement(sSQL))
+    {
+      ps.setString(1, e.id);
+      ps.setInt(2, e.qi.msgID);
+      ps.setString(3, e.qi.originator == null ? null : originatorName(e.qi.originator));
+      ps.setBytes(4, serializeContext(e.qi));
+      ps.setTimestamp(5, new Timestamp(System.currentTimeMillis()));
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Cancella dalla tabella i messaggi spediti.
+   * @param lsEntry messaggi spediti
+   * @param con connessione sotto transazione
+   * @throws Exception
+   */
+  public void delete(List<Entry> lsEntry, Connection con)
+     throws Exception
+  {
+    if(!isDurable() || lsEntry.isEmpty())
+      return;
+
+    try(PreparedStatement ps = con.prepareStatement("DELETE FROM " + tableName + " WHERE outbox_id=?"))
+    {
+      for(Entry e : lsEntry)
+      {
+        ps.setString(1, e.id);
+        ps.addBatch();
+      }
+      ps.executeBatch();
+    }
+  }
+
+  /**
+   * Carica i messaggi confermati e non ancora spediti
+   * registrati prima della creazione di questo outbox.
+   * @param con connessione
+   * @return messaggi in ordine di registrazione
+   * @throws Exception
+   */
+  public List<Entry> load(Connection con)
+     throws Exception
+  {
+    return load(con, startTime);
+  }
+
+  /**
+   * Carica i messaggi confermati e non ancora spediti.
+   * @param con connessione
+   * @param createdBefore limite di registrazione dei messaggi (null = tutti)
+   * @return messaggi in ordine di registrazione
+   * @throws Exception
+   */
+  public List<Entry> load(Connection con, Timestamp createdBefore)
+     throws Exception
+  {
+    ArrayList<Entry> rv = new ArrayList<>();
+    if(!isDurable())
+      return rv;
+
+    String sSQL = "SELECT outbox_id, msg_id, originator, context FROM " + tableName
+       + (createdBefore == null ? "" : " WHERE created < ?")
+       + " ORDER BY created";
+
+    try(PreparedStatement ps = con.prepareStatement(sSQL))
+    {
+      if(createdBefore != null)
+        ps.setTimestamp(1, createdBefore);
+
+      try(ResultSet rs = ps.executeQuery())
+      {
+        while(rs.next())
+        {
+          MessageBus.QueueInfo qi = new MessageBus.QueueInfo();
+          qi.msgID = rs.getInt(2);
+          qi.originator = rs.getString(3);
+          qi.context = deserializeContext(rs.getBytes(4));
+          rv.add(new Entry(rs.getString(1), qi));
+        }
+      }
+    }
+
+    return rv;
+  }
+
+  protected String originatorName(Object originator)
+  {
+    return originator instanceof Class ? ((Class) originator).getName() : originator.getClass().getName();
+  }
+
+  protected byte[] serializeContext(MessageBus.QueueInfo qi)
+  {
+    if(qi.context == null)
+      return null;
+
+    try(ByteArrayOutputStream bos = new ByteArrayOutputStream();
+       ObjectOutputStream oos = new ObjectOutputStream(bos))
+    {
+      oos.writeObject(new HashMap<>(qi.context));
+      oos.flush();
+      return bos.toByteArray();
+    }
+    catch(Exception ex)
+    {
+      log.warn(INT.I("Contesto del messaggio %d non serializzabile: non verrà recuperato.", qi.msgID));
+      return null;
+    }
+  }
+
+  protected BusContext deserializeContext(byte[] data)
+  {
+    if(data == null)
+      return null;
+
+    try(ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data)))
+    {
+      ois.setObjectInputFilter(contextFilter);
+      return new BusContext((Map<String, Object>) ois.readObject());
+    }
+    catch(Exception ex)
+    {
+      log.error(INT.I("Contesto di un messaggio recuperato non leggibile."), ex);
+      return null;
+    }
+  }
+}
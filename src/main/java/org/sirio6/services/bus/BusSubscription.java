@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.util.Arrays;
+
+/**
+ * Insieme dei messaggi di interesse di un ascoltatore.
+ * Passato alla registrazione consente al bus di spedire all'ascoltatore
+ * solo i messaggi indicati invece di tutti i messaggi.
+ * <pre>
+ * BUS.registerEventListner("pippo", listener,
+ *    BusSubscription.of(BusMessages.USER_LOGON, BusMessages.USER_LOGOUT).range(2000, 2999));
+ * </pre>
+ * Alla registrazione il bus conserva una copia congelata della sottoscrizione:
+ * modifiche successive all'oggetto originale non hanno effetto sull'ascoltatore già registrato.
+ *
+ * @author Nicola De Nisco
+ */
+public class BusSubscription
+{
+  private int[] msgIDs = new int[0];
+  private int[][] ranges = new int[0][];
+  private final boolean frozen;
+
+  public BusSubscription()
+  {
+    frozen = false;
+  }
+
+  private BusSubscription(BusSubscription origin)
+  {
+    msgIDs = origin.msgIDs.clone();
+    ranges = origin.ranges.clone();
+    frozen = true;
+  }
+
+  /**
+   * Crea una sottoscrizione per i messaggi indicati.
+   * @param msgIDs id dei messaggi
+   * @return sottoscrizione
+   */
+  public static BusSubscription of(int... msgIDs)
+  {
+    return new BusSubscription().add(msgIDs);
+  }
+
+  /**
+   * Aggiunge messaggi alla sottoscrizione.
+   * @param ids id dei messaggi
+   * @return questa sottoscrizione
+   */
+  public BusSubscription add(int... ids)
+  {
+    checkFrozen();
+    int[] arIDs = Arrays.copyOf(msgIDs, msgIDs.length + ids.length);
+    System.arraycopy(ids, 0, arIDs, msgIDs.length, ids.length);
+    Arrays.sort(arIDs);
+    msgIDs = arIDs;
+    return this;
+  }
+
+  /**
+   * Aggiunge un intervallo di messaggi alla sottoscrizione.
+   * @param fromID primo id (incluso)
+   * @param toID ultimo id (incluso)
+   * @return questa sottoscrizione
+   */
+  public BusSubscription range(int fromID, int toID)
+  {
+    checkFrozen();
+    int[][] arRanges = Arrays.copyOf(ranges, ranges.length + 1);
+    arRanges[ranges.length] = new int[]
+    {
+      Math.min(fromID, toID), Math.max(fromID, toID)
+    };
+    ranges = arRanges;
+    return this;
+  }
+
+  /**
+   * Ritorna una copia non modificabile della sottoscrizione.
+   * @return copia congelata (questo oggetto se già congelato)
+   */
+  public BusSubscription freeze()
+  {
+    return frozen ? this : new BusSubscription(this);
+  }
+
+  /**
+   * Verifica se la sottoscrizione è non modificabile.
+   * @return vero se congelata
+   */
+  public boolean isFrozen()
+  {
+    return frozen;
+  }
+
+  private void checkFrozen()
+  {
+    if(frozen)
+      throw new IllegalStateException("Sottoscrizione non modificabile.");
+  }
+
+  /**
+   * Verifica se il messaggio è di interesse.
+   * @param msgID id del messaggio
+   * @return vero se compreso nella sottoscrizione
+   */
+  public boolean matches(int msgID)
+  {
+    if(Arrays.binarySearch(msgIDs, msgID) >= 0)
+      return true;
+
+    for(int[] r : ranges)
+    {
+      if(msgID >= r[0] && msgID <= r[1])
+        return true;
+    }
+
+    return false;
+  }
+
+  @Override
+  public String toString()
+  {
+    StringBuilder sb = new StringBuilder(Arrays.toString(msgIDs));
+    for(int[] r : ranges)
+      sb.append(" [").append(r[0]).append('-').append(r[1]).append(']');
+    return sb.toString();
+  }
+}
@@ -19,18 +19,110 @@ package org.sirio6.services.bus;
 
 import java.sql.Connection;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.torque.util.Transaction;
 import org.apache.turbine.services.BaseService;
 import org.commonlib5.utils.SimpleTimer;
+import org.rigel5.db.torque.PeerTransactAgent;
 import org.sirio6.services.localization.INT;
 
 /**
  * Implementazione del message bus.
+ * I messaggi asincroni con ritardo vengono conservati in una DelayQueue
+ * e passati alla coda di spedizione da un thread dedicato ('busdelay')
+ * nel momento in cui scade il loro ritardo.
+ * Un messaggio non viene mai passato alla coda di spedizione prima di uno precedente
+ * dello stesso mittente (esclusi i messaggi accorpabili, vedi sotto).
+ * La spedizione asincrona è eseguita da asyncWorkers thread ('busasync-N'):
+ * i messaggi vengono ripartiti per chiave (QueueInfo.partitionKey o msgID),
+ * quindi i messaggi con la stessa chiave vengono spediti nell'ordine di accodamento.
+ * L'ordine di spedizione dei messaggi di uno stesso mittente è quindi garantito solo
+ * con un solo thread di spedizione, per messaggi con la stessa chiave oppure con
+ * partitionBySender=true (chiave di default = mittente invece di msgID).
+ * Nella spedizione asincrona ogni ascoltatore può avere un tempo massimo
+ * di elaborazione (listenerTimeoutMillis); un ascoltatore lento (oltre delayWarningMillis)
+ * per slowListenerCount volte consecutive viene parcheggiato per
+ * slowListenerParkMillis e nel frattempo non riceve messaggi asincroni.
+ * Con listenerTimeoutMillis ogni ascoltatore viene eseguito in un proprio thread
+ * ('buslistener-nome'): allo scadere del tempo l'elaborazione viene interrotta e
+ * l'ascoltatore viene sempre parcheggiato; finché la chiamata interrotta non termina
+ * i messaggi successivi per quell'ascoltatore vengono scartati, mai eseguiti in parallelo.
+ * Gli ascoltatori registrati con una BusSubscription ricevono solo i messaggi
+ * sottoscritti; per ogni msgID il bus conserva l'elenco degli ascoltatori
+ * interessati (ricalcolato ad ogni registrazione o rimozione).
+ * Un messaggio può essere dichiarato accorpabile (setCoalescing o setup coalesceMillis.ID):
+ * gli invii asincroni con lo stesso msgID e lo stesso valore del campo di contesto
+ * coalesceKey.ID entro la finestra indicata producono una sola spedizione
+ * e il campo "count" del contesto riporta il numero di messaggi accorpati.
+ * I messaggi accorpabili attendono la loro finestra fuori dalla sequenza del mittente:
+ * non ritardano i messaggi successivi dello stesso mittente e possono essere spediti dopo di essi.
+ * Con transactionOutbox attivo sendMessageTransaction non chiama gli ascoltatori
+ * dentro la transazione del chiamante: il messaggio viene registrato sulla connessione
+ * e solo dopo la conferma viene spedito dai thread asincroni, a blocchi di outboxBatchSize,
+ * in una nuova transazione; in caso di annullamento viene scartato.
+ * Un blocco la cui spedizione fallisce viene ritentato fino a outboxRetries volte
+ * con attesa crescente (outboxRetryMillis per tentativo).
+ * Con outboxTable i messaggi sono salvati anche su db (vedi BusOutbox)
+ * e recuperati al riavvio se non ancora spediti (anche dopo l'esaurimento dei tentativi);
+ * vengono recuperati solo i messaggi registrati prima dell'avvio del servizio,
+ * outboxRecoverMillis dopo l'avvio (ritentando come per la spedizione in caso di errore).
+ * I blocchi transazionali (anche ritentati o recuperati) non sono soggetti a maxQueueSize.
+ * outboxContextFilter restringe le classi ammesse nel contesto recuperato.
+ * Con listenerIsolation attivo la spedizione asincrona non attende gli ascoltatori:
+ * ognuno elabora i messaggi nella propria corsia (BusListenerLane) con al massimo
+ * listenerConcurrency elaborazioni contemporanee (listenerConcurrency.NOME per il singolo
+ * ascoltatore) e listenerQueueSize messaggi in attesa, elaborati in ordine di arrivo;
+ * a corsia piena i messaggi restano nel backlog della corsia senza bloccare il thread
+ * di spedizione e gli altri ascoltatori. Il backlog è limitato da maxQueueSize: oltre il limite
+ * il thread di spedizione attende un posto libero (contropressione: la coda del bus cresce
+ * fino a maxQueueSize e poi rifiuta i nuovi messaggi). Solo gli ascoltatori con
+ * listenerShedOnFull.NOME=true scartano invece il messaggio (conteggiato come shed);
+ * CLEAR_GLOBAL_CACHE e TABLE_MODIFIED non vengono mai scartati. In questa modalità il codice di ritorno
+ * degli ascoltatori non interrompe la propagazione, listenerTimeoutMillis non viene
+ * applicato e le post action vengono eseguite dopo l'ultimo ascoltatore; il contesto è condiviso fra ascoltatori concorrenti
+ * e va considerato in sola lettura.
+ * Setup:
+ * <pre>
+ * services.MessageBus.asyncWorkers=1
+ * services.MessageBus.partitionBySender=false
+ * services.MessageBus.listenerTimeoutMillis=0
+ * services.MessageBus.slowListenerCount=0
+ * services.MessageBus.slowListenerParkMillis=60000
+ * services.MessageBus.maxQueueSize=0
+ * services.MessageBus.coalesceMillis.120=1000
+ * services.MessageBus.coalesceKey.121=class
+ * services.MessageBus.transactionOutbox=false
+ * services.MessageBus.outboxTable=
+ * services.MessageBus.outboxBatchSize=100
+ * services.MessageBus.outboxRetries=5
+ * services.MessageBus.outboxRetryMillis=10000
+ * services.MessageBus.outboxRecoverMillis=10000
+ * services.MessageBus.outboxContextFilter=
+ * services.MessageBus.listenerIsolation=false
+ * services.MessageBus.listenerConcurrency=1
+ * services.MessageBus.listenerQueueSize=100
+ * services.MessageBus.listenerShedOnFull.NOME=false
+ * services.MessageBus.virtualThreads=true
+ * </pre>
  * @author Nicola De Nisco
  */
 public class CoreMessageBus2 extends BaseService
@@ -40,12 +132,79 @@ public class CoreMessageBus2 extends BaseService
   private static final Log log = LogFactory.getLog(CoreMessageBus2.class);
   /** Mappa degli ascoltatori. */
   protected ConcurrentSkipListMap<String, MessageBusListener> busMap = new ConcurrentSkipListMap<>();
+  /** Sottoscrizioni degli ascoltatori (assente = tutti i messaggi). */
+  protected ConcurrentHashMap<String, BusSubscription> subscriptions = new ConcurrentHashMap<>();
+  /** Ascoltatori interessati per msgID. */
+  protected ConcurrentHashMap<Integer, DispatchList> dispatchIndex = new ConcurrentHashMap<>();
+  /** Versione della mappa ascoltatori: incrementata ad ogni registrazione o rimozione. */
+  protected final AtomicLong indexVersion = new AtomicLong();
   /** Mappa degli ascoltatori SQL. */
   protected ConcurrentSkipListMap<String, MessageBusListenerTransaction> busMapTrs = new ConcurrentSkipListMap<>();
   /** Thread per la spedizione asincrona. */
   protected Thread tAsync;
-  /** Coda messaggi asincroni. */
+  /** Thread per il passaggio dei messaggi ritardati alla coda di spedizione. */
+  protected Thread tDelay;
+  /** Coda messaggi asincroni (del primo thread di spedizione). */
   protected LinkedBlockingQueue<QueueInfo> queue = new LinkedBlockingQueue<>();
+  /** Code messaggi asincroni: una per ogni thread di spedizione. */
+  protected LinkedBlockingQueue<QueueInfo>[] queues = new LinkedBlockingQueue[]
+  {
+    queue
+  };
+  /** Thread di spedizione asincrona. */
+  protected Thread[] tWorkers;
+  /** Numero di thread per la spedizione asincrona. */
+  protected int asyncWorkers = 1;
+  /** Ripartizione fra i thread di spedizione per mittente invece che per msgID. */
+  protected boolean partitionBySender = false;
+  /** Tempo massimo di elaborazione di un ascoltatore nella spedizione asincrona (0 = illimitato). */
+  protected long listenerTimeoutMillis = 0;
+  /** Elaborazioni lente consecutive prima del parcheggio dell'ascoltatore (0 = mai). */
+  protected int slowListenerCount = 0;
+  /** Durata del parcheggio di un ascoltatore lento. */
+  protected long slowListenerParkMillis = 60000;
+  /** Dimensione massima di ogni coda di spedizione (0 = illimitata). */
+  protected int maxQueueSize = 0;
+  /** Spedizione asincrona con ogni ascoltatore nella propria corsia di esecuzione. */
+  protected boolean listenerIsolation = false;
+  /** Elaborazioni contemporanee per ascoltatore nella spedizione isolata. */
+  protected int listenerConcurrency = 1;
+  /** Messaggi in attesa per ascoltatore nella spedizione isolata. */
+  protected int listenerQueueSize = 100;
+  /** Ascoltatori che a corsia piena scartano il messaggio invece di attendere. */
+  protected final Set<String> listenerShedOnFull = ConcurrentHashMap.newKeySet();
+  /** Usa i virtual thread per la spedizione isolata (se supportati dalla JVM). */
+  protected boolean virtualThreads = true;
+  /** Corsie di esecuzione per ascoltatore. */
+  protected final ConcurrentHashMap<String, BusListenerLane> listenerLanes = new ConcurrentHashMap<>();
+  /** Esecutori degli ascoltatori con tempo massimo di elaborazione (uno per ascoltatore). */
+  protected final ConcurrentHashMap<String, ListenerExecutor> listenerExecutors = new ConcurrentHashMap<>();
+  /** Statistiche per ascoltatore. */
+  protected final ConcurrentHashMap<String, BusListenerStats> listenerStats = new ConcurrentHashMap<>();
+  /** Messaggi rifiutati per coda piena. */
+  protected final LongAdder rejected = new LongAdder();
+  /** Regole di accorpamento per msgID. */
+  protected final ConcurrentHashMap<Integer, BusCoalescing> coalescing = new ConcurrentHashMap<>();
+  /** Messaggi accorpabili in attesa di spedizione per chiave di accorpamento. */
+  protected final ConcurrentHashMap<String, QueueInfo> coalesceMap = new ConcurrentHashMap<>();
+  /** Outbox dei messaggi transazionali (null = spedizione dentro la transazione). */
+  protected BusOutbox outbox;
+  /** Numero massimo di messaggi transazionali spediti in una sola transazione. */
+  protected int outboxBatchSize = 100;
+  /** Tentativi di spedizione di un blocco di messaggi transazionali fallito. */
+  protected int outboxRetries = 5;
+  /** Attesa fra i tentativi di spedizione (moltiplicata per il numero del tentativo). */
+  protected long outboxRetryMillis = 10000;
+  /** Attesa dopo l'avvio prima del recupero dei messaggi dall'outbox persistente. */
+  protected long outboxRecoverMillis = 10000;
+  /** Coda messaggi asincroni ritardati. */
+  protected DelayQueue<DelayedMessage> delayQueue = new DelayQueue<>();
+  /** Messaggi ritardati in attesa per identificativo. */
+  protected ConcurrentHashMap<Long, DelayedMessage> delayedMap = new ConcurrentHashMap<>();
+  /** Messaggi ritardati in attesa per mittente. */
+  protected final IdentityHashMap<Object, SenderInfo> senderMap = new IdentityHashMap<>();
+  /** Generatore identificativi e sequenza dei messaggi ritardati. */
+  protected final AtomicLong delayedSequence = new AtomicLong();
   /** Soglia per il warning velocità di risposta. */
   protected int delayWarning = 150;
   /** Ritardo di default per i messaggi asincroni. */
@@ -63,11 +222,80 @@ public class CoreMessageBus2 extends BaseService
     Configuration cfg = getConfiguration();
     delayWarning = cfg.getInt("delayWarningMillis", delayWarning);
     delayDefaultAsyncMillis = cfg.getLong("delayDefaultAsyncMillis", delayDefaultAsyncMillis);
+    asyncWorkers = Math.max(1, cfg.getInt("asyncWorkers", asyncWorkers));
+    partitionBySender = cfg.getBoolean("partitionBySender", partitionBySender);
+    listenerTimeoutMillis = cfg.getLong("listenerTimeoutMillis", listenerTimeoutMillis);
+    slowListenerCount = cfg.getInt("slowListenerCount", slowListenerCount);
+    slowListenerParkMillis = cfg.getLong("slowListenerParkMillis", slowListenerParkMillis);
+    maxQueueSize = cfg.getInt("maxQueueSize", maxQueueSize);
+    listenerIsolation = cfg.getBoolean("listenerIsolation", listenerIsolation);
+    listenerConcurrency = Math.max(1, cfg.getInt("listenerConcurrency", listenerConcurrency));
+    listenerQueueSize = Math.max(0, cfg.getInt("listenerQueueSize", listenerQueueSize));
+    virtualThreads = cfg.getBoolean("virtualThreads", virtualThreads);
+
+    // regole di accorpamento: coalesceMillis.ID=millisecondi; coalesceKey.ID=campo del contesto
+    for(Iterator<String> itr = cfg.getKeys("coalesceMillis"); itr.hasNext();)
+    {
+      String key = itr.next();
+      try
+      {
+        int msgID = Integer.parseInt(key.substring("coalesceMillis.".length()));
+        setCoalescing(msgID, cfg.getLong(key), cfg.getString("coalesceKey." + msgID, null));
+      }
+      catch(Exception ex)
+      {
+        log.error(INT.I("Regola di accorpamento %s non valida.", key), ex);
+      }
+    }
+
+    // scarto a corsia piena: listenerShedOnFull.NOME=true
+    for(Iterator<String> itr = cfg.getKeys("listenerShedOnFull"); itr.hasNext();)
+    {
+      String key = itr.next();
+      if(cfg.getBoolean(key, false))
+        listenerShedOnFull.add(key.substring("listenerShedOnFull.".length()));
+    }
+
+    if(cfg.getBoolean("transactionOutbox", false))
+    {
+      String outboxTable = cfg.getString("outboxTable", null);
+      outboxBatchSize = Math.max(1, cfg.getInt("outboxBatchSize", outboxBatchSize));
+      outboxRetries = Math.max(0, cfg.getInt("outboxRetries", outboxRetries));
+      outboxRetryMillis = Math.max(0, cfg.getLong("outboxRetryMillis", outboxRetryMillis));
+      outboxRecoverMillis = Math.max(0, cfg.getLong("outboxRecoverMillis", outboxRecoverMillis));
+      outbox = new BusOutbox(outboxTable == null || outboxTable.trim().isEmpty() ? null : outboxTable.trim(),
+         (lsEntry) -> enqueueOutbox(lsEntry));
+
+      String contextFilter = cfg.getString("outboxContextFilter", null);
+      if(contextFilter != null && !contextFilter.trim().isEmpty())
+        outbox.setContextFilter(contextFilter.trim());
+      Transaction.setTransactionManager(
+         new BusOutboxTransactionManager(Transaction.getTransactionManager(), outbox));
+    }
+
+    LinkedBlockingQueue<QueueInfo>[] arQueues = new LinkedBlockingQueue[asyncWorkers];
+    tWorkers = new Thread[asyncWorkers];
+    for(int i = 0; i < asyncWorkers; i++)
+    {
+      final int worker = i;
+      arQueues[i] = i == 0 ? queue : new LinkedBlockingQueue<>();
+      tWorkers[i] = new Thread(() -> runAsync(worker));
+      tWorkers[i].setName(asyncWorkers == 1 ? "busasync" : "busasync-" + i);
+      tWorkers[i].setDaemon(true);
+    }
+
+    queues = arQueues;
+    tAsync = tWorkers[0];
+    for(Thread t : tWorkers)
+      t.start();
 
-    tAsync = new Thread(() -> runAsync());
-    tAsync.setName("busasync");
-    tAsync.setDaemon(true);
-    tAsync.start();
+    tDelay = new Thread(() -> runDelay());
+    tDelay.setName("busdelay");
+    tDelay.setDaemon(true);
+    tDelay.start();
+
+    if(outbox != null && outbox.isDurable())
+      scheduleRecoverOutbox();
 
     // servizio inizializzato correttamentea
     setInit(true);
@@ -75,18 +303,54 @@ public class CoreMessageBus2 extends BaseService
 
   @Override
   public int sendMessageSync(int msgID, Object originator, BusContext context)
+  {
+    return dispatch(msgID, originator, context, false);
+  }
+
+  /**
+   * Spedizione del messaggio agli ascoltatori.
+   * @param msgID id del messaggio
+   * @param originator l'oggetto che invia il messaggio
+   * @param context pacchetto dati associato al messaggio
+   * @param async vero se chiamata dai thread di spedizione asincrona:
+   * vengono applicati timeout e parcheggio degli ascoltatori lenti
+   * @return eventuale codice di ritorno
+   */
+  protected int dispatch(int msgID, Object originator, BusContext context, boolean async)
   {
     if(busMap.isEmpty())
       return 0;
 
+    if(async && listenerIsolation)
+    {
+      dispatchIsolated(msgID, originator, context);
+      return 0;
+    }
+
     int val = 0;
     SimpleTimer st = new SimpleTimer();
-    for(Map.Entry<String, MessageBusListener> entry : busMap.entrySet())
+    for(Map.Entry<String, MessageBusListener> entry : getDispatchList(msgID))
     {
       String nome = entry.getKey();
       MessageBusListener listener = entry.getValue();
       final String nomeListener = listener.getClass().getName();
+      BusListenerStats ls = getListenerStats(nome);
+
+      if(async && ls.isParked())
+      {
+        ls.addShed();
+        continue;
+      }
 
+      // la chiamata precedente andata in timeout è ancora in corso
+      ListenerExecutor le = async && listenerTimeoutMillis > 0 ? getListenerExecutor(nome) : null;
+      if(le != null && le.isBusy())
+      {
+        ls.addShed();
+        continue;
+      }
+
+      boolean slow = false, timeout = false;
       try
       {
         st.reset();
@@ -94,7 +358,12 @@ public class CoreMessageBus2 extends BaseService
         if(log.isDebugEnabled())
           log.debug("BUS: inizio elaborazione " + msgID + " su " + nomeListener);
 
-        if((val = listener.message(msgID, originator, context)) != 0)
+        if(le != null)
+          val = invokeTimeout(le, listener, msgID, originator, context);
+        else
+          val = listener.message(msgID, originator, context);
+
+        if(val != 0)
         {
           if(log.isDebugEnabled())
             log.debug("BUS: interrotta elaborazione " + msgID + " su " + nomeListener);
@@ -105,12 +374,31 @@ public class CoreMessageBus2 extends BaseService
           log.debug("BUS: fine elaborazione " + msgID + " su " + nomeListener);
 
         if(st.getElapsed() > delayWarning)
+        {
+          slow = true;
           log.warn(INT.I("%s [%s] ha elaborato in %d millisecondi", nome, nomeListener, st.getElapsed()));
+        }
+      }
+      catch(TimeoutException ex)
+      {
+        slow = timeout = true;
+        ls.addTimeout();
+        log.warn(INT.I("%s [%s] non ha elaborato il messaggio %d entro %d millisecondi",
+           nome, nomeListener, msgID, listenerTimeoutMillis));
       }
       catch(Throwable ex)
       {
+        ls.addError();
         log.error(INT.I("Errore BUS messaggio %d in %s ", msgID, nomeListener), ex);
       }
+      finally
+      {
+        // un ascoltatore in timeout viene sempre parcheggiato
+        int slowLimit = timeout ? 1 : async ? slowListenerCount : 0;
+        if(ls.record(st.getElapsed(), slow, slowLimit, slowListenerParkMillis))
+          log.warn(INT.I("%s [%s] troppo lento: sospeso per %d millisecondi",
+             nome, nomeListener, slowListenerParkMillis));
+      }
     }
 
     // eventuale azione di post action
@@ -120,6 +408,342 @@ public class CoreMessageBus2 extends BaseService
     return 0;
   }
 
+  /**
+   * Spedizione asincrona con ascoltatori isolati.
+   * Il messaggio viene consegnato alla corsia di ogni ascoltatore interessato
+   * senza attenderne l'elaborazione; se una corsia è satura il messaggio resta
+   * nel backlog della corsia o, oltre maxQueueSize, il thread di spedizione attende
+   * (vedi isShedOnFull() per lo scarto). L'ultimo ascoltatore che termina esegue le post action.
+   * @param msgID id del messaggio
+   * @param originator l'oggetto che invia il messaggio
+   * @param context pacchetto dati associato al messaggio
+   */
+  protected void dispatchIsolated(int msgID, Object originator, BusContext context)
+  {
+    List<Map.Entry<String, MessageBusListener>> lsListeners = getDispatchList(msgID);
+    AtomicInteger remaining = new AtomicInteger(lsListeners.size() + 1);
+    Runnable done = () ->
+    {
+      if(remaining.decrementAndGet() == 0 && context != null && !context.postListener.isEmpty())
+        context.postListener.forEach((l) -> l.actionPerformed(msgID, originator, context));
+    };
+
+    for(Map.Entry<String, MessageBusListener> entry : lsListeners)
+    {
+      String nome = entry.getKey();
+      MessageBusListener listener = entry.getValue();
+      BusListenerStats ls = getListenerStats(nome);
+
+      if(ls.isParked())
+      {
+        ls.addShed();
+        done.run();
+        continue;
+      }
+
+      Runnable task = () ->
+      {
+        try
+        {
+          invokeIsolated(nome, listener, ls, msgID, originator, context);
+        }
+        finally
+        {
+          done.run();
+        }
+      };
+
+      try
+      {
+        BusListenerLane lane = getListenerLane(nome);
+        if(!lane.offer(task))
+        {
+          if(isShedOnFull(nome, msgID))
+          {
+            ls.addShed();
+            done.run();
+          }
+          else
+          {
+            // contropressione: il thread di spedizione attende un posto nella corsia
+            lane.put(task);
+          }
+        }
+      }
+      catch(RejectedExecutionException ex)
+      {
+        // corsia chiusa (ascoltatore rimosso o servizio in chiusura)
+        ls.addShed();
+        done.run();
+      }
+      catch(InterruptedException ex)
+      {
+        Thread.currentThread().interrupt();
+        ls.addShed();
+        done.run();
+      }
+    }
+
+    done.run();
+  }
+
+  /**
+   * Verifica se un messaggio può essere scartato a corsia piena.
+   * I messaggi di invalidazione delle cache non vengono mai scartati.
+   * @param nome nome di registrazione dell'ascoltatore
+   * @param msgID tipo del messaggio
+   * @return vero se l'ascoltatore ha richiesto lo scarto
+   */
+  protected boolean isShedOnFull(String nome, int msgID)
+  {
+    return !isInvalidation(msgID) && listenerShedOnFull.contains(nome);
+  }
+
+  /**
+   * Verifica se il messaggio invalida le cache (mai scartato nella spedizione isolata).
+   * @param msgID tipo del messaggio
+   * @return vero per CLEAR_GLOBAL_CACHE e TABLE_MODIFIED
+   */
+  protected boolean isInvalidation(int msgID)
+  {
+    return msgID == BusMessages.CLEAR_GLOBAL_CACHE || msgID == BusMessages.TABLE_MODIFIED;
+  }
+
+  /**
+   * Elaborazione di un messaggio nella corsia dell'ascoltatore.
+   */
+  protected void invokeIsolated(String nome, MessageBusListener listener, BusListenerStats ls,
+     int msgID, Object originator, BusContext context)
+  {
+    final String nomeListener = listener.getClass().getName();
+    SimpleTimer st = new SimpleTimer();
+    boolean slow = false;
+    try
+    {
+      listener.message(msgID, originator, context);
+
+      if(st.getElapsed() > delayWarning)
+      {
+        slow = true;
+        log.warn(INT.I("%s [%s] ha elaborato in %d millisecondi", nome, nomeListener, st.getElapsed()));
+      }
+    }
+    catch(Throwable ex)
+    {
+      ls.addError();
+      log.error(INT.I("Errore BUS messaggio %d in %s ", msgID, nomeListener), ex);
+    }
+    finally
+    {
+      if(ls.record(st.getElapsed(), slow, slowListenerCount, slowListenerParkMillis))
+        log.warn(INT.I("%s [%s] troppo lento: sospeso per %d millisecondi",
+           nome, nomeListener, slowListenerParkMillis));
+    }
+  }
+
+  /**
+   * Ritorna la corsia di esecuzione di un ascoltatore.
+   * @param name nome di registrazione dell'ascoltatore
+   * @return corsia (creata se non presente)
+   */
+  public BusListenerLane getListenerLane(String name)
+  {
+    return listenerLanes.computeIfAbsent(name, (k) -> new BusListenerLane(k,
+       getConfiguration().getInt("listenerConcurrency." + k, listenerConcurrency),
+       listenerQueueSize, virtualThreads, maxQueueSize));
+  }
+
+  /**
+   * Ritorna le corsie di esecuzione degli ascoltatori.
+   * @return corsie ordinate per nome
+   */
+  public List<BusListenerLane> getAllListenerLanes()
+  {
+    ArrayList<BusListenerLane> rv = new ArrayList<>(listenerLanes.values());
+    rv.sort((l1, l2) -> l1.getName().compareTo(l2.getName()));
+    return rv;
+  }
+
+  /**
+   * Esegue l'ascoltatore con un tempo massimo di elaborazione.
+   * Allo scadere del tempo l'elaborazione viene interrotta e il messaggio
+   * viene passato agli ascoltatori successivi; fino al termine effettivo
+   * della chiamata l'esecutore dell'ascoltatore risulta occupato.
+   */
+  protected int invokeTimeout(ListenerExecutor le, MessageBusListener listener,
+     int msgID, Object originator, BusContext context)
+     throws Throwable
+  {
+    AtomicBoolean done = new AtomicBoolean();
+    Future<Integer> f = le.executor.submit(() ->
+    {
+      try
+      {
+        return listener.message(msgID, originator, context);
+      }
+      finally
+      {
+        done.set(true);
+      }
+    });
+
+    try
+    {
+      return f.get(listenerTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch(ExecutionException ex)
+    {
+      throw ex.getCause();
+    }
+    catch(TimeoutException ex)
+    {
+      f.cancel(true);
+      le.pending = done;
+      throw ex;
+    }
+  }
+
+  /**
+   * Ritorna l'esecutore di un ascoltatore con tempo massimo di elaborazione.
+   * @param name nome di registrazione dell'ascoltatore
+   * @return esecutore (creato se non presente)
+   */
+  protected ListenerExecutor getListenerExecutor(String name)
+  {
+    return listenerExecutors.computeIfAbsent(name, (k) -> new ListenerExecutor(k));
+  }
+
+  /**
+   * Ritorna le statistiche di un ascoltatore.
+   * @param name nome di registrazione dell'ascoltatore
+   * @return statistiche (create se non presenti)
+   */
+  public BusListenerStats getListenerStats(String name)
+  {
+    return listenerStats.computeIfAbsent(name, (k) -> new BusListenerStats(k));
+  }
+
+  /**
+   * Ritorna le statistiche di tutti gli ascoltatori.
+   * @return statistiche ordinate per nome
+   */
+  public List<BusListenerStats> getAllListenerStats()
+  {
+    ArrayList<BusListenerStats> rv = new ArrayList<>(listenerStats.values());
+    rv.sort((s1, s2) -> s1.getName().compareTo(s2.getName()));
+    return rv;
+  }
+
+  /**
+   * Ritorna il numero di messaggi in attesa di spedizione.
+   * @return messaggi nelle code di spedizione più i messaggi ritardati
+   */
+  public int getQueueDepth()
+  {
+    int rv = delayQueue.size();
+    for(LinkedBlockingQueue<QueueInfo> q : queues)
+      rv += q.size();
+    return rv;
+  }
+
+  /**
+   * Ritorna il numero di messaggi nella coda di ogni thread di spedizione.
+   * @return array con le dimensioni delle code
+   */
+  public int[] getWorkerQueueDepth()
+  {
+    int[] rv = new int[queues.length];
+    for(int i = 0; i < rv.length; i++)
+      rv[i] = queues[i].size();
+    return rv;
+  }
+
+  /**
+   * Ritorna il numero di messaggi rifiutati per coda piena.
+   * @return contatore
+   */
+  public long getRejectedCount()
+  {
+    return rejected.sum();
+  }
+
+  @Override
+  public void setCoalescing(int msgID, long windowMillis, String keyName)
+  {
+    if(windowMillis <= 0)
+      coalescing.remove(msgID);
+    else
+      coalescing.put(msgID, new BusCoalescing(msgID, windowMillis, keyName));
+  }
+
+  /**
+   * Ritorna le regole di accorpamento con i relativi contatori.
+   * @return regole ordinate per msgID
+   */
+  public List<BusCoalescing> getAllCoalescing()
+  {
+    ArrayList<BusCoalescing> rv = new ArrayList<>(coalescing.values());
+    rv.sort((c1, c2) -> Integer.compare(c1.getMsgID(), c2.getMsgID()));
+    return rv;
+  }
+
+  /**
+   * Accorpa il messaggio ad uno equivalente in attesa di spedizione.
+   * Se non esiste il messaggio diventa quello in attesa e il suo ritardo
+   * viene portato almeno alla finestra di accorpamento.
+   * @param qi messaggio da spedire
+   * @return vero se il messaggio è stato accorpato e non va spedito
+   */
+  protected boolean coalesce(QueueInfo qi)
+  {
+    BusCoalescing rule = coalescing.get(qi.msgID);
+    if(rule == null)
+      return false;
+
+    rule.addReceived();
+    if(qi.context != null)
+      qi.count = Math.max(1, qi.context.getAsInt("count", 1));
+
+    String key = rule.getKey(qi);
+    QueueInfo pending = coalesceMap.compute(key, (k, old) ->
+    {
+      if(old == null)
+        return qi;
+
+      old.count += qi.count;
+      return old;
+    });
+
+    if(pending != qi)
+    {
+      rule.addCoalesced();
+      return true;
+    }
+
+    qi.coalesceKey = key;
+    qi.delay = Math.max(qi.delay, rule.getWindowMillis());
+    return false;
+  }
+
+  /**
+   * Chiude l'accorpamento di un messaggio che sta per essere spedito.
+   * Da questo momento i messaggi equivalenti producono una nuova spedizione.
+   * @param qi messaggio in spedizione
+   */
+  protected void releaseCoalesced(QueueInfo qi)
+  {
+    if(!coalesceMap.remove(qi.coalesceKey, qi))
+      return;
+
+    BusCoalescing rule = coalescing.get(qi.msgID);
+    if(rule != null)
+      rule.addDelivered();
+
+    if(qi.context == null)
+      qi.context = new BusContext();
+    qi.context.put("count", qi.count);
+  }
+
   @Override
   public int sendMessageTransaction(int msgID, Object originator, Connection con, BusContext context)
      throws Exception
@@ -127,6 +751,32 @@ public class CoreMessageBus2 extends BaseService
     if(busMapTrs.isEmpty())
       return 0;
 
+    if(outbox != null && con != null && !con.getAutoCommit())
+    {
+      QueueInfo qi = new QueueInfo();
+      qi.msgID = msgID;
+      qi.originator = originator;
+      qi.context = context;
+      qi.originTime = System.currentTimeMillis();
+      outbox.record(con, qi);
+      return 0;
+    }
+
+    return dispatchTransaction(msgID, originator, con, context);
+  }
+
+  /**
+   * Spedizione del messaggio agli ascoltatori SQL.
+   * @param msgID id del messaggio
+   * @param originator l'oggetto che invia il messaggio
+   * @param con connessione SQL sotto transazione
+   * @param context pacchetto dati associato al messaggio
+   * @return eventuale codice di ritorno
+   * @throws Exception
+   */
+  protected int dispatchTransaction(int msgID, Object originator, Connection con, BusContext context)
+     throws Exception
+  {
     int val = 0;
     SimpleTimer st = new SimpleTimer();
     for(Map.Entry<String, MessageBusListenerTransaction> entry : busMapTrs.entrySet())
@@ -145,6 +795,138 @@ public class CoreMessageBus2 extends BaseService
     return 0;
   }
 
+  /**
+   * Accoda per la spedizione i messaggi di una transazione confermata.
+   * I messaggi vengono divisi in blocchi di outboxBatchSize; tutti i blocchi
+   * usano la stessa chiave di partizione e quindi vengono spediti in ordine.
+   * @param lsEntry messaggi della transazione
+   */
+  protected void enqueueOutbox(List<BusOutbox.Entry> lsEntry)
+  {
+    try
+    {
+      for(int i = 0; i < lsEntry.size(); i += outboxBatchSize)
+      {
+        OutboxBatch batch = new OutboxBatch(lsEntry.subList(i, Math.min(lsEntry.size(), i + outboxBatchSize)));
+        batch.originTime = System.currentTimeMillis();
+        batch.partitionKey = OutboxBatch.class;
+        queues[(batch.partitionKey.hashCode() & Integer.MAX_VALUE) % queues.length].put(batch);
+      }
+    }
+    catch(InterruptedException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Spedizione di un blocco di messaggi transazionali confermati.
+   * Gli ascoltatori SQL ricevono i messaggi in una nuova transazione
+   * nella quale i messaggi vengono anche cancellati dall'outbox persistente.
+   * In caso di errore il blocco viene ritentato (vedi retryOutbox).
+   * @param batch blocco di messaggi
+   */
+  protected void dispatchOutbox(OutboxBatch batch)
+  {
+    try
+    {
+      PeerTransactAgent.execute((con) ->
+      {
+        for(BusOutbox.Entry e : batch.entries)
+          dispatchTransaction(e.qi.msgID, e.qi.originator, con, e.qi.context);
+
+        outbox.delete(batch.entries, con);
+      });
+    }
+    catch(Exception ex)
+    {
+      log.error(INT.I("Errore di BUS spedendo %d messaggi transazionali (tentativo %d).",
+         batch.entries.size(), batch.attempts + 1), ex);
+      retryOutbox(batch);
+    }
+  }
+
+  /**
+   * Rimette in coda un blocco di messaggi transazionali la cui spedizione è fallita.
+   * Il blocco attende nella coda dei messaggi ritardati fuori dalla sequenza
+   * dei mittenti; esauriti i tentativi i messaggi persistenti restano
+   * nell'outbox e vengono recuperati al riavvio, gli altri vengono persi.
+   * @param batch blocco di messaggi
+   */
+  protected void retryOutbox(OutboxBatch batch)
+  {
+    if(++batch.attempts > outboxRetries)
+    {
+      if(outbox.isDurable())
+        log.error(INT.I("Spedizione di %d messaggi transazionali abbandonata: verranno recuperati al riavvio.",
+           batch.entries.size()));
+      else
+        log.error(INT.I("Spedizione di %d messaggi transazionali abbandonata: messaggi persi.",
+           batch.entries.size()));
+      return;
+    }
+
+    long due = System.currentTimeMillis() + outboxRetryMillis * batch.attempts;
+    delayQueue.put(new DelayedMessage(batch, null, due, delayedSequence.incrementAndGet()));
+  }
+
+  /**
+   * Pianifica il recupero dei messaggi dall'outbox persistente.
+   * Il recupero avviene una sola volta outboxRecoverMillis dopo l'avvio
+   * (all'avvio del bus Torque potrebbe non essere pronto); in caso di errore
+   * viene ritentato fino a outboxRetries volte con attesa crescente.
+   */
+  protected void scheduleRecoverOutbox()
+  {
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+      Thread t = new Thread(r);
+      t.setName("busoutbox-recover");
+      t.setDaemon(true);
+      return t;
+    });
+
+    Runnable task = new Runnable()
+    {
+      private int attempts = 0;
+
+      @Override
+      public void run()
+      {
+        if(recoverOutbox() || ++attempts > outboxRetries)
+          timer.shutdown();
+        else
+          timer.schedule(this, outboxRetryMillis * attempts, TimeUnit.MILLISECONDS);
+      }
+    };
+
+    timer.schedule(task, outboxRecoverMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Recupera dall'outbox persistente i messaggi confermati ma non spediti.
+   * Solo i messaggi registrati prima dell'avvio: i successivi sono già in coda.
+   * @return vero se il recupero è stato eseguito
+   */
+  protected boolean recoverOutbox()
+  {
+    try
+    {
+      List<BusOutbox.Entry> lsEntry = PeerTransactAgent.executeReturnReadonly((con) -> outbox.load(con));
+      if(!lsEntry.isEmpty())
+      {
+        log.info(INT.I("Recuperati %d messaggi transazionali non spediti.", lsEntry.size()));
+        enqueueOutbox(lsEntry);
+      }
+      return true;
+    }
+    catch(Exception ex)
+    {
+      log.error(INT.I("Errore di BUS recuperando i messaggi transazionali."), ex);
+      return false;
+    }
+  }
+
   @Override
   public void sendMessageAsync(int msgID, Object originator, BusContext context)
   {
@@ -200,7 +982,51 @@ public class CoreMessageBus2 extends BaseService
       if(busMap.isEmpty())
         return;
 
-      queue.put(qi);
+      if(qi.originTime == 0)
+        qi.originTime = System.currentTimeMillis();
+
+      if(coalesce(qi))
+        return;
+
+      long due = qi.originTime + qi.delay;
+      Object senderKey = qi.originator == null ? this : qi.originator;
+
+      // il messaggio accorpabile attende la finestra di accorpamento
+      // senza bloccare la sequenza del mittente (nessuna chiave mittente)
+      if(qi.coalesceKey != null)
+      {
+        DelayedMessage dm = new DelayedMessage(qi, null, due, delayedSequence.incrementAndGet());
+        qi.id = dm.seq;
+        delayedMap.put(dm.seq, dm);
+        delayQueue.put(dm);
+        return;
+      }
+
+      synchronized(senderMap)
+      {
+        SenderInfo si = senderMap.get(senderKey);
+
+        // messaggio immediato senza messaggi in attesa dello stesso mittente
+        if(si == null && due <= System.currentTimeMillis())
+        {
+          enqueue(qi);
+          return;
+        }
+
+        // non può essere spedito prima dei messaggi precedenti dello stesso mittente
+        if(si == null)
+          senderMap.put(senderKey, si = new SenderInfo());
+        else if(due < si.lastDue)
+          due = si.lastDue;
+
+        si.lastDue = due;
+        si.pending++;
+
+        DelayedMessage dm = new DelayedMessage(qi, senderKey, due, delayedSequence.incrementAndGet());
+        qi.id = dm.seq;
+        delayedMap.put(dm.seq, dm);
+        delayQueue.put(dm);
+      }
     }
     catch(InterruptedException ex)
     {
@@ -208,6 +1034,115 @@ public class CoreMessageBus2 extends BaseService
     }
   }
 
+  /**
+   * Inserisce il messaggio nella coda di spedizione del thread
+   * associato alla sua chiave di partizione.
+   * @param qi messaggio da spedire
+   * @throws InterruptedException
+   */
+  protected void enqueue(QueueInfo qi)
+     throws InterruptedException
+  {
+    int hash;
+    if(qi.partitionKey != null)
+      hash = qi.partitionKey.hashCode();
+    else if(partitionBySender)
+      hash = System.identityHashCode(qi.originator == null ? this : qi.originator);
+    else
+      hash = Integer.hashCode(qi.msgID);
+
+    LinkedBlockingQueue<QueueInfo> q = queues[(hash & Integer.MAX_VALUE) % queues.length];
+
+    // i blocchi transazionali ritentati contengono messaggi già confermati: mai scartati
+    if(maxQueueSize > 0 && q.size() >= maxQueueSize && !(qi instanceof OutboxBatch))
+    {
+      rejected.increment();
+      if(qi.coalesceKey != null)
+        coalesceMap.remove(qi.coalesceKey, qi);
+      log.warn(INT.I("Coda BUS piena: messaggio %d scartato.", qi.msgID));
+      return;
+    }
+
+    q.put(qi);
+  }
+
+  @Override
+  public List<QueueInfo> getPendingMessages()
+  {
+    ArrayList<DelayedMessage> arDelayed = new ArrayList<>(delayedMap.values());
+    Collections.sort(arDelayed);
+
+    ArrayList<QueueInfo> rv = new ArrayList<>(arDelayed.size());
+    for(DelayedMessage dm : arDelayed)
+      rv.add(dm.qi);
+
+    return rv;
+  }
+
+  @Override
+  public boolean cancelPendingMessage(long id)
+  {
+    DelayedMessage dm = delayedMap.get(id);
+    if(dm == null || !delayQueue.remove(dm))
+      return false;
+
+    releaseDelayed(dm);
+    if(dm.qi.coalesceKey != null)
+      coalesceMap.remove(dm.qi.coalesceKey, dm.qi);
+    return true;
+  }
+
+  /**
+   * Rilascia le informazioni di un messaggio ritardato uscito dalla coda.
+   * @param dm messaggio ritardato
+   */
+  protected void releaseDelayed(DelayedMessage dm)
+  {
+    delayedMap.remove(dm.seq);
+
+    if(dm.senderKey == null)
+      return;
+
+    synchronized(senderMap)
+    {
+      SenderInfo si = senderMap.get(dm.senderKey);
+      if(si != null && --si.pending <= 0)
+        senderMap.remove(dm.senderKey);
+    }
+  }
+
+  /**
+   * Funzione di servizio del thread dei messaggi ritardati.
+   * Attende la scadenza del ritardo di ogni messaggio
+   * e lo passa alla coda di spedizione.
+   */
+  protected void runDelay()
+  {
+    while(true)
+    {
+      try
+      {
+        DelayedMessage dm = delayQueue.take();
+
+        // il rilascio avviene sotto lo stesso lock dell'accodamento:
+        // un messaggio immediato dello stesso mittente non può superare questo
+        synchronized(senderMap)
+        {
+          enqueue(dm.qi);
+          releaseDelayed(dm);
+        }
+      }
+      catch(InterruptedException ex)
+      {
+        return;
+      }
+      catch(Throwable t)
+      {
+        log.error(INT.I("Errore di BUS:"), t);
+      }
+    }
+  }
+
   /**
    * Funzione di servizio del thread di spedizione differita.
    * Estrae dalla coda eventi l'evento da inviare sul bus e
@@ -215,41 +1150,40 @@ public class CoreMessageBus2 extends BaseService
    */
   protected void runAsync()
   {
+    runAsync(0);
+  }
+
+  /**
+   * Funzione di servizio di un thread di spedizione differita.
+   * Solo il primo thread emette i segnali di IDLE.
+   * @param worker indice del thread (e della sua coda)
+   */
+  protected void runAsync(int worker)
+  {
+    LinkedBlockingQueue<QueueInfo> q = queues[worker];
+
     while(true)
     {
       try
       {
         QueueInfo qi;
-        List<QueueInfo> delayed = new ArrayList<>();
 
-        while((qi = queue.poll(3, TimeUnit.SECONDS)) != null)
+        while((qi = q.poll(3, TimeUnit.SECONDS)) != null)
         {
-          // in caso di evento ritardato lo scarta per reinserirlo successivamente nella coda
-          // ATTENZIONE: questo può portare a un cambio di sequenza nel dispach degli eventi
-          if(qi.delay > 0)
+          if(qi instanceof OutboxBatch)
           {
-            long elapsed;
-            if((elapsed = (System.currentTimeMillis() - qi.originTime)) < qi.delay)
-            {
-              delayed.add(qi);
-
-              qi = null;
-              Thread.sleep(10);
-            }
+            dispatchOutbox((OutboxBatch) qi);
+            continue;
           }
 
-          if(qi != null)
-            sendMessageSync(qi.msgID, qi.originator, qi.context);
-        }
+          if(qi.coalesceKey != null)
+            releaseCoalesced(qi);
 
-        idle();
-
-        if(!delayed.isEmpty())
-        {
-          // frena un po il thread del bus per non renderlo troppo aggressivo
-          Thread.sleep(100);
-          queue.addAll(delayed);
+          dispatch(qi.msgID, qi.originator, qi.context, true);
         }
+
+        if(worker == 0)
+          idle();
       }
       catch(Throwable t)
       {
@@ -261,13 +1195,61 @@ public class CoreMessageBus2 extends BaseService
   @Override
   public void registerEventListner(String name, MessageBusListener listener)
   {
+    registerEventListner(name, listener, null);
+  }
+
+  @Override
+  public void registerEventListner(String name, MessageBusListener listener, BusSubscription subscription)
+  {
+    if(subscription == null)
+      subscriptions.remove(name);
+    else
+      subscriptions.put(name, subscription.freeze());
+
     busMap.put(name, listener);
+    indexVersion.incrementAndGet();
   }
 
   @Override
   public void removeEventListner(String name)
   {
     busMap.remove(name);
+    subscriptions.remove(name);
+    indexVersion.incrementAndGet();
+
+    BusListenerLane lane = listenerLanes.remove(name);
+    if(lane != null)
+      lane.shutdown();
+
+    ListenerExecutor le = listenerExecutors.remove(name);
+    if(le != null)
+      le.executor.shutdownNow();
+  }
+
+  /**
+   * Ritorna gli ascoltatori interessati al messaggio in ordine di nome.
+   * @param msgID id del messaggio
+   * @return lista degli ascoltatori
+   */
+  protected List<Map.Entry<String, MessageBusListener>> getDispatchList(int msgID)
+  {
+    DispatchList dl = dispatchIndex.get(msgID);
+    long version = indexVersion.get();
+
+    if(dl == null || dl.version != version)
+    {
+      ArrayList<Map.Entry<String, MessageBusListener>> arListeners = new ArrayList<>();
+      for(Map.Entry<String, MessageBusListener> entry : busMap.entrySet())
+      {
+        BusSubscription sub = subscriptions.get(entry.getKey());
+        if(sub == null || sub.matches(msgID))
+          arListeners.add(new AbstractMap.SimpleImmutableEntry<>(entry));
+      }
+
+      dispatchIndex.put(msgID, dl = new DispatchList(version, arListeners));
+    }
+
+    return dl.listeners;
   }
 
   @Override
@@ -305,4 +1287,108 @@ public class CoreMessageBus2 extends BaseService
       idle60Timer.reset();
     }
   }
+
+  /**
+   * Esecutore di un ascoltatore con tempo massimo di elaborazione.
+   * Un solo thread: le chiamate allo stesso ascoltatore non si sovrappongono.
+   */
+  protected static class ListenerExecutor
+  {
+    public final ExecutorService executor;
+    /** Termine della chiamata andata in timeout (null = nessuna). */
+    public volatile AtomicBoolean pending;
+
+    public ListenerExecutor(String name)
+    {
+      executor = Executors.newSingleThreadExecutor((r) ->
+      {
+        Thread t = new Thread(r);
+        t.setName("buslistener-" + name);
+        t.setDaemon(true);
+        return t;
+      });
+    }
+
+    /**
+     * Verifica se una chiamata andata in timeout è ancora in esecuzione.
+     * @return vero se l'ascoltatore è ancora occupato
+     */
+    public boolean isBusy()
+    {
+      AtomicBoolean p = pending;
+      return p != null && !p.get();
+    }
+  }
+
+  /**
+   * Stato dei messaggi ritardati di un mittente.
+   */
+  protected static class SenderInfo
+  {
+    public long lastDue;
+    public int pending;
+  }
+
+  /**
+   * Messaggio ritardato in attesa nella DelayQueue.
+   * L'ordinamento è per scadenza e, a parità, per sequenza di invio.
+   */
+  protected static class DelayedMessage implements Delayed
+  {
+    public final QueueInfo qi;
+    public final Object senderKey;
+    public final long due, seq;
+
+    public DelayedMessage(QueueInfo qi, Object senderKey, long due, long seq)
+    {
+      this.qi = qi;
+      this.senderKey = senderKey;
+      this.due = due;
+      this.seq = seq;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit)
+    {
+      return unit.convert(due - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o)
+    {
+      DelayedMessage dm = (DelayedMessage) o;
+      int rv = Long.compare(due, dm.due);
+      return rv != 0 ? rv : Long.compare(seq, dm.seq);
+    }
+  }
+
+  /**
+   * Blocco di messaggi transazionali confermati in coda di spedizione.
+   */
+  protected static class OutboxBatch extends QueueInfo
+  {
+    public final List<BusOutbox.Entry> entries;
+    public int attempts;
+
+    public OutboxBatch(List<BusOutbox.Entry> entries)
+    {
+      this.entries = entries;
+    }
+  }
+
+  /**
+   * Elenco degli ascoltatori interessati ad un messaggio.
+   * Valido fino alla successiva modifica della mappa ascoltatori.
+   */
+  protected static class DispatchList
+  {
+    public final long version;
+    public final List<Map.Entry<String, MessageBusListener>> listeners;
+
+    public DispatchList(long version, List<Map.Entry<String, MessageBusListener>> listeners)
+    {
+      this.version = version;
+      this.listeners = listeners;
+    }
+  }
 }
@@ -19,6 +19,8 @@ package org.sirio6.services.bus;
 
 import java.sql.Connection;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import org.apache.turbine.services.Service;
 
 /**
@@ -37,6 +39,14 @@ public interface MessageBus extends Service
     public Object originator;
     public BusContext context;
     public long delay = 0, originTime = 0;
+    /** identificativo assegnato dal bus ai messaggi ritardati */
+    public long id = 0;
+    /** chiave di partizione per la spedizione asincrona (null = msgID) */
+    public Object partitionKey;
+    /** chiave di accorpamento assegnata dal bus (null = non accorpabile) */
+    public String coalesceKey;
+    /** numero di messaggi rappresentati (maggiore di 1 se accorpati) */
+    public int count = 1;
   }
 
   /**
@@ -46,6 +56,18 @@ public interface MessageBus extends Service
    */
   public void registerEventListner(String name, MessageBusListener listener);
 
+  /**
+   * Aggiunge un ascoltatore di eventi al bus.
+   * L'ascoltatore riceverà solo i messaggi indicati nella sottoscrizione.
+   * @param name nome simbolico dell'ascoltatore
+   * @param listener interfaccia di ascolto
+   * @param subscription messaggi di interesse (null = tutti)
+   */
+  public default void registerEventListner(String name, MessageBusListener listener, BusSubscription subscription)
+  {
+    registerEventListner(name, listener);
+  }
+
   /**
    * Rimuove un ascoltatore.
    * @param name nome simbolico dell'ascoltatore
@@ -145,4 +167,37 @@ public interface MessageBus extends Service
    * @param clQueue collezione di messaggi
    */
   public void sendMessagePackAsync(Collection<QueueInfo> clQueue);
+
+  /**
+   * Ritorna i messaggi asincroni ritardati non ancora inviati.
+   * @return lista dei messaggi in ordine di invio previsto
+   */
+  public default List<QueueInfo> getPendingMessages()
+  {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Annulla l'invio di un messaggio ritardato.
+   * @param id identificativo del messaggio (QueueInfo.id)
+   * @return vero se il messaggio era in attesa ed è stato annullato
+   */
+  public default boolean cancelPendingMessage(long id)
+  {
+    return false;
+  }
+
+  /**
+   * Dichiara un messaggio accorpabile nell'invio asincrono.
+   * I messaggi con lo stesso msgID e lo stesso valore del campo keyName
+   * del contesto inviati entro windowMillis dal primo vengono spediti
+   * una sola volta; il campo "count" del contesto riporta il numero
+   * di messaggi accorpati.
+   * @param msgID id del messaggio
+   * @param windowMillis finestra di accorpamento (0 = rimuove la regola)
+   * @param keyName campo del contesto che distingue i messaggi (null = solo msgID)
+   */
+  public default void setCoalescing(int msgID, long windowMillis, String keyName)
+  {
+  }
 }
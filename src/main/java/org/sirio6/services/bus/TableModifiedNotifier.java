@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.torque.util.Transaction;
+import org.sirio6.services.localization.INT;
+import org.sirio6.utils.TR;
+
+/**
+ * Notifica sul bus delle tabelle modificate.
+ * Chiamato dai salvataggi (CoreObjectSaver, CoreRecordObjectSaver) invia il messaggio
+ * BusMessages.TABLE_MODIFIED con il nome della tabella nel contesto ("table").
+ * Se il salvataggio avviene in una transazione la notifica viene trattenuta fino
+ * alla conferma (TableModifiedTransactionManager) e scartata in caso di annullamento:
+ * gli ascoltatori non possono rileggere la tabella prima del commit.
+ * Una transazione non conclusa attraverso Torque entro tablemodified.commit.timeout.millis
+ * (default 30000) produce comunque una notifica anticipata; la tabella resta in attesa
+ * della conferma, che produce sempre una nuova notifica (una rilettura causata dalla
+ * notifica anticipata potrebbe aver caricato dati precedenti al commit).
+ * Le notifiche per la stessa tabella vengono accorpate: il messaggio parte dopo
+ * tablemodified.delay.millis (default 1000) dalla prima modifica e tutte le modifiche
+ * nel frattempo producono un solo messaggio; il campo "count" del contesto riporta
+ * il numero di salvataggi accorpati.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableModifiedNotifier
+{
+  private static final Log log = LogFactory.getLog(TableModifiedNotifier.class);
+
+  /** tabelle in attesa di notifica con il numero di modifiche */
+  private static final ConcurrentHashMap<String, Integer> pending = new ConcurrentHashMap<>();
+  /** tabelle modificate nelle transazioni in corso */
+  private static final Map<Connection, Set<String>> inTransaction = new WeakHashMap<>();
+  private static ScheduledExecutorService timer;
+  private static long delayMillis = -1, commitTimeoutMillis = -1;
+  private static boolean commitHook, commitHookChecked;
+
+  /**
+   * Segnala la modifica di una tabella già confermata sul db.
+   * @param tableName nome della tabella
+   */
+  public static void notifyModified(String tableName)
+  {
+    if(tableName == null)
+      return;
+
+    String key = tableName.toUpperCase();
+    if(pending.merge(key, 1, Integer::sum) == 1)
+      getTimer().schedule(() -> flush(key), getDelayMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Segnala la modifica di una tabella eseguita sulla connessione indicata.
+   * Se la connessione è in transazione la notifica parte alla conferma.
+   * @param tableName nome della tabella
+   * @param con connessione usata per la modifica
+   */
+  public static void notifyModified(String tableName, Connection con)
+  {
+    if(tableName == null)
+      return;
+
+    if(con == null || !installCommitHook() || isAutoCommit(con))
+    {
+      notifyModified(tableName);
+      return;
+    }
+
+    String key = tableName.toUpperCase();
+    synchronized(inTransaction)
+    {
+      if(!inTransaction.computeIfAbsent(con, (c) -> new HashSet<>()).add(key))
+        return;
+    }
+
+    // rete di sicurezza per le transazioni confermate senza passare da Torque
+    WeakReference<Connection> ref = new WeakReference<>(con);
+    getTimer().schedule(() -> expire(ref, key), getCommitTimeoutMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Transazione confermata: invia le notifiche trattenute.
+   * @param con connessione della transazione
+   */
+  public static void afterCommit(Connection con)
+  {
+    Set<String> tables;
+    synchronized(inTransaction)
+    {
+      tables = inTransaction.remove(con);
+    }
+
+    if(tables != null)
+      tables.forEach((t) -> notifyModified(t));
+  }
+
+  /**
+   * Transazione annullata: scarta le notifiche trattenute.
+   * @param con connessione della transazione
+   */
+  public static void afterRollback(Connection con)
+  {
+    synchronized(inTransaction)
+    {
+      inTransaction.remove(con);
+    }
+  }
+
+  /**
+   * Vero se le notifiche sono legate alla conferma delle transazioni.
+   * In caso contrario le cache devono mantenere scadenze brevi.
+   * @return vero se il gestore delle transazioni è installato
+   */
+  public static boolean isCommitHookInstalled()
+  {
+    return installCommitHook();
+  }
+
+  private static synchronized boolean installCommitHook()
+  {
+    if(!commitHookChecked)
+    {
+      commitHookChecked = true;
+      try
+      {
+        Transaction.setTransactionManager(
+           new TableModifiedTransactionManager(Transaction.getTransactionManager()));
+        commitHook = true;
+      }
+      catch(Throwable t)
+      {
+        // Torque non disponibile: notifica immediata
+        log.debug("TableModifiedNotifier: gestore delle transazioni non installato.", t);
+      }
+    }
+    return commitHook;
+  }
+
+  private static boolean isAutoCommit(Connection con)
+  {
+    try
+    {
+      return con.getAutoCommit();
+    }
+    catch(Exception ex)
+    {
+      return true;
+    }
+  }
+
+  private static void expire(WeakReference<Connection> ref, String key)
+  {
+    Connection con = ref.get();
+    if(con == null)
+      return;
+
+    // la tabella resta legata alla transazione: la conferma invierà di nuovo la notifica
+    synchronized(inTransaction)
+    {
+      Set<String> tables = inTransaction.get(con);
+      if(tables == null || !tables.contains(key))
+        return;
+    }
+
+    log.warn(INT.I("Transazione non conclusa entro %d ms: notifica della modifica di %s.", getCommitTimeoutMillis(), key));
+    notifyModified(key);
+  }
+
+  private static void flush(String key)
+  {
+    try
+    {
+      Integer count = pending.remove(key);
+      if(count == null)
+        return;
+
+      BusContext bc = new BusContext(
+         "table", key,
+         "count", count
+      );
+      BUS.sendMessageAsync(BusMessages.TABLE_MODIFIED, TableModifiedNotifier.class, bc);
+    }
+    catch(Throwable t)
+    {
+      log.error(INT.I("Errore nella notifica di modifica della tabella %s.", key), t);
+    }
+  }
+
+  private static synchronized long getDelayMillis()
+  {
+    if(delayMillis < 0)
+    {
+      try
+      {
+        delayMillis = TR.getInt("tablemodified.delay.millis", 1000);
+      }
+      catch(Throwable t)
+      {
+        // setup non disponibile (ES: esecuzione fuori da Turbine)
+        delayMillis = 1000;
+      }
+    }
+    return delayMillis;
+  }
+
+  private static synchronized long getCommitTimeoutMillis()
+  {
+    if(commitTimeoutMillis < 0)
+    {
+      try
+      {
+        commitTimeoutMillis = TR.getInt("tablemodified.commit.timeout.millis", 30000);
+      }
+      catch(Throwable t)
+      {
+        commitTimeoutMillis = 30000;
+      }
+    }
+    return commitTimeoutMillis;
+  }
+
+  private static synchronized ScheduledExecutorService getTimer()
+  {
+    if(timer == null)
+    {
+      timer = Executors.newSingleThreadScheduledExecutor((r) ->
+      {
+        Thread t = new Thread(r);
+        t.setName("TableModifiedNotifier");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return timer;
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.sql.Connection;
+import org.apache.torque.TorqueException;
+import org.apache.torque.util.TorqueConnection;
+import org.apache.torque.util.TransactionManager;
+
+/**
+ * Gestore delle transazioni Torque con notifica delle tabelle modificate.
+ * Delega le operazioni al gestore originale e alla conferma
+ * della transazione invia le notifiche di TableModifiedNotifier
+ * registrate sulla connessione; all'annullamento le scarta.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableModifiedTransactionManager implements TransactionManager
+{
+  protected final TransactionManager delegate;
+
+  public TableModifiedTransactionManager(TransactionManager delegate)
+  {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public TorqueConnection begin()
+     throws TorqueException
+  {
+    return delegate.begin();
+  }
+
+  @Override
+  public TorqueConnection begin(String dbName)
+     throws TorqueException
+  {
+    return delegate.begin(dbName);
+  }
+
+  @Override
+  public void commit(Connection con)
+     throws TorqueException
+  {
+    try
+    {
+      delegate.commit(con);
+    }
+    catch(TorqueException ex)
+    {
+      TableModifiedNotifier.afterRollback(con);
+      throw ex;
+    }
+
+    TableModifiedNotifier.afterCommit(con);
+  }
+
+  @Override
+  public void rollback(Connection con)
+     throws TorqueException
+  {
+    TableModifiedNotifier.afterRollback(con);
+    delegate.rollback(con);
+  }
+
+  @Override
+  public void safeRollback(Connection con)
+  {
+    TableModifiedNotifier.afterRollback(con);
+    delegate.safeRollback(con);
+  }
+}
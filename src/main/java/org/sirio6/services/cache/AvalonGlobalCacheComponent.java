@@ -21,6 +21,8 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import org.apache.avalon.framework.activity.Disposable;
 import org.apache.avalon.framework.activity.Initializable;
 import org.apache.avalon.framework.configuration.Configurable;
 import org.apache.avalon.framework.configuration.Configuration;
@@ -30,6 +32,8 @@ import org.apache.avalon.framework.thread.ThreadSafe;
 import org.apache.fulcrum.cache.CachedObject;
 import org.apache.fulcrum.cache.ObjectExpiredException;
 import static org.sirio6.services.cache.CoreCacheImp.CACHE_CHECK_FREQUENCY;
+import static org.sirio6.services.cache.CoreCacheImp.CACHE_IMPLEMENTATION;
+import static org.sirio6.services.cache.CoreCacheImp.CACHE_MAXBYTES;
 import static org.sirio6.services.cache.CoreCacheImp.INITIAL_CACHE_SIZE;
 
 /**
@@ -39,7 +43,7 @@ import static org.sirio6.services.cache.CoreCacheImp.INITIAL_CACHE_SIZE;
  */
 public class AvalonGlobalCacheComponent
    extends AbstractLogEnabled
-   implements CoreCacheServices, Configurable, Initializable, ThreadSafe
+   implements CoreCacheServices, Configurable, Initializable, Disposable, ThreadSafe
 {
   protected CoreCacheImp ci = new CoreCacheImp();
 
@@ -55,6 +59,18 @@ public class AvalonGlobalCacheComponent
     getLogger().debug("configure()");
     if(conf != null)
     {
+      try
+      {
+        ci = CoreCacheImp.createImplementation(conf.getAttribute(CACHE_IMPLEMENTATION, null));
+      }
+      catch(Exception ex)
+      {
+        throw new ConfigurationException("Invalid " + CACHE_IMPLEMENTATION, ex);
+      }
+
+      ci.jmxEnabled = conf.getAttributeAsBoolean(CoreCacheImp.CACHE_JMX, ci.jmxEnabled);
+      ci.jmxDomain = conf.getAttribute(CoreCacheImp.CACHE_JMX_DOMAIN, ci.jmxDomain);
+
       ci.cacheInitialSize = conf.getAttributeAsInteger(INITIAL_CACHE_SIZE, ci.cacheInitialSize);
       if(ci.cacheInitialSize <= 0)
         throw new IllegalArgumentException(INITIAL_CACHE_SIZE + " must be >0");
@@ -62,6 +78,17 @@ public class AvalonGlobalCacheComponent
       ci.cacheCheckFrequency = conf.getAttributeAsLong(CACHE_CHECK_FREQUENCY, ci.cacheCheckFrequency);
       if(ci.cacheCheckFrequency <= 0)
         throw new IllegalArgumentException(CACHE_CHECK_FREQUENCY + " must be >0");
+
+      ci.setGlobalMaxBytes(CoreCacheImp.parseBytes(conf.getAttribute(CACHE_MAXBYTES, null)));
+
+      // limiti per classe: <classLimit name="NOMECLASSE" limit="numero" maxbytes="bytes[K|M|G]" policy="lru|slru"/>
+      for(Configuration cl : conf.getChildren("classLimit"))
+      {
+        ci.configureClass(cl.getAttribute("name"),
+           cl.getAttributeAsInteger("limit", UNLIMITED),
+           CoreCacheImp.parseBytes(cl.getAttribute("maxbytes", null)),
+           cl.getAttribute("policy", null));
+      }
     }
   }
 
@@ -75,22 +102,21 @@ public class AvalonGlobalCacheComponent
   {
     getLogger().debug("initialize()");
     // Start housekeeping thread.
-    Thread housekeeping = new Thread(() -> ci.runCleaner());
-    // Indicate that this is a system thread. JVM will quit only when there
-    // are no more active user threads. Settings threads spawned internally
-    // by Turbine as daemons allows commandline applications using Turbine
-    // to terminate in an orderly manner.
-    housekeeping.setName("AvalonGlobalCacheComponent");
-    housekeeping.setDaemon(true);
-    housekeeping.start();
+    ci.startCleaner("AvalonGlobalCacheComponent");
+
+    // ripristino dei dati di TableCache salvati alla chiusura
+    TableCacheSnapshot.startup();
   }
 
   /**
    * Avalon component lifecycle method
    */
+  @Override
   public void dispose()
   {
     getLogger().debug("dispose()");
+    TableCacheSnapshot.shutdown();
+    ci.shutdown();
   }
 
   @Override
@@ -100,6 +126,26 @@ public class AvalonGlobalCacheComponent
     return ci.getObject(objClass, id);
   }
 
+  @Override
+  public CachedObject getObjectIfPresent(String objClass, String id)
+  {
+    return ci.getObjectIfPresent(objClass, id);
+  }
+
+  @Override
+  public <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl)
+     throws Exception
+  {
+    return ci.getOrLoad(objClass, id, loader, ttl);
+  }
+
+  @Override
+  public <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl, long refreshAhead)
+     throws Exception
+  {
+    return ci.getOrLoad(objClass, id, loader, ttl, refreshAhead);
+  }
+
   @Override
   public void addObject(String objClass, String id, CachedObject o)
   {
@@ -136,6 +182,66 @@ public class AvalonGlobalCacheComponent
     return ci.getLimit(objClass);
   }
 
+  @Override
+  public void setEvictionPolicy(String objClass, int policy)
+  {
+    ci.setEvictionPolicy(objClass, policy);
+  }
+
+  @Override
+  public int getEvictionPolicy(String objClass)
+  {
+    return ci.getEvictionPolicy(objClass);
+  }
+
+  @Override
+  public CacheClassStats getClassStats(String objClass)
+  {
+    return ci.getClassStats(objClass);
+  }
+
+  @Override
+  public long getHitCount(String objClass)
+  {
+    return ci.getHitCount(objClass);
+  }
+
+  @Override
+  public long getMissCount(String objClass)
+  {
+    return ci.getMissCount(objClass);
+  }
+
+  @Override
+  public long getEvictionCount(String objClass)
+  {
+    return ci.getEvictionCount(objClass);
+  }
+
+  @Override
+  public void setMaxBytes(String objClass, long maxBytes)
+  {
+    ci.setMaxBytes(objClass, maxBytes);
+  }
+
+  @Override
+  public long getMaxBytes(String objClass)
+  {
+    return ci.getMaxBytes(objClass);
+  }
+
+  @Override
+  public long getCacheBytes(String objClass)
+  {
+    return ci.getCacheBytes(objClass);
+  }
+
+  @Override
+  public void setWeigher(String objClass, CacheWeigher weigher)
+  {
+    ci.setWeigher(objClass, weigher);
+  }
+
   @Override
   public void setFlushPermitted(String objClass, boolean flushPermitted)
   {
@@ -20,10 +20,10 @@ package org.sirio6.services.cache;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.fulcrum.cache.CachedObject;
 import org.apache.fulcrum.cache.GlobalCacheService;
 import org.apache.fulcrum.cache.ObjectExpiredException;
@@ -77,14 +77,7 @@ public class CACHE
    */
   public static CachedObject getObjectQuiet(String objClass, String id)
   {
-    try
-    {
-      return getService().getObject(objClass, id);
-    }
-    catch(ObjectExpiredException e)
-    {
-      return null;
-    }
+    return getService().getObjectIfPresent(objClass, id);
   }
 
   /**
@@ -97,14 +90,7 @@ public class CACHE
    */
   public static Object getContentQuiet(String id)
   {
-    try
-    {
-      return getService().getObject(id).getContents();
-    }
-    catch(Throwable e)
-    {
-      return null;
-    }
+    return getContentQuiet(CoreCacheServices.GENERIC_OBJ_CLASS, id);
   }
 
   /**
@@ -118,14 +104,47 @@ public class CACHE
    */
   public static Object getContentQuiet(String objClass, String id)
   {
-    try
-    {
-      return getService().getObject(objClass, id).getContents();
-    }
-    catch(Throwable e)
-    {
-      return null;
-    }
+    CachedObject co = getService().getObjectIfPresent(objClass, id);
+    return co == null ? null : co.getContents();
+  }
+
+  /**
+   * Recupero di una entry con caricamento automatico.
+   * Se la entry non è presente (o è scaduta) viene chiamato il loader
+   * e il risultato inserito in cache prima di essere ritornato.
+   * Più thread che richiedono contemporaneamente la stessa entry
+   * attendono un unico caricamento.
+   * @param <T> tipo del valore
+   * @param objClass classe degli oggetti
+   * @param id The String id for the object.
+   * @param loader funzione per produrre il valore da inserire in cache
+   * @param ttl permanenza in cache (millisecondi; 0 per il default)
+   * @return valore recuperato dalla cache o prodotto dal loader
+   * @throws Exception sollevata dal loader
+   */
+  public static <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl)
+     throws Exception
+  {
+    return getService().getOrLoad(objClass, id, loader, ttl);
+  }
+
+  /**
+   * Recupero di una entry con caricamento automatico e ricarica anticipata.
+   * Se la entry è a meno di refreshAhead millisecondi dalla scadenza
+   * viene ricaricata in background; nel frattempo viene ritornato il valore corrente.
+   * @param <T> tipo del valore
+   * @param objClass classe degli oggetti
+   * @param id The String id for the object.
+   * @param loader funzione per produrre il valore da inserire in cache
+   * @param ttl permanenza in cache (millisecondi; 0 per il default)
+   * @param refreshAhead anticipo per il caricamento in background (millisecondi)
+   * @return valore recuperato dalla cache o prodotto dal loader
+   * @throws Exception sollevata dal loader
+   */
+  public static <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl, long refreshAhead)
+     throws Exception
+  {
+    return getService().getOrLoad(objClass, id, loader, ttl, refreshAhead);
   }
 
   /**
@@ -208,6 +227,46 @@ public class CACHE
     return getService().getLimit(objClass);
   }
 
+  /**
+   * Imposta la politica di rimozione usata al raggiungimento del limite.
+   * @param objClass classe degli oggetti
+   * @param policy una fra CacheEvictionTracker.POLICY_LRU e CacheEvictionTracker.POLICY_SLRU
+   */
+  public static void setEvictionPolicy(String objClass, int policy)
+  {
+    getService().setEvictionPolicy(objClass, policy);
+  }
+
+  /**
+   * Ritorna le statistiche di utilizzo di una classe di oggetti.
+   * @param objClass classe degli oggetti
+   * @return statistiche (null se non disponibili)
+   */
+  public static CacheClassStats getClassStats(String objClass)
+  {
+    return getService().getClassStats(objClass);
+  }
+
+  /**
+   * Imposta un tetto di occupazione in memoria per una classe di oggetti.
+   * @param objClass classe degli oggetti
+   * @param maxBytes occupazione massima in bytes (-1 = nessun tetto)
+   */
+  public static void setMaxBytes(String objClass, long maxBytes)
+  {
+    getService().setMaxBytes(objClass, maxBytes);
+  }
+
+  /**
+   * Imposta la stima di occupazione usata per gli oggetti della classe.
+   * @param objClass classe degli oggetti
+   * @param weigher stima da utilizzare (null per quella di default)
+   */
+  public static void setWeigher(String objClass, CacheWeigher weigher)
+  {
+    getService().setWeigher(objClass, weigher);
+  }
+
   /**
    * Imposta il comportamento della classe all'evento di flush.
    * Il comportamento influenza solo la chiamata a flushCache().
@@ -406,16 +465,7 @@ public class CACHE
   public static <R> R fastEntry(String key, Callable<R> fun)
      throws Exception
   {
-    try
-    {
-      return (R) getService().getObject(key).getContents();
-    }
-    catch(ObjectExpiredException ex)
-    {
-      R toStore = fun.call();
-      getService().addObject(key, new CachedObject(toStore));
-      return toStore;
-    }
+    return getService().getOrLoad(CoreCacheServices.GENERIC_OBJ_CLASS, key, fun, 0);
   }
 
   /**
@@ -437,17 +487,7 @@ public class CACHE
      throws Exception
   {
     String key = keyPart + "/" + SU.okStr(value);
-
-    try
-    {
-      return (R) getService().getObject(key).getContents();
-    }
-    catch(ObjectExpiredException ex)
-    {
-      R toStore = fun.apply(value);
-      getService().addObject(key, new CachedObject(toStore));
-      return toStore;
-    }
+    return getService().getOrLoad(CoreCacheServices.GENERIC_OBJ_CLASS, key, () -> fun.apply(value), 0);
   }
 
   /**
@@ -470,17 +510,7 @@ public class CACHE
      throws Exception
   {
     String key = keyPart + "/" + SU.okStr(value);
-
-    try
-    {
-      return (R) getService().getObject(objClass, key).getContents();
-    }
-    catch(ObjectExpiredException ex)
-    {
-      R toStore = fun.apply(value);
-      getService().addObject(objClass, key, new CachedObject(toStore));
-      return toStore;
-    }
+    return getService().getOrLoad(objClass, key, () -> fun.apply(value), 0);
   }
 
   /**
@@ -501,17 +531,7 @@ public class CACHE
      throws Exception
   {
     String key = createKey(owner, simpleKey, args);
-
-    try
-    {
-      return (R) getService().getObject(key).getContents();
-    }
-    catch(ObjectExpiredException ex)
-    {
-      R toStore = fun.call();
-      getService().addObject(key, new CachedObject(toStore));
-      return toStore;
-    }
+    return getService().getOrLoad(CoreCacheServices.GENERIC_OBJ_CLASS, key, fun, 0);
   }
 
   /**
@@ -533,17 +553,7 @@ public class CACHE
      throws Exception
   {
     String key = createKey(owner, simpleKey, args);
-
-    try
-    {
-      return (R) getService().getObject(objClass, key).getContents();
-    }
-    catch(ObjectExpiredException ex)
-    {
-      R toStore = fun.call();
-      getService().addObject(objClass, key, new CachedObject(toStore));
-      return toStore;
-    }
+    return getService().getOrLoad(objClass, key, fun, 0);
   }
 
   /**
@@ -651,13 +661,12 @@ public class CACHE
   {
     try
     {
-      return (Set<String>) CACHE.getObject(CACHE_SIGNALED).getContents();
+      return getService().getOrLoad(CoreCacheServices.GENERIC_OBJ_CLASS, CACHE_SIGNALED,
+         () -> ConcurrentHashMap.newKeySet(), CoreConst.ONE_DAY_MILLIS);
     }
-    catch(ObjectExpiredException ex)
+    catch(Exception ex)
     {
-      HashSet<String> set = new HashSet<>();
-      CACHE.addObject(CACHE_SIGNALED, new CachedObject(set, CoreConst.ONE_DAY_MILLIS));
-      return set;
+      throw new RuntimeException(ex);
     }
   }
 
@@ -666,10 +675,10 @@ public class CACHE
    * La chiave viene utilizzata per recupere dalla cache il risultato.
    * Se non presente la funzione lambda viene chiamata per produrre il risultato da inserire.
    * Il risultato ottenuto viene inserito nella cache prima di essere ritornato.
-   * Il tempo di permanenza nella cache è quello di default.
    * @param <R> tipo di valore ritornato
    * @param key chiave da utilizzare per recupero/memorizzazione
-   * @param expires tempo di permanenza in cache (millisecondi)
+   * @param expires tempo di permanenza in cache (millisecondi; 0 per il default,
+   * CachedObject.FOREVER senza scadenza)
    * @param fun funzione per produrre il risultato da inserire in cache
    * @return risultato prodotto o recuperato dalla cache
    * @throws Exception
@@ -677,15 +686,6 @@ public class CACHE
   public static <R> R fastEntryExpires(String key, long expires, Callable<R> fun)
      throws Exception
   {
-    try
-    {
-      return (R) getService().getObject(key).getContents();
-    }
-    catch(ObjectExpiredException ex)
-    {
-      R toStore = fun.call();
-      getService().addObject(key, new CachedObject(toStore, expires));
-      return toStore;
-    }
+    return getService().getOrLoad(CoreCacheServices.GENERIC_OBJ_CLASS, key, fun, expires);
   }
 }
@@ -18,6 +18,9 @@
 package org.sirio6.services.cache;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.fulcrum.cache.CachedObject;
 import static org.sirio6.services.cache.CoreCacheServices.UNLIMITED;
 
@@ -28,7 +31,107 @@ import static org.sirio6.services.cache.CoreCacheServices.UNLIMITED;
  */
 public class CacheBlock
 {
-  public int limit = UNLIMITED;
+  /** numero massimo di accessi in attesa di essere registrati nel tracker */
+  public static final int ACCESS_BUFFER_SIZE = 1024;
+
+  public volatile int limit = UNLIMITED;
+  /** tetto di occupazione in bytes (UNLIMITED = nessun tetto) */
+  public volatile long maxBytes = UNLIMITED;
+  /** vero se è attivo un tetto globale di occupazione della cache */
+  public volatile boolean globalBudget = false;
+  /** stima dell'occupazione in memoria (non null per usare quella di default della cache) */
+  public volatile CacheWeigher weigher = null;
   public boolean flushPermitted = true;
   public final ConcurrentHashMap<String, CachedObject> cache = new ConcurrentHashMap<>();
+  /** ordine di rimozione al raggiungimento del limite */
+  public final CacheEvictionTracker eviction = new CacheEvictionTracker();
+  /** contatori di utilizzo */
+  public final CacheStatistics stats = new CacheStatistics();
+  /** occupazione stimata in bytes delle entry presenti */
+  public final AtomicLong bytes = new AtomicLong();
+  /** peso delle singole entry registrato all'inserimento */
+  public final ConcurrentHashMap<String, Weight> weights = new ConcurrentHashMap<>();
+  /** elemento della coda delle scadenze attualmente valido per ogni entry */
+  public final ConcurrentHashMap<String, CoreCacheImp.ExpiryItem> expiryItems = new ConcurrentHashMap<>();
+  /** accessi non ancora registrati nel tracker (letture senza lock) */
+  private final ConcurrentLinkedQueue<String> accessBuffer = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger accessPending = new AtomicInteger();
+
+  /**
+   * Peso di una entry.
+   * Conserva l'oggetto pesato per riconoscere le entry nel frattempo sostituite.
+   */
+  public static class Weight
+  {
+    public final CachedObject co;
+    public final long bytes;
+
+    public Weight(CachedObject co, long bytes)
+    {
+      this.co = co;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Vero se il blocco ha un limite di oggetti o di occupazione
+   * (e quindi una politica di rimozione).
+   * @return vero se limitato
+   */
+  public boolean isLimited()
+  {
+    return limit != UNLIMITED || maxBytes != UNLIMITED || globalBudget;
+  }
+
+  /**
+   * Vero se il blocco supera il limite di oggetti o di occupazione.
+   * @return vero se oltre il limite
+   */
+  public boolean isOverLimit()
+  {
+    return (limit != UNLIMITED && cache.size() > limit)
+       || (maxBytes != UNLIMITED && bytes.get() > maxBytes);
+  }
+
+  /**
+   * Registra una estrazione.
+   * L'accesso viene solo accodato (senza lock) e registrato nel tracker
+   * da drainAccesses() prima di ogni inserimento o rimozione per limite;
+   * a buffer pieno gli accessi in eccesso vengono ignorati.
+   * @param key chiave richiesta
+   * @param hit vero se l'oggetto è stato trovato
+   */
+  public void recordGet(String key, boolean hit)
+  {
+    if(hit)
+    {
+      stats.hits.increment();
+      if(isLimited() && accessPending.get() < ACCESS_BUFFER_SIZE)
+      {
+        accessPending.incrementAndGet();
+        accessBuffer.offer(key);
+      }
+    }
+    else
+    {
+      stats.misses.increment();
+    }
+  }
+
+  /**
+   * Registra nel tracker gli accessi accodati da recordGet().
+   */
+  public void drainAccesses()
+  {
+    if(accessPending.get() == 0)
+      return;
+
+    int max = limit != UNLIMITED ? limit : cache.size();
+    String key;
+    while((key = accessBuffer.poll()) != null)
+    {
+      accessPending.decrementAndGet();
+      eviction.recordAccess(key, max);
+    }
+  }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+/**
+ * Statistiche di una classe di oggetti della cache.
+ * Vista in tempo reale sul blocco della cache: i valori
+ * vengono letti al momento della richiesta.
+ * Viene registrata come MBean con nome
+ * <pre>org.sirio6.cache:type=CacheClass,name=NOMECLASSE</pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class CacheClassStats implements CacheClassStatsMBean
+{
+  private final String objClass;
+  private final CacheBlock cb;
+
+  public CacheClassStats(String objClass, CacheBlock cb)
+  {
+    this.objClass = objClass;
+    this.cb = cb;
+  }
+
+  @Override
+  public String getObjectClass()
+  {
+    return objClass;
+  }
+
+  @Override
+  public long getHits()
+  {
+    return cb.stats.hits.sum();
+  }
+
+  @Override
+  public long getMisses()
+  {
+    return cb.stats.misses.sum();
+  }
+
+  @Override
+  public double getHitRatio()
+  {
+    return cb.stats.getHitRatio();
+  }
+
+  @Override
+  public long getLoads()
+  {
+    return cb.stats.loads.sum();
+  }
+
+  @Override
+  public long getLoadFailures()
+  {
+    return cb.stats.loadFailures.sum();
+  }
+
+  @Override
+  public double getLoadTimeAvgMillis()
+  {
+    return cb.stats.getLoadTimeAvgMillis();
+  }
+
+  @Override
+  public long[] getLoadHistogram()
+  {
+    return cb.stats.getLoadHistogram();
+  }
+
+  @Override
+  public long getEvictionsExpired()
+  {
+    return cb.stats.evictionsExpired.sum();
+  }
+
+  @Override
+  public long getEvictionsLimit()
+  {
+    return cb.stats.evictionsLimit.sum();
+  }
+
+  @Override
+  public long getEvictionsFlush()
+  {
+    return cb.stats.evictionsFlush.sum();
+  }
+
+  @Override
+  public int getEntries()
+  {
+    return cb.cache.size();
+  }
+
+  @Override
+  public long getBytes()
+  {
+    return cb.bytes.get();
+  }
+
+  @Override
+  public int getLimit()
+  {
+    return cb.limit;
+  }
+
+  @Override
+  public long getMaxBytes()
+  {
+    return cb.maxBytes;
+  }
+
+  @Override
+  public void resetStatistics()
+  {
+    cb.stats.reset();
+  }
+}
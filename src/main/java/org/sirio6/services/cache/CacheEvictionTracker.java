@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Ordine di rimozione delle entry di un blocco della cache con limite.
+ * Con la politica LRU viene rimossa la entry usata meno di recente.
+ * Con la politica SLRU (segmented LRU) le entry nuove entrano in un segmento
+ * di prova e vengono promosse al segmento protetto al primo accesso successivo;
+ * la rimozione avviene prima dal segmento di prova: le entry usate una sola volta
+ * non possono quindi espellere quelle usate frequentemente.
+ * Tutti i metodi sono sincronizzati sull'istanza (un lock per blocco);
+ * le letture della cache non lo acquisiscono: gli accessi vengono accodati
+ * da CacheBlock.recordGet() e registrati in blocco da CacheBlock.drainAccesses().
+ *
+ * @author Nicola De Nisco
+ */
+public class CacheEvictionTracker
+{
+  /** rimozione della entry usata meno di recente */
+  public static final int POLICY_LRU = 0;
+  /** LRU segmentata: prova + protetto */
+  public static final int POLICY_SLRU = 1;
+  /** percentuale del limite riservata al segmento protetto */
+  public static final int PROTECTED_PERCENT = 80;
+
+  private int policy = POLICY_SLRU;
+  private final LinkedHashMap<String, Boolean> probation = new LinkedHashMap<>(16, 0.75f, true);
+  private final LinkedHashMap<String, Boolean> protect = new LinkedHashMap<>(16, 0.75f, true);
+
+  public synchronized int getPolicy()
+  {
+    return policy;
+  }
+
+  public synchronized void setPolicy(int policy)
+  {
+    if(policy != POLICY_LRU && policy != POLICY_SLRU)
+      throw new IllegalArgumentException("Unknow eviction policy " + policy);
+
+    // le entry protette tornano in coda di prova
+    if(policy == POLICY_LRU)
+    {
+      probation.putAll(protect);
+      protect.clear();
+    }
+
+    this.policy = policy;
+  }
+
+  /**
+   * Registra l'inserimento di una entry.
+   * @param key chiave della entry
+   */
+  public synchronized void recordInsert(String key)
+  {
+    if(protect.get(key) == null)
+      probation.put(key, Boolean.TRUE);
+  }
+
+  /**
+   * Registra l'accesso ad una entry.
+   * @param key chiave della entry
+   * @param limit limite del blocco (per il dimensionamento del segmento protetto)
+   */
+  public synchronized void recordAccess(String key, int limit)
+  {
+    if(policy == POLICY_LRU)
+    {
+      probation.get(key);
+      return;
+    }
+
+    if(protect.get(key) != null)
+      return;
+
+    if(probation.remove(key) == null)
+      return;
+
+    protect.put(key, Boolean.TRUE);
+
+    // il segmento protetto in eccesso retrocede le entry meno recenti
+    int maxProtected = Math.max(1, (int) ((long) limit * PROTECTED_PERCENT / 100));
+    Iterator<String> itr = protect.keySet().iterator();
+    while(protect.size() > maxProtected && itr.hasNext())
+    {
+      String demoted = itr.next();
+      itr.remove();
+      probation.put(demoted, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Registra la rimozione di una entry.
+   * @param key chiave della entry
+   */
+  public synchronized void recordRemove(String key)
+  {
+    if(probation.remove(key) == null)
+      protect.remove(key);
+  }
+
+  /**
+   * Estrae la prossima entry candidata alla rimozione.
+   * La entry viene tolta dal tracker.
+   * @return chiave della entry o null se il tracker è vuoto
+   */
+  public synchronized String pollVictim()
+  {
+    String key = pollEldest(probation);
+    return key != null ? key : pollEldest(protect);
+  }
+
+  private String pollEldest(LinkedHashMap<String, Boolean> segment)
+  {
+    Iterator<String> itr = segment.keySet().iterator();
+    if(!itr.hasNext())
+      return null;
+
+    String key = itr.next();
+    itr.remove();
+    return key;
+  }
+
+  /**
+   * Aggiunge in coda di prova le chiavi non ancora registrate.
+   * @param keys chiavi presenti nel blocco
+   */
+  public synchronized void trackAll(Collection<String> keys)
+  {
+    for(String key : keys)
+    {
+      if(!probation.containsKey(key) && !protect.containsKey(key))
+        probation.put(key, Boolean.TRUE);
+    }
+  }
+
+  /**
+   * Elimina le chiavi non più presenti nella cache.
+   * @param keys chiavi presenti nel blocco
+   */
+  public synchronized void retainAll(Collection<String> keys)
+  {
+    probation.keySet().retainAll(keys);
+    protect.keySet().retainAll(keys);
+  }
+
+  public synchronized int size()
+  {
+    return probation.size() + protect.size();
+  }
+
+  public synchronized void clear()
+  {
+    probation.clear();
+    protect.clear();
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contatori di utilizzo di una classe di oggetti della cache.
+ * I contatori sono LongAdder: la registrazione non alloca memoria
+ * e non introduce contesa fra thread, quindi può restare sempre attiva.
+ *
+ * @author Nicola De Nisco
+ */
+public class CacheStatistics
+{
+  /** limiti superiori (millisecondi) delle fasce dell'istogramma dei tempi di caricamento */
+  public static final long[] LOAD_BUCKETS_MILLIS =
+  {
+    1, 5, 10, 50, 100, 500, 1000, 5000
+  };
+
+  /** estrazioni con successo */
+  public final LongAdder hits = new LongAdder();
+  /** estrazioni fallite (oggetto assente o scaduto) */
+  public final LongAdder misses = new LongAdder();
+  /** caricamenti eseguiti da getOrLoad */
+  public final LongAdder loads = new LongAdder();
+  /** caricamenti terminati con errore */
+  public final LongAdder loadFailures = new LongAdder();
+  /** tempo complessivo di caricamento (nanosecondi) */
+  public final LongAdder loadNanos = new LongAdder();
+  /** oggetti rimossi perché scaduti */
+  public final LongAdder evictionsExpired = new LongAdder();
+  /** oggetti rimossi per superamento del limite (numero o occupazione) */
+  public final LongAdder evictionsLimit = new LongAdder();
+  /** oggetti rimossi da un flush */
+  public final LongAdder evictionsFlush = new LongAdder();
+
+  private final LongAdder[] loadHistogram = new LongAdder[LOAD_BUCKETS_MILLIS.length + 1];
+
+  public CacheStatistics()
+  {
+    for(int i = 0; i < loadHistogram.length; i++)
+      loadHistogram[i] = new LongAdder();
+  }
+
+  /**
+   * Registra un caricamento.
+   * @param nanos durata del caricamento
+   * @param success vero se terminato correttamente
+   */
+  public void recordLoad(long nanos, boolean success)
+  {
+    loads.increment();
+    loadNanos.add(nanos);
+
+    if(!success)
+      loadFailures.increment();
+
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int i = 0;
+    while(i < LOAD_BUCKETS_MILLIS.length && millis > LOAD_BUCKETS_MILLIS[i])
+      i++;
+    loadHistogram[i].increment();
+  }
+
+  /**
+   * Ritorna l'istogramma dei tempi di caricamento.
+   * L'elemento i conta i caricamenti di durata fino a LOAD_BUCKETS_MILLIS[i];
+   * l'ultimo elemento quelli oltre l'ultima fascia.
+   * @return conteggi per fascia
+   */
+  public long[] getLoadHistogram()
+  {
+    long[] rv = new long[loadHistogram.length];
+    for(int i = 0; i < rv.length; i++)
+      rv[i] = loadHistogram[i].sum();
+    return rv;
+  }
+
+  public double getHitRatio()
+  {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  public double getLoadTimeAvgMillis()
+  {
+    long n = loads.sum();
+    return n == 0 ? 0.0 : loadNanos.sum() / (n * 1000000.0);
+  }
+
+  /**
+   * Azzera tutti i contatori.
+   */
+  public void reset()
+  {
+    hits.reset();
+    misses.reset();
+    loads.reset();
+    loadFailures.reset();
+    loadNanos.reset();
+    evictionsExpired.reset();
+    evictionsLimit.reset();
+    evictionsFlush.reset();
+
+    for(LongAdder la : loadHistogram)
+      la.reset();
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import org.apache.fulcrum.cache.CachedObject;
+
+/**
+ * Stima dell'occupazione di memoria di una entry della cache.
+ * Può essere impostato per singola classe di oggetti
+ * (vedi CoreCacheServices.setWeigher()).
+ *
+ * @author Nicola De Nisco
+ */
+@FunctionalInterface
+public interface CacheWeigher
+{
+  /**
+   * Ritorna l'occupazione stimata della entry.
+   * Viene chiamato una sola volta all'inserimento in cache.
+   * @param key chiave della entry
+   * @param co oggetto inserito in cache
+   * @return occupazione stimata in bytes
+   */
+  public long weigh(String key, CachedObject co);
+}
@@ -17,19 +17,31 @@
  */
 package org.sirio6.services.cache;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import org.apache.fulcrum.cache.CachedObject;
 import org.apache.fulcrum.cache.ObjectExpiredException;
 import org.apache.fulcrum.cache.RefreshableCachedObject;
@@ -59,6 +71,32 @@ public class CoreCacheImp implements CoreCacheServices
    * The property for the Cache check frequency
    */
   public static final String CACHE_CHECK_FREQUENCY = "cache.check.frequency";
+  /**
+   * The property for the cache implementation class
+   * (ES: org.sirio6.services.cache.CoreConcurrentCacheImp).
+   */
+  public static final String CACHE_IMPLEMENTATION = "cache.implementation";
+  /**
+   * The property prefix for per class limits (ES: cache.limit.TableCache=200).
+   */
+  public static final String CACHE_LIMIT = "cache.limit";
+  /**
+   * The property prefix for per class eviction policy (ES: cache.policy.TableCache=lru).
+   * Valori ammessi: lru, slru (default).
+   */
+  public static final String CACHE_POLICY = "cache.policy";
+  /**
+   * The property for the global memory budget (ES: cache.maxbytes=512M)
+   * and prefix for per class budgets (ES: cache.maxbytes.TableCache=64M).
+   */
+  public static final String CACHE_MAXBYTES = "cache.maxbytes";
+  /**
+   * The property to enable JMX statistics (default true)
+   * and the JMX domain for the statistics MBeans.
+   */
+  public static final String CACHE_JMX = "cache.jmx";
+  public static final String CACHE_JMX_DOMAIN = "cache.jmx.domain";
+  public static final String DEFAULT_JMX_DOMAIN = "org.sirio6.cache";
   /**
    * Cache check frequency in Millis (1000 Millis = 1 second).
    * Default = 15 seconds
@@ -69,15 +107,222 @@ public class CoreCacheImp implements CoreCacheServices
    */
   protected int cacheInitialSize = DEFAULT_INITIAL_CACHE_SIZE;
   protected long cacheCheckFrequency = DEFAULT_CACHE_CHECK_FREQUENCY;
+  /**
+   * caricamenti in corso di getOrLoad (objClass/id)
+   */
+  protected final ConcurrentHashMap<String, CompletableFuture<Object>> loading = new ConcurrentHashMap<>();
+  /**
+   * esecutore per i caricamenti anticipati (refresh-ahead)
+   * e per le notifiche di refresh/cancellazione del cleaner
+   */
+  protected ExecutorService loaderExecutor;
+  /**
+   * thread di pulizia della cache (vedi startCleaner())
+   */
+  protected Thread cleanerThread;
+  protected volatile boolean stopped = false;
+  /**
+   * MBean registrati da questa istanza (rimossi in shutdown())
+   */
+  protected final Set<ObjectName> registeredStats = ConcurrentHashMap.newKeySet();
+  /**
+   * coda delle scadenze: il cleaner esamina solo le entry scadute
+   */
+  protected final PriorityBlockingQueue<ExpiryItem> expiryQueue = new PriorityBlockingQueue<>();
+  /**
+   * elementi della coda delle scadenze sostituiti da uno più recente
+   */
+  protected final AtomicLong expiryStale = new AtomicLong();
+  /**
+   * compattazione della coda delle scadenze in corso
+   */
+  protected final AtomicBoolean expiryCompacting = new AtomicBoolean();
+  /**
+   * numero minimo di elementi obsoleti per la compattazione della coda delle scadenze
+   */
+  public static final int EXPIRY_COMPACT_THRESHOLD = 1024;
+  /**
+   * occupazione stimata di tutta la cache (somma dei blocchi)
+   */
+  protected final AtomicLong totalBytes = new AtomicLong();
+  /**
+   * tetto globale di occupazione in bytes (UNLIMITED = nessun tetto)
+   */
+  protected volatile long globalMaxBytes = UNLIMITED;
+  /**
+   * stima di default dell'occupazione delle entry
+   */
+  protected CacheWeigher defaultWeigher = new DefaultCacheWeigher();
+  /**
+   * registrazione delle statistiche come MBean
+   */
+  protected boolean jmxEnabled = true;
+  protected String jmxDomain = DEFAULT_JMX_DOMAIN;
+
+  /**
+   * Elemento della coda delle scadenze.
+   * Mantiene un riferimento debole all'oggetto: se la entry viene
+   * sostituita o rimossa l'elemento viene semplicemente scartato alla scadenza.
+   * Per ogni entry è valido un solo elemento (CacheBlock.expiryItems): quelli
+   * sostituiti sono marcati obsoleti e rimossi dalla compattazione della coda.
+   */
+  protected static class ExpiryItem implements Comparable<ExpiryItem>
+  {
+    protected final long deadline;
+    protected final CacheBlock cb;
+    protected final String key;
+    protected final WeakReference<CachedObject> ref;
+    protected volatile boolean stale;
+
+    public ExpiryItem(long deadline, CacheBlock cb, String key, CachedObject co)
+    {
+      this.deadline = deadline;
+      this.cb = cb;
+      this.key = key;
+      this.ref = new WeakReference<>(co);
+    }
+
+    @Override
+    public int compareTo(ExpiryItem o)
+    {
+      return Long.compare(deadline, o.deadline);
+    }
+  }
 
+  /**
+   * Crea l'implementazione della cache richiesta a setup.
+   * @param className nome della classe (null o vuoto per CoreCacheImp)
+   * @return istanza dell'implementazione
+   * @throws Exception
+   */
+  public static CoreCacheImp createImplementation(String className)
+     throws Exception
+  {
+    if(className == null || className.trim().isEmpty())
+      return new CoreCacheImp();
+
+    return (CoreCacheImp) Class.forName(className.trim()).getDeclaredConstructor().newInstance();
+  }
+
+  /**
+   * Imposta limite e politica di rimozione di una classe letti dal setup.
+   * @param objClass classe degli oggetti
+   * @param limit numero massimo di oggetti
+   * @param policy politica di rimozione (lru o slru; null per il default)
+   */
+  public void configureClass(String objClass, int limit, long maxBytes, String policy)
+  {
+    if(policy != null && !policy.trim().isEmpty())
+      setEvictionPolicy(objClass, parsePolicy(policy));
+
+    setLimit(objClass, limit);
+    setMaxBytes(objClass, maxBytes);
+  }
+
+  /**
+   * Converte una dimensione in bytes con eventuale suffisso K, M o G.
+   * @param value valore da convertire (ES: 512M)
+   * @return numero di bytes (UNLIMITED se null o vuoto)
+   */
+  public static long parseBytes(String value)
+  {
+    if(value == null || (value = value.trim().toUpperCase()).isEmpty())
+      return UNLIMITED;
+
+    long mult = 1;
+    switch(value.charAt(value.length() - 1))
+    {
+      case 'K':
+        mult = 1024L;
+        break;
+      case 'M':
+        mult = 1024L * 1024L;
+        break;
+      case 'G':
+        mult = 1024L * 1024L * 1024L;
+        break;
+    }
+
+    if(mult != 1)
+      value = value.substring(0, value.length() - 1).trim();
+
+    return Long.parseLong(value) * mult;
+  }
+
+  /**
+   * Converte il nome della politica di rimozione.
+   * @param policy nome della politica (lru o slru)
+   * @return una fra CacheEvictionTracker.POLICY_LRU e CacheEvictionTracker.POLICY_SLRU
+   */
+  public static int parsePolicy(String policy)
+  {
+    switch(policy.trim().toLowerCase())
+    {
+      case "lru":
+        return CacheEvictionTracker.POLICY_LRU;
+      case "slru":
+        return CacheEvictionTracker.POLICY_SLRU;
+    }
+
+    throw new IllegalArgumentException("Unknow eviction policy " + policy);
+  }
+
+  /**
+   * Ritorna il blocco della classe creandolo se necessario.
+   * La creazione è atomica: più thread concorrenti ottengono lo stesso blocco.
+   * @param objClass classe degli oggetti
+   * @return blocco della cache
+   */
   protected CacheBlock getCacheBlock(String objClass)
   {
-    CacheBlock cb = (CacheBlock) (htClasses.get(objClass));
+    CacheBlock cb = htClasses.get(objClass);
     if(cb == null)
     {
-      cb = new CacheBlock();
-      htClasses.put(objClass, cb);
+      boolean[] created = new boolean[1];
+      cb = htClasses.computeIfAbsent(objClass, (k) ->
+      {
+        created[0] = true;
+        return createCacheBlock();
+      });
+
+      if(created[0])
+        registerStats(objClass, cb);
+    }
+    return cb;
+  }
+
+  /**
+   * Registra le statistiche del blocco come MBean.
+   * Errori di registrazione (ES: nome già registrato da un'altra applicazione
+   * nella stessa JVM) vengono solo segnalati nel log.
+   * @param objClass classe degli oggetti
+   * @param cb blocco della cache
+   */
+  protected void registerStats(String objClass, CacheBlock cb)
+  {
+    if(!jmxEnabled)
+      return;
+
+    try
+    {
+      ObjectName name = new ObjectName(jmxDomain + ":type=CacheClass,name=" + ObjectName.quote(objClass));
+      MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+      if(!mbs.isRegistered(name))
+      {
+        mbs.registerMBean(new CacheClassStats(objClass, cb), name);
+        registeredStats.add(name);
+      }
     }
+    catch(Exception ex)
+    {
+      Logger.getLogger(CoreCacheImp.class.getName()).log(Level.FINE, "JMX registration failed for " + objClass, ex);
+    }
+  }
+
+  protected CacheBlock createCacheBlock()
+  {
+    CacheBlock cb = new CacheBlock();
+    cb.globalBudget = globalMaxBytes != UNLIMITED;
     return cb;
   }
 
@@ -96,8 +341,217 @@ public class CoreCacheImp implements CoreCacheServices
    * not in the cache or it has expired.
    */
   @Override
-  public synchronized CachedObject getObject(String objClass, String id)
+  public CachedObject getObject(String objClass, String id)
      throws ObjectExpiredException
+  {
+    CachedObject obj = findObject(objClass, id);
+
+    if(obj == null)
+      throw new ObjectExpiredException();
+
+    return obj;
+  }
+
+  @Override
+  public CachedObject getObjectIfPresent(String objClass, String id)
+  {
+    return findObject(objClass, id);
+  }
+
+  @Override
+  public <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl, long refreshAhead)
+     throws Exception
+  {
+    CachedObject co = findObject(objClass, id);
+    if(co != null)
+    {
+      if(refreshAhead > 0 && isNearExpiry(co, refreshAhead))
+        reloadAsync(objClass, id, loader, ttl);
+
+      return (T) co.getContents();
+    }
+
+    String loadKey = objClass + "/" + id;
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    CompletableFuture<Object> running = loading.putIfAbsent(loadKey, future);
+
+    // un altro thread sta già caricando la stessa entry: attende il suo risultato
+    if(running != null)
+      return (T) waitLoad(running);
+
+    try
+    {
+      // ricontrolla: il caricamento potrebbe essere terminato prima del putIfAbsent
+      if((co = lookupObject(objClass, id)) != null)
+      {
+        future.complete(co.getContents());
+        return (T) co.getContents();
+      }
+
+      T value = callLoader(objClass, loader);
+      addObject(objClass, id, createLoadedObject(value, ttl));
+      future.complete(value);
+      return value;
+    }
+    catch(Throwable t)
+    {
+      future.completeExceptionally(t);
+      throw t;
+    }
+    finally
+    {
+      loading.remove(loadKey, future);
+    }
+  }
+
+  /**
+   * Esegue il loader registrando durata ed esito nelle statistiche della classe.
+   * @param <T> tipo del valore
+   * @param objClass classe degli oggetti
+   * @param loader funzione di caricamento
+   * @return valore prodotto dal loader
+   * @throws Exception sollevata dal loader
+   */
+  protected <T> T callLoader(String objClass, Callable<T> loader)
+     throws Exception
+  {
+    long start = System.nanoTime();
+    boolean success = false;
+    try
+    {
+      T value = loader.call();
+      success = true;
+      return value;
+    }
+    finally
+    {
+      getCacheBlock(objClass).stats.recordLoad(System.nanoTime() - start, success);
+    }
+  }
+
+  /**
+   * Crea il contenitore per un valore prodotto da getOrLoad.
+   * @param value valore da memorizzare
+   * @param ttl permanenza in cache (millisecondi; 0 per il default;
+   * negativo come per CachedObject, ES: CachedObject.FOREVER)
+   * @return oggetto da inserire in cache
+   */
+  protected CachedObject createLoadedObject(Object value, long ttl)
+  {
+    return ttl == 0 ? new CachedObject(value) : new CachedObject(value, ttl);
+  }
+
+  /**
+   * Verifica se l'oggetto scadrà entro l'intervallo indicato.
+   * Solo i CachedObject a scadenza assoluta sono interessati:
+   * i CoreCachedObject vengono rinnovati ad ogni estrazione.
+   * @param co oggetto da verificare
+   * @param refreshAhead intervallo in millisecondi
+   * @return vero se in scadenza
+   */
+  protected boolean isNearExpiry(CachedObject co, long refreshAhead)
+  {
+    if(co instanceof CoreCachedObject || co.getExpires() <= 0)
+      return false;
+
+    return (co.getCreated() + co.getExpires() - System.currentTimeMillis()) < refreshAhead;
+  }
+
+  /**
+   * Ricarica in background una entry in scadenza.
+   * Se un caricamento della stessa entry è già in corso non fa nulla.
+   * Fino al termine del caricamento i chiamanti ricevono il valore corrente.
+   * @param objClass classe degli oggetti
+   * @param id The String id for the object.
+   * @param loader funzione di caricamento
+   * @param ttl permanenza in cache (millisecondi)
+   */
+  protected void reloadAsync(String objClass, String id, Callable<?> loader, long ttl)
+  {
+    String loadKey = objClass + "/" + id;
+    CompletableFuture<Object> future = new CompletableFuture<>();
+    if(loading.putIfAbsent(loadKey, future) != null)
+      return;
+
+    getLoaderExecutor().execute(() ->
+    {
+      try
+      {
+        Object value = callLoader(objClass, loader);
+        addObject(objClass, id, createLoadedObject(value, ttl));
+        future.complete(value);
+      }
+      catch(Throwable t)
+      {
+        future.completeExceptionally(t);
+        Logger.getLogger(CoreCacheImp.class.getName()).log(Level.SEVERE, "Error in cache reload of " + loadKey, t);
+      }
+      finally
+      {
+        loading.remove(loadKey, future);
+      }
+    });
+  }
+
+  protected Object waitLoad(CompletableFuture<Object> running)
+     throws Exception
+  {
+    try
+    {
+      return running.get();
+    }
+    catch(ExecutionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if(cause instanceof Exception)
+        throw (Exception) cause;
+      if(cause instanceof Error)
+        throw (Error) cause;
+      throw ex;
+    }
+  }
+
+  protected synchronized Executor getLoaderExecutor()
+  {
+    if(stopped)
+      return Runnable::run;
+
+    if(loaderExecutor == null)
+    {
+      loaderExecutor = Executors.newFixedThreadPool(2, (r) ->
+      {
+        Thread t = new Thread(r);
+        t.setName("CoreCacheWorker");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return loaderExecutor;
+  }
+
+  /**
+   * Recupera un oggetto dalla cache aggiornando i contatori
+   * e l'ordine di accesso del blocco.
+   * @param objClass classe degli oggetti
+   * @param id The key of the stored object.
+   * @return The object from the cache or null
+   */
+  protected CachedObject findObject(String objClass, String id)
+  {
+    CachedObject obj = lookupObject(objClass, id);
+    getCacheBlock(objClass).recordGet(id, obj != null);
+    return obj;
+  }
+
+  /**
+   * Recupera un oggetto dalla cache.
+   * Come getObject() ma un oggetto assente o scaduto produce null
+   * invece di una eccezione (nessun costo di creazione dello stack trace).
+   * @param objClass classe degli oggetti
+   * @param id The key of the stored object.
+   * @return The object from the cache or null
+   */
+  protected synchronized CachedObject lookupObject(String objClass, String id)
   {
     Map<String, CachedObject> cache = getCache(objClass);
     CachedObject obj = cache.get(id);
@@ -105,7 +559,7 @@ public class CoreCacheImp implements CoreCacheServices
     if(obj == null)
     {
       // Not in the cache.
-      throw new ObjectExpiredException();
+      return null;
     }
 
     if(obj.isStale())
@@ -115,33 +569,33 @@ public class CoreCacheImp implements CoreCacheServices
         RefreshableCachedObject rco = (RefreshableCachedObject) obj;
         if(rco.isUntouched())
           // Do not refresh an object that has exceeded TimeToLive
-          throw new ObjectExpiredException();
+          return null;
 
         // Refresh Object
         rco.refresh();
 
         if(rco.isStale())
           // Object is Expired.
-          throw new ObjectExpiredException();
+          return null;
       }
       else if(obj instanceof CoreRefreshableCachedObject)
       {
         CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) obj;
         if(wrco.isUntouched())
           // Do not refresh an object that has exceeded TimeToLive
-          throw new ObjectExpiredException();
+          return null;
 
         // Refresh Object
         wrco.refresh();
 
         if(wrco.isStale())
           // Object is Expired.
-          throw new ObjectExpiredException();
+          return null;
       }
       else
       {
         // Expired.
-        throw new ObjectExpiredException();
+        return null;
       }
     }
 
@@ -151,125 +605,684 @@ public class CoreCacheImp implements CoreCacheServices
       RefreshableCachedObject rco = (RefreshableCachedObject) obj;
       rco.touch();
     }
-    else if(obj instanceof CoreRefreshableCachedObject)
+    else if(obj instanceof CoreRefreshableCachedObject)
+    {
+      CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) obj;
+      wrco.refreshEntry();
+      wrco.touch();
+    }
+    else if(obj instanceof CoreCachedObject)
+    {
+      CoreCachedObject wco = (CoreCachedObject) obj;
+      wco.refreshEntry();
+    }
+
+    return obj;
+  }
+
+  /**
+   * Adds an object to the cache.
+   *
+   * @param id The key to store the object by.
+   * @param o The object to cache.
+   */
+  @Override
+  public synchronized void addObject(String objClass, String id, CachedObject o)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map cache = cb.cache;
+
+    // If the cache already contains the key, remove it and add
+    // the fresh one.
+    CachedObject co = (CachedObject) cache.get(id);
+    if(co != null)
+    {
+      if(!notifyRemoveObject(co))
+        return;
+
+      cache.remove(id);
+      cache.put(id, o);
+    }
+    else
+    {
+      cache.put(id, o);
+    }
+
+    onAdded(cb, id, o);
+  }
+
+  /**
+   * Removes an object from the cache.
+   *
+   * @param id The String id for the object.
+   */
+  @Override
+  public synchronized void removeObject(String objClass, String id)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map<String, CachedObject> cache = cb.cache;
+    CachedObject co = (CachedObject) cache.get(id);
+    if(co != null)
+    {
+      if(!notifyRemoveObject(co))
+        return;
+      cache.remove(id);
+      onRemoved(cb, id, co);
+    }
+  }
+
+  /**
+   * Rimuove tutti gli oggetti la cui chiave inizia con una stringa.
+   * @param objClass classe della cache
+   * @param idLeftPart stringa iniziale degli id da rimuovere
+   */
+  @Override
+  public void removeAllObjects(String objClass, String idLeftPart)
+  {
+    removeAllObjects(objClass, (String key, CachedObject value) -> key.startsWith(idLeftPart));
+  }
+
+  @Override
+  public void removeAllObjects(String objClass, testRemoveInterface test)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map<String, CachedObject> cache = cb.cache;
+    ArrayList<String> arKeysDelete = new ArrayList<>();
+
+    synchronized(this)
+    {
+      for(Map.Entry<String, CachedObject> entrySet : cache.entrySet())
+      {
+        String key = entrySet.getKey();
+        CachedObject value = entrySet.getValue();
+
+        if(test != null && !test.testForRemove(key, value))
+          continue;
+
+        if(notifyRemoveObject(value))
+          arKeysDelete.add(key);
+      }
+    }
+
+    // questo può stare fuori dal synchronized essendo cache una ConcurrentHashMap
+    for(String key : arKeysDelete)
+    {
+      CachedObject co = cache.remove(key);
+      if(co != null)
+        onRemoved(cb, key, co);
+    }
+  }
+
+  /**
+   * Prima di rimuovere l'oggetto dalla cache avvia
+   * le operazioni di cancellazione dello stesso.
+   * @param co
+   * @return
+   */
+  protected boolean notifyRemoveObject(CachedObject co)
+  {
+    if(co instanceof CoreCachedObject)
+    {
+      CoreCachedObject wco = (CoreCachedObject) co;
+
+      // un oggetto non cancellabile non puo' essere rimosso dalla cache
+      if(!wco.isDeletable())
+        return false;
+
+      // segnala che sta per essere cancellato
+      wco.deletingExpired();
+    }
+    return true;
+  }
+
+  /**
+   * Verifica se l'oggetto può essere rimosso dalla cache.
+   * @param co oggetto da verificare
+   * @return vero se rimovibile
+   */
+  protected boolean isRemovable(CachedObject co)
+  {
+    if(co instanceof CoreCachedObject)
+      return ((CoreCachedObject) co).isDeletable();
+
+    return true;
+  }
+
+  /**
+   * Segnala all'oggetto l'avvenuta rimozione dalla cache.
+   * Viene chiamato solo dal thread che ha effettivamente rimosso l'oggetto.
+   * @param co oggetto rimosso
+   */
+  protected void notifyRemoved(CachedObject co)
+  {
+    if(co instanceof CoreCachedObject)
+    {
+      try
+      {
+        ((CoreCachedObject) co).deletingExpired();
+      }
+      catch(Throwable ex)
+      {
+        Logger.getLogger(CoreCacheImp.class.getName()).log(Level.SEVERE, "Error in deletingExpired:", ex);
+      }
+    }
+  }
+
+  /**
+   * Registra l'inserimento di una entry: scadenza, peso,
+   * ordine di rimozione e applicazione dei limiti.
+   * @param cb blocco di appartenenza
+   * @param id chiave della entry
+   * @param co oggetto inserito (eventualmente in sostituzione di uno precedente)
+   */
+  protected void onAdded(CacheBlock cb, String id, CachedObject co)
+  {
+    scheduleExpiry(cb, id, co, System.currentTimeMillis());
+
+    CacheWeigher weigher = cb.weigher != null ? cb.weigher : defaultWeigher;
+    long bytes = weigher.weigh(id, co);
+    long[] delta = new long[1];
+
+    // peso e delta calcolati atomicamente rispetto al contenuto attuale della cache:
+    // un inserimento concorrente più recente non può essere sovrascritto
+    cb.weights.compute(id, (k, old) ->
+    {
+      CachedObject current = cb.cache.get(k);
+      if(current == co)
+      {
+        delta[0] = old == null ? bytes : bytes - old.bytes;
+        return new CacheBlock.Weight(co, bytes);
+      }
+
+      if(current == null && old != null)
+      {
+        // entry già rimossa: il peso registrato non appartiene più alla cache
+        delta[0] = -old.bytes;
+        return null;
+      }
+
+      // sostituita nel frattempo: il peso lo registra chi l'ha inserita
+      return old;
+    });
+    addBytes(cb, delta[0]);
+
+    if(cb.isLimited())
+    {
+      ArrayList<CoreCachedObject> deleteThese = new ArrayList<>();
+      cb.drainAccesses();
+      cb.eviction.recordInsert(id);
+      enforceLimit(cb, id, deleteThese);
+
+      if(globalMaxBytes != UNLIMITED && totalBytes.get() > globalMaxBytes)
+        enforceGlobalBudget(cb, id, deleteThese);
+
+      dispatchCallbacks(Collections.emptyList(), deleteThese);
+    }
+  }
+
+  /**
+   * Registra la rimozione di una entry.
+   * Deve essere chiamato solo dal thread che ha effettivamente rimosso l'oggetto.
+   * @param cb blocco di appartenenza
+   * @param id chiave della entry
+   * @param co oggetto rimosso
+   */
+  protected void onRemoved(CacheBlock cb, String id, CachedObject co)
+  {
+    long[] delta = new long[1];
+    cb.weights.computeIfPresent(id, (k, old) ->
+    {
+      if(old.co != co && cb.cache.get(k) != null)
+        return old;
+
+      delta[0] = -old.bytes;
+      return null;
+    });
+    addBytes(cb, delta[0]);
+
+    ExpiryItem ei = cb.expiryItems.get(id);
+    if(ei != null && ei.ref.get() == co && cb.expiryItems.remove(id, ei))
+      markStale(ei);
+
+    if(cb.isLimited())
+      cb.eviction.recordRemove(id);
+  }
+
+  protected void addBytes(CacheBlock cb, long delta)
+  {
+    if(delta != 0)
+    {
+      cb.bytes.addAndGet(delta);
+      totalBytes.addAndGet(delta);
+    }
+  }
+
+  /**
+   * Calcola il momento in cui l'oggetto dovrà essere riesaminato dal cleaner.
+   * Per gli oggetti con TTL si considera anche l'ultimo accesso
+   * (per RefreshableCachedObject, che non lo espone, il caso peggiore).
+   * @param co oggetto da esaminare
+   * @param now tempo corrente
+   * @return timestamp della scadenza (Long.MAX_VALUE se non scade mai)
+   */
+  protected long computeDeadline(CachedObject co, long now)
+  {
+    long deadline = Long.MAX_VALUE;
+
+    if(co.getExpires() >= 0)
+      deadline = co.getCreated() + co.getExpires();
+
+    if(co instanceof RefreshableCachedObject)
+    {
+      long ttl = ((RefreshableCachedObject) co).getTTL();
+      if(ttl >= 0)
+        deadline = Math.min(deadline, now + ttl);
+    }
+    else if(co instanceof CoreRefreshableCachedObject)
+    {
+      CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) co;
+      long ttl = wrco.getTTL();
+      if(ttl >= 0)
+        deadline = Math.min(deadline, wrco.getLastAccess() + ttl);
+    }
+
+    return deadline;
+  }
+
+  /**
+   * Inserisce l'oggetto nella coda delle scadenze.
+   * @param cb blocco di appartenenza
+   * @param id chiave dell'oggetto
+   * @param co oggetto inserito in cache
+   * @param now tempo corrente
+   */
+  protected void scheduleExpiry(CacheBlock cb, String id, CachedObject co, long now)
+  {
+    long deadline = computeDeadline(co, now);
+    if(deadline == Long.MAX_VALUE)
+    {
+      markStale(cb.expiryItems.remove(id));
+      return;
+    }
+
+    ExpiryItem item = new ExpiryItem(deadline, cb, id, co);
+    markStale(cb.expiryItems.put(id, item));
+    expiryQueue.add(item);
+    compactExpiry();
+  }
+
+  private void markStale(ExpiryItem old)
+  {
+    if(old != null && !old.stale)
+    {
+      old.stale = true;
+      expiryStale.incrementAndGet();
+    }
+  }
+
+  /**
+   * Rimuove dalla coda delle scadenze gli elementi obsoleti quando
+   * superano la metà della coda (e comunque EXPIRY_COMPACT_THRESHOLD):
+   * una entry reinserita o rinfrescata spesso non fa crescere la coda.
+   */
+  protected void compactExpiry()
+  {
+    long stale = expiryStale.get();
+    if(stale < EXPIRY_COMPACT_THRESHOLD || stale < expiryQueue.size() / 2)
+      return;
+
+    if(!expiryCompacting.compareAndSet(false, true))
+      return;
+
+    try
+    {
+      long[] removed = new long[1];
+      expiryQueue.removeIf((item) ->
+      {
+        if(!item.stale)
+          return false;
+        removed[0]++;
+        return true;
+      });
+      expiryStale.addAndGet(-removed[0]);
+    }
+    finally
+    {
+      expiryCompacting.set(false);
+    }
+  }
+
+  /**
+   * Estrae dalla coda delle scadenze solo gli elementi scaduti e li esamina.
+   * Le entry ancora valide (ad esempio rinnovate da una estrazione)
+   * vengono riaccodate con la nuova scadenza.
+   * @param refreshThese vettore per l'accodamento degli oggetti da rinfrescare
+   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
+   */
+  protected void collectExpired(List<CachedObject> refreshThese, List<CoreCachedObject> deleteThese)
+  {
+    long now = System.currentTimeMillis();
+    ExpiryItem item;
+
+    while((item = expiryQueue.poll()) != null)
+    {
+      if(item.deadline > now)
+      {
+        // il primo elemento non scaduto: tutti i successivi sono più recenti
+        expiryQueue.add(item);
+        break;
+      }
+
+      if(item.stale)
+      {
+        expiryStale.decrementAndGet();
+        continue;
+      }
+
+      CachedObject co = item.ref.get();
+      ConcurrentHashMap<String, CachedObject> cache = item.cb.cache;
+
+      // entry sostituita o rimossa: l'elemento è obsoleto
+      if(co == null || cache.get(item.key) != co)
+      {
+        item.cb.expiryItems.remove(item.key, item);
+        continue;
+      }
+
+      if(checkExpired(item.cb, item.key, co, refreshThese, deleteThese))
+      {
+        item.cb.stats.evictionsExpired.increment();
+        continue;
+      }
+
+      // ancora in cache: riprogramma; se già scaduta (non cancellabile o
+      // in attesa di refresh) viene riesaminata dopo un intervallo minimo
+      long deadline = computeDeadline(co, now);
+      if(deadline == Long.MAX_VALUE)
+      {
+        item.cb.expiryItems.remove(item.key, item);
+        continue;
+      }
+      if(deadline <= now)
+        deadline = now + Math.max(co.getExpires(), cacheCheckFrequency);
+
+      // sostituisce l'elemento solo se nel frattempo non ne è stato accodato uno più recente
+      ExpiryItem next = new ExpiryItem(deadline, item.cb, item.key, co);
+      if(item.cb.expiryItems.replace(item.key, item, next))
+        expiryQueue.add(next);
+    }
+  }
+
+  /**
+   * Esamina una entry scaduta.
+   * @param cache sottoarea della cache (classe di oggetti)
+   * @param key chiave della entry
+   * @param co oggetto della entry
+   * @param refreshThese vettore per l'accodamento degli oggetti da rinfrescare
+   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
+   * @return vero se la entry è stata rimossa dalla cache
+   */
+  protected boolean checkExpired(CacheBlock cb, String key, CachedObject co,
+     List<CachedObject> refreshThese, List<CoreCachedObject> deleteThese)
+  {
+
+    if(co instanceof RefreshableCachedObject)
+    {
+      RefreshableCachedObject rco = (RefreshableCachedObject) co;
+      if(rco.isUntouched())
+        return removeEntry(cb, key, co);
+
+      if(rco.isStale())
+        refreshThese.add(rco);
+    }
+    else if(co instanceof CoreRefreshableCachedObject)
+    {
+      CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) co;
+
+      if(wrco.isUntouched())
+      {
+        // un oggetto non cancellabile non puo' essere rimosso dalla cache
+        if(wrco.isDeletable() && removeEntry(cb, key, co))
+        {
+          deleteThese.add(wrco);
+          return true;
+        }
+      }
+      else if(wrco.isStale())
+      {
+        refreshThese.add(wrco);
+      }
+    }
+    else if(co instanceof CoreCachedObject)
     {
-      CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) obj;
-      wrco.refreshEntry();
-      wrco.touch();
+      CoreCachedObject wco = (CoreCachedObject) co;
+
+      // un oggetto non cancellabile non puo' essere rimosso dalla cache
+      if(co.isStale() && wco.isDeletable() && removeEntry(cb, key, co))
+      {
+        deleteThese.add(wco);
+        return true;
+      }
     }
-    else if(obj instanceof CoreCachedObject)
+    else if(co.isStale())
     {
-      CoreCachedObject wco = (CoreCachedObject) obj;
-      wco.refreshEntry();
+      return removeEntry(cb, key, co);
     }
 
-    return obj;
+    return false;
   }
 
   /**
-   * Adds an object to the cache.
-   *
-   * @param id The key to store the object by.
-   * @param o The object to cache.
+   * Rimozione condizionata di una entry (solo se non è stata nel frattempo sostituita).
+   * @param cb blocco di appartenenza
+   * @param key chiave della entry
+   * @param co oggetto atteso
+   * @return vero se rimosso
    */
-  @Override
-  public synchronized void addObject(String objClass, String id, CachedObject o)
+  protected boolean removeEntry(CacheBlock cb, String key, CachedObject co)
   {
-    CacheBlock cb = getCacheBlock(objClass);
-    Map cache = cb.cache;
+    if(!cb.cache.remove(key, co))
+      return false;
 
-    // If the cache already contains the key, remove it and add
-    // the fresh one.
-    CachedObject co = (CachedObject) cache.get(id);
-    if(co != null)
-    {
-      if(!notifyRemoveObject(co))
-        return;
+    onRemoved(cb, key, co);
+    return true;
+  }
 
-      cache.remove(id);
-      cache.put(id, o);
-    }
-    else
+  /**
+   * Verifica il limite di tutte le classi che ne hanno uno.
+   * Il limite viene normalmente applicato all'inserimento; qui si recuperano
+   * eventuali entry sfuggite al tracker (inserimenti e rimozioni concorrenti).
+   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
+   */
+  protected void checkLimits(List<CoreCachedObject> deleteThese)
+  {
+    for(CacheBlock cb : htClasses.values())
     {
-      cache.put(id, o);
+      if(cb.isLimited() && cb.isOverLimit())
+      {
+        cb.eviction.trackAll(cb.cache.keySet());
+        enforceLimit(cb, null, deleteThese);
+      }
     }
   }
 
   /**
-   * Removes an object from the cache.
-   *
-   * @param id The String id for the object.
+   * Applica limite e tetto di occupazione del blocco rimuovendo le entry indicate
+   * dalla politica di rimozione (LRU o SLRU) fino a rientrare nel limite.
+   * Gli oggetti non cancellabili vengono saltati.
+   * @param cb blocco della cache
+   * @param keep chiave da non rimuovere (la entry appena inserita; può essere null)
+   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
    */
-  @Override
-  public synchronized void removeObject(String objClass, String id)
+  protected void enforceLimit(CacheBlock cb, String keep, List<CoreCachedObject> deleteThese)
   {
-    Map<String, CachedObject> cache = getCache(objClass);
-    CachedObject co = (CachedObject) cache.get(id);
-    if(co != null)
+    if(cb.isOverLimit())
+      evict(cb, keep, cb::isOverLimit, deleteThese);
+  }
+
+  /**
+   * Applica il tetto globale di occupazione.
+   * Le entry vengono rimosse a partire dai blocchi più grandi.
+   * @param cb blocco dell'ultimo inserimento
+   * @param keep chiave da non rimuovere in cb (la entry appena inserita)
+   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
+   */
+  protected void enforceGlobalBudget(CacheBlock cb, String keep, List<CoreCachedObject> deleteThese)
+  {
+    ArrayList<CacheBlock> blocks = new ArrayList<>(htClasses.values());
+    blocks.sort((b1, b2) -> Long.compare(b2.bytes.get(), b1.bytes.get()));
+
+    for(CacheBlock b : blocks)
     {
-      if(!notifyRemoveObject(co))
-        return;
-      cache.remove(id);
+      if(totalBytes.get() <= globalMaxBytes)
+        break;
+
+      evict(b, b == cb ? keep : null, () -> totalBytes.get() > globalMaxBytes, deleteThese);
     }
   }
 
   /**
-   * Rimuove tutti gli oggetti la cui chiave inizia con una stringa.
-   * @param objClass classe della cache
-   * @param idLeftPart stringa iniziale degli id da rimuovere
+   * Rimuove entry del blocco nell'ordine della politica di rimozione
+   * fino a quando la condizione rimane vera.
+   * @param cb blocco della cache
+   * @param keep chiave da non rimuovere (può essere null)
+   * @param overLimit condizione di superamento del limite
+   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
    */
-  @Override
-  public void removeAllObjects(String objClass, String idLeftPart)
+  protected void evict(CacheBlock cb, String keep, BooleanSupplier overLimit, List<CoreCachedObject> deleteThese)
   {
-    removeAllObjects(objClass, (String key, CachedObject value) -> key.startsWith(idLeftPart));
+    ConcurrentHashMap<String, CachedObject> cache = cb.cache;
+    ArrayList<String> skipped = new ArrayList<>();
+    String key;
+
+    cb.drainAccesses();
+    while(overLimit.getAsBoolean() && (key = cb.eviction.pollVictim()) != null)
+    {
+      CachedObject co = cache.get(key);
+      if(co == null)
+        continue;
+
+      if(key.equals(keep) || !isRemovable(co) || !removeEntry(cb, key, co))
+      {
+        skipped.add(key);
+        continue;
+      }
+
+      cb.stats.evictionsLimit.increment();
+      if(co instanceof CoreCachedObject)
+        deleteThese.add((CoreCachedObject) co);
+    }
+
+    // le entry saltate restano candidate alla rimozione
+    for(String k : skipped)
+      cb.eviction.recordInsert(k);
+
+    // elimina dal tracker le chiavi rimosse per scadenza o flush
+    if(cb.eviction.size() > 2 * cache.size() + 16)
+      cb.eviction.retainAll(cache.keySet());
   }
 
-  @Override
-  public void removeAllObjects(String objClass, testRemoveInterface test)
+  /**
+   * Esegue le notifiche di cancellazione e i refresh raccolti dal cleaner.
+   * Le chiamate avvengono sull'esecutore della cache per non
+   * rallentare il thread di pulizia.
+   * @param refreshThese oggetti da rinfrescare
+   * @param deleteThese oggetti rimossi da notificare
+   */
+  protected void dispatchCallbacks(List<CachedObject> refreshThese, List<CoreCachedObject> deleteThese)
   {
-    Map<String, CachedObject> cache = getCache(objClass);
-    ArrayList<String> arKeysDelete = new ArrayList<>();
+    if(refreshThese.isEmpty() && deleteThese.isEmpty())
+      return;
 
-    synchronized(this)
+    getLoaderExecutor().execute(() ->
     {
-      for(Map.Entry<String, CachedObject> entrySet : cache.entrySet())
-      {
-        String key = entrySet.getKey();
-        CachedObject value = entrySet.getValue();
+      // notifica agli oggetti la loro rimozione dalla cache
+      for(CoreCachedObject co : deleteThese)
+        notifyRemoved(co);
 
-        if(test != null && !test.testForRemove(key, value))
-          continue;
+      // chiama il metodo refresh per gli elementi che lo richiedono
+      for(CachedObject co : refreshThese)
+      {
+        try
+        {
+          synchronized(co)
+          {
+            if(!co.isStale())
+              continue;
 
-        if(notifyRemoveObject(value))
-          arKeysDelete.add(key);
+            if(co instanceof RefreshableCachedObject)
+              ((RefreshableCachedObject) co).refresh();
+            else if(co instanceof CoreRefreshableCachedObject)
+              ((CoreRefreshableCachedObject) co).refresh();
+          }
+        }
+        catch(Throwable ex)
+        {
+          Logger.getLogger(CoreCacheImp.class.getName()).log(Level.SEVERE, "Error in refresh:", ex);
+        }
       }
-    }
+    });
+  }
 
-    // questo può stare fuori dal synchronized essendo cache una ConcurrentHashMap
-    for(String key : arKeysDelete)
-      cache.remove(key);
+  /**
+   * Avvia il thread di pulizia della cache.
+   * @param name nome del thread
+   */
+  public synchronized void startCleaner(String name)
+  {
+    if(cleanerThread != null)
+      return;
+
+    cleanerThread = new Thread(() -> runCleaner());
+    // Indicate that this is a system thread. JVM will quit only when there
+    // are no more active user threads. Settings threads spawned internally
+    // by Turbine as daemons allows commandline applications using Turbine
+    // to terminate in an orderly manner.
+    cleanerThread.setName(name);
+    cleanerThread.setDaemon(true);
+    cleanerThread.start();
   }
 
   /**
-   * Prima di rimuovere l'oggetto dalla cache avvia
-   * le operazioni di cancellazione dello stesso.
-   * @param co
-   * @return
+   * Arresta la cache: termina il thread di pulizia e l'esecutore dei
+   * caricamenti e rimuove gli MBean delle statistiche.
+   * Necessario al redeploy dell'applicazione nello stesso container:
+   * altrimenti thread e MBean trattengono il classloader precedente.
    */
-  protected boolean notifyRemoveObject(CachedObject co)
+  public void shutdown()
   {
-    if(co instanceof CoreCachedObject)
+    ExecutorService executor;
+    Thread cleaner;
+
+    synchronized(this)
     {
-      CoreCachedObject wco = (CoreCachedObject) co;
+      stopped = true;
+      executor = loaderExecutor;
+      cleaner = cleanerThread;
+      loaderExecutor = null;
+      cleanerThread = null;
+    }
 
-      // un oggetto non cancellabile non puo' essere rimosso dalla cache
-      if(!wco.isDeletable())
-        return false;
+    if(cleaner != null)
+      cleaner.interrupt();
 
-      // segnala che sta per essere cancellato
-      wco.deletingExpired();
+    if(executor != null)
+      executor.shutdown();
+
+    MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+    for(ObjectName name : registeredStats)
+    {
+      try
+      {
+        if(mbs.isRegistered(name))
+          mbs.unregisterMBean(name);
+      }
+      catch(Exception ex)
+      {
+        Logger.getLogger(CoreCacheImp.class.getName()).log(Level.FINE, "JMX unregistration failed for " + name, ex);
+      }
     }
-    return true;
+    registeredStats.clear();
   }
 
   /**
@@ -278,7 +1291,7 @@ public class CoreCacheImp implements CoreCacheServices
    */
   protected void runCleaner()
   {
-    while(true)
+    while(!stopped)
     {
       try
       {
@@ -299,136 +1312,25 @@ public class CoreCacheImp implements CoreCacheServices
   }
 
   /**
-   * Iterate through the cache and remove or refresh stale objects.
+   * Remove or refresh stale objects.
+   * Vengono esaminate solo le entry presenti in testa alla coda delle scadenze;
+   * il costo di ogni passata è proporzionale agli oggetti scaduti
+   * e non alla dimensione della cache.
    */
   protected void clearCache()
   {
     ArrayList<CachedObject> refreshThese = new ArrayList<>();
     ArrayList<CoreCachedObject> deleteThese = new ArrayList<>();
 
-    // Sync on this object so that other threads do not
-    // change the HashMap while enumerating over it.
     synchronized(this)
     {
-      for(Map.Entry<String, CacheBlock> entryClasses : htClasses.entrySet())
-      {
-        String objClass = entryClasses.getKey();
-        CacheBlock cb = entryClasses.getValue();
-        Map<String, CachedObject> cache = cb.cache;
-        ArrayList<String> toRemoveKeys = new ArrayList<>();
-
-        for(Map.Entry<String, CachedObject> entryItem : cache.entrySet())
-        {
-          String key = entryItem.getKey();
-          CachedObject co = entryItem.getValue();
-
-          if(co instanceof RefreshableCachedObject)
-          {
-            RefreshableCachedObject rco = (RefreshableCachedObject) co;
-            if(rco.isUntouched())
-            {
-              toRemoveKeys.add(key);
-            }
-            else if(rco.isStale())
-            {
-              // Do refreshing outside of sync block so as not
-              // to prolong holding the lock on this object
-              refreshThese.add(rco);
-            }
-          }
-          else if(co instanceof CoreRefreshableCachedObject)
-          {
-            CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) co;
-
-            if(wrco.isUntouched())
-            {
-              // un oggetto non cancellabile non puo' essere rimosso dalla cache
-              if(!wrco.isDeletable())
-                continue;
-
-              // segnala che sta per essere cancellato
-              deleteThese.add(wrco);
-              toRemoveKeys.add(key);
-            }
-            else if(wrco.isStale())
-            {
-              // Do refreshing outside of sync block so as not
-              // to prolong holding the lock on this object
-              refreshThese.add(wrco);
-            }
-          }
-          else if(co instanceof CoreCachedObject)
-          {
-            CoreCachedObject wco = (CoreCachedObject) co;
-
-            if(co.isStale())
-            {
-              // un oggetto non cancellabile non puo' essere rimosso dalla cache
-              if(!wco.isDeletable())
-                continue;
-
-              // segnala che sta per essere cancellato
-              deleteThese.add(wco);
-              toRemoveKeys.add(key);
-            }
-          }
-          else
-          {
-            if(co.isStale())
-              toRemoveKeys.add(key);
-          }
-        }
+      collectExpired(refreshThese, deleteThese);
 
-        // rimuove tutti gli oggetti scaduti dalla cache
-        for(String key : toRemoveKeys)
-          cache.remove(key);
-
-        // verifica se la cache ha un limite ed eventualmente cancella
-        int limit = cb.limit;
-        if(limit != UNLIMITED && cache.size() >= limit)
-          checkLimit(cache, limit, deleteThese);
-      }
-    }
-
-    // notifica agli oggetti la loro rimozione dalla cache
-    if(!deleteThese.isEmpty())
-    {
-      for(CachedObject o : deleteThese)
-      {
-        try
-        {
-          CoreCachedObject co = (CoreCachedObject) o;
-          co.deletingExpired();
-        }
-        catch(Throwable ex)
-        {
-        }
-      }
+      // verifica se la cache ha un limite ed eventualmente cancella
+      checkLimits(deleteThese);
     }
 
-    // chiama il metodo refresh per gli elementi che lo richiedono
-    if(!refreshThese.isEmpty())
-    {
-      for(CachedObject co : refreshThese)
-      {
-        try
-        {
-          if(co instanceof RefreshableCachedObject)
-          {
-            RefreshableCachedObject rco = (RefreshableCachedObject) co;
-            rco.refresh();
-          }
-          else if(co instanceof CoreRefreshableCachedObject)
-          {
-            CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) co;
-            wrco.refresh();
-          }
-        }
-        catch(Throwable ex)
-        {
-        }
-      }
-    }
+    dispatchCallbacks(refreshThese, deleteThese);
   }
 
   /**
@@ -464,35 +1366,76 @@ public class CoreCacheImp implements CoreCacheServices
 
   /**
    * Returns the current size of the cache.
+   * Il valore è la somma delle stime registrate all'inserimento delle entry
+   * (vedi CacheWeigher); non richiede di esaminare il contenuto della cache.
    *
    * @return int representing current cache size in number of bytes
    * @throws java.io.IOException
    */
   @Override
-  public synchronized int getCacheSize()
+  public int getCacheSize()
      throws IOException
   {
-    int objectsize = 0;
+    return (int) Math.min(Integer.MAX_VALUE, totalBytes.get());
+  }
 
-    for(Map.Entry<String, CacheBlock> entryClasses : htClasses.entrySet())
-    {
-      String objClass = entryClasses.getKey();
-      CacheBlock cb = entryClasses.getValue();
-      Map cache = cb.cache;
+  @Override
+  public long getCacheBytes(String objClass)
+  {
+    return getCacheBlock(objClass).bytes.get();
+  }
+
+  @Override
+  public void setMaxBytes(String objClass, long maxBytes)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    cb.maxBytes = maxBytes;
+    updateTracking(cb);
+  }
+
+  @Override
+  public long getMaxBytes(String objClass)
+  {
+    return getCacheBlock(objClass).maxBytes;
+  }
+
+  @Override
+  public void setWeigher(String objClass, CacheWeigher weigher)
+  {
+    getCacheBlock(objClass).weigher = weigher;
+  }
+
+  /**
+   * Imposta il tetto globale di occupazione della cache.
+   * @param maxBytes occupazione massima in bytes (UNLIMITED = nessun tetto)
+   */
+  public void setGlobalMaxBytes(long maxBytes)
+  {
+    globalMaxBytes = maxBytes;
 
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ObjectOutputStream out = new ObjectOutputStream(baos);
-      out.writeObject(cache);
-      out.flush();
-      //
-      // Subtract 4 bytes from the length, because the serialization
-      // magic number (2 bytes) and version number (2 bytes) are
-      // both written to the stream before the object
-      //
-      objectsize += baos.toByteArray().length - 4;
+    for(CacheBlock cb : htClasses.values())
+    {
+      cb.globalBudget = maxBytes != UNLIMITED;
+      updateTracking(cb);
     }
+  }
+
+  public long getGlobalMaxBytes()
+  {
+    return globalMaxBytes;
+  }
 
-    return objectsize;
+  /**
+   * Attiva o disattiva il tracker della politica di rimozione
+   * in base ai limiti impostati sul blocco.
+   * @param cb blocco della cache
+   */
+  protected void updateTracking(CacheBlock cb)
+  {
+    if(cb.isLimited())
+      cb.eviction.trackAll(cb.cache.keySet());
+    else
+      cb.eviction.clear();
   }
 
   /**
@@ -522,7 +1465,8 @@ public class CoreCacheImp implements CoreCacheServices
   {
     try
     {
-      Map<String, CachedObject> cache = getCache(objClass);
+      CacheBlock cb = getCacheBlock(objClass);
+      Map<String, CachedObject> cache = cb.cache;
       ArrayMap<String, CachedObject> toRemove = new ArrayMap<>();
 
       synchronized(this)
@@ -542,7 +1486,13 @@ public class CoreCacheImp implements CoreCacheServices
 
       // rimuove dalla cache tutte le entry
       // questo può stare fuori dal synchronized essendo cache una ConcurrentHashMap
-      toRemove.forEachKey((s) -> cache.remove(s));
+      toRemove.forEachKey((s) ->
+      {
+        CachedObject co = cache.remove(s);
+        if(co != null)
+          onRemoved(cb, s, co);
+      });
+      cb.stats.evictionsFlush.add(toRemove.size());
 
       BusContext bc = new BusContext(
          "class", objClass,
@@ -566,6 +1516,7 @@ public class CoreCacheImp implements CoreCacheServices
   {
     CacheBlock cb = getCacheBlock(objClass);
     cb.limit = limit;
+    updateTracking(cb);
   }
 
   /**
@@ -581,59 +1532,53 @@ public class CoreCacheImp implements CoreCacheServices
   }
 
   @Override
-  public void setFlushPermitted(String objClass, boolean flushPermitted)
+  public void setEvictionPolicy(String objClass, int policy)
   {
-    CacheBlock cb = getCacheBlock(objClass);
-    cb.flushPermitted = flushPermitted;
+    getCacheBlock(objClass).eviction.setPolicy(policy);
   }
 
   @Override
-  public boolean isFlushPermitted(String objClass)
+  public int getEvictionPolicy(String objClass)
   {
-    CacheBlock cb = getCacheBlock(objClass);
-    return cb.flushPermitted;
+    return getCacheBlock(objClass).eviction.getPolicy();
   }
 
-  /**
-   * Verifica il superamento del limite massimo.
-   * Per una determinata sottoarea della cache verifica il raggiungimento
-   * del limite massimo di oggetti previsto per la classe di oggetti.
-   * Al superamento del limite gli oggetti eccedenti vengono rimossi
-   * in ordina cronologico.
-   * @param cache sottoarea della cache (classe di oggetti)
-   * @param limit limite per la sottoarea (classe)
-   * @param deleteThese vettore per l'accodamento degli oggetti da cancellare
-   */
-  protected void checkLimit(Map<String, CachedObject> cache, int limit, List<CoreCachedObject> deleteThese)
+  @Override
+  public CacheClassStats getClassStats(String objClass)
   {
-    // prepara un array con gli oggetti della cache
-    Collection<CachedObject> c = cache.values();
-    CachedObject[] coArr = new CachedObject[c.size()];
-    c.toArray(coArr);
-
-    // ordina l'array dal più vecchio (getCreated() piu basso)
-    Arrays.sort(coArr, (CachedObject o1, CachedObject o2) -> Long.compare(o1.getCreated(), o2.getCreated()));
+    return new CacheClassStats(objClass, getCacheBlock(objClass));
+  }
 
-    // rimuove dalla cache gli elementi più vecchi fino a rientrare nel limite imposto
-    for(int i = 0; i < coArr.length && cache.size() >= limit; i++)
-    {
-      CachedObject co = coArr[i];
+  @Override
+  public long getHitCount(String objClass)
+  {
+    return getCacheBlock(objClass).stats.hits.sum();
+  }
 
-      if(co instanceof CoreCachedObject)
-      {
-        CoreCachedObject wco = (CoreCachedObject) co;
+  @Override
+  public long getMissCount(String objClass)
+  {
+    return getCacheBlock(objClass).stats.misses.sum();
+  }
 
-        // un oggetto non cancellabile non puo' essere rimosso dalla cache
-        if(!wco.isDeletable())
-          continue;
+  @Override
+  public long getEvictionCount(String objClass)
+  {
+    return getCacheBlock(objClass).stats.evictionsLimit.sum();
+  }
 
-        // carica il vettore con gli elementi da segnalare cancellazione
-        deleteThese.add(wco);
-      }
+  @Override
+  public void setFlushPermitted(String objClass, boolean flushPermitted)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    cb.flushPermitted = flushPermitted;
+  }
 
-      // rimuove oggetto dalla cache; questo vale per qualsiasi tipo di oggetto
-      c.remove(co);
-    }
+  @Override
+  public boolean isFlushPermitted(String objClass)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    return cb.flushPermitted;
   }
 
   /**
@@ -759,7 +1704,9 @@ public class CoreCacheImp implements CoreCacheServices
     }
     else
     {
-      cache.put(id, new CachedObject(obj.getContents(), obj.getExpires()));
+      CachedObject nco = new CachedObject(obj.getContents(), obj.getExpires());
+      cache.put(id, nco);
+      onAdded(getCacheBlock(objClass), id, nco);
     }
 
     return true;
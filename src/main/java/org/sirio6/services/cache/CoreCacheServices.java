@@ -19,6 +19,7 @@ package org.sirio6.services.cache;
 
 import java.io.PrintWriter;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
 import org.apache.fulcrum.cache.CachedObject;
 import org.apache.fulcrum.cache.GlobalCacheService;
 import org.apache.fulcrum.cache.ObjectExpiredException;
@@ -69,6 +70,73 @@ public interface CoreCacheServices extends GlobalCacheService
   public CachedObject getObject(String objClass, String id)
      throws ObjectExpiredException;
 
+  /**
+   * Gets a cached object given its id (a String).
+   * Come getObject() ma se l'oggetto non è presente o è scaduto
+   * ritorna null senza sollevare eccezioni.
+   *
+   * @param objClass classe degli oggetti
+   * @param id The String id for the object.
+   * @return A CachedObject or null.
+   */
+  public default CachedObject getObjectIfPresent(String objClass, String id)
+  {
+    try
+    {
+      return getObject(objClass, id);
+    }
+    catch(ObjectExpiredException e)
+    {
+      return null;
+    }
+  }
+
+  /**
+   * Recupero di una entry con caricamento automatico.
+   * Se la entry non è presente (o è scaduta) viene chiamato il loader
+   * e il risultato inserito in cache prima di essere ritornato.
+   * Più thread che richiedono contemporaneamente la stessa entry
+   * attendono un unico caricamento.
+   * @param <T> tipo del valore
+   * @param objClass classe degli oggetti
+   * @param id The String id for the object.
+   * @param loader funzione per produrre il valore da inserire in cache
+   * @param ttl permanenza in cache (millisecondi; 0 per il default, CachedObject.FOREVER senza scadenza)
+   * @return valore recuperato dalla cache o prodotto dal loader
+   * @throws Exception sollevata dal loader
+   */
+  public default <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl)
+     throws Exception
+  {
+    return getOrLoad(objClass, id, loader, ttl, 0);
+  }
+
+  /**
+   * Recupero di una entry con caricamento automatico.
+   * Come getOrLoad(objClass, id, loader, ttl) ma se la entry è a meno
+   * di refreshAhead millisecondi dalla scadenza viene ricaricata in background;
+   * nel frattempo i chiamanti ricevono il valore corrente.
+   * @param <T> tipo del valore
+   * @param objClass classe degli oggetti
+   * @param id The String id for the object.
+   * @param loader funzione per produrre il valore da inserire in cache
+   * @param ttl permanenza in cache (millisecondi; 0 per il default, CachedObject.FOREVER senza scadenza)
+   * @param refreshAhead anticipo per il caricamento in background (millisecondi; 0 disabilitato)
+   * @return valore recuperato dalla cache o prodotto dal loader
+   * @throws Exception sollevata dal loader
+   */
+  public default <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl, long refreshAhead)
+     throws Exception
+  {
+    CachedObject co = getObjectIfPresent(objClass, id);
+    if(co != null)
+      return (T) co.getContents();
+
+    T value = loader.call();
+    addObject(objClass, id, ttl > 0 ? new CachedObject(value, ttl) : new CachedObject(value));
+    return value;
+  }
+
   /**
    * Adds an object to the cache.
    *
@@ -115,6 +183,104 @@ public interface CoreCacheServices extends GlobalCacheService
    */
   public int getLimit(String objClass);
 
+  /**
+   * Imposta la politica di rimozione usata al raggiungimento del limite.
+   * @param objClass classe degli oggetti
+   * @param policy una fra CacheEvictionTracker.POLICY_LRU e CacheEvictionTracker.POLICY_SLRU
+   */
+  public default void setEvictionPolicy(String objClass, int policy)
+  {
+  }
+
+  /**
+   * Ritorna la politica di rimozione usata al raggiungimento del limite.
+   * @param objClass classe degli oggetti
+   * @return una fra CacheEvictionTracker.POLICY_LRU e CacheEvictionTracker.POLICY_SLRU
+   */
+  public default int getEvictionPolicy(String objClass)
+  {
+    return CacheEvictionTracker.POLICY_LRU;
+  }
+
+  /**
+   * Ritorna le statistiche di utilizzo della classe.
+   * @param objClass classe degli oggetti
+   * @return statistiche (null se non disponibili)
+   */
+  public default CacheClassStats getClassStats(String objClass)
+  {
+    return null;
+  }
+
+  /**
+   * Ritorna il numero di estrazioni con successo per la classe.
+   * @param objClass classe degli oggetti
+   * @return contatore
+   */
+  public default long getHitCount(String objClass)
+  {
+    return 0;
+  }
+
+  /**
+   * Ritorna il numero di estrazioni fallite (oggetto assente o scaduto) per la classe.
+   * @param objClass classe degli oggetti
+   * @return contatore
+   */
+  public default long getMissCount(String objClass)
+  {
+    return 0;
+  }
+
+  /**
+   * Ritorna il numero di oggetti rimossi per superamento del limite.
+   * @param objClass classe degli oggetti
+   * @return contatore
+   */
+  public default long getEvictionCount(String objClass)
+  {
+    return 0;
+  }
+
+  /**
+   * Imposta un tetto di occupazione in memoria per una classe di oggetti.
+   * Al superamento vengono rimossi gli oggetti indicati dalla politica di rimozione.
+   * @param objClass classe degli oggetti
+   * @param maxBytes occupazione massima in bytes (UNLIMITED = nessun tetto)
+   */
+  public default void setMaxBytes(String objClass, long maxBytes)
+  {
+  }
+
+  /**
+   * Ritorna il tetto di occupazione in memoria della classe.
+   * @param objClass classe degli oggetti
+   * @return occupazione massima in bytes (UNLIMITED = nessun tetto)
+   */
+  public default long getMaxBytes(String objClass)
+  {
+    return UNLIMITED;
+  }
+
+  /**
+   * Ritorna l'occupazione stimata in memoria degli oggetti della classe.
+   * @param objClass classe degli oggetti
+   * @return occupazione in bytes
+   */
+  public default long getCacheBytes(String objClass)
+  {
+    return 0;
+  }
+
+  /**
+   * Imposta la stima di occupazione usata per gli oggetti della classe.
+   * @param objClass classe degli oggetti
+   * @param weigher stima da utilizzare (null per quella di default)
+   */
+  public default void setWeigher(String objClass, CacheWeigher weigher)
+  {
+  }
+
   /**
    * Imposta il comportamento della classe all'evento di flush.
    * Il comportamento influenza solo la chiamata a flushCache().
@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.fulcrum.cache.CachedObject;
+import org.apache.fulcrum.cache.RefreshableCachedObject;
+import org.commonlib5.utils.ArrayMap;
+import org.sirio6.services.bus.BUS;
+import org.sirio6.services.bus.BusContext;
+import org.sirio6.services.bus.BusMessages;
+
+/**
+ * Implementazione concorrente per CoreCacheServices.
+ * A differenza di CoreCacheImp non esiste un lock globale sul servizio:
+ * lettura, inserimento e rimozione lavorano direttamente sulla ConcurrentHashMap
+ * del blocco usando operazioni atomiche per singola entry (replace/remove condizionali).
+ * Il refresh degli oggetti scaduti viene eseguito sincronizzando solo sull'oggetto stesso.
+ * Si attiva impostando nel setup del servizio di cache:
+ * <pre>cache.implementation=org.sirio6.services.cache.CoreConcurrentCacheImp</pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class CoreConcurrentCacheImp extends CoreCacheImp
+{
+  /**
+   * Returns an item from the cache. RefreshableCachedObject will be
+   * refreshed if it is expired and not untouched.
+   * Il refresh avviene sincronizzando sul solo oggetto interessato.
+   *
+   * @param objClass classe degli oggetti
+   * @param id The key of the stored object.
+   * @return The object from the cache or null if not in the cache or expired.
+   */
+  @Override
+  protected CachedObject lookupObject(String objClass, String id)
+  {
+    Map<String, CachedObject> cache = getCache(objClass);
+    CachedObject obj = cache.get(id);
+
+    if(obj == null)
+    {
+      // Not in the cache.
+      return null;
+    }
+
+    if(obj.isStale())
+    {
+      if(obj instanceof RefreshableCachedObject)
+      {
+        RefreshableCachedObject rco = (RefreshableCachedObject) obj;
+        if(rco.isUntouched())
+          // Do not refresh an object that has exceeded TimeToLive
+          return null;
+
+        // un solo thread esegue il refresh; gli altri attendono e ritestano
+        synchronized(rco)
+        {
+          if(rco.isStale())
+            rco.refresh();
+        }
+
+        if(rco.isStale())
+          // Object is Expired.
+          return null;
+      }
+      else if(obj instanceof CoreRefreshableCachedObject)
+      {
+        CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) obj;
+        if(wrco.isUntouched())
+          // Do not refresh an object that has exceeded TimeToLive
+          return null;
+
+        // un solo thread esegue il refresh; gli altri attendono e ritestano
+        synchronized(wrco)
+        {
+          if(wrco.isStale())
+            wrco.refresh();
+        }
+
+        if(wrco.isStale())
+          // Object is Expired.
+          return null;
+      }
+      else
+      {
+        // Expired.
+        return null;
+      }
+    }
+
+    if(obj instanceof RefreshableCachedObject)
+    {
+      // notify it that it's being accessed.
+      RefreshableCachedObject rco = (RefreshableCachedObject) obj;
+      rco.touch();
+    }
+    else if(obj instanceof CoreRefreshableCachedObject)
+    {
+      CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) obj;
+      wrco.refreshEntry();
+      wrco.touch();
+    }
+    else if(obj instanceof CoreCachedObject)
+    {
+      CoreCachedObject wco = (CoreCachedObject) obj;
+      wco.refreshEntry();
+    }
+
+    return obj;
+  }
+
+  /**
+   * Adds an object to the cache.
+   * La sostituzione di una entry esistente avviene con replace condizionale:
+   * se nel frattempo un altro thread ha modificato la entry l'operazione viene ripetuta.
+   *
+   * @param id The key to store the object by.
+   * @param o The object to cache.
+   */
+  @Override
+  public void addObject(String objClass, String id, CachedObject o)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map<String, CachedObject> cache = cb.cache;
+
+    while(true)
+    {
+      CachedObject co = cache.get(id);
+
+      if(co == null)
+      {
+        if(cache.putIfAbsent(id, o) == null)
+          break;
+      }
+      else
+      {
+        // un oggetto non cancellabile non puo' essere sostituito
+        if(!isRemovable(co))
+          return;
+
+        if(cache.replace(id, co, o))
+        {
+          notifyRemoved(co);
+          break;
+        }
+      }
+    }
+
+    onAdded(cb, id, o);
+  }
+
+  /**
+   * Removes an object from the cache.
+   *
+   * @param id The String id for the object.
+   */
+  @Override
+  public void removeObject(String objClass, String id)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map<String, CachedObject> cache = cb.cache;
+    CachedObject co = cache.get(id);
+
+    if(co != null && isRemovable(co) && removeEntry(cb, id, co))
+      notifyRemoved(co);
+  }
+
+  @Override
+  public void removeAllObjects(String objClass, testRemoveInterface test)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map<String, CachedObject> cache = cb.cache;
+
+    for(Map.Entry<String, CachedObject> entrySet : cache.entrySet())
+    {
+      String key = entrySet.getKey();
+      CachedObject value = entrySet.getValue();
+
+      if(test != null && !test.testForRemove(key, value))
+        continue;
+
+      if(isRemovable(value) && removeEntry(cb, key, value))
+        notifyRemoved(value);
+    }
+  }
+
+  /**
+   * Remove or refresh stale objects.
+   * Non viene acquisito nessun lock globale: ogni rimozione
+   * è condizionata al fatto che la entry non sia stata nel frattempo sostituita.
+   */
+  @Override
+  protected void clearCache()
+  {
+    ArrayList<CachedObject> refreshThese = new ArrayList<>();
+    ArrayList<CoreCachedObject> deleteThese = new ArrayList<>();
+
+    collectExpired(refreshThese, deleteThese);
+
+    // verifica se la cache ha un limite ed eventualmente cancella
+    checkLimits(deleteThese);
+
+    dispatchCallbacks(refreshThese, deleteThese);
+  }
+
+  @Override
+  public int getNumberOfObjects()
+  {
+    int numItem = 0;
+    for(CacheBlock cb : htClasses.values())
+      numItem += cb.cache.size();
+
+    return numItem;
+  }
+
+  @Override
+  public int getNumberOfObjects(String objClass)
+  {
+    return getCache(objClass).size();
+  }
+
+  @Override
+  public void flushCache()
+  {
+    for(Map.Entry<String, CacheBlock> entryClasses : htClasses.entrySet())
+    {
+      if(entryClasses.getValue().flushPermitted)
+        flushCache(entryClasses.getKey());
+    }
+
+    // notifica gli interessati l'avvenuto svuotamento della global cache
+    BUS.sendMessageAsync(BusMessages.CLEAR_GLOBAL_CACHE, this);
+  }
+
+  @Override
+  public void flushCache(String objClass)
+  {
+    try
+    {
+      CacheBlock cb = getCacheBlock(objClass);
+      Map<String, CachedObject> cache = cb.cache;
+      ArrayMap<String, CachedObject> removed = new ArrayMap<>();
+
+      for(Map.Entry<String, CachedObject> entry : cache.entrySet())
+      {
+        String key = entry.getKey();
+        CachedObject co = entry.getValue();
+
+        if(co != null && isRemovable(co) && removeEntry(cb, key, co))
+        {
+          notifyRemoved(co);
+          removed.put(key, co);
+        }
+      }
+
+      cb.stats.evictionsFlush.add(removed.size());
+
+      BusContext bc = new BusContext(
+         "class", objClass,
+         "removed", removed
+      );
+      BUS.sendMessageAsync(BusMessages.CLEAR_GLOBAL_CACHE_CLASS, this, bc);
+    }
+    catch(Exception ex)
+    {
+      Logger.getLogger(CoreConcurrentCacheImp.class.getName()).log(Level.SEVERE, null, ex);
+    }
+  }
+
+  @Override
+  public void dumpCache(String objClass, PrintWriter out)
+     throws Exception
+  {
+    Map<String, CachedObject> cache = getCache(objClass);
+    for(Map.Entry<String, CachedObject> entry : cache.entrySet())
+    {
+      String key = entry.getKey();
+      CachedObject obj = entry.getValue();
+
+      if(obj == null)
+        continue;
+
+      Object content = obj.getContents();
+      if(content == null)
+        continue;
+
+      if(obj.isStale())
+        out.println(key + "[expired]=" + content);
+      else
+        out.println(key + "=" + content);
+    }
+  }
+
+  @Override
+  public boolean refreshObject(String objClass, String id)
+  {
+    CacheBlock cb = getCacheBlock(objClass);
+    Map<String, CachedObject> cache = cb.cache;
+
+    while(true)
+    {
+      CachedObject obj = cache.get(id);
+
+      if(obj == null)
+        return false;
+
+      if(obj instanceof RefreshableCachedObject)
+      {
+        RefreshableCachedObject rco = (RefreshableCachedObject) obj;
+        rco.refresh();
+        return true;
+      }
+      else if(obj instanceof CoreRefreshableCachedObject)
+      {
+        CoreRefreshableCachedObject wrco = (CoreRefreshableCachedObject) obj;
+        wrco.refreshEntry();
+        return true;
+      }
+      else if(obj instanceof CoreCachedObject)
+      {
+        CoreCachedObject wco = (CoreCachedObject) obj;
+        wco.refreshEntry();
+        return true;
+      }
+
+      // CachedObject non ha un metodo per azzerare il tempo di creazione: viene sostituito
+      CachedObject nco = new CachedObject(obj.getContents(), obj.getExpires());
+      if(cache.replace(id, obj, nco))
+      {
+        onAdded(cb, id, nco);
+        return true;
+      }
+    }
+  }
+}
@@ -20,11 +20,16 @@ package org.sirio6.services.cache;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
 import org.apache.commons.configuration2.Configuration;
 import org.apache.fulcrum.cache.CachedObject;
 import org.apache.fulcrum.cache.ObjectExpiredException;
 import org.sirio6.services.AbstractCoreBaseService;
 import static org.sirio6.services.cache.CoreCacheImp.CACHE_CHECK_FREQUENCY;
+import static org.sirio6.services.cache.CoreCacheImp.CACHE_IMPLEMENTATION;
+import static org.sirio6.services.cache.CoreCacheImp.CACHE_LIMIT;
+import static org.sirio6.services.cache.CoreCacheImp.CACHE_MAXBYTES;
+import static org.sirio6.services.cache.CoreCacheImp.CACHE_POLICY;
 import static org.sirio6.services.cache.CoreCacheImp.INITIAL_CACHE_SIZE;
 
 /**
@@ -48,6 +53,10 @@ public class CoreGlobalCacheService extends AbstractCoreBaseService
     Configuration conf = getConfiguration();
     if(conf != null)
     {
+      ci = CoreCacheImp.createImplementation(conf.getString(CACHE_IMPLEMENTATION, null));
+      ci.jmxEnabled = conf.getBoolean(CoreCacheImp.CACHE_JMX, ci.jmxEnabled);
+      ci.jmxDomain = conf.getString(CoreCacheImp.CACHE_JMX_DOMAIN, ci.jmxDomain);
+
       ci.cacheInitialSize = conf.getInt(INITIAL_CACHE_SIZE, ci.cacheInitialSize);
       if(ci.cacheInitialSize <= 0)
         throw new IllegalArgumentException(INITIAL_CACHE_SIZE + " must be >0");
@@ -55,19 +64,48 @@ public class CoreGlobalCacheService extends AbstractCoreBaseService
       ci.cacheCheckFrequency = conf.getLong(CACHE_CHECK_FREQUENCY, ci.cacheCheckFrequency);
       if(ci.cacheCheckFrequency <= 0)
         throw new IllegalArgumentException(CACHE_CHECK_FREQUENCY + " must be >0");
+
+      ci.setGlobalMaxBytes(CoreCacheImp.parseBytes(conf.getString(CACHE_MAXBYTES, null)));
+
+      // limiti per classe: cache.limit.NOMECLASSE=numero; cache.maxbytes.NOMECLASSE=bytes[K|M|G]
+      // cache.policy.NOMECLASSE=lru|slru
+      Set<String> limitedClasses = new HashSet<>();
+      addClassNames(conf, CACHE_LIMIT, limitedClasses);
+      addClassNames(conf, CACHE_MAXBYTES, limitedClasses);
+
+      for(String objClass : limitedClasses)
+      {
+        ci.configureClass(objClass,
+           conf.getInt(CACHE_LIMIT + "." + objClass, UNLIMITED),
+           CoreCacheImp.parseBytes(conf.getString(CACHE_MAXBYTES + "." + objClass, null)),
+           conf.getString(CACHE_POLICY + "." + objClass, null));
+      }
     }
 
     // Start housekeeping thread.
-    Thread housekeeping = new Thread(() -> ci.runCleaner());
-    // Indicate that this is a system thread. JVM will quit only when there
-    // are no more active user threads. Settings threads spawned internally
-    // by Turbine as daemons allows commandline applications using Turbine
-    // to terminate in an orderly manner.
-    housekeeping.setName("CoreGlobalCacheService");
-    housekeeping.setDaemon(true);
-    housekeeping.start();
+    ci.startCleaner("CoreGlobalCacheService");
 
     setInit(true);
+
+    // ripristino dei dati di TableCache salvati alla chiusura
+    TableCacheSnapshot.startup();
+  }
+
+  @Override
+  public void shutdown()
+  {
+    TableCacheSnapshot.shutdown();
+    ci.shutdown();
+  }
+
+  private void addClassNames(Configuration conf, String prefix, Set<String> classNames)
+  {
+    for(Iterator<String> itr = conf.getKeys(prefix); itr.hasNext();)
+    {
+      String key = itr.next();
+      if(key.length() > prefix.length() + 1)
+        classNames.add(key.substring(prefix.length() + 1));
+    }
   }
 
   @Override
@@ -77,6 +115,26 @@ public class CoreGlobalCacheService extends AbstractCoreBaseService
     return ci.getObject(objClass, id);
   }
 
+  @Override
+  public CachedObject getObjectIfPresent(String objClass, String id)
+  {
+    return ci.getObjectIfPresent(objClass, id);
+  }
+
+  @Override
+  public <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl)
+     throws Exception
+  {
+    return ci.getOrLoad(objClass, id, loader, ttl);
+  }
+
+  @Override
+  public <T> T getOrLoad(String objClass, String id, Callable<T> loader, long ttl, long refreshAhead)
+     throws Exception
+  {
+    return ci.getOrLoad(objClass, id, loader, ttl, refreshAhead);
+  }
+
   @Override
   public void addObject(String objClass, String id, CachedObject o)
   {
@@ -113,6 +171,66 @@ public class CoreGlobalCacheService extends AbstractCoreBaseService
     return ci.getLimit(objClass);
   }
 
+  @Override
+  public void setEvictionPolicy(String objClass, int policy)
+  {
+    ci.setEvictionPolicy(objClass, policy);
+  }
+
+  @Override
+  public int getEvictionPolicy(String objClass)
+  {
+    return ci.getEvictionPolicy(objClass);
+  }
+
+  @Override
+  public CacheClassStats getClassStats(String objClass)
+  {
+    return ci.getClassStats(objClass);
+  }
+
+  @Override
+  public long getHitCount(String objClass)
+  {
+    return ci.getHitCount(objClass);
+  }
+
+  @Override
+  public long getMissCount(String objClass)
+  {
+    return ci.getMissCount(objClass);
+  }
+
+  @Override
+  public long getEvictionCount(String objClass)
+  {
+    return ci.getEvictionCount(objClass);
+  }
+
+  @Override
+  public void setMaxBytes(String objClass, long maxBytes)
+  {
+    ci.setMaxBytes(objClass, maxBytes);
+  }
+
+  @Override
+  public long getMaxBytes(String objClass)
+  {
+    return ci.getMaxBytes(objClass);
+  }
+
+  @Override
+  public long getCacheBytes(String objClass)
+  {
+    return ci.getCacheBytes(objClass);
+  }
+
+  @Override
+  public void setWeigher(String objClass, CacheWeigher weigher)
+  {
+    ci.setWeigher(objClass, weigher);
+  }
+
   @Override
   public void setFlushPermitted(String objClass, boolean flushPermitted)
   {
@@ -110,6 +110,15 @@ public class CoreRefreshableCachedObject extends CoreCachedObject
     lastAccess = System.currentTimeMillis();
   }
 
+  /**
+   * Ritorna il tempo dell'ultimo accesso.
+   * @return timestamp in millisecondi
+   */
+  public synchronized long getLastAccess()
+  {
+    return lastAccess;
+  }
+
   /**
    * Returns true if the object hasn't been touched
    * in the previous TTL period.
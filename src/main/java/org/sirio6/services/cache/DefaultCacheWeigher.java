@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+import org.apache.fulcrum.cache.CachedObject;
+
+/**
+ * Stima di default dell'occupazione di memoria delle entry della cache.
+ * Stringhe, array, collezioni e mappe vengono stimati dalla dimensione;
+ * per collezioni e mappe grandi viene pesato solo un campione di elementi
+ * e il risultato viene proporzionato al numero totale.
+ * Gli oggetti che implementano CacheWeighable forniscono la propria stima.
+ * La stima non ha la pretesa di essere esatta: serve a rendere confrontabili
+ * le entry e a imporre un tetto all'occupazione della cache.
+ *
+ * @author Nicola De Nisco
+ */
+public class DefaultCacheWeigher implements CacheWeigher
+{
+  /** costo fisso di una entry (CachedObject + nodo della mappa) */
+  public static final long ENTRY_OVERHEAD = 96;
+  /** peso di un oggetto di tipo sconosciuto */
+  public static final long DEFAULT_OBJECT_WEIGHT = 64;
+  /** numero di elementi pesati per collezioni e mappe */
+  public static final int SAMPLE_SIZE = 32;
+  /** profondità massima di esplorazione di collezioni annidate */
+  public static final int MAX_DEPTH = 3;
+
+  @Override
+  public long weigh(String key, CachedObject co)
+  {
+    long weight = ENTRY_OVERHEAD + weighObject(key, 0);
+
+    if(co instanceof CacheWeighable)
+      return weight + ((CacheWeighable) co).getCacheWeight();
+
+    return weight + weighObject(co.getContents(), 0);
+  }
+
+  /**
+   * Stima dell'occupazione di un oggetto.
+   * @param o oggetto da pesare
+   * @param depth livello di annidamento corrente
+   * @return occupazione stimata in bytes
+   */
+  public long weighObject(Object o, int depth)
+  {
+    if(o == null)
+      return 0;
+
+    if(o instanceof CacheWeighable)
+      return ((CacheWeighable) o).getCacheWeight();
+
+    if(o instanceof String)
+      return 40 + 2L * ((String) o).length();
+
+    if(o instanceof Number || o instanceof Boolean || o instanceof Character || o instanceof Date)
+      return 24;
+
+    if(o instanceof byte[])
+      return 16 + ((byte[]) o).length;
+
+    if(o instanceof char[])
+      return 16 + 2L * ((char[]) o).length;
+
+    if(o instanceof int[])
+      return 16 + 4L * ((int[]) o).length;
+
+    if(o instanceof long[])
+      return 16 + 8L * ((long[]) o).length;
+
+    if(o instanceof File)
+      return 64 + 2L * ((File) o).getPath().length();
+
+    if(depth >= MAX_DEPTH)
+      return DEFAULT_OBJECT_WEIGHT;
+
+    if(o instanceof Object[])
+    {
+      Object[] arr = (Object[]) o;
+      long sample = 0;
+      int n = Math.min(arr.length, SAMPLE_SIZE);
+      for(int i = 0; i < n; i++)
+        sample += weighObject(arr[i], depth + 1);
+
+      return 16 + 8L * arr.length + scale(sample, n, arr.length);
+    }
+
+    if(o instanceof Collection)
+    {
+      Collection c = (Collection) o;
+      int size = c.size();
+      long sample = 0;
+      int n = 0;
+      for(Iterator itr = c.iterator(); itr.hasNext() && n < SAMPLE_SIZE; n++)
+        sample += weighObject(itr.next(), depth + 1);
+
+      return 40 + 16L * size + scale(sample, n, size);
+    }
+
+    if(o instanceof Map)
+    {
+      Map<?, ?> m = (Map) o;
+      int size = m.size();
+      long sample = 0;
+      int n = 0;
+      for(Iterator<? extends Map.Entry<?, ?>> itr = m.entrySet().iterator(); itr.hasNext() && n < SAMPLE_SIZE; n++)
+      {
+        Map.Entry<?, ?> e = itr.next();
+        sample += weighObject(e.getKey(), depth + 1) + weighObject(e.getValue(), depth + 1);
+      }
+
+      return 48 + 40L * size + scale(sample, n, size);
+    }
+
+    return DEFAULT_OBJECT_WEIGHT;
+  }
+
+  private long scale(long sample, int sampled, int total)
+  {
+    if(sampled == 0 || sampled == total)
+      return sample;
+
+    return sample * total / sampled;
+  }
+}
@@ -29,7 +29,7 @@ import org.sirio6.CoreConst;
  *
  * @author Nicola De Nisco
  */
-public class FileCacheItem extends CoreCachedObject
+public class FileCacheItem extends CoreCachedObject implements CacheWeighable
 {
   /** sezione della cache che conterrà i files */
   public static final String CACHE_FILE_SECTION = "filesCache";
@@ -77,6 +77,19 @@ public class FileCacheItem extends CoreCachedObject
   {
   }
 
+  /**
+   * Stima dell'occupazione in memoria.
+   * Il contenuto del file risiede su disco: viene pesato solo il descrittore.
+   * @return occupazione in bytes
+   */
+  @Override
+  public long getCacheWeight()
+  {
+    return 128 + 2L * (getFile().getPath().length()
+       + (fileName == null ? 0 : fileName.length())
+       + (tipoMime == null ? 0 : tipoMime.length()));
+  }
+
   public File getFile()
   {
     return (File) getContents();
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.math.BigDecimal;
+import java.util.*;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.TableMap;
+import org.apache.torque.om.ColumnAccessByName;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.Persistent;
+import org.sirio6.utils.SU;
+
+/**
+ * Dati di una tabella memorizzati a colonne (vedi TableCacheColumns).
+ * Modalità in sola lettura per tabelle molto grandi: i record Torque non vengono
+ * conservati e sono ricostruiti ad ogni accesso con i soli campi selezionati;
+ * lsValues e lsValuesUndeleted sono viste che ricostruiscono i record.
+ * Due letture dello stesso record producono istanze diverse.
+ * I record ricostruiti sono parziali (i campi non conservati valgono null/0):
+ * NON vanno modificati e salvati, perché save() scriverebbe sul db anche i campi
+ * non conservati; per modificare un record rileggerlo dal db con la chiave primaria.
+ * Le ricerche per campo sono ammesse solo sui campi conservati e sulla chiave primaria:
+ * un campo non conservato solleva IllegalArgumentException.
+ * Il caricamento incrementale non è disponibile: la tabella viene sempre ricaricata completamente.
+ * Si attiva per singola tabella con l'elenco dei campi da conservare
+ * (la chiave primaria è sempre conservata a parte e impostata nei record ricostruiti):
+ * <pre>
+ * tablecache.columnar.NOMETABELLA=IdTabella,Codice,Descrizione,StatoRec
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheColumnarData extends TableCacheData
+{
+  protected final TableCacheColumns columns;
+  /** indici dei record con STATO_REC valido */
+  protected final int[] undeletedRows;
+  /** chiave primaria -> indice record (solo per chiavi non intere) */
+  protected final HashMap<ObjectKey, Integer> rowsByKey;
+  /** chiavi primarie intere per indice record */
+  protected final int[] intKeys;
+  /** chiavi primarie per indice record (solo per chiavi non intere) */
+  protected final ObjectKey[] keys;
+  /** nomi (java e peer) dei campi della chiave primaria */
+  protected final HashSet<String> pkNames = new HashSet<>();
+  /** nome peer (nometabella.nomecampo) -> nome java dei campi della tabella */
+  protected final HashMap<String, String> peerNames = new HashMap<>();
+
+  /**
+   * Costruisce la versione a colonne di un blocco dati caricato.
+   * @param src blocco dati caricato dal db
+   * @param peerClass classe peer della tabella
+   * @param fields campi da conservare (nomi come per getByName)
+   */
+  public TableCacheColumnarData(TableCacheData src, Class peerClass, String[] fields)
+  {
+    columns = new TableCacheColumns(src.lsValues, fields);
+    buildNames(peerClass);
+    colUltModif = src.colUltModif;
+    watermark = src.watermark;
+    fullLoadAt = src.fullLoadAt;
+
+    int size = src.lsValues.size();
+    int[] und = new int[size];
+    int count = 0;
+    for(int i = 0; i < size; i++)
+    {
+      if(isUndeleted(src.lsValues.get(i)))
+        und[count++] = i;
+    }
+    undeletedRows = Arrays.copyOf(und, count);
+
+    if(src.intValues != null)
+    {
+      // chiave intera: la mappa primitiva contiene l'indice del record
+      rowsByKey = null;
+      keys = null;
+      intKeys = new int[size];
+      intValues = new TableCacheIntMap(size);
+      intValuesUndeleted = new TableCacheIntMap(count);
+      for(int i = 0; i < size; i++)
+      {
+        Integer idx = i;
+        int id = ((NumberKey) ((Persistent) src.lsValues.get(i)).getPrimaryKey()).intValue();
+        intKeys[i] = id;
+        intValues.put(id, idx);
+        if(Arrays.binarySearch(undeletedRows, i) >= 0)
+          intValuesUndeleted.put(id, idx);
+      }
+    }
+    else
+    {
+      intKeys = null;
+      keys = new ObjectKey[size];
+      rowsByKey = new HashMap<>(size);
+      for(int i = 0; i < size; i++)
+      {
+        keys[i] = ((Persistent) src.lsValues.get(i)).getPrimaryKey();
+        rowsByKey.put(keys[i], i);
+      }
+    }
+
+    lsValues = new RowList(null);
+    lsValuesUndeleted = new RowList(undeletedRows);
+    mapValues = null;
+  }
+
+  /**
+   * Costruisce le tabelle dei nomi per la verifica dei campi ricercabili.
+   * @param peerClass classe peer della tabella
+   */
+  protected void buildNames(Class peerClass)
+  {
+    try
+    {
+      TableMap tm = TablePeerAccess.of(peerClass).getTableMap();
+      for(ColumnMap cm : tm.getColumns())
+      {
+        String peer = tm.getName() + "." + cm.getColumnName();
+        peerNames.put(peer, cm.getJavaName());
+        if(cm.isPrimaryKey())
+        {
+          pkNames.add(cm.getJavaName());
+          pkNames.add(peer);
+        }
+      }
+    }
+    catch(Exception ex)
+    {
+      // peer senza mappa: i campi ricercati non possono essere verificati
+      peerNames.clear();
+      pkNames.clear();
+    }
+  }
+
+  /** vista sui record che li ricostruisce all'accesso */
+  protected class RowList extends AbstractList implements RandomAccess
+  {
+    private final int[] rows;
+
+    public RowList(int[] rows)
+    {
+      this.rows = rows;
+    }
+
+    @Override
+    public Object get(int index)
+    {
+      return materialize(rows == null ? index : rows[index]);
+    }
+
+    @Override
+    public int size()
+    {
+      return rows == null ? columns.size() : rows.length;
+    }
+  }
+
+  /**
+   * Ricostruisce il record con i campi conservati e la chiave primaria.
+   * Il record è parziale e non deve essere salvato.
+   * @param idx indice del record
+   * @return nuova istanza del record
+   */
+  protected Persistent materialize(int idx)
+  {
+    try
+    {
+      Persistent p = columns.materialize(idx);
+      p.setPrimaryKey(keys == null ? new NumberKey(intKeys[idx]) : keys[idx]);
+      p.setModified(false);
+      return p;
+    }
+    catch(RuntimeException ex)
+    {
+      throw ex;
+    }
+    catch(Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  @Override
+  public long getCacheWeight()
+  {
+    long weight = 64 + columns.getWeight() + undeletedRows.length * 4L;
+    if(intValues != null)
+      weight += intValues.getWeight() + intValuesUndeleted.getWeight() + columns.size() * 20L;
+    if(rowsByKey != null)
+      weight += rowsByKey.size() * (56L + DefaultCacheWeigher.DEFAULT_OBJECT_WEIGHT);
+    return weight;
+  }
+
+  @Override
+  public boolean isDeltaCapable()
+  {
+    return false;
+  }
+
+  @Override
+  public Persistent findByPrimaryKey(int id, boolean removeDeleted)
+  {
+    if(intValues == null)
+    {
+      // lo stato del record è quello del record originale (StatoRec può non essere conservato)
+      Integer idx = rowsByKey.get(new NumberKey(id));
+      if(idx == null || (removeDeleted && Arrays.binarySearch(undeletedRows, idx) < 0))
+        return null;
+      return materialize(idx);
+    }
+
+    Integer idx = (Integer) (removeDeleted ? intValuesUndeleted.get(id) : intValues.get(id));
+    return idx == null ? null : materialize(idx);
+  }
+
+  @Override
+  public Persistent findByPrimaryKey(ObjectKey key)
+  {
+    if(intValues != null)
+    {
+      if(!(key instanceof NumberKey))
+        return null;
+
+      BigDecimal bd = ((NumberKey) key).getValue();
+      if(bd == null || bd.compareTo(BigDecimal.valueOf(bd.intValue())) != 0)
+        return null;
+
+      return findByPrimaryKey(bd.intValue(), false);
+    }
+
+    Integer idx = rowsByKey.get(key);
+    return idx == null ? null : materialize(idx);
+  }
+
+  @Override
+  public Object findByField(String fieldName, boolean peerName, Object valueFilter, boolean removeDeleted)
+  {
+    int[] found = filter(fieldName, peerName, valueFilter, removeDeleted);
+    if(found != null)
+      return found.length == 0 ? null : materialize(found[0]);
+
+    List rv = scan(fieldName, peerName, valueFilter, removeDeleted, true);
+    return rv.isEmpty() ? null : rv.get(0);
+  }
+
+  @Override
+  public List extractByField(String fieldName, boolean peerName, Object valueFilter, boolean removeDeleted)
+  {
+    int[] found = filter(fieldName, peerName, valueFilter, removeDeleted);
+    if(found == null)
+      return scan(fieldName, peerName, valueFilter, removeDeleted, false);
+
+    ArrayList rv = new ArrayList(found.length);
+    for(int idx : found)
+      rv.add(materialize(idx));
+    return rv;
+  }
+
+  /**
+   * Filtro sugli array di colonna.
+   * @return indici dei record oppure null se il filtro non è applicabile
+   * @throws IllegalArgumentException se il campo non è conservato
+   */
+  protected int[] filter(String fieldName, boolean peerName, Object valueFilter, boolean removeDeleted)
+  {
+    int c = indexOfField(fieldName, peerName);
+    return c < 0 ? null : columns.filterEquals(c, valueFilter, removeDeleted ? undeletedRows : null);
+  }
+
+  /**
+   * Ritorna la colonna di un campo ricercabile.
+   * @param fieldName nome del campo (getByName) o del campo peer (getByPeerName)
+   * @param peerName se vero fieldName è un nome peer (nometabella.nomecampo)
+   * @return indice della colonna oppure -1 per la chiave primaria
+   * o per i campi non verificabili (tabelle senza mappa)
+   * @throws IllegalArgumentException se il campo non è conservato
+   */
+  protected int indexOfField(String fieldName, boolean peerName)
+  {
+    if(pkNames.contains(fieldName))
+      return -1;
+
+    String name = fieldName;
+    if(peerName)
+    {
+      if(peerNames.isEmpty())
+        return -1;
+
+      name = peerNames.getOrDefault(fieldName, fieldName);
+    }
+
+    int c = columns.indexOf(name);
+    if(c < 0 && !pkNames.contains(name) && !pkNames.isEmpty())
+      throw new IllegalArgumentException("Il campo " + fieldName
+         + " non è conservato nella cache a colonne (vedi tablecache.columnar).");
+
+    return c;
+  }
+
+  /**
+   * Ricerca sui record ricostruiti: per la chiave primaria o valori di tipo diverso.
+   * Non usa gli indici di TableCacheData per non conservare i record ricostruiti.
+   */
+  protected List scan(String fieldName, boolean peerName, Object valueFilter, boolean removeDeleted, boolean first)
+  {
+    ArrayList rv = new ArrayList();
+    for(Iterator itr = getIterator(removeDeleted); itr.hasNext();)
+    {
+      ColumnAccessByName val = (ColumnAccessByName) itr.next();
+      if(SU.isEqu(valueFilter, peerName ? val.getByPeerName(fieldName) : val.getByName(fieldName)))
+      {
+        rv.add(val);
+        if(first)
+          break;
+      }
+    }
+    return rv;
+  }
+}
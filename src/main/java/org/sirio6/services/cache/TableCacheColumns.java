@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.util.*;
+import org.apache.torque.om.ColumnAccessByName;
+import org.apache.torque.om.Persistent;
+
+/**
+ * Memorizzazione a colonne di un sottoinsieme dei campi di una tabella.
+ * Ogni colonna è un array primitivo: int[] per interi e booleani,
+ * long[] per long e date, codici int[] su dizionario per le stringhe;
+ * gli altri tipi restano in un Object[]. Per ogni colonna viene registrata la classe
+ * originale dei valori (ES: Short, Timestamp) e i valori letti vengono riconvertiti in
+ * quella classe; le colonne con valori di classi diverse restano in un Object[].
+ * I record vengono ricostruiti (materialize) solo su richiesta e contengono
+ * i soli campi memorizzati. I filtri di uguaglianza lavorano direttamente sugli array.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheColumns
+{
+  public static final int TYPE_INT = 0;
+  public static final int TYPE_BOOLEAN = 1;
+  public static final int TYPE_LONG = 2;
+  public static final int TYPE_DATE = 3;
+  public static final int TYPE_STRING = 4;
+  public static final int TYPE_OBJECT = 5;
+
+  private final Class rowClass;
+  private final String[] names;
+  private final int[] types;
+  private final Object[] values;
+  private final String[][] dicts;
+  /** dizionari inversi: stringa -> codice */
+  private final HashMap<String, Integer>[] codes;
+  /** classe originale dei valori di ogni colonna */
+  private final Class[] boxed;
+  private final BitSet[] nulls;
+  private final int size;
+
+  /**
+   * Costruisce le colonne dai record.
+   * @param rows record della tabella (oggetti Torque)
+   * @param columns nomi dei campi da memorizzare (come per getByName)
+   */
+  public TableCacheColumns(List rows, String[] columns)
+  {
+    this.size = rows.size();
+    this.rowClass = size == 0 ? null : rows.get(0).getClass();
+    this.names = columns.clone();
+    this.types = new int[names.length];
+    this.values = new Object[names.length];
+    this.dicts = new String[names.length][];
+    this.codes = new HashMap[names.length];
+    this.boxed = new Class[names.length];
+    this.nulls = new BitSet[names.length];
+
+    for(int c = 0; c < names.length; c++)
+      buildColumn(rows, c);
+  }
+
+  private void buildColumn(List rows, int c)
+  {
+    Object[] col = new Object[size];
+    BitSet nc = new BitSet();
+    for(int r = 0; r < size; r++)
+    {
+      if((col[r] = ((ColumnAccessByName) rows.get(r)).getByName(names[c])) == null)
+        nc.set(r);
+    }
+
+    int type = detectType(col);
+    types[c] = type;
+    nulls[c] = nc;
+    boxed[c] = type == TYPE_OBJECT ? null : firstClass(col);
+
+    switch(type)
+    {
+      case TYPE_INT:
+      case TYPE_BOOLEAN:
+      {
+        int[] arr = new int[size];
+        for(int r = 0; r < size; r++)
+          if(col[r] != null)
+            arr[r] = type == TYPE_BOOLEAN ? (((Boolean) col[r]) ? 1 : 0) : ((Number) col[r]).intValue();
+        values[c] = arr;
+        break;
+      }
+      case TYPE_LONG:
+      case TYPE_DATE:
+      {
+        long[] arr = new long[size];
+        for(int r = 0; r < size; r++)
+          if(col[r] != null)
+            arr[r] = type == TYPE_DATE ? ((Date) col[r]).getTime() : ((Number) col[r]).longValue();
+        values[c] = arr;
+        break;
+      }
+      case TYPE_STRING:
+      {
+        HashMap<String, Integer> codes = new HashMap<>();
+        int[] arr = new int[size];
+        for(int r = 0; r < size; r++)
+          if(col[r] != null)
+            arr[r] = codes.computeIfAbsent((String) col[r], (k) -> codes.size());
+
+        String[] dict = new String[codes.size()];
+        for(Map.Entry<String, Integer> e : codes.entrySet())
+          dict[e.getValue()] = e.getKey();
+
+        values[c] = arr;
+        dicts[c] = dict;
+        this.codes[c] = codes;
+        break;
+      }
+      default:
+        values[c] = col;
+        break;
+    }
+  }
+
+  private static Class firstClass(Object[] col)
+  {
+    for(Object o : col)
+      if(o != null)
+        return o.getClass();
+    return null;
+  }
+
+  private static int detectType(Object[] col)
+  {
+    Class cls = firstClass(col);
+    if(cls == null)
+      return TYPE_OBJECT;
+
+    // tutti i valori della stessa classe: la colonna restituisce il tipo originale
+    boolean allInt = cls == Integer.class || cls == Short.class || cls == Byte.class;
+    boolean allLong = cls == Long.class;
+    boolean allBool = cls == Boolean.class;
+    boolean allDate = cls == Date.class || cls == java.sql.Date.class || cls == java.sql.Timestamp.class;
+    boolean allString = cls == String.class;
+    for(Object o : col)
+    {
+      if(o == null)
+        continue;
+
+      if(o.getClass() != cls)
+        return TYPE_OBJECT;
+
+      // i nanosecondi non sono rappresentabili nel long dei millisecondi
+      if(o instanceof java.sql.Timestamp && ((java.sql.Timestamp) o).getNanos() % 1000000 != 0)
+        allDate = false;
+    }
+
+    if(allInt)
+      return TYPE_INT;
+    if(allLong)
+      return TYPE_LONG;
+    if(allBool)
+      return TYPE_BOOLEAN;
+    if(allDate)
+      return TYPE_DATE;
+    if(allString)
+      return TYPE_STRING;
+
+    return TYPE_OBJECT;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Ritorna la posizione del campo.
+   * @param name nome del campo
+   * @return posizione oppure -1 se il campo non è memorizzato
+   */
+  public int indexOf(String name)
+  {
+    for(int c = 0; c < names.length; c++)
+      if(names[c].equals(name))
+        return c;
+    return -1;
+  }
+
+  /**
+   * Valore di un campo.
+   * @param row indice del record
+   * @param c indice della colonna
+   * @return valore (della stessa classe del valore originale)
+   */
+  public Object getValue(int row, int c)
+  {
+    if(nulls[c].get(row))
+      return null;
+
+    switch(types[c])
+    {
+      case TYPE_INT:
+      {
+        int v = ((int[]) values[c])[row];
+        if(boxed[c] == Short.class)
+          return (short) v;
+        if(boxed[c] == Byte.class)
+          return (byte) v;
+        return v;
+      }
+      case TYPE_BOOLEAN:
+        return ((int[]) values[c])[row] != 0;
+      case TYPE_LONG:
+        return ((long[]) values[c])[row];
+      case TYPE_DATE:
+      {
+        long v = ((long[]) values[c])[row];
+        if(boxed[c] == java.sql.Timestamp.class)
+          return new java.sql.Timestamp(v);
+        if(boxed[c] == java.sql.Date.class)
+          return new java.sql.Date(v);
+        return new Date(v);
+      }
+      case TYPE_STRING:
+        return dicts[c][((int[]) values[c])[row]];
+      default:
+        return ((Object[]) values[c])[row];
+    }
+  }
+
+  /**
+   * Ricerca dei record con il campo uguale al valore.
+   * @param c indice della colonna
+   * @param value valore da cercare (null per i campi nulli)
+   * @param subset indici dei record da esaminare (null per tutti)
+   * @return indici dei record trovati oppure null se il tipo del valore
+   * non è confrontabile con la colonna (il chiamante deve usare un'altra strategia)
+   */
+  public int[] filterEquals(int c, Object value, int[] subset)
+  {
+    int n = subset == null ? size : subset.length;
+    int[] rv = new int[n];
+    int count = 0;
+
+    if(value == null)
+    {
+      for(int i = 0; i < n; i++)
+      {
+        int r = subset == null ? i : subset[i];
+        if(nulls[c].get(r))
+          rv[count++] = r;
+      }
+      return Arrays.copyOf(rv, count);
+    }
+
+    switch(types[c])
+    {
+      case TYPE_INT:
+      case TYPE_BOOLEAN:
+      case TYPE_STRING:
+      {
+        int probe;
+        if(types[c] == TYPE_STRING)
+        {
+          if(!(value instanceof String))
+            return null;
+          Integer code = codes[c].get(value);
+          if(code == null)
+            return new int[0];
+          probe = code;
+        }
+        else if(types[c] == TYPE_BOOLEAN)
+        {
+          if(!(value instanceof Boolean))
+            return null;
+          probe = ((Boolean) value) ? 1 : 0;
+        }
+        else
+        {
+          if(value.getClass() != boxed[c])
+            return null;
+          probe = ((Number) value).intValue();
+        }
+
+        int[] arr = (int[]) values[c];
+        for(int i = 0; i < n; i++)
+        {
+          int r = subset == null ? i : subset[i];
+          if(arr[r] == probe && !nulls[c].get(r))
+            rv[count++] = r;
+        }
+        break;
+      }
+      case TYPE_LONG:
+      case TYPE_DATE:
+      {
+        long probe;
+        if(types[c] == TYPE_DATE)
+        {
+          if(!(value instanceof Date))
+            return null;
+          probe = ((Date) value).getTime();
+        }
+        else
+        {
+          if(!(value instanceof Long))
+            return null;
+          probe = ((Number) value).longValue();
+        }
+
+        long[] arr = (long[]) values[c];
+        for(int i = 0; i < n; i++)
+        {
+          int r = subset == null ? i : subset[i];
+          if(arr[r] == probe && !nulls[c].get(r))
+            rv[count++] = r;
+        }
+        break;
+      }
+      default:
+      {
+        Object[] arr = (Object[]) values[c];
+        for(int i = 0; i < n; i++)
+        {
+          int r = subset == null ? i : subset[i];
+          if(value.equals(arr[r]))
+            rv[count++] = r;
+        }
+        break;
+      }
+    }
+
+    return Arrays.copyOf(rv, count);
+  }
+
+  /**
+   * Ricostruisce il record.
+   * Il record contiene solo i campi memorizzati; viene marcato come
+   * non nuovo e non modificato.
+   * @param row indice del record
+   * @return nuova istanza del record
+   */
+  public Persistent materialize(int row)
+  {
+    try
+    {
+      Object obj = rowClass.getDeclaredConstructor().newInstance();
+      ColumnAccessByName cab = (ColumnAccessByName) obj;
+      for(int c = 0; c < names.length; c++)
+        cab.setByName(names[c], getValue(row, c));
+
+      Persistent p = (Persistent) obj;
+      p.setNew(false);
+      p.setModified(false);
+      return p;
+    }
+    catch(Exception ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Stima dell'occupazione in memoria.
+   * @return occupazione in bytes
+   */
+  public long getWeight()
+  {
+    long weight = 64;
+    for(int c = 0; c < names.length; c++)
+    {
+      switch(types[c])
+      {
+        case TYPE_INT:
+        case TYPE_BOOLEAN:
+          weight += size * 4L;
+          break;
+        case TYPE_LONG:
+        case TYPE_DATE:
+          weight += size * 8L;
+          break;
+        case TYPE_STRING:
+          weight += size * 4L;
+          for(String s : dicts[c])
+            weight += 40 + 32 + s.length() * 2L;
+          break;
+        default:
+          weight += size * (8L + DefaultCacheWeigher.DEFAULT_OBJECT_WEIGHT);
+          break;
+      }
+      weight += nulls[c].size() / 8;
+    }
+    return weight;
+  }
+}
@@ -17,11 +17,14 @@
  */
 package org.sirio6.services.cache;
 
-import java.lang.reflect.Method;
-import java.sql.Connection;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.torque.criteria.Criteria;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.TableMap;
+import java.math.BigDecimal;
 import org.apache.torque.om.ColumnAccessByName;
+import org.apache.torque.om.NumberKey;
 import org.apache.torque.om.ObjectKey;
 import org.apache.torque.om.Persistent;
 import org.rigel5.db.torque.PeerTransactAgent;
@@ -32,16 +35,59 @@ import org.sirio6.utils.SU;
  *
  * @author Nicola De Nisco
  */
-public class TableCacheData
+public class TableCacheData implements CacheWeighable
 {
+  /** stima dell'occupazione media di un record */
+  public static final long RECORD_WEIGHT = 512;
+
   public List lsValues = null;
   public List lsValuesUndeleted = null;
   public Map<ObjectKey, Persistent> mapValues = null;
+  /** mappe per chiave primaria intera (null se la chiave non è un singolo intero) */
+  public TableCacheIntMap intValues = null, intValuesUndeleted = null;
+  /** istante di caricamento */
+  public long loadedAt = System.currentTimeMillis();
+  /** durata del caricamento (millisecondi) */
+  public long loadMillis = 0;
+  /** validità dei dati (millisecondi; 0 = sempre validi) */
+  public long expires = 0;
+  /** colonna ULT_MODIF (nometabella.ULT_MODIF; null se la tabella non la possiede) */
+  public String colUltModif = null;
+  /** massimo valore di ULT_MODIF letto: il caricamento incrementale parte da qui */
+  public Date watermark = null;
+  /** istante dell'ultimo caricamento completo */
+  public long fullLoadAt = 0;
+  /** record letti dal caricamento incrementale (-1 = caricamento completo) */
+  public int deltaRows = -1;
+  /** indici per colonna costruiti su richiesta */
+  protected final ConcurrentHashMap<String, TableCacheIndex> indexes = new ConcurrentHashMap<>();
 
   protected TableCacheData()
   {
   }
 
+  /**
+   * Stima dell'occupazione in memoria.
+   * Ogni record costa RECORD_WEIGHT più i riferimenti in lista e mappa.
+   * @return occupazione in bytes
+   */
+  @Override
+  public long getCacheWeight()
+  {
+    long weight = 64;
+
+    if(lsValues != null)
+      weight += lsValues.size() * (RECORD_WEIGHT + 8);
+    if(lsValuesUndeleted != null)
+      weight += lsValuesUndeleted.size() * 8L;
+    if(mapValues != null)
+      weight += mapValues.size() * 56L;
+    if(intValues != null)
+      weight += intValues.getWeight() + intValuesUndeleted.getWeight();
+
+    return weight;
+  }
+
   /**
    * Carica i dati dalla tabella.
    * @param cls classe dell'oggetto Peer da popolare.
@@ -50,7 +96,19 @@ public class TableCacheData
   protected void populateData(Class cls)
      throws Exception
   {
-    lsValues = doSelect(cls);
+    populateData(doSelect(cls));
+    colUltModif = findColumnUltModif(cls);
+    fullLoadAt = System.currentTimeMillis();
+    updateWatermark(lsValues);
+  }
+
+  /**
+   * Costruisce le strutture di ricerca a partire dall'elenco dei record.
+   * @param rows tutti i record della tabella
+   */
+  protected void populateData(List rows)
+  {
+    lsValues = rows;
     mapValues = new HashMap<>(lsValues.size());
     lsValuesUndeleted = new ArrayList(lsValues.size());
 
@@ -59,21 +117,222 @@ public class TableCacheData
       Persistent val1 = (Persistent) lsValues.get(i);
       mapValues.put(val1.getPrimaryKey(), val1);
 
-      ColumnAccessByName val2 = (ColumnAccessByName) lsValues.get(i);
-      if(SU.parse(val2.getByName("StatoRec"), 0) < 10)
+      if(isUndeleted(val1))
         lsValuesUndeleted.add(val1);
     }
+
+    buildIntMaps();
+  }
+
+  /**
+   * Costruisce le mappe per chiave primaria intera.
+   * Se anche un solo record non ha una chiave intera le mappe non vengono create.
+   */
+  protected void buildIntMaps()
+  {
+    intValues = intValuesUndeleted = null;
+
+    TableCacheIntMap all = new TableCacheIntMap(lsValues.size());
+    TableCacheIntMap und = new TableCacheIntMap(lsValuesUndeleted.size());
+
+    for(int i = 0; i < lsValues.size(); i++)
+    {
+      Persistent val = (Persistent) lsValues.get(i);
+      ObjectKey pk = val.getPrimaryKey();
+      if(!(pk instanceof NumberKey))
+        return;
+
+      BigDecimal bd = ((NumberKey) pk).getValue();
+      if(bd == null)
+        return;
+
+      int id = bd.intValue();
+      if(bd.compareTo(BigDecimal.valueOf(id)) != 0)
+        return;
+
+      all.put(id, val);
+      if(isUndeleted(val))
+        und.put(id, val);
+    }
+
+    intValues = all;
+    intValuesUndeleted = und;
+  }
+
+  /**
+   * Ricerca per chiave primaria intera.
+   * Per le tabelle con chiave primaria intera non alloca oggetti.
+   * @param id chiave primaria
+   * @param removeDeleted se vero ritorna solo record con STATO_REC valido
+   * @return record oppure null
+   */
+  public Persistent findByPrimaryKey(int id, boolean removeDeleted)
+  {
+    if(intValues != null)
+      return (Persistent) (removeDeleted ? intValuesUndeleted.get(id) : intValues.get(id));
+
+    Persistent rv = mapValues.get(new NumberKey(id));
+    return rv == null || (removeDeleted && !isUndeleted(rv)) ? null : rv;
+  }
+
+  /**
+   * Ricerca per chiave primaria.
+   * @param key chiave primaria
+   * @return record oppure null
+   */
+  public Persistent findByPrimaryKey(ObjectKey key)
+  {
+    return mapValues.get(key);
+  }
+
+  /**
+   * Verifica se è possibile il caricamento incrementale.
+   * Richiede la colonna ULT_MODIF e almeno un record con ULT_MODIF valorizzato.
+   * @return vero se populateDelta() è applicabile
+   */
+  public boolean isDeltaCapable()
+  {
+    return colUltModif != null && watermark != null;
+  }
+
+  /**
+   * Caricamento incrementale.
+   * Legge dal db solo i record con ULT_MODIF uguale o successivo al watermark
+   * e li fonde in una copia di questo blocco dati (copy-on-write: questa istanza
+   * non viene modificata e può essere usata da altri thread durante l'operazione).
+   * I record modificati sostituiscono i precedenti mantenendone la posizione,
+   * quelli nuovi vengono accodati; la vista dei record validi viene ricalcolata
+   * in base a STATO_REC (un record cancellato logicamente esce dalla vista e viceversa).
+   * ATTENZIONE: le cancellazioni fisiche non vengono rilevate; è necessario un
+   * caricamento completo periodico.
+   * @param cls classe dell'oggetto Peer da popolare.
+   * @return nuovo blocco dati
+   * @throws Exception
+   */
+  protected TableCacheData populateDelta(Class cls)
+     throws Exception
+  {
+    Criteria c = new Criteria();
+    c.and(colUltModif, watermark, Criteria.GREATER_EQUAL);
+    List changed = doSelect(cls, c);
+
+    TableCacheData rv = new TableCacheData();
+    rv.colUltModif = colUltModif;
+    rv.fullLoadAt = fullLoadAt;
+    rv.watermark = watermark;
+    rv.deltaRows = changed.size();
+
+    LinkedHashMap<ObjectKey, Persistent> changedMap = new LinkedHashMap<>();
+    for(Object o : changed)
+    {
+      Persistent p = (Persistent) o;
+      Persistent prev = mapValues.get(p.getPrimaryKey());
+
+      // record già presente e non modificato (stesso ULT_MODIF del watermark)
+      if(prev != null && Objects.equals(getUltModif(prev), getUltModif(p)) && isUndeleted(prev) == isUndeleted(p))
+        continue;
+
+      changedMap.put(p.getPrimaryKey(), p);
+    }
+
+    if(changedMap.isEmpty())
+    {
+      // nessuna variazione: le strutture in sola lettura e gli indici sono condivisi
+      rv.lsValues = lsValues;
+      rv.lsValuesUndeleted = lsValuesUndeleted;
+      rv.mapValues = mapValues;
+      rv.intValues = intValues;
+      rv.intValuesUndeleted = intValuesUndeleted;
+      rv.indexes.putAll(indexes);
+      return rv;
+    }
+
+    rv.mapValues = new HashMap<>(mapValues);
+    rv.mapValues.putAll(changedMap);
+    rv.lsValues = new ArrayList(lsValues.size() + changedMap.size());
+    rv.lsValuesUndeleted = new ArrayList(lsValuesUndeleted.size() + changedMap.size());
+
+    for(int i = 0; i < lsValues.size(); i++)
+    {
+      Persistent p = (Persistent) lsValues.get(i);
+      Persistent n = changedMap.remove(p.getPrimaryKey());
+      rv.lsValues.add(n == null ? p : n);
+    }
+
+    // record nuovi
+    rv.lsValues.addAll(changedMap.values());
+
+    for(int i = 0; i < rv.lsValues.size(); i++)
+    {
+      Object val = rv.lsValues.get(i);
+      if(isUndeleted(val))
+        rv.lsValuesUndeleted.add(val);
+    }
+
+    rv.updateWatermark(changed);
+    rv.buildIntMaps();
+    return rv;
   }
 
   protected List doSelect(Class cls)
      throws Exception
   {
-    return PeerTransactAgent.executeReturnReadonly((con) ->
+    return doSelect(cls, new Criteria());
+  }
+
+  protected List doSelect(Class cls, Criteria c)
+     throws Exception
+  {
+    return PeerTransactAgent.executeReturnReadonly((con) -> TablePeerAccess.of(cls).doSelect(c, con));
+  }
+
+  /**
+   * Cerca la colonna ULT_MODIF nella mappa della tabella.
+   * @param cls classe dell'oggetto Peer
+   * @return nome completo della colonna (nometabella.nomecampo) oppure null
+   */
+  protected String findColumnUltModif(Class cls)
+  {
+    try
     {
-      // estrae metodo doSelect dalla class del peer
-      Method m = cls.getMethod("doSelect", Criteria.class, Connection.class);
-      return (List) m.invoke(null, new Criteria(), con);
-    });
+      TableMap tm = TablePeerAccess.of(cls).getTableMap();
+
+      for(ColumnMap cm : tm.getColumns())
+      {
+        if("ULT_MODIF".equalsIgnoreCase(cm.getColumnName()))
+          return tm.getName() + "." + cm.getColumnName();
+      }
+    }
+    catch(Exception ex)
+    {
+      // peer senza mappa: caricamento incrementale non disponibile
+    }
+
+    return null;
+  }
+
+  protected void updateWatermark(List rows)
+  {
+    if(colUltModif == null)
+      return;
+
+    for(Object row : rows)
+    {
+      Date um = getUltModif(row);
+      if(um != null && (watermark == null || um.after(watermark)))
+        watermark = um;
+    }
+  }
+
+  protected Date getUltModif(Object row)
+  {
+    Object um = ((ColumnAccessByName) row).getByName("UltModif");
+    return um instanceof Date ? (Date) um : null;
+  }
+
+  protected boolean isUndeleted(Object row)
+  {
+    return SU.parse(((ColumnAccessByName) row).getByName("StatoRec"), 0) < 10;
   }
 
   /**
@@ -87,6 +346,89 @@ public class TableCacheData
     return removeDeleted ? lsValuesUndeleted.iterator() : lsValues.iterator();
   }
 
+  /**
+   * Ritorna l'indice della colonna richiesta.
+   * L'indice viene costruito al primo utilizzo e conservato fino al
+   * prossimo caricamento della tabella (che produce un nuovo TableCacheData).
+   * @param fieldName nome del campo (getByName) o del campo peer (getByPeerName)
+   * @param peerName se vero fieldName è un nome peer (nometabella.nomecampo)
+   * @param removeDeleted se vero indicizza solo i record con STATO_REC valido
+   * @return indice della colonna
+   */
+  public TableCacheIndex getIndex(String fieldName, boolean peerName, boolean removeDeleted)
+  {
+    String key = (peerName ? "P:" : "N:") + (removeDeleted ? "U:" : "A:") + fieldName;
+    TableCacheIndex idx = indexes.get(key);
+    if(idx != null)
+      return idx;
+
+    return indexes.computeIfAbsent(key, (k) ->
+    {
+      List rows = removeDeleted ? lsValuesUndeleted : lsValues;
+      return peerName
+                ? new TableCacheIndex(rows.iterator(), rows.size(), (r) -> r.getByPeerName(fieldName))
+                : new TableCacheIndex(rows.iterator(), rows.size(), (r) -> r.getByName(fieldName));
+    });
+  }
+
+  /**
+   * Ritorna il primo record con il campo richiesto pari al valore.
+   * @param fieldName nome del campo (getByName) o del campo peer (getByPeerName)
+   * @param peerName se vero fieldName è un nome peer (nometabella.nomecampo)
+   * @param valueFilter valore del filtro
+   * @param removeDeleted se vero considera solo i record con STATO_REC valido
+   * @return record oppure null
+   */
+  public Object findByField(String fieldName, boolean peerName, Object valueFilter, boolean removeDeleted)
+  {
+    TableCacheIndex idx = getIndex(fieldName, peerName, removeDeleted);
+    if(idx.isCompatible(valueFilter))
+      return idx.findFirst(valueFilter);
+
+    for(Iterator itr = getIterator(removeDeleted); itr.hasNext();)
+    {
+      ColumnAccessByName val = (ColumnAccessByName) itr.next();
+      if(SU.isEqu(valueFilter, peerName ? val.getByPeerName(fieldName) : val.getByName(fieldName)))
+        return val;
+    }
+
+    return null;
+  }
+
+  /**
+   * Ritorna tutti i record con il campo richiesto pari al valore.
+   * @param fieldName nome del campo (getByName) o del campo peer (getByPeerName)
+   * @param peerName se vero fieldName è un nome peer (nometabella.nomecampo)
+   * @param valueFilter valore del filtro
+   * @param removeDeleted se vero considera solo i record con STATO_REC valido
+   * @return lista di record (nuova istanza modificabile)
+   */
+  public List extractByField(String fieldName, boolean peerName, Object valueFilter, boolean removeDeleted)
+  {
+    TableCacheIndex idx = getIndex(fieldName, peerName, removeDeleted);
+    if(idx.isCompatible(valueFilter))
+      return new ArrayList(idx.findAll(valueFilter));
+
+    ArrayList rv = new ArrayList();
+    for(Iterator itr = getIterator(removeDeleted); itr.hasNext();)
+    {
+      ColumnAccessByName val = (ColumnAccessByName) itr.next();
+      if(SU.isEqu(valueFilter, peerName ? val.getByPeerName(fieldName) : val.getByName(fieldName)))
+        rv.add(val);
+    }
+
+    return rv;
+  }
+
+  /**
+   * Verifica se i dati hanno superato la loro validità e vanno ricaricati.
+   * @return vero se scaduti
+   */
+  public boolean isExpired()
+  {
+    return expires > 0 && System.currentTimeMillis() - loadedAt > expires;
+  }
+
   /**
    * Ritorna numero di record nella cache (compreso i cancellati).
    * @return numero di record
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+import org.apache.torque.om.ColumnAccessByName;
+
+/**
+ * Indice hash su una colonna dei dati di TableCacheData.
+ * Per ogni valore della colonna conserva il record (colonne a valori unici)
+ * oppure la lista dei record nell'ordine originale (colonne a valori ripetuti):
+ * il primo elemento è quindi lo stesso che troverebbe una scansione sequenziale.
+ * L'indice è immutabile dopo la costruzione.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheIndex
+{
+  /** lista dei record per un valore ripetuto (distingue dal record singolo) */
+  private static class RowList extends ArrayList<Object>
+  {
+  }
+
+  private final HashMap<Object, Object> map;
+  private final Class keyClass;
+  private final boolean mixed;
+  private final boolean unique;
+
+  /**
+   * Costruisce l'indice.
+   * @param rows iteratore sui record da indicizzare
+   * @param size numero di record (dimensionamento iniziale)
+   * @param getter estrazione del valore della colonna dal record
+   */
+  public TableCacheIndex(Iterator rows, int size, Function<ColumnAccessByName, Object> getter)
+  {
+    map = new HashMap<>(Math.max(16, size * 4 / 3 + 1));
+    Class kc = null;
+    boolean mix = false, uniq = true;
+
+    while(rows.hasNext())
+    {
+      ColumnAccessByName row = (ColumnAccessByName) rows.next();
+      Object value = getter.apply(row);
+
+      if(value != null)
+      {
+        if(kc == null)
+          kc = value.getClass();
+        else if(kc != value.getClass())
+          mix = true;
+      }
+
+      Object prev = map.putIfAbsent(value, row);
+      if(prev == null)
+        continue;
+
+      uniq = false;
+      if(prev instanceof RowList)
+      {
+        ((RowList) prev).add(row);
+      }
+      else
+      {
+        RowList lst = new RowList();
+        lst.add(prev);
+        lst.add(row);
+        map.put(value, lst);
+      }
+    }
+
+    keyClass = kc;
+    mixed = mix;
+    unique = uniq;
+  }
+
+  /**
+   * Verifica se il valore può essere cercato nell'indice.
+   * L'indice confronta i valori con equals(): un valore di tipo diverso
+   * da quello della colonna (ES: stringa per una colonna intera) richiede
+   * il confronto tradizionale su tutti i record; lo stesso vale per
+   * qualsiasi valore se la colonna contiene valori di tipi diversi.
+   * @param value valore da cercare
+   * @return vero se la ricerca sull'indice è equivalente alla scansione
+   */
+  public boolean isCompatible(Object value)
+  {
+    if(mixed)
+      return false;
+
+    return value == null || keyClass == null || keyClass == value.getClass();
+  }
+
+  /**
+   * Vero se ogni valore della colonna individua un solo record.
+   * @return vero per colonne a valori unici
+   */
+  public boolean isUnique()
+  {
+    return unique;
+  }
+
+  /**
+   * Ritorna il primo record con il valore indicato.
+   * @param value valore da cercare
+   * @return record oppure null
+   */
+  public Object findFirst(Object value)
+  {
+    Object o = map.get(value);
+    return o instanceof RowList ? ((RowList) o).get(0) : o;
+  }
+
+  /**
+   * Ritorna tutti i record con il valore indicato.
+   * @param value valore da cercare
+   * @return lista non modificabile (vuota se nessun record)
+   */
+  public List findAll(Object value)
+  {
+    Object o = map.get(value);
+    if(o == null)
+      return Collections.EMPTY_LIST;
+
+    if(o instanceof RowList)
+      return Collections.unmodifiableList((RowList) o);
+
+    return Collections.singletonList(o);
+  }
+
+  public int size()
+  {
+    return map.size();
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+/**
+ * Mappa chiave intera -> oggetto a indirizzamento aperto.
+ * Usata da TableCacheData per le tabelle con chiave primaria intera:
+ * la ricerca non alloca oggetti (nessun NumberKey/BigDecimal) e non usa hashCode/equals.
+ * Viene popolata al caricamento della tabella e poi usata in sola lettura
+ * (la pubblicazione avviene con l'inserimento di TableCacheData in cache).
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheIntMap
+{
+  private int[] keys;
+  private Object[] values;
+  private int mask, size;
+
+  public TableCacheIntMap(int expectedSize)
+  {
+    allocate(tableSizeFor(expectedSize));
+  }
+
+  private static int tableSizeFor(int expectedSize)
+  {
+    // fattore di carico massimo 0.5
+    int cap = 16;
+    while(cap < expectedSize * 2L && cap < (1 << 30))
+      cap <<= 1;
+    return cap;
+  }
+
+  private void allocate(int capacity)
+  {
+    keys = new int[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+    size = 0;
+  }
+
+  private static int hash(int key)
+  {
+    int h = key * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Inserisce o sostituisce un valore.
+   * @param key chiave
+   * @param value valore (non null)
+   */
+  public void put(int key, Object value)
+  {
+    if(value == null)
+      throw new NullPointerException("value");
+
+    if((size + 1) * 2L > keys.length)
+      rehash(keys.length << 1);
+
+    int i = hash(key) & mask;
+    while(values[i] != null)
+    {
+      if(keys[i] == key)
+      {
+        values[i] = value;
+        return;
+      }
+      i = (i + 1) & mask;
+    }
+
+    keys[i] = key;
+    values[i] = value;
+    size++;
+  }
+
+  /**
+   * Ritorna il valore associato alla chiave.
+   * @param key chiave
+   * @return valore oppure null
+   */
+  public Object get(int key)
+  {
+    int i = hash(key) & mask;
+    Object v;
+    while((v = values[i]) != null)
+    {
+      if(keys[i] == key)
+        return v;
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  private void rehash(int capacity)
+  {
+    int[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+
+    for(int i = 0; i < oldKeys.length; i++)
+    {
+      if(oldValues[i] != null)
+        put(oldKeys[i], oldValues[i]);
+    }
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * Stima dell'occupazione in memoria.
+   * @return bytes
+   */
+  public long getWeight()
+  {
+    return 32 + keys.length * 12L;
+  }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.ToLongFunction;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.fulcrum.cache.CachedObject;
+import org.sirio6.CoreConst;
+import org.sirio6.services.bus.BUS;
+import org.sirio6.services.bus.BusMessages;
+import org.sirio6.services.bus.BusSubscription;
+import org.sirio6.services.bus.TableModifiedNotifier;
+import org.sirio6.services.localization.INT;
+import org.sirio6.utils.TR;
+
+/**
+ * Caricamento dei dati di TableCache e TableCacheSec.
+ * Il caricamento è coordinato per singola tabella: il caricamento di una tabella
+ * non blocca le richieste sulle altre.
+ * Con la modalità stale-while-revalidate (default) un blocco dati scaduto
+ * continua ad essere servito mentre un thread in background lo ricarica;
+ * il nuovo blocco sostituisce il precedente in cache al termine del caricamento.
+ * Il blocco scaduto rimane in cache al massimo per tablecache.stale.max.minutes
+ * (default 30): oltre questo limite il caricamento torna sincrono.
+ * Con tablecache.delta.reload=true il ricaricamento in background delle tabelle
+ * con ULT_MODIF legge solo i record modificati (vedi TableCacheData.populateDelta());
+ * ogni tablecache.delta.full.minutes (default 60) viene comunque eseguito
+ * un caricamento completo per recepire le cancellazioni fisiche.
+ * Con tablecache.invalidate.on.save=true (default) il blocco dati viene rimosso
+ * alla ricezione del messaggio BusMessages.TABLE_MODIFIED inviato dai salvataggi;
+ * il successivo accesso ricarica la tabella (in modo incrementale se possibile).
+ * Il blocco rimosso viene conservato come base del caricamento incrementale solo
+ * finché è utilizzabile (entro tablecache.delta.full.minutes dal suo caricamento completo);
+ * i blocchi non più utilizzabili vengono scartati alle invalidazioni e al segnale IDLE a 10 minuti.
+ * Un caricamento in corso al momento della modifica non viene salvato in cache.
+ * Le scadenze lunghe si applicano solo se l'invalidazione è garantita
+ * (vedi isInvalidationGuaranteed()); altrimenti restano quelle brevi.
+ * Setup:
+ * <pre>
+ * tablecache.stale.while.revalidate=true
+ * tablecache.stale.max.minutes=30
+ * tablecache.delta.reload=false
+ * tablecache.delta.full.minutes=60
+ * tablecache.invalidate.on.save=true
+ * tablecache.columnar.NOMETABELLA=Campo1,Campo2,...
+ * </pre>
+ * Per le tabelle con tablecache.columnar.NOMETABELLA i dati vengono conservati
+ * a colonne con i soli campi indicati (vedi TableCacheColumnarData).
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheLoader
+{
+  private static final Log log = LogFactory.getLog(TableCacheLoader.class);
+
+  /** classe della cache globale per i dati delle tabelle */
+  public static final String TABLE_CACHE_CLASS = "TableCache";
+
+  /** semafori per singola tabella */
+  private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+  /** tabelle in ricaricamento in background */
+  private static final ConcurrentHashMap<String, Boolean> reloading = new ConcurrentHashMap<>();
+  /** versione delle tabelle: incrementata ad ogni modifica segnalata */
+  private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+  /** blocchi dati invalidati: base per il caricamento incrementale */
+  private static final ConcurrentHashMap<String, TableCacheData> deltaBase = new ConcurrentHashMap<>();
+  private static ExecutorService executor;
+  private static boolean invalidateOnSave, listenerRegistered;
+  private static Boolean staleWhileRevalidate;
+  private static long staleMaxMillis;
+  private static boolean deltaReload;
+  private static long deltaFullMillis;
+
+  /**
+   * Recupera dalla GlobalCache il blocco dati della tabella.
+   * Se non è presente in cache viene caricato dal db; se è scaduto
+   * viene ricaricato in background e nel frattempo viene ritornato il blocco corrente.
+   * @param tname nome della tabella
+   * @param peerClass classe peer della tabella
+   * @param expiries funzione per determinare la validità del blocco dati (millisecondi)
+   * @return l'istanza in cache del blocco dati.
+   * @throws Exception
+   */
+  public static TableCacheData getData(String tname, Class peerClass, ToLongFunction<TableCacheData> expiries)
+     throws Exception
+  {
+    TableCacheData rv = (TableCacheData) CACHE.getContentQuiet(TABLE_CACHE_CLASS, tname);
+    if(rv != null)
+    {
+      if(rv.isExpired() && isStaleWhileRevalidate())
+        reloadAsync(tname, peerClass, expiries, rv);
+
+      return rv;
+    }
+
+    synchronized(locks.computeIfAbsent(tname, (k) -> new Object()))
+    {
+      // ritenta un prelievo dalla cache: l'attesa del semaforo poteva consentire ad altri di passare
+      if((rv = (TableCacheData) CACHE.getContentQuiet(TABLE_CACHE_CLASS, tname)) != null)
+        return rv;
+
+      return reload(tname, peerClass, expiries, deltaBase.remove(tname));
+    }
+  }
+
+  /**
+   * Carica il blocco dati dal db e lo salva nella cache.
+   * @param tname nome della tabella
+   * @param peerClass classe peer della tabella
+   * @param expiries funzione per determinare la validità del blocco dati (millisecondi)
+   * @return blocco dati
+   * @throws Exception
+   */
+  public static TableCacheData reload(String tname, Class peerClass, ToLongFunction<TableCacheData> expiries)
+     throws Exception
+  {
+    return reload(tname, peerClass, expiries, null);
+  }
+
+  /**
+   * Carica il blocco dati dal db e lo salva nella cache.
+   * Se consentito dal setup e dal blocco precedente il caricamento è incrementale.
+   * @param tname nome della tabella
+   * @param peerClass classe peer della tabella
+   * @param expiries funzione per determinare la validità del blocco dati (millisecondi)
+   * @param prev blocco dati precedente (può essere null)
+   * @return blocco dati
+   * @throws Exception
+   */
+  public static TableCacheData reload(String tname, Class peerClass, ToLongFunction<TableCacheData> expiries, TableCacheData prev)
+     throws Exception
+  {
+    long start = System.currentTimeMillis();
+    long version = getVersion(tname).get();
+    TableCacheData data;
+    registerListener();
+
+    if(isDeltaReload() && prev != null && prev.isDeltaCapable() && (start - prev.fullLoadAt) < deltaFullMillis)
+    {
+      data = prev.populateDelta(peerClass);
+    }
+    else
+    {
+      data = new TableCacheData();
+      data.populateData(peerClass);
+
+      String[] fields = getColumnarFields(tname);
+      if(fields != null)
+        data = new TableCacheColumnarData(data, peerClass, fields);
+    }
+
+    data.loadedAt = System.currentTimeMillis();
+    data.loadMillis = data.loadedAt - start;
+    data.expires = expiries.applyAsLong(data);
+
+    store(tname, data, version);
+    TableCacheSnapshot.register(tname, peerClass);
+
+    if(data.deltaRows >= 0)
+      log.info(INT.I("TableCache: aggiornata tabella %s: %d record modificati, %d record (%d validi) in %d ms.",
+         tname, data.deltaRows, data.getSize(), data.lsValuesUndeleted.size(), data.loadMillis));
+    else
+      log.info(INT.I("TableCache: caricata tabella %s: %d record (%d validi) in %d ms.",
+         tname, data.getSize(), data.lsValuesUndeleted.size(), data.loadMillis));
+
+    return data;
+  }
+
+  /**
+   * Ricarica in background il blocco dati della tabella.
+   * Se un ricaricamento della stessa tabella è già in corso non fa nulla.
+   * @param tname nome della tabella
+   * @param peerClass classe peer della tabella
+   * @param expiries funzione per determinare la validità del blocco dati (millisecondi)
+   * @param prev blocco dati attuale (base per il caricamento incrementale; può essere null)
+   */
+  public static void reloadAsync(String tname, Class peerClass, ToLongFunction<TableCacheData> expiries, TableCacheData prev)
+  {
+    if(reloading.putIfAbsent(tname, Boolean.TRUE) != null)
+      return;
+
+    getExecutor().execute(() ->
+    {
+      try
+      {
+        synchronized(locks.computeIfAbsent(tname, (k) -> new Object()))
+        {
+          reload(tname, peerClass, expiries, prev);
+        }
+      }
+      catch(Throwable t)
+      {
+        log.error(INT.I("TableCache: errore nel ricaricamento della tabella %s.", tname), t);
+      }
+      finally
+      {
+        reloading.remove(tname);
+      }
+    });
+  }
+
+  /**
+   * Invalida i dati in cache della tabella indicata.
+   * @param table nome della tabella (il confronto ignora maiuscole/minuscole)
+   */
+  public static void invalidate(String table)
+  {
+    AtomicLong version = getVersion(table);
+
+    // stesso semaforo di store(): un caricamento non può salvare dopo la rimozione
+    synchronized(version)
+    {
+      version.incrementAndGet();
+
+      CACHE.removeAllObjects(TABLE_CACHE_CLASS, (key, value) ->
+      {
+        if(!key.equalsIgnoreCase(table))
+          return false;
+
+        if(isDeltaReload() && value.getContents() instanceof TableCacheData)
+        {
+          TableCacheData data = (TableCacheData) value.getContents();
+          if(data.isDeltaCapable() && isDeltaUsable(data, System.currentTimeMillis()))
+            deltaBase.put(key, data);
+        }
+
+        return true;
+      });
+    }
+
+    pruneDeltaBase();
+  }
+
+  /**
+   * Verifica se un blocco può essere la base di un caricamento incrementale.
+   * @param data blocco dati
+   * @param now istante di riferimento
+   * @return vero se il caricamento completo è più recente di tablecache.delta.full.minutes
+   */
+  private static boolean isDeltaUsable(TableCacheData data, long now)
+  {
+    return (now - data.fullLoadAt) < deltaFullMillis;
+  }
+
+  /**
+   * Scarta i blocchi invalidati non più utilizzabili per il caricamento incrementale.
+   */
+  private static void pruneDeltaBase()
+  {
+    long now = System.currentTimeMillis();
+    deltaBase.values().removeIf((data) -> !isDeltaUsable(data, now));
+  }
+
+  /**
+   * Salva in cache il blocco dati.
+   * @param tname nome della tabella
+   * @param data blocco dati (expires già impostato)
+   * @param version versione della tabella letta prima del caricamento (vedi getCurrentVersion())
+   * @return vero se salvato; falso se la tabella è stata modificata nel frattempo
+   */
+  static boolean store(String tname, TableCacheData data, long version)
+  {
+    // con stale-while-revalidate l'oggetto rimane in cache oltre la sua validità
+    long ttl = isStaleWhileRevalidate() ? data.expires + staleMaxMillis : data.expires;
+
+    // se la tabella è stata modificata durante il caricamento i dati potrebbero non essere aggiornati;
+    // verifica e salvataggio sono atomici rispetto ad invalidate()
+    AtomicLong current = getVersion(tname);
+    synchronized(current)
+    {
+      if(current.get() != version)
+        return false;
+
+      CACHE.addObject(TABLE_CACHE_CLASS, tname, new CachedObject(data, ttl));
+      return true;
+    }
+  }
+
+  static long getCurrentVersion(String table)
+  {
+    return getVersion(table).get();
+  }
+
+  private static AtomicLong getVersion(String table)
+  {
+    return versions.computeIfAbsent(table.toUpperCase(), (k) -> new AtomicLong());
+  }
+
+  private static synchronized void registerListener()
+  {
+    if(listenerRegistered || !isInvalidateOnSave())
+      return;
+
+    try
+    {
+      BUS.registerEventListner(TableCacheLoader.class.getName(), (msgID, originator, context) ->
+      {
+        if(msgID == BusMessages.TABLE_MODIFIED)
+          invalidate(context.getAsString("table"));
+        else if(msgID == BusMessages.IDLE_10_MINUTES)
+          pruneDeltaBase();
+
+        return 0;
+      }, BusSubscription.of(BusMessages.TABLE_MODIFIED, BusMessages.IDLE_10_MINUTES));
+      listenerRegistered = true;
+    }
+    catch(Throwable t)
+    {
+      // bus non disponibile: rimane la sola scadenza temporale
+      log.debug("TableCache: message bus non disponibile.", t);
+    }
+  }
+
+  /**
+   * Ritorna i campi da conservare per la memorizzazione a colonne.
+   * @param tname nome della tabella
+   * @return elenco dei campi oppure null per la memorizzazione normale
+   */
+  public static String[] getColumnarFields(String tname)
+  {
+    try
+    {
+      String fields = String.join(",", TR.getStringArray("tablecache.columnar." + tname)).trim();
+      return fields.isEmpty() ? null : fields.split("\\s*,\\s*");
+    }
+    catch(Throwable t)
+    {
+      return null;
+    }
+  }
+
+  public static boolean isInvalidateOnSave()
+  {
+    loadSetup();
+    return invalidateOnSave;
+  }
+
+  /**
+   * Vero se l'invalidazione al salvataggio è attiva e garantita:
+   * ascoltatore registrato sul bus e notifiche legate alla conferma
+   * delle transazioni. Solo in questo caso le scadenze possono essere lunghe.
+   * @return vero se le modifiche eseguite dall'applicazione invalidano la cache
+   */
+  public static boolean isInvalidationGuaranteed()
+  {
+    registerListener();
+    return listenerRegistered && TableModifiedNotifier.isCommitHookInstalled();
+  }
+
+  public static boolean isStaleWhileRevalidate()
+  {
+    loadSetup();
+    return staleWhileRevalidate;
+  }
+
+  public static boolean isDeltaReload()
+  {
+    loadSetup();
+    return deltaReload;
+  }
+
+  private static synchronized void loadSetup()
+  {
+    if(staleWhileRevalidate == null)
+    {
+      try
+      {
+        staleMaxMillis = TR.getInt("tablecache.stale.max.minutes", 30) * CoreConst.ONE_MINUTE_MILLIS;
+        deltaReload = TR.getBoolean("tablecache.delta.reload", false);
+        deltaFullMillis = TR.getInt("tablecache.delta.full.minutes", 60) * CoreConst.ONE_MINUTE_MILLIS;
+        invalidateOnSave = TR.getBoolean("tablecache.invalidate.on.save", true);
+        staleWhileRevalidate = TR.getBoolean("tablecache.stale.while.revalidate", true);
+      }
+      catch(Throwable t)
+      {
+        // setup non disponibile (ES: esecuzione fuori da Turbine)
+        staleMaxMillis = 30 * CoreConst.ONE_MINUTE_MILLIS;
+        deltaReload = false;
+        deltaFullMillis = CoreConst.ONE_HOUR_MILLIS;
+        invalidateOnSave = false;
+        staleWhileRevalidate = true;
+      }
+    }
+  }
+
+  private static synchronized ExecutorService getExecutor()
+  {
+    if(executor == null)
+    {
+      executor = Executors.newFixedThreadPool(2, (r) ->
+      {
+        Thread t = new Thread(r);
+        t.setName("TableCacheReload");
+        t.setDaemon(true);
+        return t;
+      });
+    }
+    return executor;
+  }
+}
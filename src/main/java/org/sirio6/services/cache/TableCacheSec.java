@@ -17,12 +17,9 @@
  */
 package org.sirio6.services.cache;
 
-import java.lang.reflect.Method;
 import java.util.*;
 import java.util.stream.Stream;
 import org.apache.commons.collections.IteratorUtils;
-import org.apache.fulcrum.cache.CachedObject;
-import org.apache.fulcrum.cache.ObjectExpiredException;
 import org.apache.torque.map.ColumnMap;
 import org.apache.torque.map.TableMap;
 import org.apache.torque.om.ColumnAccessByName;
@@ -48,7 +45,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
   private Class cls;
   private final Class clsObject;
   private String tableName;
-  private static final String TABLE_CACHE_CLASS = "TableCache";
+  private static final String TABLE_CACHE_CLASS = TableCacheLoader.TABLE_CACHE_CLASS;
 
   /**
    * Costruisce selettore dei dati.
@@ -67,8 +64,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
       String clsPeerName = clsObject.getName() + "Peer";
       this.cls = Class.forName(clsPeerName);
 
-      Method getTableMapM = cls.getMethod("getTableMap");
-      TableMap tm = (TableMap) getTableMapM.invoke(null);
+      TableMap tm = TablePeerAccess.of(cls).getTableMap();
       if(tm == null)
         throw new Exception("Layer torque non inizializzato (definizione tabella non trovata).");
 
@@ -86,7 +82,22 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
   public T findByPrimaryKey(int id)
      throws Exception
   {
-    return findByPrimaryKey(new NumberKey(id));
+    TableCacheData tc = getFromCache();
+    return (T) tc.findByPrimaryKey(id, false);
+  }
+
+  /**
+   * Recupera il record richiesto.
+   * @param id chiave primaria
+   * @param removeDeleted se vero ritorna solo record con STATO_REC valido
+   * @return oggetto oppure null
+   * @throws Exception
+   */
+  public T findByPrimaryKey(int id, boolean removeDeleted)
+     throws Exception
+  {
+    TableCacheData tc = getFromCache();
+    return (T) tc.findByPrimaryKey(id, removeDeleted);
   }
 
   /**
@@ -111,7 +122,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
      throws Exception
   {
     TableCacheData tc = getFromCache();
-    return (T) tc.mapValues.get(toSearch);
+    return (T) tc.findByPrimaryKey(toSearch);
   }
 
   /**
@@ -141,14 +152,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
      throws Exception
   {
     TableCacheData tc = getFromCache();
-    for(Iterator itr = tc.getIterator(ignoreDeleted); itr.hasNext();)
-    {
-      ColumnAccessByName val = (ColumnAccessByName) itr.next();
-      if(SU.isEqu(valueFilter, val.getByName(fieldName)))
-        return (T) val;
-    }
-
-    return null;
+    return (T) tc.findByField(fieldName, false, valueFilter, ignoreDeleted);
   }
 
   /**
@@ -165,14 +169,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
      throws Exception
   {
     TableCacheData tc = getFromCache();
-    for(Iterator itr = tc.getIterator(ignoreDeleted); itr.hasNext();)
-    {
-      ColumnAccessByName val = (ColumnAccessByName) itr.next();
-      if(SU.isEqu(valueFilter, val.getByPeerName(peerName)))
-        return (T) val;
-    }
-
-    return null;
+    return (T) tc.findByField(peerName, true, valueFilter, ignoreDeleted);
   }
 
   /**
@@ -188,16 +185,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
   public T findByPeername(ColumnMap peerColumn, Object valueFilter, boolean ignoreDeleted)
      throws Exception
   {
-    String peerName = peerColumn.getColumnName();
-    TableCacheData tc = getFromCache();
-    for(Iterator itr = tc.getIterator(ignoreDeleted); itr.hasNext();)
-    {
-      ColumnAccessByName val = (ColumnAccessByName) itr.next();
-      if(SU.isEqu(valueFilter, val.getByPeerName(peerName)))
-        return (T) val;
-    }
-
-    return null;
+    return findByPeername(peerColumn.getColumnName(), valueFilter, ignoreDeleted);
   }
 
   /**
@@ -354,18 +342,8 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
   public List<T> extractByFieldValue(String fieldName, Object valueFilter, boolean ignoreDeleted)
      throws Exception
   {
-    ArrayList<T> rv = new ArrayList<>();
     TableCacheData tc = getFromCache();
-
-    for(Iterator itr = tc.getIterator(ignoreDeleted); itr.hasNext();)
-    {
-      ColumnAccessByName val = (ColumnAccessByName) itr.next();
-
-      if(SU.isEqu(valueFilter, val.getByName(fieldName)))
-        rv.add((T) val);
-    }
-
-    return rv;
+    return tc.extractByField(fieldName, false, valueFilter, ignoreDeleted);
   }
 
   /**
@@ -379,18 +357,8 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
   public List<T> extractByFieldValuePeerName(String fieldName, Object valueFilter, boolean ignoreDeleted)
      throws Exception
   {
-    ArrayList<T> rv = new ArrayList<>();
     TableCacheData tc = getFromCache();
-
-    for(Iterator itr = tc.getIterator(ignoreDeleted); itr.hasNext();)
-    {
-      ColumnAccessByName val = (ColumnAccessByName) itr.next();
-
-      if(SU.isEqu(valueFilter, val.getByPeerName(fieldName)))
-        rv.add((T) val);
-    }
-
-    return rv;
+    return tc.extractByField(fieldName, true, valueFilter, ignoreDeleted);
   }
 
   /**
@@ -479,10 +447,7 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
      throws Exception
   {
     String tname = getTableName();
-    TableCacheData data = new TableCacheData();
-    data.populateData(cls);
-    CACHE.addObject(TABLE_CACHE_CLASS, tname, new CachedObject(data, getExpiries(data)));
-    return data;
+    return TableCacheLoader.reload(tname, cls, this::getExpiries);
   }
 
   /**
@@ -494,6 +459,10 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
   {
     int numRec = data.getSize();
 
+    // con l'invalidazione al salvataggio la scadenza serve solo per le modifiche esterne
+    if(TableCacheLoader.isInvalidationGuaranteed())
+      return numRec >= 1000 ? CoreConst.ONE_HOUR_MILLIS : 4 * CoreConst.ONE_HOUR_MILLIS;
+
     // 1000 o superiore 1 minuto
     if(numRec >= 1000)
       return CoreConst.ONE_MINUTE_MILLIS;
@@ -506,36 +475,18 @@ public class TableCacheSec<T extends ColumnAccessByName> implements Iterable<T>
     return 30 * CoreConst.ONE_MINUTE_MILLIS;
   }
 
-  private static final Object semaforo = new Object();
-
   /**
    * Recupera dalla GlobalCache il blocco dati relativo.
-   * Se non è presente in cache, oppure l'istanza è scaduta,
-   * viene creato un nuovo blocco dati leggendo dal db.
+   * Se non è presente in cache viene creato un nuovo blocco dati leggendo dal db;
+   * se l'istanza è scaduta viene ricaricata in background (vedi TableCacheLoader).
    * @return l'istanza in cache del blocco dati.
    * @throws Exception
    */
   private TableCacheData getFromCache()
      throws Exception
   {
-    final String tname = getTableName();
-
-    try
-    {
-      return (TableCacheData) CACHE.getObject(TABLE_CACHE_CLASS, tname).getContents();
-    }
-    catch(ObjectExpiredException ei)
-    {
-      synchronized(semaforo)
-      {
-        // ritenta un prelievo dalla cache: l'attesa del semaforo poteva consentire ad altri di passare
-        TableCacheData rv = (TableCacheData) CACHE.getContentQuiet(TABLE_CACHE_CLASS, tname);
-        if(rv != null)
-          return rv;
-
-        return reload();
-      }
-    }
+    String tname = getTableName();
+    return TableCacheLoader.getData(tname, cls, this::getExpiries);
   }
 
   /**
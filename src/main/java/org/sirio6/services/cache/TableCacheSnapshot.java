@@ -0,0 +1,506 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.torque.map.ColumnMap;
+import org.apache.torque.map.TableMap;
+import org.rigel5.db.torque.PeerTransactAgent;
+import org.sirio6.CoreConst;
+import org.sirio6.services.localization.INT;
+import org.sirio6.utils.TR;
+
+/**
+ * Salvataggio su disco dei dati di TableCache per un avvio a caldo.
+ * Alla chiusura e periodicamente i blocchi dati delle tabelle caricate
+ * vengono salvati in file compressi nella directory di cache (tablecache_NOMETABELLA.snap).
+ * All'avvio i file vengono letti in parallelo e i dati inseriti in cache con una
+ * validità breve (tablecache.snapshot.grace.seconds); in background ogni tabella
+ * viene verificata sul db (numero di record e massimo ULT_MODIF): se coincide i dati
+ * diventano validi per il tempo normale, altrimenti la tabella viene ricaricata.
+ * Ogni file contiene un'impronta dello schema (serialVersionUID della classe
+ * dei record e nomi delle colonne): se non coincide il file viene scartato.
+ * La lettura dei record ammette solo la classe dei record (con le sue superclassi),
+ * org.apache.torque.om.* e le classi base di java.* (vedi getRestoreFilter()):
+ * un file con altri oggetti (ES: record collegati) viene scartato.
+ * I blocchi a colonne (TableCacheColumnarData) contengono record parziali e non
+ * vengono salvati; il ripristino di una tabella configurata a colonne converte
+ * i dati letti nella rappresentazione a colonne.
+ * La verifica sul db non blocca l'avvio: ogni tabella viene verificata appena
+ * il layer torque è disponibile (un tentativo ogni 5 secondi per 2 minuti).
+ * Setup:
+ * <pre>
+ * tablecache.snapshot.enabled=false
+ * tablecache.snapshot.minutes=30
+ * tablecache.snapshot.grace.seconds=120
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheSnapshot
+{
+  private static final Log log = LogFactory.getLog(TableCacheSnapshot.class);
+
+  public static final int MAGIC = 0x54435348;
+  public static final int FORMAT_VERSION = 1;
+  public static final String FILE_PREFIX = "tablecache_";
+  public static final String FILE_SUFFIX = ".snap";
+  /** nomi di tabella e colonna accettati dai file (usati nella query di verifica) */
+  public static final String SQL_NAME_PATTERN = "[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?";
+  /** tentativi di verifica sul db e intervallo fra i tentativi */
+  public static final int REVALIDATE_ATTEMPTS = 24;
+  public static final long REVALIDATE_RETRY_MILLIS = 5000;
+
+  /** tabelle caricate con la relativa classe peer */
+  private static final ConcurrentHashMap<String, Class> tables = new ConcurrentHashMap<>();
+  /** istante di caricamento dei dati salvati per ultimi */
+  private static final ConcurrentHashMap<String, Long> lastWritten = new ConcurrentHashMap<>();
+  private static ScheduledExecutorService timer;
+  private static boolean enabled;
+  private static long periodMillis, graceMillis;
+
+  /**
+   * Registra una tabella per il salvataggio.
+   * Chiamata da TableCacheLoader ad ogni caricamento.
+   * @param tname nome della tabella
+   * @param peerClass classe peer
+   */
+  public static void register(String tname, Class peerClass)
+  {
+    if(enabled)
+      tables.putIfAbsent(tname, peerClass);
+  }
+
+  /**
+   * Avvio: legge il setup, ripristina i dati salvati e avvia il salvataggio periodico.
+   * Le operazioni vengono eseguite in background.
+   */
+  public static synchronized void startup()
+  {
+    try
+    {
+      enabled = TR.getBoolean("tablecache.snapshot.enabled", false);
+      periodMillis = TR.getInt("tablecache.snapshot.minutes", 30) * CoreConst.ONE_MINUTE_MILLIS;
+      graceMillis = TR.getInt("tablecache.snapshot.grace.seconds", 120) * 1000L;
+    }
+    catch(Throwable t)
+    {
+      // setup non disponibile (ES: esecuzione fuori da Turbine)
+      enabled = false;
+    }
+
+    if(!enabled || timer != null)
+      return;
+
+    timer = Executors.newSingleThreadScheduledExecutor((r) ->
+    {
+      Thread t = new Thread(r);
+      t.setName("TableCacheSnapshot");
+      t.setDaemon(true);
+      return t;
+    });
+
+    timer.execute(() -> restoreAll());
+    timer.scheduleWithFixedDelay(() -> writeAll(false), periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Chiusura: salva i dati delle tabelle in cache.
+   */
+  public static synchronized void shutdown()
+  {
+    if(timer == null)
+      return;
+
+    timer.shutdownNow();
+    timer = null;
+    writeAll(true);
+  }
+
+  /**
+   * Salva i dati delle tabelle registrate presenti in cache.
+   * @param force se falso salva solo le tabelle ricaricate dopo l'ultimo salvataggio
+   */
+  public static void writeAll(boolean force)
+  {
+    for(Map.Entry<String, Class> entry : tables.entrySet())
+    {
+      String tname = entry.getKey();
+
+      try
+      {
+        TableCacheData data = (TableCacheData) CACHE.getContentQuiet(TableCacheLoader.TABLE_CACHE_CLASS, tname);
+        if(data == null || data instanceof TableCacheColumnarData)
+          continue;
+
+        Long last = lastWritten.get(tname);
+        if(!force && last != null && last == data.loadedAt)
+          continue;
+
+        write(tname, entry.getValue(), data);
+        lastWritten.put(tname, data.loadedAt);
+      }
+      catch(Throwable t)
+      {
+        log.error(INT.I("TableCache: errore nel salvataggio della tabella %s.", tname), t);
+      }
+    }
+  }
+
+  public static File getSnapshotFile(String tname)
+  {
+    return CACHE.getWorkCacheFile(FILE_PREFIX + tname.replaceAll("[^A-Za-z0-9_.]", "_") + FILE_SUFFIX);
+  }
+
+  /**
+   * Salva il blocco dati di una tabella.
+   * Il file viene scritto in un temporaneo e poi rinominato.
+   * @param tname nome della tabella
+   * @param peerClass classe peer
+   * @param data blocco dati
+   * @throws Exception
+   */
+  public static void write(String tname, Class peerClass, TableCacheData data)
+     throws Exception
+  {
+    // i record ricostruiti dalle colonne contengono solo i campi selezionati
+    if(data.lsValues.isEmpty() || data instanceof TableCacheColumnarData)
+      return;
+
+    Class rowClass = data.lsValues.get(0).getClass();
+    File file = getSnapshotFile(tname);
+    File tmp = new File(file.getAbsolutePath() + ".tmp");
+
+    try (ObjectOutputStream out = new ObjectOutputStream(
+       new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))))
+    {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(tname);
+      out.writeUTF(peerClass.getName());
+      out.writeUTF(rowClass.getName());
+      out.writeLong(ObjectStreamClass.lookup(rowClass).getSerialVersionUID());
+      out.writeInt(getColumnsHash(peerClass));
+      out.writeLong(data.fullLoadAt);
+      out.writeLong(data.expires);
+      out.writeObject(data.colUltModif);
+      out.writeObject(data.watermark);
+      out.writeInt(data.lsValues.size());
+
+      for(Object row : data.lsValues)
+        out.writeObject(row);
+    }
+
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Ripristina in parallelo tutti i file presenti e li verifica sul db.
+   */
+  protected static void restoreAll()
+  {
+    File dir = CACHE.getWorkCacheFile(FILE_PREFIX).getParentFile();
+    File[] files = dir == null ? null
+                      : dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+    if(files == null || files.length == 0)
+      return;
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(files.length,
+       Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()))));
+    List<Future<Restored>> lsFut = new ArrayList<>();
+    try
+    {
+      for(File f : files)
+        lsFut.add(pool.submit(() -> restore(f)));
+
+      List<Restored> lsRestored = new ArrayList<>();
+      for(Future<Restored> fut : lsFut)
+      {
+        Restored r = fut.get();
+        if(r != null)
+          lsRestored.add(r);
+      }
+
+      // la verifica procede sul timer: nessuna attesa in questo thread
+      for(Restored r : lsRestored)
+        revalidate(r, 0);
+    }
+    catch(InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+    }
+    catch(Throwable t)
+    {
+      log.error(INT.I("TableCache: errore nel ripristino dei dati salvati."), t);
+    }
+    finally
+    {
+      pool.shutdown();
+    }
+  }
+
+  /** dati ripristinati in attesa di verifica */
+  protected static class Restored
+  {
+    String tname;
+    Class peerClass;
+    TableCacheData data;
+    int columnsHash;
+    long expires, version;
+  }
+
+  /**
+   * Filtro di deserializzazione per i record di una tabella.
+   * @param rowClass classe dei record
+   * @return filtro che ammette solo la classe dei record, le sue superclassi,
+   * org.apache.torque.om.* e le classi base di java.*
+   */
+  protected static ObjectInputFilter getRestoreFilter(Class rowClass)
+  {
+    StringBuilder sb = new StringBuilder("maxdepth=32;maxrefs=10000000;");
+    for(Class c = rowClass; c != null && c != Object.class; c = c.getSuperclass())
+      sb.append(c.getName()).append(';');
+    sb.append("org.apache.torque.om.*;java.lang.*;java.util.*;java.math.*;java.sql.*;java.time.*;!*");
+    return ObjectInputFilter.Config.createFilter(sb.toString());
+  }
+
+  /**
+   * Legge un file e inserisce i dati in cache con validità ridotta.
+   * @param file file da leggere
+   * @return dati ripristinati oppure null se il file non è valido
+   */
+  protected static Restored restore(File file)
+  {
+    Restored r = new Restored();
+
+    try (ObjectInputStream in = new ObjectInputStream(
+       new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)))))
+    {
+      if(in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+        throw new InvalidObjectException("formato non riconosciuto");
+
+      r.tname = in.readUTF();
+      if(!r.tname.matches(SQL_NAME_PATTERN) || !getSnapshotFile(r.tname).getName().equals(file.getName()))
+        throw new InvalidObjectException("nome tabella non valido");
+
+      ClassLoader cl = TableCacheSnapshot.class.getClassLoader();
+      r.peerClass = Class.forName(in.readUTF(), false, cl);
+      Class rowClass = Class.forName(in.readUTF(), false, cl);
+      if(in.readLong() != ObjectStreamClass.lookup(rowClass).getSerialVersionUID())
+        throw new InvalidObjectException("classe dei record modificata");
+      in.setObjectInputFilter(getRestoreFilter(rowClass));
+
+      r.columnsHash = in.readInt();
+      int currentHash = getColumnsHash(r.peerClass);
+      if(currentHash != 0 && currentHash != r.columnsHash)
+        throw new InvalidObjectException("colonne della tabella modificate");
+
+      TableCacheData data = new TableCacheData();
+      data.fullLoadAt = in.readLong();
+      r.expires = in.readLong();
+      data.colUltModif = (String) in.readObject();
+      data.watermark = (Date) in.readObject();
+      if(data.colUltModif != null && !data.colUltModif.matches(SQL_NAME_PATTERN))
+        throw new InvalidObjectException("colonna ULT_MODIF non valida");
+
+      int size = in.readInt();
+      List rows = new ArrayList(size);
+      for(int i = 0; i < size; i++)
+      {
+        Object row = in.readObject();
+        if(row == null || row.getClass() != rowClass)
+          throw new InvalidObjectException("record non valido");
+        rows.add(row);
+      }
+
+      data.populateData(rows);
+
+      String[] fields = TableCacheLoader.getColumnarFields(r.tname);
+      if(fields != null)
+        data = new TableCacheColumnarData(data, r.peerClass, fields);
+
+      data.loadedAt = System.currentTimeMillis();
+      data.expires = graceMillis;
+      r.data = data;
+    }
+    catch(Throwable t)
+    {
+      log.info(INT.I("TableCache: file %s scartato: %s", file.getName(), t.getMessage()));
+      file.delete();
+      return null;
+    }
+
+    r.version = TableCacheLoader.getCurrentVersion(r.tname);
+    if(CACHE.getContentQuiet(TableCacheLoader.TABLE_CACHE_CLASS, r.tname) != null
+       || !TableCacheLoader.store(r.tname, r.data, r.version))
+      return null;
+
+    tables.putIfAbsent(r.tname, r.peerClass);
+    lastWritten.put(r.tname, r.data.loadedAt);
+    log.info(INT.I("TableCache: ripristinata tabella %s: %d record.", r.tname, r.data.getSize()));
+    return r;
+  }
+
+  /**
+   * Verifica sul db i dati ripristinati.
+   * Se numero di record e massimo ULT_MODIF coincidono i dati restano in cache
+   * con la validità normale; altrimenti la tabella viene ricaricata.
+   * Se il db non è ancora disponibile la verifica viene ripianificata sul timer.
+   * @param r dati ripristinati
+   * @param attempt numero del tentativo
+   */
+  protected static void revalidate(Restored r, int attempt)
+  {
+    TableCacheData data = r.data;
+    boolean valid;
+
+    try
+    {
+      // il layer torque potrebbe non essere ancora inizializzato
+      TableMap tm = TablePeerAccess.of(r.peerClass).getTableMap();
+      if(tm == null || getColumnsHash(r.peerClass) == 0)
+        throw new Exception("Layer torque non inizializzato.");
+
+      // nome e colonna letti dal file devono appartenere alla tabella della classe peer
+      if(!isTableOf(tm, r.tname, data.colUltModif))
+      {
+        log.info(INT.I("TableCache: dati ripristinati per %s non corrispondenti alla classe %s: scartati.",
+           r.tname, r.peerClass.getName()));
+        tables.remove(r.tname, r.peerClass);
+        CACHE.removeObject(TableCacheLoader.TABLE_CACHE_CLASS, r.tname);
+        return;
+      }
+
+      valid = data.colUltModif != null
+                 && getColumnsHash(r.peerClass) == r.columnsHash
+                 && checkTable(r.tname, data);
+    }
+    catch(Exception ex)
+    {
+      if(attempt + 1 < REVALIDATE_ATTEMPTS && reschedule(() -> revalidate(r, attempt + 1)))
+        return;
+
+      valid = false;
+    }
+
+    if(valid)
+    {
+      data.loadedAt = System.currentTimeMillis();
+      data.expires = r.expires;
+      if(TableCacheLoader.store(r.tname, data, r.version))
+        log.info(INT.I("TableCache: tabella %s ripristinata verificata.", r.tname));
+    }
+    else
+    {
+      long expires = r.expires;
+      TableCacheLoader.reloadAsync(r.tname, r.peerClass, (d) -> expires, data);
+    }
+  }
+
+  private static synchronized boolean reschedule(Runnable task)
+  {
+    if(timer == null)
+      return false;
+
+    timer.schedule(task, REVALIDATE_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  /**
+   * Verifica che nome tabella e colonna ULT_MODIF appartengano alla mappa della tabella.
+   * @param tm mappa della tabella
+   * @param tname nome della tabella
+   * @param colUltModif colonna ULT_MODIF (può essere null)
+   * @return vero se corrispondenti
+   */
+  protected static boolean isTableOf(TableMap tm, String tname, String colUltModif)
+  {
+    if(!tname.equalsIgnoreCase(tm.getName()))
+      return false;
+
+    if(colUltModif == null)
+      return true;
+
+    for(ColumnMap cm : tm.getColumns())
+    {
+      if(colUltModif.equalsIgnoreCase(cm.getColumnName())
+         || colUltModif.equalsIgnoreCase(tm.getName() + "." + cm.getColumnName()))
+        return true;
+    }
+
+    return false;
+  }
+
+  protected static boolean checkTable(String tname, TableCacheData data)
+     throws Exception
+  {
+    return PeerTransactAgent.executeReturnReadonly((con) ->
+    {
+      String sSQL = "SELECT COUNT(*), MAX(" + data.colUltModif + ") FROM " + tname;
+      try (Statement st = con.createStatement();
+         ResultSet rs = st.executeQuery(sSQL))
+      {
+        if(!rs.next())
+          return false;
+
+        java.sql.Timestamp maxUM = rs.getTimestamp(2);
+        return rs.getInt(1) == data.getSize()
+                  && (maxUM == null ? data.watermark == null
+                      : data.watermark != null && maxUM.getTime() == data.watermark.getTime());
+      }
+    });
+  }
+
+  /**
+   * Impronta delle colonne della tabella.
+   * @param peerClass classe peer
+   * @return hash dei nomi di colonna (0 se la mappa della tabella non è disponibile)
+   */
+  protected static int getColumnsHash(Class peerClass)
+  {
+    try
+    {
+      TableMap tm = TablePeerAccess.of(peerClass).getTableMap();
+      if(tm == null)
+        return 0;
+
+      int hash = 1;
+      for(ColumnMap cm : tm.getColumns())
+        hash = 31 * hash + cm.getColumnName().toUpperCase().hashCode();
+
+      return hash;
+    }
+    catch(Exception ex)
+    {
+      return 0;
+    }
+  }
+}
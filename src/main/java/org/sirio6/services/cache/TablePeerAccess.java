@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.apache.torque.criteria.Criteria;
+import org.apache.torque.map.TableMap;
+
+/**
+ * Accesso ai metodi statici di una classe peer.
+ * I metodi usati da TableCache, TableRelationCache* e TableRelationRecordCache
+ * vengono risolti una sola volta per classe peer e conservati come MethodHandle;
+ * le istanze sono condivise attraverso of().
+ * I metodi non implementati dal peer generano un'eccezione solo al momento dell'uso.
+ *
+ * @author Nicola De Nisco
+ */
+public class TablePeerAccess
+{
+  private static final ConcurrentHashMap<Class, TablePeerAccess> registry = new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<Method, Function<Object, Object>> getters = new ConcurrentHashMap<>();
+  private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+  private final Class peerClass;
+  private final MethodHandle doSelect, doSelectJoinAllForBeans, retrieveByPKs, getTableMap;
+  private volatile TableMap tableMap;
+
+  private TablePeerAccess(Class peerClass)
+  {
+    if(!peerClass.getName().endsWith("Peer"))
+      throw new RuntimeException("Deve essere un oggetto Peer.");
+
+    this.peerClass = peerClass;
+    doSelect = findStatic("doSelect", Criteria.class, Connection.class);
+    doSelectJoinAllForBeans = findStatic("doSelectJoinAllForBeans", Criteria.class, Collection.class, Connection.class);
+    getTableMap = findStatic("getTableMap");
+
+    // a causa del cambio nome in Torque 5.1 vengono cercati entrambi i nomi
+    MethodHandle mh = findStatic("retrieveByPKs", Collection.class, Connection.class);
+    retrieveByPKs = mh != null ? mh : findStatic("retrieveByObjectKeys", Collection.class, Connection.class);
+  }
+
+  /**
+   * Ritorna l'accesso ai metodi della classe peer indicata.
+   * @param peerClass classe peer (ES: AnAnagrafichePeer.class)
+   * @return istanza condivisa
+   */
+  public static TablePeerAccess of(Class peerClass)
+  {
+    return registry.computeIfAbsent(peerClass, (k) -> new TablePeerAccess(k));
+  }
+
+  private MethodHandle findStatic(String name, Class... parametri)
+  {
+    try
+    {
+      Method m = peerClass.getMethod(name, parametri);
+      if(!Modifier.isStatic(m.getModifiers()))
+        return null;
+
+      // tipo generico per poter usare invokeExact
+      return lookup.unreflect(m).asType(MethodType.genericMethodType(parametri.length));
+    }
+    catch(NoSuchMethodException | IllegalAccessException ex)
+    {
+      return null;
+    }
+  }
+
+  private MethodHandle check(MethodHandle mh, String name)
+  {
+    if(mh == null)
+      throw new RuntimeException(String.format(
+         "Il peer %s non implementa il metodo %s.", peerClass.getName(), name));
+
+    return mh;
+  }
+
+  public Class getPeerClass()
+  {
+    return peerClass;
+  }
+
+  /**
+   * Ritorna la tablemap del peer.
+   * @return tablemap oppure null se il layer Torque non è ancora inizializzato
+   * @throws Exception
+   */
+  public TableMap getTableMap()
+     throws Exception
+  {
+    TableMap tm = tableMap;
+    if(tm == null)
+    {
+      MethodHandle mh = check(getTableMap, "getTableMap");
+      try
+      {
+        tableMap = tm = (TableMap) (Object) mh.invokeExact();
+      }
+      catch(Throwable t)
+      {
+        throw rethrow(t);
+      }
+    }
+
+    return tm;
+  }
+
+  /**
+   * Esegue doSelect(Criteria, Connection) del peer.
+   * @param c criteri di selezione
+   * @param con connessione al db
+   * @return lista di oggetti
+   * @throws Exception
+   */
+  public List doSelect(Criteria c, Connection con)
+     throws Exception
+  {
+    MethodHandle mh = check(doSelect, "doSelect");
+    try
+    {
+      return (List) (Object) mh.invokeExact((Object) c, (Object) con);
+    }
+    catch(Throwable t)
+    {
+      throw rethrow(t);
+    }
+  }
+
+  /**
+   * Esegue doSelectJoinAllForBeans(Criteria, Collection, Connection) del peer.
+   * @param c criteri di selezione
+   * @param ignoreTableName tabelle da ignorare nella join (può essere null)
+   * @param con connessione al db
+   * @return lista di oggetti
+   * @throws Exception
+   */
+  public List doSelectJoinAllForBeans(Criteria c, Collection<String> ignoreTableName, Connection con)
+     throws Exception
+  {
+    MethodHandle mh = check(doSelectJoinAllForBeans, "doSelectJoinAllForBeans");
+    try
+    {
+      return (List) (Object) mh.invokeExact((Object) c, (Object) ignoreTableName, (Object) con);
+    }
+    catch(Throwable t)
+    {
+      throw rethrow(t);
+    }
+  }
+
+  /**
+   * Esegue retrieveByPKs (o retrieveByObjectKeys) del peer.
+   * @param primaryKeys chiavi primarie
+   * @param con connessione al db
+   * @return lista di oggetti
+   * @throws Exception
+   */
+  public List retrieveByPKs(Collection primaryKeys, Connection con)
+     throws Exception
+  {
+    MethodHandle mh = check(retrieveByPKs, "retrieveByPKs");
+    try
+    {
+      return (List) (Object) mh.invokeExact((Object) primaryKeys, (Object) con);
+    }
+    catch(Throwable t)
+    {
+      throw rethrow(t);
+    }
+  }
+
+  private static Exception rethrow(Throwable t)
+  {
+    if(t instanceof Error)
+      throw (Error) t;
+
+    return t instanceof Exception ? (Exception) t : new RuntimeException(t);
+  }
+
+  /**
+   * Ritorna una funzione equivalente al getter indicato.
+   * La funzione viene generata una sola volta per metodo con LambdaMetafactory;
+   * se non è possibile viene usata l'invocazione riflessiva.
+   * @param getter metodo senza parametri di un oggetto (ES: getIdAnagrafiche)
+   * @return funzione che applica il getter all'oggetto
+   */
+  public static Function<Object, Object> getter(Method getter)
+  {
+    return getters.computeIfAbsent(getter, (m) -> createGetter(m));
+  }
+
+  private static Function<Object, Object> createGetter(Method m)
+  {
+    try
+    {
+      MethodHandle mh = lookup.unreflect(m);
+      CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+         MethodType.methodType(Function.class),
+         MethodType.methodType(Object.class, Object.class),
+         mh, mh.type().wrap());
+      return (Function<Object, Object>) site.getTarget().invoke();
+    }
+    catch(Throwable t)
+    {
+      return (obj) ->
+      {
+        try
+        {
+          return m.invoke(obj);
+        }
+        catch(Exception ex)
+        {
+          throw new RuntimeException(ex);
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import org.rigel5.db.torque.PeerTransactAgent;
+import org.sirio6.utils.TR;
+
+/**
+ * Caricamento a blocchi delle liste IN usate dalle TableRelationCache.
+ * Le chiavi vengono deduplicate (i null scartati) e suddivise in blocchi
+ * di al più tablerelation.chunk.size elementi (default 500); per ogni blocco
+ * viene eseguita una query separata e i risultati vengono accodati
+ * nell'ordine dei blocchi.
+ * Se tablerelation.parallel.threads è maggiore di 1 e il chiamante non ha
+ * fornito una connessione (quindi non è in una transazione) i blocchi vengono
+ * eseguiti in parallelo, ognuno con una propria connessione in sola lettura.
+ * Setup:
+ * <pre>
+ * tablerelation.chunk.size=500
+ * tablerelation.parallel.threads=0
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class TableRelationBatchLoader
+{
+  private static volatile ExecutorService executor;
+  private static int chunkSize, parallelThreads;
+  /** setup letto una sola volta; le letture successive non acquisiscono lock */
+  private static volatile boolean setupLoaded;
+
+  /**
+   * Esecuzione della query per un blocco di chiavi.
+   * @param <K> tipo delle chiavi
+   */
+  @FunctionalInterface
+  public interface ChunkLoader<K>
+  {
+    /**
+     * Legge dal db i record relativi al blocco di chiavi.
+     * @param chunk blocco di chiavi (senza duplicati)
+     * @param con connessione al db (può essere null)
+     * @return lista dei record letti
+     * @throws Exception
+     */
+    List fetch(Collection<K> chunk, Connection con)
+       throws Exception;
+  }
+
+  /**
+   * Legge i record relativi alle chiavi indicate.
+   * @param <K> tipo delle chiavi
+   * @param keys chiavi da cercare (possono contenere duplicati)
+   * @param con eventuale connessione al db (può essere null)
+   * @param loader esecuzione della query per un blocco di chiavi
+   * @return lista complessiva dei record letti
+   * @throws Exception
+   */
+  public static <K> List fetch(Collection<K> keys, Connection con, ChunkLoader<K> loader)
+     throws Exception
+  {
+    loadSetup();
+    return fetch(keys, con, loader, chunkSize, con == null ? parallelThreads : 0);
+  }
+
+  /**
+   * Legge i record relativi alle chiavi indicate.
+   * @param <K> tipo delle chiavi
+   * @param keys chiavi da cercare (possono contenere duplicati)
+   * @param con eventuale connessione al db (può essere null)
+   * @param loader esecuzione della query per un blocco di chiavi
+   * @param size dimensione massima del blocco
+   * @param threads numero di blocchi eseguibili in parallelo (0 o 1 = sequenziale)
+   * @return lista complessiva dei record letti
+   * @throws Exception
+   */
+  public static <K> List fetch(Collection<K> keys, Connection con, ChunkLoader<K> loader, int size, int threads)
+     throws Exception
+  {
+    // ogni blocco letto in parallelo usa una propria connessione in sola lettura
+    return fetch(keys, con, loader, size, threads,
+       (chunk, c) -> PeerTransactAgent.executeReturnReadonly((ro) -> loader.fetch(chunk, ro)));
+  }
+
+  /**
+   * Legge i record relativi alle chiavi indicate.
+   * @param <K> tipo delle chiavi
+   * @param keys chiavi da cercare (possono contenere duplicati)
+   * @param con eventuale connessione al db (può essere null)
+   * @param loader esecuzione della query per un blocco di chiavi
+   * @param size dimensione massima del blocco
+   * @param threads numero di blocchi eseguibili in parallelo (0 o 1 = sequenziale)
+   * @param parallelLoader esecuzione della query per un blocco letto in parallelo:
+   * riceve una connessione null e deve aprirne una propria
+   * @return lista complessiva dei record letti
+   * @throws Exception
+   */
+  public static <K> List fetch(Collection<K> keys, Connection con, ChunkLoader<K> loader, int size, int threads,
+     ChunkLoader<K> parallelLoader)
+     throws Exception
+  {
+    List<Collection<K>> chunks = split(keys, size);
+
+    if(chunks.isEmpty())
+      return Collections.EMPTY_LIST;
+
+    if(chunks.size() == 1)
+      return loader.fetch(chunks.get(0), con);
+
+    if(threads <= 1 || con != null)
+    {
+      ArrayList rv = new ArrayList();
+      for(Collection<K> chunk : chunks)
+        rv.addAll(loader.fetch(chunk, con));
+      return rv;
+    }
+
+    // ogni blocco viene letto con una propria connessione
+    ArrayList<Future<List>> lsFuture = new ArrayList<>(chunks.size());
+    ExecutorService exec = getExecutor(threads);
+    for(Collection<K> chunk : chunks)
+      lsFuture.add(exec.submit(() -> parallelLoader.fetch(chunk, null)));
+
+    try
+    {
+      ArrayList rv = new ArrayList();
+      for(Future<List> f : lsFuture)
+        rv.addAll(f.get());
+      return rv;
+    }
+    catch(ExecutionException ex)
+    {
+      for(Future<List> f : lsFuture)
+        f.cancel(true);
+
+      Throwable cause = ex.getCause();
+      throw cause instanceof Exception ? (Exception) cause : ex;
+    }
+  }
+
+  /**
+   * Deduplica le chiavi e le suddivide in blocchi.
+   * @param <K> tipo delle chiavi
+   * @param keys chiavi da suddividere
+   * @param size dimensione massima del blocco (0 = nessun limite)
+   * @return lista dei blocchi
+   */
+  public static <K> List<Collection<K>> split(Collection<K> keys, int size)
+  {
+    LinkedHashSet<K> unique = new LinkedHashSet<>(keys);
+    unique.remove(null);
+
+    if(unique.isEmpty())
+      return Collections.EMPTY_LIST;
+
+    if(size <= 0 || unique.size() <= size)
+      return Collections.singletonList(unique);
+
+    ArrayList<Collection<K>> rv = new ArrayList<>(unique.size() / size + 1);
+    ArrayList<K> chunk = new ArrayList<>(size);
+    for(K key : unique)
+    {
+      chunk.add(key);
+      if(chunk.size() == size)
+      {
+        rv.add(chunk);
+        chunk = new ArrayList<>(size);
+      }
+    }
+
+    if(!chunk.isEmpty())
+      rv.add(chunk);
+
+    return rv;
+  }
+
+  public static int getChunkSize()
+  {
+    loadSetup();
+    return chunkSize;
+  }
+
+  public static int getParallelThreads()
+  {
+    loadSetup();
+    return parallelThreads;
+  }
+
+  private static void loadSetup()
+  {
+    if(setupLoaded)
+      return;
+
+    synchronized(TableRelationBatchLoader.class)
+    {
+      if(setupLoaded)
+        return;
+
+      try
+      {
+        chunkSize = TR.getInt("tablerelation.chunk.size", 500);
+        parallelThreads = TR.getInt("tablerelation.parallel.threads", 0);
+      }
+      catch(Throwable t)
+      {
+        // setup non disponibile (ES: esecuzione fuori da Turbine)
+        chunkSize = 500;
+        parallelThreads = 0;
+      }
+
+      setupLoaded = true;
+    }
+  }
+
+  private static ExecutorService getExecutor(int threads)
+  {
+    ExecutorService exec = executor;
+    if(exec != null)
+      return exec;
+
+    synchronized(TableRelationBatchLoader.class)
+    {
+      if(executor == null)
+      {
+        executor = Executors.newFixedThreadPool(threads, (r) ->
+        {
+          Thread t = new Thread(r);
+          t.setName("TableRelationBatchLoader");
+          t.setDaemon(true);
+          return t;
+        });
+      }
+      return executor;
+    }
+  }
+}
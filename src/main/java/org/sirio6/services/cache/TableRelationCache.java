@@ -60,11 +60,12 @@ public class TableRelationCache<T extends Persistent> extends ArrayList<T>
      throws Exception
   {
     // recupera tutte le chiavi primarie dalla lista oggetti
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     HashSet<Integer> primaryKeys = new HashSet<Integer>();
     for(int i = 0; i < lsObj.size(); i++)
     {
       Persistent obj = (Persistent) lsObj.get(i);
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
     }
 
     if(!primaryKeys.isEmpty())
@@ -102,8 +103,8 @@ public class TableRelationCache<T extends Persistent> extends ArrayList<T>
      throws Exception
   {
     // recupera tutti i record collegati attraverso il metodo
-    Method getRecords = cls.getMethod("retrieveByPKs", Collection.class, Connection.class);
-    List lsValues = (List) getRecords.invoke(null, primaryKeys, con);
+    TablePeerAccess peer = TablePeerAccess.of(cls);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) -> peer.retrieveByPKs(chunk, c));
     loadData(lsValues);
   }
 
@@ -123,11 +124,12 @@ public class TableRelationCache<T extends Persistent> extends ArrayList<T>
      throws Exception
   {
     // recupera tutti i valori dalla lista oggetti
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     HashSet<Integer> primaryKeys = new HashSet<Integer>();
     for(int i = 0; i < lsObj.size(); i++)
     {
       Persistent obj = (Persistent) lsObj.get(i);
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
     }
 
     if(!primaryKeys.isEmpty())
@@ -166,10 +168,9 @@ public class TableRelationCache<T extends Persistent> extends ArrayList<T>
   protected void loadDataFromMaster(ColumnMap nomeCampo, HashSet<Integer> primaryKeys, Class cls, Connection con)
      throws Exception
   {
-    Criteria c = new Criteria();
-    c.andIn(nomeCampo, primaryKeys);
-    Method doSelect = cls.getMethod("doSelect", Criteria.class, Connection.class);
-    List lsValues = (List) doSelect.invoke(null, c, con);
+    TablePeerAccess peer = TablePeerAccess.of(cls);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) ->
+       peer.doSelect(new Criteria().andIn(nomeCampo, chunk), c));
     loadData(lsValues);
   }
 
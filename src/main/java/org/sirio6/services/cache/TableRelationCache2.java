@@ -65,8 +65,9 @@ public class TableRelationCache2<T extends Persistent, O extends Persistent> ext
     // recupera tutte le chiavi primarie dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsDettails.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(O obj : lsDettails)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(primaryKeys.isEmpty())
       return;
@@ -179,8 +180,8 @@ public class TableRelationCache2<T extends Persistent, O extends Persistent> ext
       throw new RuntimeException("Deve essere un oggetto Peer.");
 
     // recupera tutti i record collegati attraverso il metodo
-    Method getRecords = getMetodPrimary(cls);
-    List lsValues = (List) getRecords.invoke(null, primaryKeys, con);
+    TablePeerAccess peer = TablePeerAccess.of(cls);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) -> peer.retrieveByPKs(chunk, c));
     loadData(lsValues);
   }
 
@@ -202,8 +203,9 @@ public class TableRelationCache2<T extends Persistent, O extends Persistent> ext
     // recupera tutti i valori dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsMasters.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(O obj : lsMasters)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(!primaryKeys.isEmpty())
       loadDataFromMaster(nomeCampo, primaryKeys, cls, con);
@@ -301,10 +303,9 @@ public class TableRelationCache2<T extends Persistent, O extends Persistent> ext
     if(!cls.getName().endsWith("Peer"))
       throw new RuntimeException("Deve essere un oggetto Peer.");
 
-    Criteria c = new Criteria();
-    c.whereIn(nomeCampo, primaryKeys);
-    Method doSelect = cls.getMethod("doSelect", Criteria.class, Connection.class);
-    List lsValues = (List) doSelect.invoke(null, c, con);
+    TablePeerAccess peer = TablePeerAccess.of(cls);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) ->
+       peer.doSelect(new Criteria().whereIn(nomeCampo, chunk), c));
     loadData(lsValues);
   }
 
@@ -65,10 +65,11 @@ public class TableRelationCache3<T extends Persistent, O extends Persistent> ext
      throws Exception
   {
     // recupera tutte le chiavi primarie dalla lista oggetti
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     HashSet<Integer> primaryKeys = new HashSet<>();
     for(O obj : lsDettails)
     {
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
     }
 
     if(!primaryKeys.isEmpty())
@@ -108,8 +109,7 @@ public class TableRelationCache3<T extends Persistent, O extends Persistent> ext
     if(!cls.getName().endsWith("Peer"))
       throw new RuntimeException("Deve essere un oggetto Peer.");
 
-    Method getTableMapM = cls.getMethod("getTableMap");
-    TableMap tm = (TableMap) getTableMapM.invoke(null);
+    TableMap tm = TablePeerAccess.of(cls).getTableMap();
     tableName = tm.getName();
 
     TableMapHelper tmh = new TableMapHelper(tm);
@@ -117,14 +117,14 @@ public class TableRelationCache3<T extends Persistent, O extends Persistent> ext
     if(tmh.getNumColumnsPrimaryKeys() != 1)
       throw new RuntimeException(String.format("La tabella %s deve avere una colonna primary key.", tableName));
 
-    Criteria c = new Criteria();
     ColumnMap colPrimary = tmh.getFirstPrimaryKey();
-    c.andIn(tableName + "." + colPrimary.getColumnName(), primaryKeys.toArray());
+    String nomeCampo = tableName + "." + colPrimary.getColumnName();
 
     // recupera tutti i record collegati attraverso il metodo
     // public static List<CodSesso> doSelectJoinAllForBeans(Criteria criteria, Collection<String> ignoreTableName, Connection conn)
-    Method getRecords = cls.getMethod("doSelectJoinAllForBeans", Criteria.class, Collection.class, Connection.class);
-    List lsValues = (List) getRecords.invoke(null, c, ignoreTableName, con);
+    TablePeerAccess peer = TablePeerAccess.of(cls);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) ->
+       peer.doSelectJoinAllForBeans(new Criteria().andIn(nomeCampo, chunk.toArray()), ignoreTableName, c));
     loadData(lsValues);
   }
 
@@ -145,10 +145,11 @@ public class TableRelationCache3<T extends Persistent, O extends Persistent> ext
      throws Exception
   {
     // recupera tutti i valori dalla lista oggetti
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     HashSet<Integer> primaryKeys = new HashSet<>();
     for(O obj : lsMasters)
     {
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
     }
 
     if(!primaryKeys.isEmpty())
@@ -209,10 +210,9 @@ public class TableRelationCache3<T extends Persistent, O extends Persistent> ext
     if(!cls.getName().endsWith("Peer"))
       throw new RuntimeException("Deve essere un oggetto Peer.");
 
-    Criteria c = new Criteria();
-    c.andIn(nomeCampo, primaryKeys.toArray());
-    Method getRecords = cls.getMethod("doSelectJoinAllForBeans", Criteria.class, Collection.class, Connection.class);
-    List lsValues = (List) getRecords.invoke(null, c, ignoreTableName, con);
+    TablePeerAccess peer = TablePeerAccess.of(cls);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) ->
+       peer.doSelectJoinAllForBeans(new Criteria().andIn(nomeCampo, chunk.toArray()), ignoreTableName, c));
     loadData(lsValues);
   }
 
@@ -50,9 +50,7 @@ public class TableRelationCache4<T extends Persistent, O extends Persistent> ext
    implements TableRelationLink<T, O>
 {
   private final Class targetPeerClass;
-  private final Method getRecords;
-  private final Method doSelect;
-  private final Method getTableMap;
+  private final TablePeerAccess peer;
   private final Map<ObjectKey, Persistent> mapValues = new HashMap<>();
   private final TableMap targetTableMap;
   private final TableMapHelper targetTableMapHelper;
@@ -66,11 +64,9 @@ public class TableRelationCache4<T extends Persistent, O extends Persistent> ext
         throw new Exception("Deve essere un oggetto Peer.");
 
       targetPeerClass = cls;
-      getRecords = getMetodPrimary(targetPeerClass);
-      doSelect = targetPeerClass.getMethod("doSelect", Criteria.class, Connection.class);
-      getTableMap = targetPeerClass.getMethod("getTableMap");
+      peer = TablePeerAccess.of(targetPeerClass);
 
-      targetTableMap = (TableMap) getTableMap.invoke(null);
+      targetTableMap = peer.getTableMap();
       targetTableName = targetTableMap.getName();
       targetTableMapHelper = new TableMapHelper(targetTableMap);
     }
@@ -106,8 +102,9 @@ public class TableRelationCache4<T extends Persistent, O extends Persistent> ext
     // recupera tutte le chiavi primarie dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsDettails.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(O obj : lsDettails)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(primaryKeys.isEmpty())
       return;
@@ -271,7 +268,7 @@ public class TableRelationCache4<T extends Persistent, O extends Persistent> ext
      throws Exception
   {
     // recupera tutti i record collegati attraverso il metodo
-    List lsValues = (List) getRecords.invoke(null, primaryKeys, con);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) -> peer.retrieveByPKs(chunk, c));
     loadData(lsValues);
   }
 
@@ -329,8 +326,9 @@ public class TableRelationCache4<T extends Persistent, O extends Persistent> ext
     // recupera tutti i valori dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsMasters.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(O obj : lsMasters)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(!primaryKeys.isEmpty())
       loadDataFromForeignKey(nomeCampo, primaryKeys, con);
@@ -400,9 +398,8 @@ public class TableRelationCache4<T extends Persistent, O extends Persistent> ext
     if(primaryKeysMasters.isEmpty())
       return;
 
-    Criteria c = new Criteria();
-    c.whereIn(nomeCampo, primaryKeysMasters);
-    List lsValues = (List) doSelect.invoke(null, c, con);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeysMasters, con, (chunk, c) ->
+       peer.doSelect(new Criteria().whereIn(nomeCampo, chunk), c));
     loadData(lsValues);
   }
 
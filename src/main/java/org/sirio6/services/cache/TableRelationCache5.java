@@ -30,13 +30,16 @@ import org.apache.torque.om.NumberKey;
 import org.apache.torque.om.ObjectKey;
 import org.apache.torque.om.Persistent;
 import org.rigel5.db.torque.TableMapHelper;
+import org.sirio6.utils.tables.TableBatchContext;
+import org.sirio6.utils.tables.TableBatchLoader;
 
 /**
  * Cache per relazioni fra tabelle.
  * Se ho un array di peer (ES: List[AcAccettazioni]) consente di caricare
  * in una unica query tutti i peer collegati (ES: List[AnAnagrafiche]) e
  * quindi di recuparli attraverso le funzioni findByPrimaryKey.
- * NON utilizza la GlobalCache.
+ * NON utilizza la GlobalCache, salvo attivazione della cache condivisa
+ * (vedi TableRelationSharedCache) per il caricamento da chiavi primarie.
  * Questa versione differisce da TableRelationCache4 per l'uso di doSelectJoinAllForBeans al posto di doSelect.
  *
  * @author Nicola De Nisco
@@ -49,12 +52,12 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
    implements TableRelationLink<T, O>
 {
   private final Class targetPeerClass;
-  private final Method doSelectJoinAllForBeans;
-  private final Method getTableMap;
+  private final TablePeerAccess peer;
   private final Map<ObjectKey, Persistent> mapValues = new HashMap<>();
   private final TableMap targetTableMap;
   private final TableMapHelper targetTableMapHelper;
   private final String targetTableName;
+  private boolean requestBatching = true;
 
   public TableRelationCache5(Class cls)
   {
@@ -64,11 +67,9 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
         throw new Exception("Deve essere un oggetto Peer.");
 
       targetPeerClass = cls;
-      doSelectJoinAllForBeans = targetPeerClass.getMethod(
-         "doSelectJoinAllForBeans", Criteria.class, Collection.class, Connection.class);
-      getTableMap = targetPeerClass.getMethod("getTableMap");
+      peer = TablePeerAccess.of(targetPeerClass);
 
-      targetTableMap = (TableMap) getTableMap.invoke(null);
+      targetTableMap = peer.getTableMap();
       targetTableName = targetTableMap.getName();
       targetTableMapHelper = new TableMapHelper(targetTableMap);
     }
@@ -88,6 +89,22 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
     return targetTableName;
   }
 
+  public Class getTargetPeerClass()
+  {
+    return targetPeerClass;
+  }
+
+  /**
+   * Abilita la lettura attraverso il contesto della richiesta (TableBatchContext).
+   * Disabilitata per le relation cache usate dagli stessi caricatori.
+   * Non viene comunque usata quando il caricamento riceve una connessione esplicita.
+   * @param requestBatching vero per abilitare (default)
+   */
+  public void setRequestBatching(boolean requestBatching)
+  {
+    this.requestBatching = requestBatching;
+  }
+
   /**
    * Caricatore dei dati da detail.
    * Carica in memoria tutti gli oggetti collegati all'array passato come parametro.
@@ -105,8 +122,9 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
     // recupera tutte le chiavi primarie dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsDettails.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(O obj : lsDettails)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(primaryKeys.isEmpty())
       return;
@@ -255,9 +273,36 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
     if(nomeCampo == null)
       throw new Exception("La tabella target deve avere una unica chiave primaria di tipo INTEGER.");
 
-    Criteria c = new Criteria();
-    c.whereIn(nomeCampo, primaryKeys);
-    List lsValues = (List) doSelectJoinAllForBeans.invoke(null, c, ignoreTableName, con);
+    // nel contesto della richiesta i record già letti da altre relation cache
+    // della stessa tabella non vengono riletti; con una connessione esplicita
+    // (tipicamente una transazione in corso) si legge sempre dal db
+    TableBatchLoader bl = requestBatching && con == null ? TableBatchContext.relationLoader(this) : null;
+    if(bl != null)
+    {
+      loadData(bl.fetch(primaryKeys, con));
+      return;
+    }
+
+    // con la cache condivisa attiva vengono letti dal db solo i record mancanti
+    boolean shared = TableRelationSharedCache.isEnabled(targetTableName);
+    long version = 0;
+    if(shared)
+    {
+      ArrayList<Integer> missing = new ArrayList<>();
+      loadData(TableRelationSharedCache.lookup(targetTableName, primaryKeys, missing));
+      if(missing.isEmpty())
+        return;
+
+      primaryKeys = missing;
+      version = TableRelationSharedCache.getCurrentVersion(targetTableName);
+    }
+
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) ->
+       peer.doSelectJoinAllForBeans(new Criteria().whereIn(nomeCampo, chunk), ignoreTableName, c));
+
+    if(shared)
+      TableRelationSharedCache.store(targetTableName, lsValues, version);
+
     loadData(lsValues);
   }
 
@@ -283,7 +328,7 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
     TableMapHelper tmMaster = TableMapHelper.getByObject(primo);
     String masterTableName = tmMaster.getNomeTabella();
 
-    TableMap tm = (TableMap) getTableMap.invoke(null);
+    TableMap tm = peer.getTableMap();
     for(ForeignKeyMap fkm : tm.getForeignKeys())
     {
       if(fkm.getForeignTableName().equals(masterTableName))
@@ -318,8 +363,9 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
     // recupera tutti i valori dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsMasters.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(O obj : lsMasters)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(!primaryKeys.isEmpty())
       loadDataFromForeignKey(nomeCampo, primaryKeys, ignoreTableName, con);
@@ -393,9 +439,8 @@ public class TableRelationCache5<T extends Persistent, O extends Persistent> ext
     if(primaryKeysMasters.isEmpty())
       return;
 
-    Criteria c = new Criteria();
-    c.whereIn(nomeCampo, primaryKeysMasters);
-    List lsValues = (List) doSelectJoinAllForBeans.invoke(null, c, ignoreTableName, con);
+    List lsValues = TableRelationBatchLoader.fetch(primaryKeysMasters, con, (chunk, c) ->
+       peer.doSelectJoinAllForBeans(new Criteria().whereIn(nomeCampo, chunk), ignoreTableName, c));
     loadData(lsValues);
   }
 
@@ -69,8 +69,9 @@ public class TableRelationRecordCache<T extends Persistent> extends ArrayList<Re
     // recupera tutte le chiavi primarie dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsDetails.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(T obj : lsDetails)
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
 
     if(!primaryKeys.isEmpty())
       loadDataFromDetail(primaryKeys, con);
@@ -163,14 +164,8 @@ public class TableRelationRecordCache<T extends Persistent> extends ArrayList<Re
       throw new Exception("Target table must have one and only one primary key of numeric type.");
 
     String pkname = primaryKey.name();
-    try (QueryBuilder qb = SetupHolder.getQueryBuilder())
-    {
-      qb.setFrom(tableName);
-      qb.setWhere(pkname + " IN (" + StringOper.join(primaryKeys.iterator(), ',') + ")");
-
-      List<Record> lsRecs = qb.executeQuery(con, true);
-      loadData(lsRecs, pkname);
-    }
+    List<Record> lsRecs = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) -> selectIn(pkname, chunk, c));
+    loadData(lsRecs, pkname);
   }
 
   /**
@@ -190,10 +185,11 @@ public class TableRelationRecordCache<T extends Persistent> extends ArrayList<Re
     // recupera tutti i valori dalla lista oggetti
     HashSet<Integer> primaryKeys = new HashSet<>(lsMasters.size());
 
+    Function<Object, Object> fnLink = TablePeerAccess.getter(getLinkM);
     for(T oo : lsMasters)
     {
       Persistent obj = (Persistent) oo;
-      primaryKeys.add((Integer) getLinkM.invoke(obj));
+      primaryKeys.add((Integer) fnLink.apply(obj));
     }
 
     if(!primaryKeys.isEmpty())
@@ -264,13 +260,18 @@ public class TableRelationRecordCache<T extends Persistent> extends ArrayList<Re
       throw new Exception("Target table must have one and only one primary key of numeric type.");
 
     String pkname = primaryKey.name();
+    List<Record> lsRecs = TableRelationBatchLoader.fetch(primaryKeys, con, (chunk, c) -> selectIn(nomeCampo, chunk, c));
+    loadData(lsRecs, pkname);
+  }
+
+  protected List<Record> selectIn(String nomeCampo, Collection<Integer> primaryKeys, Connection con)
+     throws Exception
+  {
     try (QueryBuilder qb = SetupHolder.getQueryBuilder())
     {
       qb.setFrom(tableName);
       qb.setWhere(nomeCampo + " IN (" + StringOper.join(primaryKeys.iterator(), ',') + ")");
-
-      List<Record> lsRecs = qb.executeQuery(con, true);
-      loadData(lsRecs, pkname);
+      return qb.executeQuery(con, true);
     }
   }
 
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.fulcrum.cache.CachedObject;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.Persistent;
+import org.sirio6.services.bus.BUS;
+import org.sirio6.services.bus.BusMessages;
+import org.sirio6.services.bus.BusSubscription;
+import org.sirio6.utils.TR;
+
+/**
+ * Cache condivisa di secondo livello per le TableRelationCache5.
+ * I record letti dalle relation cache (che vivono per la durata di una richiesta)
+ * vengono conservati nella cache globale nella classe TableRelationL2
+ * con chiave NOMETABELLA:primarykey; le relation cache successive
+ * interrogano prima questa cache e leggono dal db solo le chiavi mancanti.
+ * I record di una tabella vengono rimossi alla ricezione del messaggio
+ * BusMessages.TABLE_MODIFIED; un caricamento in corso al momento della
+ * modifica non viene salvato. Gli oggetti collegati via join (doSelectJoinAllForBeans)
+ * non sono soggetti a invalidazione: la loro freschezza è garantita solo dalla scadenza.
+ * I record sono conservati in forma serializzata: ogni lettura produce una nuova
+ * istanza (con gli oggetti collegati) che la richiesta può modificare liberamente.
+ * Setup:
+ * <pre>
+ * tablerelation.l2.enabled=false
+ * tablerelation.l2.tables=TABELLA1,TABELLA2,... (vuoto = tutte)
+ * tablerelation.l2.ttl.seconds=300
+ * tablerelation.l2.max=10000
+ * </pre>
+ *
+ * @author Nicola De Nisco
+ */
+public class TableRelationSharedCache
+{
+  private static final Log log = LogFactory.getLog(TableRelationSharedCache.class);
+
+  /** classe della cache globale per i record condivisi */
+  public static final String L2_CLASS = "TableRelationL2";
+
+  /** versione delle tabelle: incrementata ad ogni modifica segnalata */
+  private static final ConcurrentHashMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+  /** statistiche per tabella */
+  private static final ConcurrentHashMap<String, TableStats> stats = new ConcurrentHashMap<>();
+  /** setup letto una sola volta (null = da leggere) */
+  private static volatile Boolean enabled;
+  private static volatile boolean listenerRegistered;
+  private static Set<String> tables;
+  private static long ttlMillis;
+  private static int maxEntries;
+
+  /**
+   * Contatori di utilizzo per singola tabella.
+   */
+  public static class TableStats
+  {
+    private final String tableName;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+    public TableStats(String tableName)
+    {
+      this.tableName = tableName;
+    }
+
+    public String getTableName()
+    {
+      return tableName;
+    }
+
+    public long getHits()
+    {
+      return hits.sum();
+    }
+
+    public long getMisses()
+    {
+      return misses.sum();
+    }
+
+    public double getHitRatio()
+    {
+      long h = hits.sum(), tot = h + misses.sum();
+      return tot == 0 ? 0.0 : (double) h / tot;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format(Locale.US, "%s hits=%d misses=%d hitRatio=%.3f",
+         tableName, getHits(), getMisses(), getHitRatio());
+    }
+  }
+
+  /**
+   * Verifica se la cache condivisa è attiva per la tabella.
+   * @param tableName nome della tabella
+   * @return vero se attiva
+   */
+  public static boolean isEnabled(String tableName)
+  {
+    loadSetup();
+    return enabled && (tables.isEmpty() || tables.contains(tableName.toUpperCase()));
+  }
+
+  /**
+   * Cerca nella cache condivisa i record con le chiavi indicate.
+   * @param tableName nome della tabella
+   * @param primaryKeys chiavi primarie da cercare
+   * @param missing riceve le chiavi non presenti in cache
+   * @return lista dei record trovati
+   */
+  public static List lookup(String tableName, Collection<Integer> primaryKeys, Collection<Integer> missing)
+  {
+    String table = tableName.toUpperCase();
+    TableStats ts = getStats(tableName);
+    ArrayList rv = new ArrayList();
+
+    for(Integer pk : primaryKeys)
+    {
+      if(pk == null)
+        continue;
+
+      Object obj = fromBytes((byte[]) CACHE.getContentQuiet(L2_CLASS, makeKey(table, pk)));
+      if(obj == null)
+      {
+        ts.misses.increment();
+        missing.add(pk);
+      }
+      else
+      {
+        ts.hits.increment();
+        rv.add(obj);
+      }
+    }
+
+    return rv;
+  }
+
+  /**
+   * Ritorna la versione corrente della tabella.
+   * Va letta prima della lettura dal db e passata a store().
+   * @param tableName nome della tabella
+   * @return versione
+   */
+  public static long getCurrentVersion(String tableName)
+  {
+    registerListener();
+    return getVersion(tableName.toUpperCase()).get();
+  }
+
+  private static AtomicLong getVersion(String table)
+  {
+    return versions.computeIfAbsent(table, (k) -> new AtomicLong());
+  }
+
+  /**
+   * Salva nella cache condivisa i record letti dal db.
+   * Se la tabella è stata modificata durante la lettura i record vengono scartati.
+   * @param tableName nome della tabella
+   * @param lsValues record letti
+   * @param version versione della tabella prima della lettura
+   */
+  public static void store(String tableName, List lsValues, long version)
+  {
+    String table = tableName.toUpperCase();
+
+    // serializzazione fuori dal semaforo: la copia è indipendente dalla richiesta
+    ArrayList<String> keys = new ArrayList<>(lsValues.size());
+    ArrayList<byte[]> datas = new ArrayList<>(lsValues.size());
+    for(Object obj : lsValues)
+    {
+      byte[] data = toBytes(obj);
+      if(data != null)
+      {
+        keys.add(makeKey(table, ((Persistent) obj).getPrimaryKey()));
+        datas.add(data);
+      }
+    }
+
+    // verifica e salvataggio atomici rispetto ad invalidate()
+    AtomicLong current = getVersion(table);
+    synchronized(current)
+    {
+      if(current.get() != version)
+        return;
+
+      for(int i = 0; i < keys.size(); i++)
+        CACHE.addObject(L2_CLASS, keys.get(i), new CachedObject(datas.get(i), ttlMillis));
+    }
+  }
+
+  /**
+   * Chiave del record nella cache globale: NOMETABELLA:chiave intera.
+   * Usata sia in salvataggio (ObjectKey) che in ricerca (Integer).
+   * @param table nome tabella (maiuscolo)
+   * @param pk chiave primaria
+   * @return chiave della cache
+   */
+  protected static String makeKey(String table, Object pk)
+  {
+    if(pk instanceof ObjectKey)
+      pk = ((ObjectKey) pk).getValue();
+    if(pk instanceof Number)
+      pk = ((Number) pk).intValue();
+
+    return table + ":" + pk;
+  }
+
+  protected static byte[] toBytes(Object obj)
+  {
+    try
+    {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream(1024);
+      try (ObjectOutputStream out = new ObjectOutputStream(bos))
+      {
+        out.writeObject(obj);
+      }
+      return bos.toByteArray();
+    }
+    catch(IOException ex)
+    {
+      log.debug("TableRelationL2: record non serializzabile.", ex);
+      return null;
+    }
+  }
+
+  protected static Object fromBytes(byte[] data)
+  {
+    if(data == null)
+      return null;
+
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data)))
+    {
+      return in.readObject();
+    }
+    catch(IOException | ClassNotFoundException ex)
+    {
+      log.debug("TableRelationL2: record non leggibile.", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Rimuove dalla cache condivisa tutti i record della tabella.
+   * @param tableName nome della tabella
+   */
+  public static void invalidate(String tableName)
+  {
+    if(tableName == null)
+      return;
+
+    String table = tableName.toUpperCase();
+    AtomicLong version = getVersion(table);
+    synchronized(version)
+    {
+      version.incrementAndGet();
+      CACHE.removeAllObjects(L2_CLASS, table + ":");
+    }
+  }
+
+  /**
+   * Ritorna le statistiche di utilizzo della tabella.
+   * @param tableName nome della tabella
+   * @return statistiche
+   */
+  public static TableStats getStats(String tableName)
+  {
+    return stats.computeIfAbsent(tableName.toUpperCase(), (k) -> new TableStats(k));
+  }
+
+  /**
+   * Ritorna le statistiche di utilizzo di tutte le tabelle.
+   * @return statistiche ordinate per nome tabella
+   */
+  public static List<TableStats> getAllStats()
+  {
+    ArrayList<TableStats> rv = new ArrayList<>(stats.values());
+    rv.sort((s1, s2) -> s1.tableName.compareTo(s2.tableName));
+    return rv;
+  }
+
+  private static void registerListener()
+  {
+    if(listenerRegistered)
+      return;
+
+    synchronized(TableRelationSharedCache.class)
+    {
+      if(!listenerRegistered)
+        doRegisterListener();
+    }
+  }
+
+  private static void doRegisterListener()
+  {
+    try
+    {
+      BUS.registerEventListner(TableRelationSharedCache.class.getName(), (msgID, originator, context) ->
+      {
+        if(msgID == BusMessages.TABLE_MODIFIED)
+          invalidate(context.getAsString("table"));
+
+        return 0;
+      }, BusSubscription.of(BusMessages.TABLE_MODIFIED));
+      listenerRegistered = true;
+    }
+    catch(Throwable t)
+    {
+      // bus non disponibile: rimane la sola scadenza temporale
+      log.debug("TableRelationL2: message bus non disponibile.", t);
+    }
+  }
+
+  private static void loadSetup()
+  {
+    if(enabled != null)
+      return;
+
+    synchronized(TableRelationSharedCache.class)
+    {
+      if(enabled != null)
+        return;
+
+      Set<String> tbls = new HashSet<>();
+      boolean enab;
+      try
+      {
+        ttlMillis = TR.getInt("tablerelation.l2.ttl.seconds", 300) * 1000L;
+        maxEntries = TR.getInt("tablerelation.l2.max", 10000);
+        for(String s : TR.getStringArray("tablerelation.l2.tables"))
+          for(String t : s.split(","))
+            if(!t.trim().isEmpty())
+              tbls.add(t.trim().toUpperCase());
+
+        enab = TR.getBoolean("tablerelation.l2.enabled", false);
+
+        if(enab && maxEntries > 0)
+          CACHE.setLimit(L2_CLASS, maxEntries);
+      }
+      catch(Throwable t)
+      {
+        // setup non disponibile (ES: esecuzione fuori da Turbine)
+        enab = false;
+      }
+
+      // enabled per ultimo: la scrittura volatile pubblica anche gli altri campi
+      tables = tbls;
+      enabled = enab;
+    }
+  }
+}
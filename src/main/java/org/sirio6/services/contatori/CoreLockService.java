@@ -18,12 +18,14 @@
 package org.sirio6.services.contatori;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.commonlib5.utils.ArraySet;
@@ -31,10 +33,28 @@ import org.sirio6.services.AbstractCoreBaseService;
 import org.sirio6.services.bus.BUS;
 import org.sirio6.services.bus.BusContext;
 import org.sirio6.services.bus.BusMessages;
+import org.sirio6.services.bus.BusSubscription;
 import org.sirio6.services.bus.MessageBusListener;
 
 /**
  * Implementazione standard del LockService.
+ * Non esiste un lock globale sul servizio: ogni risorsa ha il proprio
+ * oggetto di sincronizzazione, quindi l'attesa su una risorsa occupata
+ * non blocca le operazioni sulle altre risorse.
+ * Un blocco può avere una scadenza (lease): allo scadere viene rilasciato
+ * automaticamente, in modo che un utente o un thread terminato in modo
+ * anomalo non blocchi la risorsa per sempre.
+ * Le richieste che devono attendere un permesso vengono servite in ordine
+ * di arrivo (coda FIFO per risorsa): una nuova richiesta non può superare
+ * quelle già in attesa. La scadenza di default
+ * si imposta a setup (0 = nessuna scadenza):
+ * <pre>
+ * services.LockService.leaseMillis=0
+ * </pre>
+ * Le attese illimitate vengono verificate sul grafo delle attese (LockWaitGraph):
+ * se l'attesa non potrebbe mai terminare viene sollevata DeadlockException
+ * con la descrizione del ciclo. getLockInfo() ritorna lo stato corrente
+ * di possessori e attese con i relativi tempi.
  *
  * @author Nicola De Nisco
  */
@@ -44,42 +64,60 @@ public class CoreLockService extends AbstractCoreBaseService
   /** Logging */
   private static final Log log = LogFactory.getLog(CoreLockService.class);
 
-  protected final Map<String, LockResourceBlock> mapResources = new HashMap<>();
+  protected final Map<String, LockResourceBlock> mapResources = new ConcurrentHashMap<>();
+  /** scadenza di default dei blocchi (0 = nessuna scadenza) */
+  protected long leaseMillis = 0;
+  /** grafo delle attese */
+  protected final LockWaitGraph graph = new LockWaitGraph();
 
   @Override
   public void coreInit()
      throws Exception
   {
-    BUS.registerEventListner(this);
+    Configuration cfg = getConfiguration();
+    if(cfg != null)
+      leaseMillis = cfg.getLong("leaseMillis", leaseMillis);
+
+    BUS.registerEventListner(this, BusSubscription.of(BusMessages.IDLE_10_MINUTES));
   }
 
   @Override
-  public synchronized void createResource(String tipo, int maxLocks, boolean allowMulti)
+  public void createResource(String tipo, int maxLocks, boolean allowMulti)
   {
-    if(mapResources.containsKey(tipo))
-      return;
-
-    LockResourceBlock block = new LockResourceBlock();
-    block.maxLocks = maxLocks;
-    block.allowMulti = allowMulti;
-    mapResources.put(tipo, block);
+    mapResources.computeIfAbsent(tipo, (k) ->
+    {
+      LockResourceBlock block = new LockResourceBlock();
+      block.maxLocks = maxLocks;
+      block.allowMulti = allowMulti;
+      return block;
+    });
   }
 
-  private LockResourceItem findCreateItem(String tipo, int idRisorsa)
+  private LockResourceBlock getBlock(String tipo)
      throws LockException
   {
     LockResourceBlock block = mapResources.get(tipo);
     if(block == null)
       throw new LockException("Unknow '" + tipo + "' resource.");
+    return block;
+  }
 
-    LockResourceItem item = block.lockMap.get(idRisorsa);
-    if(item == null)
+  /**
+   * Recupera o crea l'item della risorsa impedendone la rimozione.
+   * Il chiamante deve rilasciare con item.pins.decrementAndGet().
+   */
+  private LockResourceItem pinItem(LockResourceBlock block, int idRisorsa)
+  {
+    return block.lockMap.compute(idRisorsa, (k, item) ->
     {
-      item = new LockResourceItem();
-      item.sem = new Semaphore(block.maxLocks, true);
-      block.lockMap.put(idRisorsa, item);
-    }
-    return item;
+      if(item == null)
+      {
+        item = new LockResourceItem();
+        item.sem = new Semaphore(block.maxLocks, true);
+      }
+      item.pins.incrementAndGet();
+      return item;
+    });
   }
 
   @Override
@@ -97,30 +135,166 @@ public class CoreLockService extends AbstractCoreBaseService
     return item;
   }
 
-  @Override
-  public synchronized void lockResource(String tipo, int idRisorsa, int idUtente)
+  /**
+   * Acquisizione di un blocco.
+   * Se uno degli utenti possiede già un blocco sulla risorsa il blocco è considerato
+   * acquisito (per i multi gli utenti vengono aggiunti al blocco esistente).
+   * L'attesa avviene sull'item della risorsa e viene interrotta alla scadenza
+   * del primo blocco con lease per rilasciarlo. I permessi vengono concessi
+   * in ordine di arrivo: si acquisisce solo se non ci sono richieste in coda
+   * o se si è in testa alla coda. Prima di attendere senza
+   * limite di tempo viene verificato che l'attesa non produca uno stallo.
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param utenti utenti che richiedono il blocco
+   * @param multi vero per blocco multi utente
+   * @param timeoutMillis tempo massimo di attesa (negativo = attesa illimitata)
+   * @param lease durata del blocco (0 = nessuna scadenza)
+   * @return vero se il blocco è stato acquisito
+   * @throws DeadlockException se l'attesa non potrebbe mai terminare
+   * @throws LockException
+   */
+  protected boolean acquire(String tipo, int idRisorsa, Collection<Integer> utenti,
+     boolean multi, long timeoutMillis, long lease)
      throws LockException
   {
+    LockResourceItem item = pinItem(getBlock(tipo), idRisorsa);
+    LockWaiter waiter = null;
     try
     {
-      LockResourceItem item = findCreateItem(tipo, idRisorsa);
-
-      if(item.verificaUtente(idUtente))
-        return;
+      long deadline = timeoutMillis < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
 
-      item.sem.acquire();
-      item.idUtenti.add(idUtente);
-      item.blocker = Thread.currentThread();
-      item.chiaveBloccante = idRisorsa;
+      synchronized(item)
+      {
+        Object ticket = null;
+        try
+        {
+          while(true)
+          {
+            LockGrant g = item.findGrant(utenti);
+            if(g != null)
+            {
+              waiter = endWait(waiter);
+              if(multi)
+                graph.addUsers(item, g, utenti);
+              return true;
+            }
+
+            long now = System.currentTimeMillis();
+            expireLeases(tipo, idRisorsa, item, now);
+
+            if((item.queue.isEmpty() || item.queue.peek() == ticket) && item.sem.tryAcquire())
+            {
+              // l'attesa termina prima della concessione: la verifica degli stalli
+              // non deve vedere il thread in attesa di una risorsa che già possiede
+              waiter = endWait(waiter);
+              g = new LockGrant(Thread.currentThread(), now, lease > 0 ? now + lease : 0);
+              g.idUtenti.addAll(utenti);
+              graph.addGrant(item, g);
+              item.blocker = g.thread;
+              item.chiaveBloccante = idRisorsa;
+              return true;
+            }
+
+            if(now >= deadline)
+              return false;
+
+            if(waiter == null)
+              waiter = graph.startWait(tipo, idRisorsa, item, utenti, deadline);
+
+            if(ticket == null)
+              item.queue.add(ticket = new Object());
+
+            long wait = deadline - now;
+            long nextExpiry = item.nextExpiry();
+            if(nextExpiry > 0)
+              wait = Math.min(wait, Math.max(1, nextExpiry - now));
+
+            item.wait(wait);
+          }
+        }
+        finally
+        {
+          // uscendo dalla coda il turno passa alla richiesta successiva
+          if(ticket != null && item.queue.remove(ticket))
+            item.notifyAll();
+        }
+      }
     }
     catch(InterruptedException ex)
     {
       throw new RuntimeException(ex);
     }
+    finally
+    {
+      endWait(waiter);
+      item.pins.decrementAndGet();
+    }
+  }
+
+  private LockWaiter endWait(LockWaiter waiter)
+  {
+    if(waiter != null)
+      graph.endWait(waiter);
+    return null;
+  }
+
+  /**
+   * Rilascio del blocco posseduto da uno degli utenti indicati.
+   * @return falso se nessuno degli utenti possiede un blocco
+   */
+  protected boolean release(LockResourceItem item, Collection<Integer> utenti)
+  {
+    synchronized(item)
+    {
+      LockGrant g = item.findGrant(utenti);
+      if(g == null)
+        return false;
+
+      removeGrant(item, g);
+      return true;
+    }
+  }
+
+  /**
+   * Rimuove un blocco e risveglia i thread in attesa.
+   * Da chiamare sincronizzati sull'item.
+   */
+  private void removeGrant(LockResourceItem item, LockGrant g)
+  {
+    graph.removeGrant(item, g);
+    item.sem.release();
+    item.notifyAll();
+  }
+
+  /**
+   * Rilascia i blocchi scaduti.
+   * Da chiamare sincronizzati sull'item.
+   */
+  private void expireLeases(String tipo, int idRisorsa, LockResourceItem item, long now)
+  {
+    if(item.nextExpiry() == 0)
+      return;
+
+    for(LockGrant g : new ArrayList<>(item.grants))
+    {
+      if(g.isExpired(now))
+      {
+        removeGrant(item, g);
+        log.warn("Blocco scaduto sulla risorsa " + tipo + "/" + idRisorsa + " utenti " + g.idUtenti + ": rilasciato.");
+      }
+    }
+  }
+
+  @Override
+  public void lockResource(String tipo, int idRisorsa, int idUtente)
+     throws LockException
+  {
+    acquire(tipo, idRisorsa, Collections.singleton(idUtente), false, -1, leaseMillis);
   }
 
   @Override
-  public synchronized void lockResources(String tipo, Set<Integer> idRisorse, int idUtente)
+  public void lockResources(String tipo, Set<Integer> idRisorse, int idUtente)
      throws LockException
   {
     for(Integer id : idRisorse)
@@ -128,34 +302,15 @@ public class CoreLockService extends AbstractCoreBaseService
   }
 
   @Override
-  public synchronized void lockResourceMulti(String tipo, int idRisorsa, Set<Integer> idUtenti)
+  public void lockResourceMulti(String tipo, int idRisorsa, Set<Integer> idUtenti)
      throws LockException
   {
     checkMultiAllowed(tipo);
-
-    try
-    {
-      LockResourceItem item = findCreateItem(tipo, idRisorsa);
-
-      if(item.verificaUtenti(idUtenti))
-      {
-        item.idUtenti.addAll(idUtenti);
-        return;
-      }
-
-      item.sem.acquire();
-      item.idUtenti.addAll(idUtenti);
-      item.blocker = Thread.currentThread();
-      item.chiaveBloccante = idRisorsa;
-    }
-    catch(InterruptedException ex)
-    {
-      throw new RuntimeException(ex);
-    }
+    acquire(tipo, idRisorsa, idUtenti, true, -1, leaseMillis);
   }
 
   @Override
-  public synchronized void lockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti)
+  public void lockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti)
      throws LockException
   {
     checkMultiAllowed(tipo);
@@ -165,23 +320,17 @@ public class CoreLockService extends AbstractCoreBaseService
   }
 
   @Override
-  public synchronized void unlockResource(String tipo, int idRisorsa, int idUtente)
+  public void unlockResource(String tipo, int idRisorsa, int idUtente)
      throws LockException
   {
     LockResourceItem item = getItem(tipo, idRisorsa);
 
-    if(item != null)
-    {
-      if(!item.idUtenti.contains(idUtente))
-        throw new ResourceArgumentException("User " + idUtente + " not own the resource " + tipo + "/" + idRisorsa);
-
-      item.sem.release();
-      item.idUtenti.remove(idUtente);
-    }
+    if(!release(item, Collections.singleton(idUtente)))
+      throw new ResourceArgumentException("User " + idUtente + " not own the resource " + tipo + "/" + idRisorsa);
   }
 
   @Override
-  public synchronized void unlockResources(String tipo, Set<Integer> idRisorse, int idUtente)
+  public void unlockResources(String tipo, Set<Integer> idRisorse, int idUtente)
      throws LockException
   {
     for(Integer id : idRisorse)
@@ -189,30 +338,18 @@ public class CoreLockService extends AbstractCoreBaseService
   }
 
   @Override
-  public synchronized void unlockResourceMulti(String tipo, int idRisorsa, Set<Integer> idUtenti)
+  public void unlockResourceMulti(String tipo, int idRisorsa, Set<Integer> idUtenti)
      throws LockException
   {
     checkMultiAllowed(tipo);
     LockResourceItem item = getItem(tipo, idRisorsa);
 
-    if(item != null)
-    {
-      for(Integer ute : idUtenti)
-      {
-        if(item.idUtenti.contains(ute))
-        {
-          item.sem.release();
-          item.idUtenti.clear();
-          return;
-        }
-      }
-
+    if(!release(item, idUtenti))
       throw new ResourceArgumentException("Users " + idUtenti + " not owns the resource " + tipo + "/" + idRisorsa);
-    }
   }
 
   @Override
-  public synchronized void unlockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti)
+  public void unlockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti)
      throws LockException
   {
     checkMultiAllowed(tipo);
@@ -221,34 +358,38 @@ public class CoreLockService extends AbstractCoreBaseService
   }
 
   @Override
-  public synchronized boolean tryLockResource(String tipo, int idRisorsa, int idUtente, long timeoutMillis)
+  public boolean tryLockResource(String tipo, int idRisorsa, int idUtente, long timeoutMillis)
      throws LockException
   {
-    try
-    {
-      LockResourceItem item = findCreateItem(tipo, idRisorsa);
+    return acquire(tipo, idRisorsa, Collections.singleton(idUtente), false, Math.max(0, timeoutMillis), leaseMillis);
+  }
 
-      if(item.verificaUtente(idUtente))
-        return true;
+  @Override
+  public boolean tryLockResource(String tipo, int idRisorsa, int idUtente, long timeoutMillis, long leaseMillis)
+     throws LockException
+  {
+    return acquire(tipo, idRisorsa, Collections.singleton(idUtente), false, Math.max(0, timeoutMillis), leaseMillis);
+  }
 
-      if(item.sem.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
-      {
-        item.idUtenti.add(idUtente);
-        item.blocker = Thread.currentThread();
-        item.chiaveBloccante = idRisorsa;
-        return true;
-      }
+  @Override
+  public boolean renewLock(String tipo, int idRisorsa, int idUtente, long leaseMillis)
+     throws LockException
+  {
+    LockResourceItem item = getItem(tipo, idRisorsa);
 
-      return false;
-    }
-    catch(InterruptedException ex)
+    synchronized(item)
     {
-      throw new RuntimeException(ex);
+      LockGrant g = item.findGrant(Collections.singleton(idUtente));
+      if(g == null)
+        return false;
+
+      graph.setExpires(g, leaseMillis > 0 ? System.currentTimeMillis() + leaseMillis : 0);
+      return true;
     }
   }
 
   @Override
-  public synchronized boolean tryLockResources(String tipo, Set<Integer> idRisorse, int idUtente, long timeoutMillis)
+  public boolean tryLockResources(String tipo, Set<Integer> idRisorse, int idUtente, long timeoutMillis)
      throws LockException
   {
     Set<Integer> acquisiti = new ArraySet<>();
@@ -272,39 +413,15 @@ public class CoreLockService extends AbstractCoreBaseService
   }
 
   @Override
-  public synchronized boolean tryLockResourceMulti(String tipo, int idRisorsa, Set<Integer> idUtenti, long timeoutMillis)
+  public boolean tryLockResourceMulti(String tipo, int idRisorsa, Set<Integer> idUtenti, long timeoutMillis)
      throws LockException
   {
     checkMultiAllowed(tipo);
-
-    try
-    {
-      LockResourceItem item = findCreateItem(tipo, idRisorsa);
-
-      if(item.verificaUtenti(idUtenti))
-      {
-        item.idUtenti.addAll(idUtenti);
-        return true;
-      }
-
-      if(item.sem.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
-      {
-        item.idUtenti.addAll(idUtenti);
-        item.blocker = Thread.currentThread();
-        item.chiaveBloccante = idRisorsa;
-        return true;
-      }
-
-      return false;
-    }
-    catch(InterruptedException ex)
-    {
-      throw new RuntimeException(ex);
-    }
+    return acquire(tipo, idRisorsa, idUtenti, true, Math.max(0, timeoutMillis), leaseMillis);
   }
 
   @Override
-  public synchronized boolean tryLockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti, long timeoutMillis)
+  public boolean tryLockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti, long timeoutMillis)
      throws LockException
   {
     checkMultiAllowed(tipo);
@@ -328,12 +445,26 @@ public class CoreLockService extends AbstractCoreBaseService
     return true;
   }
 
+  @Override
+  public List<LockResourceInfo> getLockInfo()
+  {
+    ArrayList<LockResourceInfo> rv = new ArrayList<>();
+    for(Map.Entry<String, LockResourceBlock> entry : mapResources.entrySet())
+    {
+      for(Map.Entry<Integer, LockResourceItem> entry1 : entry.getValue().lockMap.entrySet())
+      {
+        LockResourceInfo info = graph.snapshot(entry.getKey(), entry1.getKey(), entry1.getValue());
+        if(info != null)
+          rv.add(info);
+      }
+    }
+    return rv;
+  }
+
   private void checkMultiAllowed(String tipo)
      throws LockException
   {
-    LockResourceBlock block = mapResources.get(tipo);
-    if(block == null)
-      throw new LockException("Unknow '" + tipo + "' resource.");
+    LockResourceBlock block = getBlock(tipo);
 
     if(block.allowMulti == false)
       throw new LockException("The resource '" + tipo + "' don't allow multiple user lock.");
@@ -353,32 +484,36 @@ public class CoreLockService extends AbstractCoreBaseService
     return 0;
   }
 
-  private synchronized void rimuoviNonUsati()
+  /**
+   * Rilascia i blocchi scaduti e rimuove gli item senza blocchi attivi.
+   * La rimozione è atomica rispetto all'acquisizione (vedi pinItem).
+   */
+  private void rimuoviNonUsati()
   {
+    long now = System.currentTimeMillis();
     for(Map.Entry<String, LockResourceBlock> entry : mapResources.entrySet())
     {
       String tipo = entry.getKey();
       LockResourceBlock block = entry.getValue();
 
-      List<Integer> toRemove = new ArrayList<>();
-      for(Map.Entry<Integer, LockResourceItem> entry1 : block.lockMap.entrySet())
+      int size = block.lockMap.size();
+      for(Integer idRisorsa : block.lockMap.keySet())
       {
-        int idRisorsa = entry1.getKey();
-        LockResourceItem item = entry1.getValue();
-
-        if(item.sem.availablePermits() == block.maxLocks)
+        block.lockMap.computeIfPresent(idRisorsa, (k, item) ->
         {
-          // candidato alla rimozione: nessun blocco attivo per questo item
-          toRemove.add(idRisorsa);
-        }
+          synchronized(item)
+          {
+            expireLeases(tipo, k, item, now);
+
+            // candidato alla rimozione: nessun blocco attivo e nessun thread in attesa
+            return item.pins.get() == 0 && item.sem.availablePermits() == block.maxLocks ? null : item;
+          }
+        });
       }
 
-      if(!toRemove.isEmpty())
-      {
-        for(Integer i : toRemove)
-          block.lockMap.remove(i);
-        log.debug("Rimossi " + toRemove.size() + " risorse del tipo " + tipo);
-      }
+      int removed = size - block.lockMap.size();
+      if(removed > 0)
+        log.debug("Rimossi " + removed + " risorse del tipo " + tipo);
     }
   }
 }
@@ -17,6 +17,7 @@
  */
 package org.sirio6.services.contatori;
 
+import java.util.List;
 import java.util.Set;
 import org.apache.turbine.services.TurbineServices;
 
@@ -189,6 +190,39 @@ public class LOCK
     return getService().tryLockResource(tipo, idRisorsa, idUtente, timeoutMillis);
   }
 
+  /**
+   * Tenta il blocco di una risorsa con scadenza.
+   * Allo scadere il blocco viene rilasciato automaticamente
+   * (vedi renewLock per prolungarlo).
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param idUtente utente che vuole eseguire il blocco
+   * @param timeoutMillis tempo di attesa per il blocco in millisecondi
+   * @param leaseMillis durata del blocco in millisecondi (0 = nessuna scadenza)
+   * @return vero se il blocco ha avuto successo
+   * @throws LockException
+   */
+  public static boolean tryLockResource(String tipo, int idRisorsa, int idUtente, long timeoutMillis, long leaseMillis)
+     throws LockException
+  {
+    return getService().tryLockResource(tipo, idRisorsa, idUtente, timeoutMillis, leaseMillis);
+  }
+
+  /**
+   * Rinnova la scadenza di un blocco.
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param idUtente utente che possiede il blocco
+   * @param leaseMillis nuova durata del blocco da adesso in millisecondi (0 = nessuna scadenza)
+   * @return vero se l'utente possiede il blocco
+   * @throws LockException
+   */
+  public static boolean renewLock(String tipo, int idRisorsa, int idUtente, long leaseMillis)
+     throws LockException
+  {
+    return getService().renewLock(tipo, idRisorsa, idUtente, leaseMillis);
+  }
+
   /**
    * Tenta il blocco di più risorse contemporaneamente.
    * @param tipo tipo univoco della risorsa
@@ -236,6 +270,16 @@ public class LOCK
     return getService().tryLockResourcesMulti(tipo, idRisorse, idUtenti, timeoutMillis);
   }
 
+  /**
+   * Ritorna lo stato corrente delle risorse bloccate o attese:
+   * possessori, richieste in attesa e relativi tempi.
+   * @return informazioni per risorsa
+   */
+  public static List<LockResourceInfo> getLockInfo()
+  {
+    return getService().getLockInfo();
+  }
+
   /**
    * Richiede lo sblocco di una risorsa.
    * L'utente deve essere lo stesso che ha eseguito il blocco.
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2023 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.contatori;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Blocco concesso su una risorsa.
+ * Ogni blocco occupa un permesso della risorsa; gli utenti indicati
+ * (più di uno per i blocchi multi) possono eseguire lo sblocco.
+ *
+ * @author Nicola De Nisco
+ */
+public class LockGrant
+{
+  public final Set<Integer> idUtenti = ConcurrentHashMap.newKeySet();
+  public final Thread thread;
+  public final long acquired;
+  /** scadenza del blocco (0 = nessuna scadenza) */
+  public volatile long expires;
+
+  public LockGrant(Thread thread, long acquired, long expires)
+  {
+    this.thread = thread;
+    this.acquired = acquired;
+    this.expires = expires;
+  }
+
+  public boolean isExpired(long now)
+  {
+    return expires > 0 && now > expires;
+  }
+}
@@ -17,8 +17,7 @@
  */
 package org.sirio6.services.contatori;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Definizione di una risorsa condivisa.
@@ -29,5 +28,5 @@ public class LockResourceBlock
 {
   public int maxLocks;
   public boolean allowMulti;
-  public final Map<Integer, LockResourceItem> lockMap = new HashMap<>();
+  public final ConcurrentHashMap<Integer, LockResourceItem> lockMap = new ConcurrentHashMap<>();
 }
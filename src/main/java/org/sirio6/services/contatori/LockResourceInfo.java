@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2023 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.contatori;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fotografia dello stato di una risorsa bloccata:
+ * blocchi concessi (possessori) e richieste in attesa.
+ *
+ * @author Nicola De Nisco
+ */
+public class LockResourceInfo
+{
+  public final String tipo;
+  public final int idRisorsa;
+  public final List<LockGrant> holders = new ArrayList<>();
+  public final List<LockWaiter> waiters = new ArrayList<>();
+
+  public LockResourceInfo(String tipo, int idRisorsa)
+  {
+    this.tipo = tipo;
+    this.idRisorsa = idRisorsa;
+  }
+
+  @Override
+  public String toString()
+  {
+    long now = System.currentTimeMillis();
+    StringBuilder sb = new StringBuilder();
+    sb.append(tipo).append('/').append(idRisorsa);
+
+    for(LockGrant g : holders)
+    {
+      sb.append("\n  holder utenti ").append(g.idUtenti)
+         .append(" thread ").append(g.thread.getName())
+         .append(" blocco ").append(now - g.acquired).append(" ms");
+      if(g.expires > 0)
+        sb.append(" scadenza ").append(g.expires - now).append(" ms");
+    }
+
+    for(LockWaiter w : waiters)
+      sb.append("\n  waiter ").append(w);
+
+    return sb.toString();
+  }
+}
@@ -17,35 +17,84 @@
  */
 package org.sirio6.services.contatori;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Informazioni per risorsa.
+ * Le informazioni vanno modificate sincronizzando sull'item attraverso
+ * LockWaitGraph (vedi CoreLockService); blocchi e utenti possono essere
+ * letti anche senza lock dell'item dalla verifica degli stalli.
  *
  * @author Nicola De Nisco
  */
 public class LockResourceItem
 {
   public Semaphore sem;
-  public final Set<Integer> idUtenti = new HashSet<>();
+  public final Set<Integer> idUtenti = ConcurrentHashMap.newKeySet();
   public Thread blocker = null;
   public int chiaveBloccante;
+  /** blocchi concessi (uno per ogni permesso acquisito) */
+  public final List<LockGrant> grants = new CopyOnWriteArrayList<>();
+  /** richieste in attesa */
+  public final List<LockWaiter> waiters = new ArrayList<>();
+  /** richieste in coda per un permesso, servite in ordine di arrivo */
+  public final ArrayDeque<Object> queue = new ArrayDeque<>();
+  /** thread in attesa o in acquisizione: l'item non può essere rimosso */
+  public final AtomicInteger pins = new AtomicInteger();
 
   public boolean verificaUtente(int idUtente)
   {
     return idUtenti.contains(idUtente);
   }
 
-  public boolean verificaUtenti(Collection<Integer> idUtenti)
+  public boolean verificaUtenti(Collection<Integer> utenti)
   {
-    for(Integer i : idUtenti)
+    for(Integer i : utenti)
     {
       if(idUtenti.contains(i))
         return true;
     }
     return false;
   }
+
+  /**
+   * Ritorna il blocco posseduto da uno degli utenti indicati.
+   * @param utenti utenti da cercare
+   * @return il blocco oppure null
+   */
+  public LockGrant findGrant(Collection<Integer> utenti)
+  {
+    for(LockGrant g : grants)
+    {
+      for(Integer i : utenti)
+      {
+        if(g.idUtenti.contains(i))
+          return g;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Ritorna la prima scadenza fra i blocchi concessi.
+   * @return scadenza in millisecondi (0 = nessuna scadenza)
+   */
+  public long nextExpiry()
+  {
+    long rv = 0;
+    for(LockGrant g : grants)
+    {
+      if(g.expires > 0 && (rv == 0 || g.expires < rv))
+        rv = g.expires;
+    }
+    return rv;
+  }
 }
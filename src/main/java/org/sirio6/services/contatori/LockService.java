@@ -17,6 +17,8 @@
  */
 package org.sirio6.services.contatori;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import org.apache.turbine.services.Service;
 
@@ -151,6 +153,39 @@ public interface LockService extends Service
   public boolean tryLockResource(String tipo, int idRisorsa, int idUtente, long timeoutMillis)
      throws LockException;
 
+  /**
+   * Tenta il blocco di una risorsa con scadenza.
+   * Allo scadere il blocco viene rilasciato automaticamente
+   * (vedi renewLock per prolungarlo).
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param idUtente utente che vuole eseguire il blocco
+   * @param timeoutMillis tempo di attesa per il blocco in millisecondi
+   * @param leaseMillis durata del blocco in millisecondi (0 = nessuna scadenza)
+   * @return vero se il blocco ha avuto successo
+   * @throws LockException
+   */
+  public default boolean tryLockResource(String tipo, int idRisorsa, int idUtente, long timeoutMillis, long leaseMillis)
+     throws LockException
+  {
+    return tryLockResource(tipo, idRisorsa, idUtente, timeoutMillis);
+  }
+
+  /**
+   * Rinnova la scadenza di un blocco.
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param idUtente utente che possiede il blocco
+   * @param leaseMillis nuova durata del blocco da adesso in millisecondi (0 = nessuna scadenza)
+   * @return vero se l'utente possiede il blocco
+   * @throws LockException
+   */
+  public default boolean renewLock(String tipo, int idRisorsa, int idUtente, long leaseMillis)
+     throws LockException
+  {
+    return false;
+  }
+
   /**
    * Tenta il blocco di più risorse contemporaneamente.
    * @param tipo tipo univoco della risorsa
@@ -189,4 +224,13 @@ public interface LockService extends Service
   public boolean tryLockResourcesMulti(String tipo, Set<Integer> idRisorse, Set<Integer> idUtenti, long timeoutMillis)
      throws LockException;
 
+  /**
+   * Ritorna lo stato corrente delle risorse bloccate o attese:
+   * possessori, richieste in attesa e relativi tempi.
+   * @return informazioni per risorsa
+   */
+  public default List<LockResourceInfo> getLockInfo()
+  {
+    return Collections.emptyList();
+  }
 }
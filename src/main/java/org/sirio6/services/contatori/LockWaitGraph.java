@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2023 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.contatori;
+
+import java.util.*;
+
+/**
+ * Grafo delle attese fra thread del LockService.
+ * Un thread che attende una risorsa dipende dai thread che possono rilasciarne
+ * i blocchi: il thread che ha acquisito il blocco e gli altri thread in attesa
+ * per conto degli stessi utenti. Prima di mettersi in attesa (senza limite di tempo)
+ * una richiesta verifica che l'attesa possa sbloccarsi: se tutti questi thread sono
+ * a loro volta in attesa illimitata di risorse bloccate (direttamente o attraverso
+ * altri thread bloccati) dal thread richiedente, l'attesa non terminerebbe
+ * mai e viene sollevata DeadlockException.
+ * Un utente con un thread che non è in attesa non viene mai considerato bloccato.
+ * Blocchi con scadenza e attese con timeout interrompono la catena.
+ * Concessione e rilascio dei blocchi avvengono sotto il lock dell'item senza
+ * passare dal lock del grafo; solo le attese (registrazione, verifica, fine)
+ * sincronizzano sul grafo, che non acquisisce mai lock degli item.
+ *
+ * @author Nicola De Nisco
+ */
+public class LockWaitGraph
+{
+  /** attese in corso per utente */
+  private final Map<Integer, List<LockWaiter>> waitersByUser = new HashMap<>();
+  /** attesa in corso per thread */
+  private final Map<Thread, LockWaiter> waiterByThread = new HashMap<>();
+
+  /**
+   * Registra un blocco concesso.
+   * Da chiamare sincronizzati sull'item.
+   */
+  public void addGrant(LockResourceItem item, LockGrant g)
+  {
+    item.grants.add(g);
+    item.idUtenti.addAll(g.idUtenti);
+  }
+
+  /**
+   * Aggiunge utenti ad un blocco multi esistente.
+   * Da chiamare sincronizzati sull'item.
+   */
+  public void addUsers(LockResourceItem item, LockGrant g, Collection<Integer> utenti)
+  {
+    g.idUtenti.addAll(utenti);
+    item.idUtenti.addAll(utenti);
+  }
+
+  /**
+   * Rimuove un blocco concesso.
+   * Da chiamare sincronizzati sull'item.
+   */
+  public void removeGrant(LockResourceItem item, LockGrant g)
+  {
+    item.grants.remove(g);
+    item.idUtenti.removeAll(g.idUtenti);
+  }
+
+  /**
+   * Modifica la scadenza di un blocco.
+   * Da chiamare sincronizzati sull'item.
+   */
+  public void setExpires(LockGrant g, long expires)
+  {
+    g.expires = expires;
+  }
+
+  /**
+   * Registra una attesa dopo aver verificato che non produca uno stallo.
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param item item della risorsa
+   * @param utenti utenti richiedenti
+   * @param deadline termine dell'attesa (Long.MAX_VALUE = illimitata)
+   * @return attesa registrata (da rimuovere con endWait)
+   * @throws DeadlockException
+   */
+  public synchronized LockWaiter startWait(String tipo, int idRisorsa, LockResourceItem item,
+     Collection<Integer> utenti, long deadline)
+     throws DeadlockException
+  {
+    LockWaiter w = new LockWaiter(tipo, idRisorsa, item, utenti,
+       Thread.currentThread(), System.currentTimeMillis(), deadline);
+
+    if(w.isUnbounded() && stuckItem(item, w.thread, new HashSet<>()))
+      throw new DeadlockException(describe(w));
+
+    item.waiters.add(w);
+    waiterByThread.put(w.thread, w);
+    for(Integer u : w.idUtenti)
+      waitersByUser.computeIfAbsent(u, (k) -> new ArrayList<>()).add(w);
+
+    return w;
+  }
+
+  public synchronized void endWait(LockWaiter w)
+  {
+    w.item.waiters.remove(w);
+    waiterByThread.remove(w.thread, w);
+    for(Integer u : w.idUtenti)
+    {
+      List<LockWaiter> lsw = waitersByUser.get(u);
+      if(lsw != null)
+      {
+        lsw.remove(w);
+        if(lsw.isEmpty())
+          waitersByUser.remove(u);
+      }
+    }
+  }
+
+  /**
+   * Vero se nessun blocco della risorsa potrà mai essere rilasciato.
+   * Un ramo che può proseguire rende libera l'intera catena fino alla richiesta,
+   * quindi un nodo già visitato non va ricalcolato: ogni nodo viene visitato una volta.
+   * @param item risorsa
+   * @param richiedente thread che sta per mettersi in attesa
+   * @param visti item e thread già visitati
+   */
+  private boolean stuckItem(LockResourceItem item, Thread richiedente, Set<Object> visti)
+  {
+    if(!visti.add(item))
+      return true;
+
+    List<LockGrant> lsGrant = item.grants;
+    if(lsGrant.isEmpty())
+      return false;
+
+    for(LockGrant g : lsGrant)
+    {
+      if(g.expires > 0)
+        return false;
+
+      // il blocco può essere rilasciato dal thread che lo ha acquisito
+      // o da un altro thread per conto di uno dei suoi utenti
+      if(!stuckThread(g.thread, richiedente, visti))
+        return false;
+
+      for(Integer u : g.idUtenti)
+      {
+        for(LockWaiter w : waitersByUser.getOrDefault(u, Collections.emptyList()))
+        {
+          if(!stuckThread(w.thread, richiedente, visti))
+            return false;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Vero se il thread non potrà mai proseguire: è il richiedente
+   * oppure è in attesa illimitata di una risorsa bloccata per sempre.
+   * Un thread che non è in attesa può sempre rilasciare i suoi blocchi.
+   */
+  private boolean stuckThread(Thread t, Thread richiedente, Set<Object> visti)
+  {
+    if(t == richiedente)
+      return true;
+
+    if(!visti.add(t))
+      return true;
+
+    LockWaiter w = waiterByThread.get(t);
+    if(w == null || !w.isUnbounded())
+      return false;
+
+    return stuckItem(w.item, richiedente, visti);
+  }
+
+  /**
+   * Descrizione dello stallo: la richiesta, i possessori della risorsa
+   * e le risorse che questi stanno attendendo.
+   */
+  private String describe(LockWaiter w)
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Deadlock: utenti ").append(w.idUtenti).append(" (thread ").append(w.thread.getName())
+       .append(") richiedono ").append(w.tipo).append('/').append(w.idRisorsa)
+       .append(" posseduta da ").append(w.item.idUtenti);
+
+    Set<LockWaiter> visti = new HashSet<>();
+    Deque<Integer> daVisitare = new ArrayDeque<>(w.item.idUtenti);
+    Set<Integer> utentiVisti = new HashSet<>(w.idUtenti);
+    while(!daVisitare.isEmpty())
+    {
+      Integer u = daVisitare.poll();
+      if(!utentiVisti.add(u))
+        continue;
+
+      for(LockWaiter uw : waitersByUser.getOrDefault(u, Collections.emptyList()))
+      {
+        if(!visti.add(uw))
+          continue;
+
+        sb.append("; utenti ").append(uw.idUtenti).append(" (thread ").append(uw.thread.getName())
+           .append(") attendono da ").append(uw.getWaitMillis()).append(" ms ")
+           .append(uw.tipo).append('/').append(uw.idRisorsa)
+           .append(" posseduta da ").append(uw.item.idUtenti);
+        daVisitare.addAll(uw.item.idUtenti);
+      }
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Fotografia di una risorsa: copia di possessori e attese.
+   * @param tipo tipo univoco della risorsa
+   * @param idRisorsa identificativo univoco della risorsa
+   * @param item item della risorsa
+   * @return informazioni oppure null se la risorsa non è bloccata né attesa
+   */
+  public synchronized LockResourceInfo snapshot(String tipo, int idRisorsa, LockResourceItem item)
+  {
+    if(item.grants.isEmpty() && item.waiters.isEmpty())
+      return null;
+
+    LockResourceInfo info = new LockResourceInfo(tipo, idRisorsa);
+    for(LockGrant g : item.grants)
+    {
+      LockGrant cg = new LockGrant(g.thread, g.acquired, g.expires);
+      cg.idUtenti.addAll(g.idUtenti);
+      info.holders.add(cg);
+    }
+    info.waiters.addAll(item.waiters);
+    return info;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2023 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.contatori;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Richiesta di blocco in attesa su una risorsa.
+ *
+ * @author Nicola De Nisco
+ */
+public class LockWaiter
+{
+  public final String tipo;
+  public final int idRisorsa;
+  public final Set<Integer> idUtenti;
+  public final Thread thread;
+  public final long since;
+  /** termine dell'attesa (Long.MAX_VALUE = attesa illimitata) */
+  public final long deadline;
+  final LockResourceItem item;
+
+  public LockWaiter(String tipo, int idRisorsa, LockResourceItem item, Collection<Integer> idUtenti,
+     Thread thread, long since, long deadline)
+  {
+    this.tipo = tipo;
+    this.idRisorsa = idRisorsa;
+    this.item = item;
+    this.idUtenti = new HashSet<>(idUtenti);
+    this.thread = thread;
+    this.since = since;
+    this.deadline = deadline;
+  }
+
+  public boolean isUnbounded()
+  {
+    return deadline == Long.MAX_VALUE;
+  }
+
+  public long getWaitMillis()
+  {
+    return System.currentTimeMillis() - since;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "utenti " + idUtenti + " thread " + thread.getName() + " attesa " + getWaitMillis() + " ms";
+  }
+}
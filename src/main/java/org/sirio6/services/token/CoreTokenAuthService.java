@@ -46,6 +46,7 @@ import org.sirio6.services.AbstractCoreBaseService;
 import org.sirio6.services.bus.BUS;
 import org.sirio6.services.bus.BusContext;
 import org.sirio6.services.bus.BusMessages;
+import org.sirio6.services.bus.BusSubscription;
 import org.sirio6.services.bus.MessageBusListener;
 import org.sirio6.services.cache.CACHE;
 import org.sirio6.services.cache.CoreCachedObject;
@@ -140,7 +141,7 @@ public class CoreTokenAuthService extends AbstractCoreBaseService
     CACHE.setFlushPermitted(CSRF_CACHE_CLASS, false);
 
     // registrazione sul bus messaggi
-    BUS.registerEventListner(this);
+    BUS.registerEventListner(this, BusSubscription.of(BusMessages.USER_LOGON, BusMessages.USER_LOGOUT));
 
     // inizializza chiavi RSA per generazione token OAuth2
     inizializzaChiaviRSA();
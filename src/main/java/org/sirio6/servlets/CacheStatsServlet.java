@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.servlets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.sirio6.CoreConst;
+import org.sirio6.services.cache.CACHE;
+import org.sirio6.services.cache.CacheClassStats;
+import org.sirio6.services.cache.CacheStatistics;
+import org.sirio6.services.cache.TableRelationSharedCache;
+import org.sirio6.services.security.SEC;
+import org.sirio6.utils.FU;
+
+/**
+ * Servlet per la visualizzazione delle statistiche della cache globale.
+ * Ritorna una riga di testo per ogni classe di oggetti della cache;
+ * con il parametro format=json ritorna un array JSON.
+ * In entrambi i formati seguono i rapporti hit per tabella della cache
+ * condivisa delle relation cache (classe TableRelationSharedCache.L2_CLASS.NOMETABELLA).
+ * Accessibile solo agli amministratori.
+ *
+ * @author Nicola De Nisco
+ */
+public class CacheStatsServlet extends HttpServlet
+{
+  private final static Log log = LogFactory.getLog(CacheStatsServlet.class);
+
+  /**
+   * Processes requests for both HTTP <code>GET</code> and <code>POST</code> methods.
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  protected void processRequest(HttpServletRequest request, HttpServletResponse response)
+     throws ServletException, IOException
+  {
+    if(!SEC.isAdmin(request.getSession()))
+    {
+      response.sendError(HttpServletResponse.SC_FORBIDDEN);
+      return;
+    }
+
+    try
+    {
+      ArrayList<CacheClassStats> arStats = new ArrayList<>();
+      for(Iterator<String> itr = CACHE.classNames(); itr.hasNext();)
+      {
+        CacheClassStats cs = CACHE.getClassStats(itr.next());
+        if(cs != null)
+          arStats.add(cs);
+      }
+
+      if("json".equalsIgnoreCase(request.getParameter("format")))
+      {
+        FU.sendTextResponse(request, response, toJson(arStats).toString(),
+           "UTF-8", "application/json;charset=utf-8", null, false);
+      }
+      else
+      {
+        FU.sendTextResponse(request, response, toText(arStats),
+           "UTF-8", CoreConst.MIME_TXT + ";charset=utf-8", null, false);
+      }
+    }
+    catch(Exception ex)
+    {
+      log.error(ex.getMessage(), ex);
+      throw new ServletException(ex.getMessage(), ex);
+    }
+  }
+
+  protected JSONArray toJson(ArrayList<CacheClassStats> arStats)
+  {
+    JSONArray arr = new JSONArray();
+    for(CacheClassStats cs : arStats)
+    {
+      JSONObject histo = new JSONObject();
+      long[] counts = cs.getLoadHistogram();
+      for(int i = 0; i < counts.length; i++)
+        histo.put(bucketName(i), counts[i]);
+
+      JSONObject o = new JSONObject();
+      o.put("class", cs.getObjectClass());
+      o.put("entries", cs.getEntries());
+      o.put("bytes", cs.getBytes());
+      o.put("limit", cs.getLimit());
+      o.put("maxBytes", cs.getMaxBytes());
+      o.put("hits", cs.getHits());
+      o.put("misses", cs.getMisses());
+      o.put("hitRatio", cs.getHitRatio());
+      o.put("loads", cs.getLoads());
+      o.put("loadFailures", cs.getLoadFailures());
+      o.put("loadTimeAvgMillis", cs.getLoadTimeAvgMillis());
+      o.put("loadHistogram", histo);
+      o.put("evictionsExpired", cs.getEvictionsExpired());
+      o.put("evictionsLimit", cs.getEvictionsLimit());
+      o.put("evictionsFlush", cs.getEvictionsFlush());
+      arr.put(o);
+    }
+
+    // cache condivisa delle relation cache: rapporto hit per tabella
+    for(TableRelationSharedCache.TableStats ts : TableRelationSharedCache.getAllStats())
+    {
+      JSONObject o = new JSONObject();
+      o.put("class", TableRelationSharedCache.L2_CLASS + "." + ts.getTableName());
+      o.put("table", ts.getTableName());
+      o.put("hits", ts.getHits());
+      o.put("misses", ts.getMisses());
+      o.put("hitRatio", ts.getHitRatio());
+      arr.put(o);
+    }
+
+    return arr;
+  }
+
+  protected String toText(ArrayList<CacheClassStats> arStats)
+  {
+    StringBuilder sb = new StringBuilder();
+    for(CacheClassStats cs : arStats)
+    {
+      sb.append(String.format(Locale.US,
+         "%s entries=%d bytes=%d limit=%d maxBytes=%d hits=%d misses=%d hitRatio=%.3f"
+         + " loads=%d loadFailures=%d loadAvgMs=%.2f expired=%d evictLimit=%d flush=%d",
+         cs.getObjectClass(), cs.getEntries(), cs.getBytes(), cs.getLimit(), cs.getMaxBytes(),
+         cs.getHits(), cs.getMisses(), cs.getHitRatio(),
+         cs.getLoads(), cs.getLoadFailures(), cs.getLoadTimeAvgMillis(),
+         cs.getEvictionsExpired(), cs.getEvictionsLimit(), cs.getEvictionsFlush()));
+
+      long[] counts = cs.getLoadHistogram();
+      for(int i = 0; i < counts.length; i++)
+        sb.append(' ').append(bucketName(i)).append('=').append(counts[i]);
+
+      sb.append('\n');
+    }
+
+    // cache condivisa delle relation cache: rapporto hit per tabella
+    for(TableRelationSharedCache.TableStats ts : TableRelationSharedCache.getAllStats())
+      sb.append(TableRelationSharedCache.L2_CLASS).append('.').append(ts).append('\n');
+
+    return sb.toString();
+  }
+
+  private String bucketName(int i)
+  {
+    long[] bounds = CacheStatistics.LOAD_BUCKETS_MILLIS;
+    return i < bounds.length ? "le" + bounds[i] + "ms" : "gt" + bounds[bounds.length - 1] + "ms";
+  }
+
+  // <editor-fold defaultstate="collapsed" desc="HttpServlet methods. Click on the + sign on the left to edit the code.">
+  /**
+   * Handles the HTTP <code>GET</code> method.
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void doGet(HttpServletRequest request, HttpServletResponse response)
+     throws ServletException, IOException
+  {
+    processRequest(request, response);
+  }
+
+  /**
+   * Handles the HTTP <code>POST</code> method.
+   * @param request servlet request
+   * @param response servlet response
+   * @throws ServletException if a servlet-specific error occurs
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  protected void doPost(HttpServletRequest request, HttpServletResponse response)
+     throws ServletException, IOException
+  {
+    processRequest(request, response);
+  }
+
+  /**
+   * Returns a short description of the servlet.
+   * @return a String containing servlet description
+   */
+  @Override
+  public String getServletInfo()
+  {
+    return "Statistiche cache globale";
+  }// </editor-fold>
+
+}
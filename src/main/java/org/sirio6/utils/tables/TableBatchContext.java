@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.utils.tables;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.torque.om.Persistent;
+import org.sirio6.services.cache.TableRelationCache5;
+
+/**
+ * Contesto dei caricatori a lotti legato alla richiesta.
+ * Il contesto viene aperto all'inizio della richiesta (vedi TableBatchValve)
+ * o della fase di rendering e chiuso al termine; durante la sua vita
+ * tutte le richieste di chiavi per la stessa classe vengono raccolte
+ * in un unico TableBatchLoader.
+ * <pre>
+ * try (TableBatchContext bc = TableBatchContext.open())
+ * {
+ *   ...
+ *   TableBatchContext.loader(AnAnagrafiche.class).request(acc.getIdAnagrafiche());
+ *   ...
+ *   AnAnagrafiche ana = TableBatchContext.loader(AnAnagrafiche.class).get(acc.getIdAnagrafiche());
+ * }
+ * </pre>
+ * Senza un contesto aperto loader() ritorna ogni volta un nuovo caricatore.
+ * Con un contesto aperto anche le TableRelationCache5 leggono le chiavi primarie
+ * attraverso il caricatore della tabella (vedi relationLoader()): le relation cache
+ * create per le varie liste della richiesta non rileggono i record già letti.
+ * I record restano memorizzati per tutta la vita del contesto e non vedono
+ * modifiche successive: il contesto va aperto solo per richieste (o fasi)
+ * in sola lettura. Le relation cache caricate con una connessione esplicita
+ * leggono sempre dal db.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableBatchContext implements AutoCloseable
+{
+  private static final ThreadLocal<TableBatchContext> current = new ThreadLocal<>();
+  private final Map<Class, TableBatchLoader> loaders = new HashMap<>();
+  /** caricatori per nome tabella (condivisi con le relation cache) */
+  private final Map<String, TableBatchLoader> byTable = new HashMap<>();
+  private final TableBatchContext previous;
+
+  private TableBatchContext(TableBatchContext previous)
+  {
+    this.previous = previous;
+  }
+
+  /**
+   * Apre un nuovo contesto per il thread corrente.
+   * Un eventuale contesto già aperto viene ripristinato alla chiusura.
+   * @return il contesto aperto
+   */
+  public static TableBatchContext open()
+  {
+    TableBatchContext bc = new TableBatchContext(current.get());
+    current.set(bc);
+    return bc;
+  }
+
+  /**
+   * Ritorna il contesto aperto per il thread corrente.
+   * @return contesto oppure null
+   */
+  public static TableBatchContext current()
+  {
+    return current.get();
+  }
+
+  /**
+   * Ritorna il caricatore della classe indicata nel contesto corrente.
+   * @param <T> tipo degli oggetti recuperati
+   * @param cls classe degli oggetti recuperati (ES: AnAnagrafiche.class)
+   * @return caricatore
+   */
+  public static <T extends Persistent> TableBatchLoader<T> loader(Class<T> cls)
+  {
+    TableBatchContext bc = current.get();
+    return bc == null ? new TableBatchLoader<>(cls) : bc.getLoader(cls);
+  }
+
+  /**
+   * Ritorna il caricatore della classe indicata.
+   * @param <T> tipo degli oggetti recuperati
+   * @param cls classe degli oggetti recuperati (ES: AnAnagrafiche.class)
+   * @return caricatore
+   */
+  public <T extends Persistent> TableBatchLoader<T> getLoader(Class<T> cls)
+  {
+    return loaders.computeIfAbsent(cls, (k) -> new TableBatchLoader<>(cls));
+  }
+
+  /**
+   * Ritorna il caricatore da usare per le letture da chiave primaria
+   * della relation cache indicata.
+   * @param rc relation cache
+   * @return caricatore della tabella oppure null se nessun contesto è aperto
+   */
+  public static TableBatchLoader relationLoader(TableRelationCache5 rc)
+  {
+    TableBatchContext bc = current.get();
+    if(bc == null)
+      return null;
+
+    return bc.byTable.computeIfAbsent(rc.getTargetTableName().toUpperCase(),
+       (k) -> TableBatchLoader.ofPeer(rc.getTargetPeerClass()));
+  }
+
+  /**
+   * Legge dal db le chiavi in attesa di tutti i caricatori.
+   * @throws Exception
+   */
+  public void dispatchAll()
+     throws Exception
+  {
+    for(TableBatchLoader tbl : loaders.values())
+      tbl.dispatch();
+    for(TableBatchLoader tbl : byTable.values())
+      tbl.dispatch();
+  }
+
+  /**
+   * Ritorna il numero complessivo di letture eseguite dai caricatori.
+   * @return numero di query
+   */
+  public int getDispatchCount()
+  {
+    int rv = 0;
+    for(TableBatchLoader tbl : loaders.values())
+      rv += tbl.getDispatchCount();
+    for(TableBatchLoader tbl : byTable.values())
+      rv += tbl.getDispatchCount();
+    return rv;
+  }
+
+  @Override
+  public void close()
+  {
+    loaders.clear();
+    byTable.clear();
+    if(current.get() == this)
+    {
+      if(previous == null)
+        current.remove();
+      else
+        current.set(previous);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2020 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.utils.tables;
+
+import java.sql.Connection;
+import java.util.*;
+import java.util.function.Function;
+import org.apache.torque.om.ObjectKey;
+import org.apache.torque.om.Persistent;
+import org.rigel5.db.torque.PeerTransactAgent;
+import org.sirio6.services.cache.TableRelationCache5;
+import org.sirio6.services.cache.TableRelationCache5s;
+
+/**
+ * Caricatore a lotti dei record referenziati da chiave esterna.
+ * Durante la preparazione dei dati i chiamanti registrano le chiavi
+ * che serviranno (request); alla prima richiesta di un valore (get)
+ * tutte le chiavi in attesa vengono lette con un'unica query
+ * attraverso TableRelationCache5. Le chiavi richieste con get() e non
+ * ancora registrate vengono lette insieme a quelle in attesa.
+ * I record letti rimangono disponibili per tutta la vita del caricatore
+ * (normalmente la richiesta: vedi TableBatchContext); con un contesto aperto
+ * anche le TableRelationCache5 della stessa tabella leggono attraverso il caricatore.
+ * Non è thread safe: va usato dal thread della richiesta.
+ *
+ * @author Nicola De Nisco
+ * @param <T> tipo degli oggetti recuperati
+ */
+public class TableBatchLoader<T extends Persistent>
+{
+  /**
+   * Lettura dal db di un lotto di chiavi.
+   * @param <T> tipo degli oggetti recuperati
+   */
+  @FunctionalInterface
+  public interface BatchFetcher<T>
+  {
+    /**
+     * Legge i record con le chiavi indicate.
+     * @param keys chiavi primarie (senza duplicati)
+     * @param con connessione al db
+     * @return record letti (quelli inesistenti sono assenti)
+     * @throws Exception
+     */
+    List<T> fetch(Collection<Integer> keys, Connection con)
+       throws Exception;
+  }
+
+  private final BatchFetcher<T> fetcher;
+  private final HashMap<Integer, T> loaded = new HashMap<>();
+  private final LinkedHashSet<Integer> pending = new LinkedHashSet<>();
+  private final HashSet<Integer> dispatched = new HashSet<>();
+  private int dispatchCount;
+
+  /**
+   * Costruttore.
+   * @param cls classe degli oggetti recuperati (ES: AnAnagrafiche.class)
+   */
+  public TableBatchLoader(Class<T> cls)
+  {
+    this((keys, con) -> load(new TableRelationCache5s<>(cls), keys, con));
+  }
+
+  /**
+   * Costruttore con lettura personalizzata.
+   * @param fetcher lettura dal db di un lotto di chiavi
+   */
+  public TableBatchLoader(BatchFetcher<T> fetcher)
+  {
+    this.fetcher = fetcher;
+  }
+
+  /**
+   * Caricatore per la tabella di una classe peer.
+   * @param peerClass classe peer (ES: AnAnagrafichePeer.class)
+   * @return caricatore
+   */
+  public static TableBatchLoader<Persistent> ofPeer(Class peerClass)
+  {
+    return new TableBatchLoader<>((keys, con) -> load(new TableRelationCache5<>(peerClass), keys, con));
+  }
+
+  private static <T extends Persistent> List<T> load(TableRelationCache5<T, Persistent> rc,
+     Collection<Integer> keys, Connection con)
+     throws Exception
+  {
+    // la cache usata dal caricatore legge direttamente dal db (o dalla cache condivisa)
+    rc.setRequestBatching(false);
+    rc.loadDataFromPrimaryKeys(keys, null, con);
+    return rc;
+  }
+
+  /**
+   * Registra una chiave da caricare.
+   * @param pk chiave primaria (null viene ignorato)
+   */
+  public void request(Integer pk)
+  {
+    if(pk != null && !dispatched.contains(pk))
+      pending.add(pk);
+  }
+
+  /**
+   * Registra un insieme di chiavi da caricare.
+   * @param primaryKeys chiavi primarie
+   */
+  public void requestAll(Collection<Integer> primaryKeys)
+  {
+    for(Integer pk : primaryKeys)
+      request(pk);
+  }
+
+  /**
+   * Registra le chiavi estratte da una lista di oggetti.
+   * @param <O> tipo degli oggetti da ispezionare
+   * @param lsObj lista di oggetti
+   * @param fnKey funzione che ritorna la chiave esterna dell'oggetto
+   */
+  public <O> void requestAll(Collection<O> lsObj, Function<O, Integer> fnKey)
+  {
+    for(O obj : lsObj)
+      request(fnKey.apply(obj));
+  }
+
+  /**
+   * Recupera il record richiesto.
+   * Se non ancora caricato vengono lette tutte le chiavi in attesa.
+   * @param pk chiave primaria
+   * @return oggetto oppure null se inesistente
+   * @throws Exception
+   */
+  public T get(Integer pk)
+     throws Exception
+  {
+    if(pk == null)
+      return null;
+
+    if(!dispatched.contains(pk))
+    {
+      pending.add(pk);
+      dispatch();
+    }
+
+    return loaded.get(pk);
+  }
+
+  /**
+   * Recupera i record richiesti.
+   * Le chiavi non ancora caricate vengono lette insieme a quelle in attesa.
+   * @param primaryKeys chiavi primarie
+   * @param con eventuale connessione al db (può essere null)
+   * @return record esistenti
+   * @throws Exception
+   */
+  public List<T> fetch(Collection<Integer> primaryKeys, Connection con)
+     throws Exception
+  {
+    requestAll(primaryKeys);
+    dispatch(con);
+
+    ArrayList<T> rv = new ArrayList<>(primaryKeys.size());
+    for(Integer pk : primaryKeys)
+    {
+      T obj = pk == null ? null : loaded.get(pk);
+      if(obj != null)
+        rv.add(obj);
+    }
+    return rv;
+  }
+
+  /**
+   * Legge dal db tutte le chiavi in attesa con un'unica query.
+   * @throws Exception
+   */
+  public void dispatch()
+     throws Exception
+  {
+    dispatch(null);
+  }
+
+  /**
+   * Legge dal db tutte le chiavi in attesa con un'unica query.
+   * @param con eventuale connessione al db (può essere null)
+   * @throws Exception
+   */
+  public void dispatch(Connection con)
+     throws Exception
+  {
+    if(pending.isEmpty())
+      return;
+
+    ArrayList<Integer> keys = new ArrayList<>(pending);
+    pending.clear();
+    dispatched.addAll(keys);
+    dispatchCount++;
+
+    List<T> lsValues;
+    if(con != null)
+      lsValues = fetcher.fetch(keys, con);
+    else
+      lsValues = PeerTransactAgent.executeReturnReadonly((c) -> fetcher.fetch(keys, c));
+
+    for(T obj : lsValues)
+    {
+      Object pk = obj.getPrimaryKey();
+      if(pk instanceof ObjectKey)
+        pk = ((ObjectKey) pk).getValue();
+      if(pk instanceof Number)
+        loaded.put(((Number) pk).intValue(), obj);
+    }
+  }
+
+  /**
+   * Ritorna il numero di letture eseguite sul db.
+   * @return numero di query (o di gruppi di query per liste molto lunghe)
+   */
+  public int getDispatchCount()
+  {
+    return dispatchCount;
+  }
+
+  /**
+   * Ritorna il numero di chiavi in attesa di caricamento.
+   * @return numero di chiavi
+   */
+  public int getPendingCount()
+  {
+    return pending.size();
+  }
+
+  /**
+   * Ritorna il numero di record caricati.
+   * @return numero di record
+   */
+  public int getLoadedCount()
+  {
+    return loaded.size();
+  }
+}
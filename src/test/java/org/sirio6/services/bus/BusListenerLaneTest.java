@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class BusListenerLaneTest
+{
+  public BusListenerLaneTest()
+  {
+  }
+
+  private void checkFifo(boolean useVirtualThreads)
+     throws Exception
+  {
+    final int count = 500;
+    BusListenerLane lane = new BusListenerLane("fifo", 1, count, useVirtualThreads);
+    List<Integer> lsOrder = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch latch = new CountDownLatch(count);
+
+    for(int i = 0; i < count; i++)
+    {
+      final int n = i;
+      assertTrue(lane.offer(() ->
+      {
+        lsOrder.add(n);
+        latch.countDown();
+      }));
+    }
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+    for(int i = 0; i < count; i++)
+      assertEquals(i, (int) lsOrder.get(i));
+
+    lane.shutdown();
+  }
+
+  /**
+   * Test of offer method, of class BusListenerLane: ordine di elaborazione.
+   */
+  @org.junit.Test
+  public void testFifo()
+     throws Exception
+  {
+    System.out.println("fifo");
+    checkFifo(false);
+    checkFifo(true);
+  }
+
+  /**
+   * Test of offer method, of class BusListenerLane: corsia satura.
+   */
+  @org.junit.Test
+  public void testFull()
+     throws Exception
+  {
+    System.out.println("full");
+    BusListenerLane lane = new BusListenerLane("full", 1, 2, true, 2);
+    CountDownLatch release = new CountDownLatch(1);
+    List<Integer> lsOrder = Collections.synchronizedList(new ArrayList<>());
+
+    for(int i = 0; i < 5; i++)
+    {
+      final int n = i;
+      assertTrue(lane.offer(() ->
+      {
+        try
+        {
+          release.await();
+        }
+        catch(InterruptedException ex)
+        {
+        }
+        lsOrder.add(n);
+      }));
+    }
+
+    // corsia satura: gli ultimi due messaggi attendono nel backlog
+    assertEquals(5, lane.getInFlight());
+    assertEquals(2, lane.getBacklog());
+
+    // backlog pieno: offer rifiuta subito
+    long start = System.currentTimeMillis();
+    assertFalse(lane.offer(() ->
+    {
+    }));
+    assertTrue(System.currentTimeMillis() - start < 1000);
+
+    // put attende un posto libero
+    CountDownLatch put = new CountDownLatch(1);
+    Thread t = new Thread(() ->
+    {
+      try
+      {
+        lane.put(() -> lsOrder.add(5));
+        put.countDown();
+      }
+      catch(InterruptedException ex)
+      {
+      }
+    });
+    t.start();
+    assertFalse(put.await(200, TimeUnit.MILLISECONDS));
+
+    release.countDown();
+    assertTrue(put.await(10, TimeUnit.SECONDS));
+    for(int i = 0; i < 100 && lane.getInFlight() > 0; i++)
+      Thread.sleep(50);
+    assertEquals(0, lane.getInFlight());
+
+    // nessun messaggio perso, in ordine di arrivo
+    assertEquals(6, lsOrder.size());
+    for(int i = 0; i < 6; i++)
+      assertEquals(i, (int) lsOrder.get(i));
+
+    lane.shutdown();
+  }
+
+  /**
+   * Scarto a corsia piena solo per gli ascoltatori che lo richiedono
+   * e mai per i messaggi di invalidazione.
+   */
+  @org.junit.Test
+  public void testShedOnFull()
+     throws Exception
+  {
+    System.out.println("shedOnFull");
+    CoreMessageBus2 bus = new CoreMessageBus2();
+    bus.listenerIsolation = true;
+    bus.listenerShedOnFull.add("shed");
+    bus.listenerLanes.put("shed", new BusListenerLane("shed", 1, 0, true, 1));
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger received = new AtomicInteger();
+    bus.registerEventListner("shed", (msgID, originator, context) ->
+    {
+      release.await();
+      received.incrementAndGet();
+      return 0;
+    });
+
+    // uno in elaborazione, uno nel backlog, il terzo scartato
+    for(int i = 0; i < 3; i++)
+      bus.dispatch(1, this, null, true);
+    assertEquals(1, bus.getListenerStats("shed").getShed());
+
+    // l'invalidazione non viene scartata: il thread di spedizione attende un posto
+    Thread t = new Thread(() -> bus.dispatch(BusMessages.TABLE_MODIFIED, this, null, true));
+    t.start();
+    Thread.sleep(200);
+    assertTrue(t.isAlive());
+
+    release.countDown();
+    t.join(10000);
+    assertFalse(t.isAlive());
+    for(int i = 0; i < 100 && received.get() < 3; i++)
+      Thread.sleep(50);
+    assertEquals(3, received.get());
+    assertEquals(1, bus.getListenerStats("shed").getShed());
+
+    bus.removeEventListner("shed");
+  }
+
+  private long[] runBus(boolean isolation, int listeners, int messages, long sleepMillis)
+     throws Exception
+  {
+    CoreMessageBus2 bus = new CoreMessageBus2();
+    bus.listenerIsolation = isolation;
+    CountDownLatch latch = new CountDownLatch(listeners * messages);
+
+    for(int i = 0; i < listeners; i++)
+    {
+      String name = "slow" + i;
+      bus.listenerLanes.put(name, new BusListenerLane(name, 1, messages, true));
+      bus.registerEventListner(name, (msgID, originator, context) ->
+      {
+        Thread.sleep(sleepMillis);
+        latch.countDown();
+        return 0;
+      });
+    }
+
+    // il thread del test fa da thread di spedizione del bus
+    long start = System.currentTimeMillis();
+    for(int i = 0; i < messages; i++)
+      bus.dispatch(1, this, null, true);
+    long dispatched = System.currentTimeMillis() - start;
+
+    assertTrue(latch.await(30, TimeUnit.SECONDS));
+    long elapsed = System.currentTimeMillis() - start;
+
+    System.out.printf("isolation=%s dispatch=%dms total=%dms%n", isolation, dispatched, elapsed);
+
+    for(int i = 0; i < listeners; i++)
+      bus.removeEventListner("slow" + i);
+
+    return new long[]
+    {
+      dispatched, elapsed
+    };
+  }
+
+  /**
+   * Confronto fra spedizione a thread singolo e corsie isolate con ascoltatori lenti.
+   */
+  @org.junit.Test
+  public void testThroughput()
+     throws Exception
+  {
+    System.out.println("throughput");
+    final int listeners = 4, messages = 10;
+    final long sleepMillis = 20;
+
+    long[] serial = runBus(false, listeners, messages, sleepMillis);
+    long[] isolated = runBus(true, listeners, messages, sleepMillis);
+
+    // a thread singolo il tempo è la somma di tutte le elaborazioni
+    assertTrue(serial[1] >= listeners * messages * sleepMillis);
+
+    // con le corsie il thread di spedizione non attende gli ascoltatori
+    // e gli ascoltatori lenti elaborano in parallelo
+    assertTrue(isolated[0] < serial[1] / 2);
+    assertTrue(isolated[1] < serial[1]);
+  }
+}
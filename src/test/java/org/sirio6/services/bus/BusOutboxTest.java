@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.awt.Point;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.*;
+
+/**
+ * Test dell'outbox persistente su database H2 in memoria.
+ *
+ * @author Nicola De Nisco
+ */
+public class BusOutboxTest
+{
+  private static final String TABLE = "BUS_OUTBOX";
+
+  private Connection con;
+  private final List<BusOutbox.Entry> committed = new ArrayList<>();
+
+  public BusOutboxTest()
+  {
+  }
+
+  @org.junit.Before
+  public void setUp()
+     throws Exception
+  {
+    committed.clear();
+    con = DriverManager.getConnection("jdbc:h2:mem:busoutbox;DB_CLOSE_DELAY=-1");
+    try(Statement st = con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE + " ("
+         + " outbox_id VARCHAR(36) NOT NULL PRIMARY KEY,"
+         + " msg_id INTEGER NOT NULL,"
+         + " originator VARCHAR(255),"
+         + " context VARBINARY,"
+         + " created TIMESTAMP NOT NULL)");
+      st.executeUpdate("DELETE FROM " + TABLE);
+    }
+    con.setAutoCommit(false);
+  }
+
+  @org.junit.After
+  public void tearDown()
+     throws Exception
+  {
+    con.close();
+  }
+
+  private BusOutbox newOutbox()
+  {
+    return new BusOutbox(TABLE, (lsEntry) -> committed.addAll(lsEntry));
+  }
+
+  private static MessageBus.QueueInfo message(int msgID, BusContext context)
+  {
+    MessageBus.QueueInfo qi = new MessageBus.QueueInfo();
+    qi.msgID = msgID;
+    qi.originator = BusOutboxTest.class;
+    qi.context = context;
+    return qi;
+  }
+
+  private int countRows()
+     throws Exception
+  {
+    try(Statement st = con.createStatement();
+       ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM " + TABLE))
+    {
+      rs.next();
+      return rs.getInt(1);
+    }
+  }
+
+  /**
+   * Test of afterCommit method, of class BusOutbox.
+   */
+  @org.junit.Test
+  public void testCommit()
+     throws Exception
+  {
+    System.out.println("commit");
+    BusOutbox outbox = newOutbox();
+
+    outbox.record(con, message(1, null));
+    outbox.record(con, message(2, null));
+    assertEquals(1, outbox.getPendingTransactions());
+    assertTrue(committed.isEmpty());
+
+    con.commit();
+    outbox.afterCommit(con);
+
+    assertEquals(0, outbox.getPendingTransactions());
+    assertEquals(2, committed.size());
+    assertEquals(1, committed.get(0).qi.msgID);
+    assertEquals(2, committed.get(1).qi.msgID);
+    assertEquals(2, countRows());
+
+    outbox.delete(committed, con);
+    con.commit();
+    assertEquals(0, countRows());
+  }
+
+  /**
+   * Test of afterRollback method, of class BusOutbox.
+   */
+  @org.junit.Test
+  public void testRollback()
+     throws Exception
+  {
+    System.out.println("rollback");
+    BusOutbox outbox = newOutbox();
+
+    outbox.record(con, message(1, null));
+    con.rollback();
+    outbox.afterRollback(con);
+
+    assertEquals(0, outbox.getPendingTransactions());
+    assertTrue(committed.isEmpty());
+    assertEquals(0, countRows());
+  }
+
+  /**
+   * Test of load method, of class BusOutbox.
+   */
+  @org.junit.Test
+  public void testRecover()
+     throws Exception
+  {
+    System.out.println("recover");
+    BusOutbox before = newOutbox();
+    before.record(con, message(1, new BusContext("chiave", "valore", "lista", new ArrayList<>(Arrays.asList(1, 2)))));
+    con.commit();
+
+    Thread.sleep(10);
+
+    // riavvio: i messaggi registrati dopo la creazione non vanno recuperati
+    BusOutbox restarted = newOutbox();
+    restarted.record(con, message(2, null));
+    con.commit();
+    restarted.afterCommit(con);
+
+    List<BusOutbox.Entry> lsEntry = restarted.load(con);
+    assertEquals(1, lsEntry.size());
+
+    MessageBus.QueueInfo qi = lsEntry.get(0).qi;
+    assertEquals(1, qi.msgID);
+    assertEquals(BusOutboxTest.class.getName(), qi.originator);
+    assertNotNull(qi.context);
+    assertEquals("valore", qi.context.get("chiave"));
+    assertEquals(Arrays.asList(1, 2), qi.context.get("lista"));
+
+    assertEquals(2, restarted.load(con, null).size());
+  }
+
+  /**
+   * Test of the context filter, of class BusOutbox.
+   */
+  @org.junit.Test
+  public void testContextFilter()
+     throws Exception
+  {
+    System.out.println("contextFilter");
+    BusOutbox before = newOutbox();
+    before.record(con, message(1, new BusContext("point", new Point(1, 2))));
+    con.commit();
+
+    Thread.sleep(10);
+
+    BusOutbox restarted = newOutbox();
+    List<BusOutbox.Entry> lsEntry = restarted.load(con);
+    assertEquals(1, lsEntry.size());
+    assertNull(lsEntry.get(0).qi.context);
+
+    // java.awt.Point non è ammesso dal filtro di default
+    restarted.setContextFilter(BusOutbox.DEFAULT_CONTEXT_FILTER.replace("!*", "java.awt.Point;!*"));
+    lsEntry = restarted.load(con);
+    assertEquals(1, lsEntry.size());
+    assertEquals(new Point(1, 2), lsEntry.get(0).qi.context.get("point"));
+  }
+
+  /**
+   * Test of retryOutbox method, of class CoreMessageBus2: coda piena.
+   */
+  @org.junit.Test
+  public void testRetryFullQueue()
+     throws Exception
+  {
+    System.out.println("retryFullQueue");
+    CoreMessageBus2 bus = new CoreMessageBus2();
+    bus.maxQueueSize = 1;
+    bus.outboxRetryMillis = 0;
+
+    bus.enqueue(message(1, null));
+    bus.enqueue(message(2, null));
+    assertEquals(1, bus.queue.size());
+    assertEquals(1, bus.getRejectedCount());
+
+    BusOutbox.Entry e = new BusOutbox.Entry(null, message(3, null));
+    CoreMessageBus2.OutboxBatch batch = new CoreMessageBus2.OutboxBatch(Arrays.asList(e));
+    batch.partitionKey = CoreMessageBus2.OutboxBatch.class;
+    bus.retryOutbox(batch);
+
+    // il blocco ritentato rientra in coda anche se la coda è piena
+    CoreMessageBus2.DelayedMessage dm = bus.delayQueue.poll(5, TimeUnit.SECONDS);
+    assertNotNull(dm);
+    assertSame(batch, dm.qi);
+    bus.enqueue(dm.qi);
+    assertEquals(2, bus.queue.size());
+    assertEquals(1, bus.getRejectedCount());
+  }
+}
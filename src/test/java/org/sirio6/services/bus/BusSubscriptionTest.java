@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.bus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class BusSubscriptionTest
+{
+  private final MessageBusListener listener = (msgID, originator, context) -> 0;
+
+  public BusSubscriptionTest()
+  {
+  }
+
+  private static boolean contains(List<Map.Entry<String, MessageBusListener>> lsListeners, String name)
+  {
+    return lsListeners.stream().anyMatch((e) -> e.getKey().equals(name));
+  }
+
+  /**
+   * Test of matches method, of class BusSubscription.
+   */
+  @org.junit.Test
+  public void testMatches()
+  {
+    System.out.println("matches");
+    BusSubscription sub = BusSubscription.of(30, 10, 20).range(200, 100).range(500, 500);
+
+    assertTrue(sub.matches(10));
+    assertTrue(sub.matches(20));
+    assertTrue(sub.matches(30));
+    assertFalse(sub.matches(15));
+    assertTrue(sub.matches(100));
+    assertTrue(sub.matches(150));
+    assertTrue(sub.matches(200));
+    assertFalse(sub.matches(99));
+    assertFalse(sub.matches(201));
+    assertTrue(sub.matches(500));
+    assertFalse(sub.matches(501));
+
+    sub.add(15);
+    assertTrue(sub.matches(15));
+    assertFalse(new BusSubscription().matches(0));
+  }
+
+  /**
+   * Test of freeze method, of class BusSubscription.
+   */
+  @org.junit.Test
+  public void testFreeze()
+  {
+    System.out.println("freeze");
+    BusSubscription sub = BusSubscription.of(1).range(10, 20);
+    BusSubscription frozen = sub.freeze();
+
+    assertTrue(frozen.isFrozen());
+    assertSame(frozen, frozen.freeze());
+
+    sub.add(2).range(30, 40);
+    assertTrue(sub.matches(2));
+    assertTrue(sub.matches(35));
+    assertTrue(frozen.matches(1));
+    assertTrue(frozen.matches(15));
+    assertFalse(frozen.matches(2));
+    assertFalse(frozen.matches(35));
+
+    try
+    {
+      frozen.add(3);
+      fail("add su sottoscrizione congelata");
+    }
+    catch(IllegalStateException ex)
+    {
+    }
+
+    try
+    {
+      frozen.range(50, 60);
+      fail("range su sottoscrizione congelata");
+    }
+    catch(IllegalStateException ex)
+    {
+    }
+  }
+
+  /**
+   * Test of getDispatchList method, of class CoreMessageBus2.
+   */
+  @org.junit.Test
+  public void testDispatchIndex()
+  {
+    System.out.println("dispatchIndex");
+    CoreMessageBus2 bus = new CoreMessageBus2();
+    BusSubscription sub = BusSubscription.of(1, 2);
+
+    bus.registerEventListner("all", listener);
+    bus.registerEventListner("sub", listener, sub);
+
+    assertTrue(contains(bus.getDispatchList(1), "all"));
+    assertTrue(contains(bus.getDispatchList(1), "sub"));
+    assertTrue(contains(bus.getDispatchList(3), "all"));
+    assertFalse(contains(bus.getDispatchList(3), "sub"));
+
+    // la lista in cache viene riutilizzata finché gli ascoltatori non cambiano
+    assertSame(bus.getDispatchList(1), bus.getDispatchList(1));
+
+    // la sottoscrizione registrata non segue le modifiche successive
+    sub.add(3);
+    assertFalse(contains(bus.getDispatchList(3), "sub"));
+
+    // una nuova registrazione ricostruisce l'indice
+    bus.registerEventListner("sub", listener, sub);
+    assertTrue(contains(bus.getDispatchList(3), "sub"));
+
+    bus.removeEventListner("all");
+    assertFalse(contains(bus.getDispatchList(3), "all"));
+    assertTrue(contains(bus.getDispatchList(3), "sub"));
+
+    bus.registerEventListner("sub", listener);
+    assertTrue(contains(bus.getDispatchList(99), "sub"));
+  }
+
+  /** ricerca degli ascoltatori senza indice: scansione di tutte le registrazioni */
+  private static List<String> scan(CoreMessageBus2 bus, int msgID)
+  {
+    ArrayList<String> rv = new ArrayList<>();
+    for(Map.Entry<String, MessageBusListener> entry : bus.busMap.entrySet())
+    {
+      BusSubscription sub = bus.subscriptions.get(entry.getKey());
+      if(sub == null || sub.matches(msgID))
+        rv.add(entry.getKey());
+    }
+    return rv;
+  }
+
+  /**
+   * Confronto fra indice per msgID e scansione completa con 500 ascoltatori.
+   */
+  @org.junit.Test
+  public void testDispatchIndexBenchmark()
+  {
+    System.out.println("dispatchIndexBenchmark");
+    final int listeners = 500, rounds = 20000;
+    CoreMessageBus2 bus = new CoreMessageBus2();
+
+    // ognuno sottoscrive un solo messaggio; 10 ascoltatori ricevono tutto
+    for(int i = 0; i < listeners; i++)
+      bus.registerEventListner(String.format("sub%03d", i), listener, BusSubscription.of(i));
+    for(int i = 0; i < 10; i++)
+      bus.registerEventListner("all" + i, listener);
+
+    for(int msgID = 0; msgID < listeners; msgID += 50)
+    {
+      List<String> expected = scan(bus, msgID);
+      assertEquals(11, expected.size());
+      assertEquals(expected.size(), bus.getDispatchList(msgID).size());
+      for(String name : expected)
+        assertTrue(contains(bus.getDispatchList(msgID), name));
+    }
+
+    long[] best = new long[]
+    {
+      Long.MAX_VALUE, Long.MAX_VALUE
+    };
+    int found = 0;
+    for(int pass = 0; pass < 5; pass++)
+    {
+      long start = System.nanoTime();
+      for(int i = 0; i < rounds; i++)
+        found += scan(bus, i % listeners).size();
+      best[0] = Math.min(best[0], System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for(int i = 0; i < rounds; i++)
+        found += bus.getDispatchList(i % listeners).size();
+      best[1] = Math.min(best[1], System.nanoTime() - start);
+    }
+
+    System.out.printf("listeners=%d scan=%dns/msg index=%dns/msg%n",
+       listeners + 10, best[0] / rounds, best[1] / rounds);
+
+    assertEquals(5 * 2 * rounds * 11, found);
+    assertTrue(best[1] < best[0]);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.util.HashMap;
+import java.util.Random;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.ObjectKey;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class TableCacheIntMapTest
+{
+  public TableCacheIntMapTest()
+  {
+  }
+
+  /**
+   * Test of put and get methods, of class TableCacheIntMap.
+   */
+  @org.junit.Test
+  public void testPutGet()
+  {
+    System.out.println("putGet");
+    TableCacheIntMap map = new TableCacheIntMap(4);
+
+    // la mappa cresce oltre la dimensione prevista
+    for(int i = -500; i < 500; i++)
+      map.put(i * 7, "v" + i);
+    assertEquals(1000, map.size());
+
+    for(int i = -500; i < 500; i++)
+      assertEquals("v" + i, map.get(i * 7));
+    assertNull(map.get(1));
+    assertNull(map.get(Integer.MAX_VALUE));
+
+    map.put(0, "zero");
+    assertEquals(1000, map.size());
+    assertEquals("zero", map.get(0));
+  }
+
+  /**
+   * Confronto fra ricerca per chiave intera e ricerca per NumberKey.
+   */
+  @org.junit.Test
+  public void testLookupBenchmark()
+  {
+    System.out.println("lookupBenchmark");
+    final int rows = 100000, rounds = 1000000;
+
+    HashMap<ObjectKey, Object> byKey = new HashMap<>(rows * 2);
+    TableCacheIntMap byInt = new TableCacheIntMap(rows);
+    for(int i = 1; i <= rows; i++)
+    {
+      Object row = "record " + i;
+      byKey.put(new NumberKey(i), row);
+      byInt.put(i, row);
+    }
+
+    // stessa sequenza di chiavi per le due ricerche (anche inesistenti)
+    int[] probes = new int[rounds];
+    Random rnd = new Random(1);
+    for(int i = 0; i < rounds; i++)
+      probes[i] = rnd.nextInt(rows + rows / 10) + 1;
+
+    long[] best = new long[]
+    {
+      Long.MAX_VALUE, Long.MAX_VALUE
+    };
+    long found = 0;
+    for(int pass = 0; pass < 5; pass++)
+    {
+      // percorso precedente: ogni ricerca alloca NumberKey e BigDecimal
+      long start = System.nanoTime();
+      for(int id : probes)
+        if(byKey.get(new NumberKey(id)) != null)
+          found++;
+      best[0] = Math.min(best[0], System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for(int id : probes)
+        if(byInt.get(id) != null)
+          found++;
+      best[1] = Math.min(best[1], System.nanoTime() - start);
+    }
+
+    System.out.printf("rows=%d NumberKey=%dns/lookup int=%dns/lookup%n",
+       rows, best[0] / rounds, best[1] / rounds);
+
+    // entrambe le ricerche trovano gli stessi record
+    long hits = 0;
+    for(int id : probes)
+    {
+      assertSame(byKey.get(new NumberKey(id)), byInt.get(id));
+      if(id <= rows)
+        hits++;
+    }
+    assertEquals(hits * 10, found);
+    assertTrue(best[1] < best[0]);
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import org.apache.torque.criteria.Criteria;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class TablePeerAccessTest
+{
+  private static final List ROWS = Collections.singletonList("record");
+
+  /** peer fittizio */
+  public static class TestPeer
+  {
+    public static List doSelect(Criteria c, Connection con)
+    {
+      return ROWS;
+    }
+  }
+
+  /** record fittizio */
+  public static class TestBean
+  {
+    private final Integer id;
+
+    public TestBean(int id)
+    {
+      this.id = id;
+    }
+
+    public Integer getId()
+    {
+      return id;
+    }
+  }
+
+  public TablePeerAccessTest()
+  {
+  }
+
+  /**
+   * Test of doSelect method, of class TablePeerAccess.
+   */
+  @org.junit.Test
+  public void testDoSelect()
+     throws Exception
+  {
+    System.out.println("doSelect");
+    TablePeerAccess pa = TablePeerAccess.of(TestPeer.class);
+    assertSame(pa, TablePeerAccess.of(TestPeer.class));
+    assertSame(ROWS, pa.doSelect(null, null));
+
+    try
+    {
+      pa.retrieveByPKs(Collections.EMPTY_LIST, null);
+      fail("metodo non implementato dal peer");
+    }
+    catch(RuntimeException ex)
+    {
+    }
+  }
+
+  /**
+   * Confronto fra MethodHandle e reflection per i metodi del peer e i getter dei record.
+   */
+  @org.junit.Test
+  public void testInvokeBenchmark()
+     throws Exception
+  {
+    System.out.println("invokeBenchmark");
+    final int rounds = 1000000;
+
+    TablePeerAccess pa = TablePeerAccess.of(TestPeer.class);
+    Method mSelect = TestPeer.class.getMethod("doSelect", Criteria.class, Connection.class);
+
+    Method mGetter = TestBean.class.getMethod("getId");
+    Function<Object, Object> fnGetter = TablePeerAccess.getter(mGetter);
+    assertSame(fnGetter, TablePeerAccess.getter(mGetter));
+
+    TestBean[] beans = new TestBean[1000];
+    for(int i = 0; i < beans.length; i++)
+      beans[i] = new TestBean(i);
+
+    long[] best = new long[]
+    {
+      Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE
+    };
+    long sum = 0;
+    for(int pass = 0; pass < 5; pass++)
+    {
+      long start = System.nanoTime();
+      for(int i = 0; i < rounds; i++)
+        sum += ((List) mSelect.invoke(null, null, null)).size();
+      best[0] = Math.min(best[0], System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for(int i = 0; i < rounds; i++)
+        sum += pa.doSelect(null, null).size();
+      best[1] = Math.min(best[1], System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for(int i = 0; i < rounds; i++)
+        sum += (Integer) mGetter.invoke(beans[i % beans.length]);
+      best[2] = Math.min(best[2], System.nanoTime() - start);
+
+      start = System.nanoTime();
+      for(int i = 0; i < rounds; i++)
+        sum += (Integer) fnGetter.apply(beans[i % beans.length]);
+      best[3] = Math.min(best[3], System.nanoTime() - start);
+    }
+
+    System.out.printf("peer: reflection=%dns/call handle=%dns/call; getter: reflection=%dns/call lambda=%dns/call%n",
+       best[0] / rounds, best[1] / rounds, best[2] / rounds, best[3] / rounds);
+
+    // stessi risultati dai due percorsi
+    long getters = 0;
+    for(int i = 0; i < rounds; i++)
+      getters += i % beans.length;
+    assertEquals(5 * 2 * (rounds + getters), sum);
+    for(TestBean b : beans)
+      assertEquals(mGetter.invoke(b), fnGetter.apply(b));
+
+    // il getter generato non passa per l'array degli argomenti e il boxing della reflection
+    assertTrue(best[3] < best[2]);
+  }
+}
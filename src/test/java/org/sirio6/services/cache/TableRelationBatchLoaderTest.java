@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.cache;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.Persistent;
+import org.sirio6.utils.tables.TableBatchLoader;
+import static org.junit.Assert.*;
+
+/**
+ * Test della lettura a blocchi su database H2 in memoria.
+ *
+ * @author Nicola De Nisco
+ */
+public class TableRelationBatchLoaderTest
+{
+  private static final String URL = "jdbc:h2:mem:batchloader;DB_CLOSE_DELAY=-1";
+  private static final int ROWS = 100000, MISSING = 1000, CHUNK = 500, THREADS = 4;
+
+  private Connection con;
+  private final List<Integer> chunkSizes = Collections.synchronizedList(new ArrayList<>());
+  private final Set<String> threadNames = ConcurrentHashMap.newKeySet();
+
+  public TableRelationBatchLoaderTest()
+  {
+  }
+
+  @org.junit.Before
+  public void setUp()
+     throws Exception
+  {
+    chunkSizes.clear();
+    threadNames.clear();
+    con = DriverManager.getConnection(URL);
+    try(Statement st = con.createStatement())
+    {
+      st.executeUpdate("CREATE TABLE IF NOT EXISTS RECORDS ("
+         + " id INTEGER NOT NULL PRIMARY KEY,"
+         + " descrizione VARCHAR(32))");
+      st.executeUpdate("DELETE FROM RECORDS");
+      st.executeUpdate("INSERT INTO RECORDS SELECT X, 'record ' || X FROM SYSTEM_RANGE(1, " + ROWS + ")");
+    }
+  }
+
+  @org.junit.After
+  public void tearDown()
+     throws Exception
+  {
+    con.close();
+  }
+
+  private static Persistent record(int id)
+  {
+    NumberKey pk = new NumberKey(id);
+    return (Persistent) Proxy.newProxyInstance(
+       TableRelationBatchLoaderTest.class.getClassLoader(), new Class[]
+       {
+         Persistent.class
+       }, (proxy, method, args) ->
+    {
+      switch(method.getName())
+      {
+        case "getPrimaryKey":
+          return pk;
+        case "hashCode":
+          return id;
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "record " + id;
+      }
+      return method.getReturnType() == boolean.class ? false : null;
+    });
+  }
+
+  /** query IN per un blocco di chiavi */
+  private List<Persistent> query(Collection<Integer> chunk, Connection c)
+     throws Exception
+  {
+    chunkSizes.add(chunk.size());
+    threadNames.add(Thread.currentThread().getName());
+
+    StringBuilder sql = new StringBuilder("SELECT id FROM RECORDS WHERE id IN (");
+    for(int i = 0; i < chunk.size(); i++)
+      sql.append(i == 0 ? "?" : ",?");
+    sql.append(")");
+
+    ArrayList<Persistent> rv = new ArrayList<>(chunk.size());
+    try(PreparedStatement ps = c.prepareStatement(sql.toString()))
+    {
+      int i = 1;
+      for(Integer key : chunk)
+        ps.setInt(i++, key);
+
+      try(ResultSet rs = ps.executeQuery())
+      {
+        while(rs.next())
+          rv.add(record(rs.getInt(1)));
+      }
+    }
+    return rv;
+  }
+
+  /** blocco letto in parallelo: ogni blocco apre una propria connessione */
+  private List<Persistent> queryParallel(Collection<Integer> chunk, Connection c)
+     throws Exception
+  {
+    assertNull(c);
+    try(Connection own = DriverManager.getConnection(URL))
+    {
+      return query(chunk, own);
+    }
+  }
+
+  /** tutte le chiavi della tabella più duplicati, null e chiavi inesistenti */
+  private static List<Integer> keys()
+  {
+    ArrayList<Integer> rv = new ArrayList<>();
+    for(int i = 1; i <= ROWS; i++)
+      rv.add(i);
+    for(int i = ROWS; i > 0; i -= 2)
+      rv.add(i);
+    rv.add(null);
+    for(int i = 1; i <= MISSING; i++)
+      rv.add(ROWS + i);
+    rv.add(null);
+    return rv;
+  }
+
+  private void checkChunks()
+  {
+    int distinct = ROWS + MISSING;
+    assertEquals((distinct + CHUNK - 1) / CHUNK, chunkSizes.size());
+
+    int total = 0;
+    for(int size : chunkSizes)
+    {
+      assertTrue(size <= CHUNK);
+      total += size;
+    }
+
+    // ogni chiave interrogata una sola volta
+    assertEquals(distinct, total);
+  }
+
+  private static void checkRecords(List lsValues)
+  {
+    assertEquals(ROWS, lsValues.size());
+
+    HashSet<Integer> ids = new HashSet<>();
+    for(Object obj : lsValues)
+      assertTrue(ids.add(((NumberKey) ((Persistent) obj).getPrimaryKey()).intValue()));
+
+    for(int i = 1; i <= ROWS; i++)
+      assertTrue(ids.contains(i));
+  }
+
+  /**
+   * Test of fetch method, of class TableRelationBatchLoader: con una connessione
+   * del chiamante i blocchi sono letti in sequenza sulla stessa connessione.
+   */
+  @org.junit.Test
+  public void testSequential()
+     throws Exception
+  {
+    System.out.println("sequential");
+    List lsValues = TableRelationBatchLoader.fetch(keys(), con, this::query, CHUNK, THREADS);
+
+    checkChunks();
+    checkRecords(lsValues);
+    assertEquals(Collections.singleton(Thread.currentThread().getName()), threadNames);
+  }
+
+  /**
+   * Test of fetch method, of class TableRelationBatchLoader: blocchi in parallelo.
+   */
+  @org.junit.Test
+  public void testParallel()
+     throws Exception
+  {
+    System.out.println("parallel");
+    List lsValues = TableRelationBatchLoader.fetch(keys(), null, this::query, CHUNK, THREADS, this::queryParallel);
+
+    checkChunks();
+    checkRecords(lsValues);
+    assertEquals(Collections.singleton("TableRelationBatchLoader"), threadNames);
+  }
+
+  /**
+   * I record letti in parallelo vengono raccolti nell'indice del caricatore della richiesta.
+   */
+  @org.junit.Test
+  public void testParallelMerge()
+     throws Exception
+  {
+    System.out.println("parallelMerge");
+    TableBatchLoader<Persistent> bl = new TableBatchLoader<>((lsKeys, c)
+       -> TableRelationBatchLoader.fetch(lsKeys, null, this::query, CHUNK, THREADS, this::queryParallel));
+
+    bl.requestAll(keys());
+    assertEquals(ROWS + MISSING, bl.getPendingCount());
+
+    bl.dispatch(con);
+    checkChunks();
+    assertEquals(1, bl.getDispatchCount());
+    assertEquals(ROWS, bl.getLoadedCount());
+
+    for(int i = 1; i <= ROWS; i++)
+      assertEquals(new NumberKey(i), bl.get(i).getPrimaryKey());
+    for(int i = 1; i <= MISSING; i++)
+      assertNull(bl.get(ROWS + i));
+
+    // nessuna ulteriore lettura
+    assertEquals(1, bl.getDispatchCount());
+    assertEquals((ROWS + MISSING + CHUNK - 1) / CHUNK, chunkSizes.size());
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.contatori;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+
+/**
+ * Test di concorrenza del servizio di blocco (senza Turbine: coreInit non viene chiamato).
+ *
+ * @author Nicola De Nisco
+ */
+public class CoreLockServiceTest
+{
+  private static final String TIPO = "test";
+
+  private CoreLockService service;
+
+  public CoreLockServiceTest()
+  {
+  }
+
+  @org.junit.Before
+  public void setUp()
+     throws Exception
+  {
+    service = new CoreLockService();
+  }
+
+  /**
+   * Molti thread in competizione su poche risorse: mai più di maxLocks possessori.
+   */
+  private void stress(int maxLocks)
+     throws Exception
+  {
+    final int threads = 16, loops = 200, resources = 3;
+    service.createResource(TIPO, maxLocks, false);
+
+    AtomicInteger[] holders = new AtomicInteger[resources];
+    int[] counters = new int[resources];
+    for(int i = 0; i < resources; i++)
+      holders[i] = new AtomicInteger();
+    AtomicInteger maxHolders = new AtomicInteger();
+
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<?>> lsFuture = new ArrayList<>();
+    for(int t = 0; t < threads; t++)
+    {
+      final int idUtente = t + 1;
+      lsFuture.add(pool.submit(() ->
+      {
+        for(int i = 0; i < loops; i++)
+        {
+          int r = (idUtente + i) % resources;
+          service.lockResource(TIPO, r, idUtente);
+          try
+          {
+            int h = holders[r].incrementAndGet();
+            maxHolders.accumulateAndGet(h, Math::max);
+            if(maxLocks == 1)
+              counters[r]++;
+            Thread.yield();
+          }
+          finally
+          {
+            holders[r].decrementAndGet();
+            service.unlockResource(TIPO, r, idUtente);
+          }
+        }
+        return null;
+      }));
+    }
+
+    for(Future<?> f : lsFuture)
+      f.get(60, TimeUnit.SECONDS);
+    pool.shutdown();
+
+    assertTrue(maxHolders.get() <= maxLocks);
+    if(maxLocks == 1)
+    {
+      int total = 0;
+      for(int c : counters)
+        total += c;
+      assertEquals(threads * loops, total);
+    }
+
+    assertTrue(service.getLockInfo().isEmpty());
+  }
+
+  /**
+   * Test of lockResource method, of class CoreLockService: mutua esclusione.
+   */
+  @org.junit.Test
+  public void testStressExclusive()
+     throws Exception
+  {
+    System.out.println("stressExclusive");
+    stress(1);
+  }
+
+  /**
+   * Test of lockResource method, of class CoreLockService: maxLocks.
+   */
+  @org.junit.Test
+  public void testStressMaxLocks()
+     throws Exception
+  {
+    System.out.println("stressMaxLocks");
+    stress(3);
+  }
+
+  private void waitForWaiters(int count)
+     throws Exception
+  {
+    for(int i = 0; i < 200; i++)
+    {
+      List<LockResourceInfo> lsInfo = service.getLockInfo();
+      if(!lsInfo.isEmpty() && lsInfo.get(0).waiters.size() == count)
+        return;
+      Thread.sleep(10);
+    }
+    fail("attese non registrate");
+  }
+
+  /**
+   * Test of lockResource method, of class CoreLockService: ordine di arrivo.
+   */
+  @org.junit.Test
+  public void testFifo()
+     throws Exception
+  {
+    System.out.println("fifo");
+    service.createResource(TIPO, 1, false);
+    service.lockResource(TIPO, 1, 100);
+
+    List<Integer> lsOrder = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> lsThread = new ArrayList<>();
+    CountDownLatch hold = new CountDownLatch(1);
+    for(int u = 1; u <= 5; u++)
+    {
+      final int idUtente = u;
+      Thread t = new Thread(() ->
+      {
+        try
+        {
+          service.lockResource(TIPO, 1, idUtente);
+          lsOrder.add(idUtente);
+
+          // l'ultimo trattiene il blocco fino alla verifica
+          if(idUtente == 5)
+            hold.await();
+
+          service.unlockResource(TIPO, 1, idUtente);
+        }
+        catch(LockException | InterruptedException ex)
+        {
+          throw new RuntimeException(ex);
+        }
+      });
+      t.start();
+      lsThread.add(t);
+      waitForWaiters(u);
+    }
+
+    // con richieste in coda un nuovo arrivato non ottiene il permesso
+    service.unlockResource(TIPO, 1, 100);
+    assertFalse(service.tryLockResource(TIPO, 1, 200, 0));
+    hold.countDown();
+
+    for(Thread t : lsThread)
+      t.join(10000);
+
+    assertEquals(5, lsOrder.size());
+    for(int i = 0; i < 5; i++)
+      assertEquals(i + 1, (int) lsOrder.get(i));
+  }
+
+  /**
+   * Test of tryLockResource method, of class CoreLockService.
+   */
+  @org.junit.Test
+  public void testTryLock()
+     throws Exception
+  {
+    System.out.println("tryLock");
+    service.createResource(TIPO, 1, false);
+    assertTrue(service.tryLockResource(TIPO, 1, 1, 0));
+
+    long start = System.currentTimeMillis();
+    assertFalse(service.tryLockResource(TIPO, 1, 2, 100));
+    assertTrue(System.currentTimeMillis() - start >= 100);
+
+    // stesso utente: blocco già posseduto
+    assertTrue(service.tryLockResource(TIPO, 1, 1, 0));
+
+    CountDownLatch acquired = new CountDownLatch(1);
+    Thread t = new Thread(() ->
+    {
+      try
+      {
+        if(service.tryLockResource(TIPO, 1, 2, 5000))
+          acquired.countDown();
+      }
+      catch(LockException ex)
+      {
+      }
+    });
+    t.start();
+    waitForWaiters(1);
+    service.unlockResource(TIPO, 1, 1);
+    assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    t.join();
+
+    // la scadenza rilascia il blocco di un possessore scomparso
+    assertTrue(service.tryLockResource(TIPO, 2, 3, 0, 50));
+    assertTrue(service.tryLockResource(TIPO, 2, 4, 2000));
+  }
+}
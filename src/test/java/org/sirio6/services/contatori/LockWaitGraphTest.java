@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.services.contatori;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class LockWaitGraphTest
+{
+  private LockWaitGraph graph;
+
+  public LockWaitGraphTest()
+  {
+  }
+
+  @org.junit.Before
+  public void setUp()
+  {
+    graph = new LockWaitGraph();
+  }
+
+  private LockGrant grant(LockResourceItem item, Thread thread, int idUtente, long expires)
+  {
+    LockGrant g = new LockGrant(thread, System.currentTimeMillis(), expires);
+    g.idUtenti.add(idUtente);
+    graph.addGrant(item, g);
+    return g;
+  }
+
+  /**
+   * Esegue una attesa illimitata in un altro thread fino al rilascio del latch.
+   */
+  private Thread waitIn(LockResourceItem item, int idRisorsa, int idUtente, CountDownLatch release)
+     throws Exception
+  {
+    CountDownLatch started = new CountDownLatch(1);
+    AtomicReference<Exception> error = new AtomicReference<>();
+    Thread t = new Thread(() ->
+    {
+      try
+      {
+        LockWaiter w = graph.startWait("test", idRisorsa, item, Collections.singleton(idUtente), Long.MAX_VALUE);
+        started.countDown();
+        release.await();
+        graph.endWait(w);
+      }
+      catch(Exception ex)
+      {
+        error.set(ex);
+        started.countDown();
+      }
+    });
+    t.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertNull(error.get());
+    return t;
+  }
+
+  /**
+   * Test of startWait method, of class LockWaitGraph: ciclo fra due utenti.
+   */
+  @org.junit.Test
+  public void testCycle()
+     throws Exception
+  {
+    System.out.println("cycle");
+    LockResourceItem item1 = new LockResourceItem(), item2 = new LockResourceItem();
+    CountDownLatch release = new CountDownLatch(1);
+
+    // questo thread (utente 2) possiede la risorsa 2
+    grant(item2, Thread.currentThread(), 2, 0);
+
+    // un altro thread (utente 1) attende la risorsa 2 e possiede la 1
+    Thread waiting = waitIn(item2, 2, 1, release);
+    grant(item1, waiting, 1, 0);
+
+    try
+    {
+      graph.startWait("test", 1, item1, Collections.singleton(2), Long.MAX_VALUE);
+      fail("stallo non rilevato");
+    }
+    catch(DeadlockException ex)
+    {
+      System.out.println(ex.getMessage());
+    }
+
+    // una attesa con timeout non può produrre stallo
+    LockWaiter w = graph.startWait("test", 1, item1, Collections.singleton(2), System.currentTimeMillis() + 1000);
+    assertEquals(1, item1.waiters.size());
+    graph.endWait(w);
+    assertTrue(item1.waiters.isEmpty());
+
+    release.countDown();
+    waiting.join(5000);
+  }
+
+  /**
+   * Test of startWait method, of class LockWaitGraph: blocco con scadenza.
+   */
+  @org.junit.Test
+  public void testLease()
+     throws Exception
+  {
+    System.out.println("lease");
+    LockResourceItem item1 = new LockResourceItem(), item2 = new LockResourceItem();
+    CountDownLatch release = new CountDownLatch(1);
+
+    grant(item2, Thread.currentThread(), 2, 0);
+    Thread waiting = waitIn(item2, 2, 1, release);
+    grant(item1, waiting, 1, System.currentTimeMillis() + 60000);
+
+    LockWaiter w = graph.startWait("test", 1, item1, Collections.singleton(2), Long.MAX_VALUE);
+    graph.endWait(w);
+
+    release.countDown();
+    waiting.join(5000);
+  }
+
+  /**
+   * Test of startWait method, of class LockWaitGraph: stesso utente su due thread.
+   */
+  @org.junit.Test
+  public void testSameUserTwoThreads()
+     throws Exception
+  {
+    System.out.println("sameUserTwoThreads");
+    LockResourceItem item1 = new LockResourceItem(), item2 = new LockResourceItem();
+    CountDownLatch release = new CountDownLatch(1);
+
+    // utente 2 (questo thread) possiede la risorsa 2
+    grant(item2, Thread.currentThread(), 2, 0);
+
+    // utente 1: un thread attende la risorsa 2, un altro thread (attivo) possiede la risorsa 1
+    Thread waiting = waitIn(item2, 2, 1, release);
+    Thread running = new Thread(() ->
+    {
+    });
+    grant(item1, running, 1, 0);
+
+    // il thread attivo può rilasciare la risorsa 1: nessuno stallo
+    LockWaiter w = graph.startWait("test", 1, item1, Collections.singleton(2), Long.MAX_VALUE);
+    graph.endWait(w);
+
+    release.countDown();
+    waiting.join(5000);
+  }
+
+  /**
+   * Test of snapshot method, of class LockWaitGraph.
+   */
+  @org.junit.Test
+  public void testSnapshot()
+     throws Exception
+  {
+    System.out.println("snapshot");
+    LockResourceItem item = new LockResourceItem();
+    assertNull(graph.snapshot("test", 1, item));
+
+    LockGrant g = grant(item, Thread.currentThread(), 1, 0);
+    graph.addUsers(item, g, Collections.singleton(3));
+    LockWaiter w = graph.startWait("test", 1, item, Collections.singleton(2), System.currentTimeMillis() + 1000);
+
+    LockResourceInfo info = graph.snapshot("test", 1, item);
+    assertEquals(1, info.holders.size());
+    assertEquals(2, info.holders.get(0).idUtenti.size());
+    assertNotSame(g, info.holders.get(0));
+    assertEquals(1, info.waiters.size());
+    assertTrue(info.waiters.get(0).idUtenti.contains(2));
+    assertTrue(item.verificaUtente(3));
+    System.out.println(info);
+
+    graph.endWait(w);
+    graph.removeGrant(item, g);
+    assertNull(graph.snapshot("test", 1, item));
+    assertFalse(item.verificaUtente(1));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2026 Nicola De Nisco
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package org.sirio6.utils.tables;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import org.apache.torque.om.NumberKey;
+import org.apache.torque.om.Persistent;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Nicola De Nisco
+ */
+public class TableBatchLoaderTest
+{
+  /** connessione fittizia: il caricatore non apre transazioni */
+  private final Connection con = (Connection) Proxy.newProxyInstance(
+     getClass().getClassLoader(), new Class[]
+     {
+       Connection.class
+     }, (proxy, method, args) -> null);
+
+  private final ArrayList<Collection<Integer>> queries = new ArrayList<>();
+
+  public TableBatchLoaderTest()
+  {
+  }
+
+  @org.junit.Before
+  public void setUp()
+     throws Exception
+  {
+    queries.clear();
+  }
+
+  private static Persistent record(int id)
+  {
+    NumberKey pk = new NumberKey(id);
+    return (Persistent) Proxy.newProxyInstance(
+       TableBatchLoaderTest.class.getClassLoader(), new Class[]
+       {
+         Persistent.class
+       }, (proxy, method, args) ->
+    {
+      switch(method.getName())
+      {
+        case "getPrimaryKey":
+          return pk;
+        case "hashCode":
+          return id;
+        case "equals":
+          return proxy == args[0];
+        case "toString":
+          return "record " + id;
+      }
+      return method.getReturnType() == boolean.class ? false : null;
+    });
+  }
+
+  /** simula la tabella: esistono solo le chiavi positive */
+  private List<Persistent> fetch(Collection<Integer> keys, Connection c)
+  {
+    queries.add(new ArrayList<>(keys));
+    ArrayList<Persistent> rv = new ArrayList<>();
+    for(Integer k : keys)
+      if(k > 0)
+        rv.add(record(k));
+    return rv;
+  }
+
+  @org.junit.Test
+  public void testOneQueryForManyLookups()
+     throws Exception
+  {
+    System.out.println("testOneQueryForManyLookups");
+
+    TableBatchLoader<Persistent> bl = new TableBatchLoader<>(this::fetch);
+    for(int i = 1; i <= 100; i++)
+      bl.request(i);
+
+    assertEquals(100, bl.getPendingCount());
+
+    // il primo get legge tutte le chiavi in attesa: le 100 ricerche producono una query
+    List<Persistent> found = bl.fetch(List.of(1, 50, 100), con);
+    assertEquals(3, found.size());
+    for(int i = 1; i <= 100; i++)
+      assertEquals(new NumberKey(i), bl.fetch(List.of(i), con).get(0).getPrimaryKey());
+
+    assertEquals(1, queries.size());
+    assertEquals(100, queries.get(0).size());
+    assertEquals(1, bl.getDispatchCount());
+    assertEquals(0, bl.getPendingCount());
+  }
+
+  @org.junit.Test
+  public void testLoadedKeysNotRequeried()
+     throws Exception
+  {
+    System.out.println("testLoadedKeysNotRequeried");
+
+    TableBatchLoader<Persistent> bl = new TableBatchLoader<>(this::fetch);
+    bl.fetch(List.of(1, 2, 3), con);
+    bl.fetch(List.of(2, 3, 4, 5), con);
+
+    assertEquals(2, queries.size());
+    assertEquals(List.of(4, 5), queries.get(1));
+
+    // chiavi inesistenti: lette una sola volta
+    assertTrue(bl.fetch(List.of(-1), con).isEmpty());
+    assertTrue(bl.fetch(List.of(-1), con).isEmpty());
+    assertEquals(3, queries.size());
+    assertEquals(5, bl.getLoadedCount());
+  }
+
+  @org.junit.Test
+  public void testContextNesting()
+  {
+    System.out.println("testContextNesting");
+
+    assertNull(TableBatchContext.current());
+    try (TableBatchContext outer = TableBatchContext.open())
+    {
+      assertSame(outer, TableBatchContext.current());
+      try (TableBatchContext inner = TableBatchContext.open())
+      {
+        assertSame(inner, TableBatchContext.current());
+      }
+      assertSame(outer, TableBatchContext.current());
+    }
+    assertNull(TableBatchContext.current());
+  }
+}